@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.MediumTest;
+
+import com.tachibana.downloader.core.HttpConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Pause and stop latency of HttpConnection on a stalled server:
+ * it sends the headers and a few bytes of the body, then nothing,
+ * while the read timeout is much longer than the expected latency
+ */
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class CancellationLatencyTest
+{
+    private static final int READ_TIMEOUT = 30 * 1000; /* ms */
+    private static final long MAX_LATENCY = 1000; /* ms */
+
+    private ServerSocket server;
+    private final ArrayList<Socket> accepted = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    synchronized (accepted) {
+                        accepted.add(s);
+                    }
+                    OutputStream out = s.getOutputStream();
+                    out.write(("HTTP/1.1 206 Partial Content\r\n" +
+                            "Content-Length: 1048576\r\n" +
+                            "Connection: close\r\n" +
+                            "\r\n" +
+                            "partial").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+        synchronized (accepted) {
+            for (Socket s : accepted)
+                s.close();
+        }
+    }
+
+    @Test
+    public void pauseLatencyTest() throws Exception
+    {
+        assertLatency(CancellationToken.REASON_PAUSE);
+    }
+
+    @Test
+    public void stopLatencyTest() throws Exception
+    {
+        assertLatency(CancellationToken.REASON_STOP);
+    }
+
+    @Test
+    public void cancelBeforeConnectTest() throws Exception
+    {
+        CancellationToken token = new CancellationToken();
+        token.cancel(CancellationToken.REASON_STOP);
+
+        AtomicBoolean cancelled = new AtomicBoolean();
+        HttpConnection connection = newConnection(token, new ReadListener() {
+            @Override
+            public void onIOException(IOException e)
+            {
+                cancelled.set(true);
+            }
+        });
+        connection.run();
+        assertTrue(cancelled.get());
+    }
+
+    private void assertLatency(int reason) throws Exception
+    {
+        CancellationToken token = new CancellationToken();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong endTime = new AtomicLong();
+        HttpConnection connection = newConnection(token, new ReadListener() {
+            @Override
+            public void onResponseHandle(HttpURLConnection conn, int code, String message)
+            {
+                try (InputStream in = conn.getInputStream()) {
+                    byte[] buf = new byte[8192];
+                    reading.countDown();
+                    while (in.read(buf) != -1)
+                        ;
+
+                } catch (IOException e) {
+                    /* Expected */
+                }
+            }
+        });
+        Thread t = new Thread(() -> {
+            connection.run();
+            endTime.set(System.nanoTime());
+            done.countDown();
+        });
+        t.start();
+
+        assertTrue(reading.await(READ_TIMEOUT, TimeUnit.MILLISECONDS));
+        /* Let the read block */
+        Thread.sleep(200);
+
+        long cancelTime = System.nanoTime();
+        token.cancel(reason);
+        assertTrue("Read isn't cancelled", done.await(READ_TIMEOUT / 2, TimeUnit.MILLISECONDS));
+
+        long latency = TimeUnit.NANOSECONDS.toMillis(endTime.get() - cancelTime);
+        assertTrue("Latency " + latency + " ms", latency < MAX_LATENCY);
+    }
+
+    private HttpConnection newConnection(CancellationToken token,
+                                         HttpConnection.Listener listener) throws Exception
+    {
+        HttpConnection connection = new HttpConnection("http://" +
+                server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + "/");
+        connection.setTimeout(READ_TIMEOUT);
+        connection.setDisconnectHook(token);
+        connection.setListener(listener);
+
+        return connection;
+    }
+
+    private static class ReadListener implements HttpConnection.Listener
+    {
+        @Override
+        public void onConnectionCreated(HttpURLConnection conn)
+        {
+            conn.setRequestProperty("Connection", "close");
+        }
+
+        @Override
+        public void onResponseHandle(HttpURLConnection conn, int code, String message)
+        {
+        }
+
+        @Override
+        public void onMoved(String newUrl, boolean permanently)
+        {
+        }
+
+        @Override
+        public void onIOException(IOException e)
+        {
+        }
+
+        @Override
+        public void onTooManyRedirects()
+        {
+        }
+    }
+}
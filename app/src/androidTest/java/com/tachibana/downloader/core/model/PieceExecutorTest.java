@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.MediumTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * A download that has taken all the slots gives one of them
+ * to the download started later at the next chunk boundary
+ */
+
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class PieceExecutorTest
+{
+    private static final int LONG_PIECE_CHUNKS = 200;
+    private static final int SHORT_PIECE_CHUNKS = 10;
+    private static final long CHUNK_TIME = 5; /* ms */
+
+    @Test
+    public void groupsShareSlotsTest() throws Exception
+    {
+        PieceExecutor executor = new PieceExecutor(2);
+
+        ExecutorService first = executor.newGroup("first");
+        ArrayList<Future<Integer>> firstFutures = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            firstFutures.add(first.submit(new ChunkedPiece(LONG_PIECE_CHUNKS)));
+        first.shutdown();
+        while (executor.getStats().running < 2)
+            Thread.sleep(CHUNK_TIME);
+
+        ExecutorService second = executor.newGroup("second");
+        Future<Integer> secondFuture = second.submit(new ChunkedPiece(SHORT_PIECE_CHUNKS));
+        second.shutdown();
+
+        /* Without yielding it would wait until one of the long pieces is finished */
+        int done = secondFuture.get(LONG_PIECE_CHUNKS * CHUNK_TIME, TimeUnit.MILLISECONDS);
+        assertEquals(SHORT_PIECE_CHUNKS, done);
+        assertFalse(first.isTerminated());
+
+        /* The yielded piece continues from where it stopped */
+        assertTrue(first.awaitTermination(10, TimeUnit.SECONDS));
+        for (Future<Integer> f : firstFutures)
+            assertEquals(LONG_PIECE_CHUNKS, (int)f.get());
+
+        PieceExecutor.Stats stats = executor.getStats();
+        assertTrue(stats.yielded > 0);
+        assertEquals(3, stats.completed);
+        assertTrue(stats.maxRunning <= 2);
+    }
+
+    /*
+     * Returns the number of chunks done, see PieceExecutor.shouldYield()
+     */
+
+    private static class ChunkedPiece implements Callable<Integer>
+    {
+        private final int chunks;
+        private int done;
+
+        ChunkedPiece(int chunks)
+        {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public Integer call() throws Exception
+        {
+            while (done < chunks) {
+                Thread.sleep(CHUNK_TIME);
+                done++;
+                if (done < chunks && PieceExecutor.shouldYield())
+                    return -1;
+            }
+
+            return done;
+        }
+    }
+}
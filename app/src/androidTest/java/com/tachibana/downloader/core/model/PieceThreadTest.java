@@ -91,7 +91,10 @@ public class PieceThreadTest extends AbstractTest
             assertTrue(file.exists());
 
             /* Run piece task */
-            Future<PieceResult> f = runTask(new PieceThreadImpl(id, 0, repo, fs, systemFacade, pref));
+            DownloadContext context = new DownloadContext(info, new ArrayList<>());
+            Future<PieceResult> f = runTask(new PieceThreadImpl(context, 0,
+                    new ProgressJournal(id, 1, null), repo, fs, systemFacade,
+                    pref, new CancellationToken()));
             assertTrue(f.isDone());
             assertFalse(f.isCancelled());
 
@@ -143,7 +146,10 @@ public class PieceThreadTest extends AbstractTest
             assertTrue(file.exists());
 
             /* Run piece task */
-            Future<PieceResult> f = runTask(new PieceThreadImpl(id, 0, repo, fs, systemFacade, pref));
+            DownloadContext context = new DownloadContext(info, new ArrayList<>());
+            Future<PieceResult> f = runTask(new PieceThreadImpl(context, 0,
+                    new ProgressJournal(id, 1, null), repo, fs, systemFacade,
+                    pref, new CancellationToken()));
             assertTrue(f.isDone());
             assertFalse(f.isCancelled());
 
@@ -22,6 +22,7 @@ package com.tachibana.downloader.core.storage;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 import androidx.room.Room;
@@ -37,6 +38,7 @@ import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
+import com.tachibana.downloader.core.utils.DownloadKeys;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -46,10 +48,12 @@ import org.junit.runner.RunWith;
 import java.io.IOException;
 import java.util.UUID;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class DatabaseMigrationTest
@@ -132,6 +136,287 @@ public class DatabaseMigrationTest
         assertNull(db.downloadDao().getPiece(pieceIndex, infoId));
     }
 
+    @Test
+    public void testMigration6to7() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 6);
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, StatusCode.STATUS_RUNNING)), -1);
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 7, true,
+                DatabaseMigration.MIGRATION_6_7);
+
+        try (Cursor c = sqliteDb.query("SELECT `id` FROM `DownloadInfo` WHERE `statusCode` = ?",
+                new Object[]{StatusCode.STATUS_RUNNING})) {
+            assertTrue(c.moveToFirst());
+            assertEquals(infoId.toString(), c.getString(0));
+        }
+    }
+
+    @Test
+    public void testMigration7to8() throws IOException
+    {
+        helper.createDatabase(TEST_DATABASE_NAME, 7).close();
+
+        SupportSQLiteDatabase sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 8, true,
+                DatabaseMigration.MIGRATION_7_8);
+
+        ContentValues values = new ContentValues();
+        values.put("id", UUID.randomUUID().toString());
+        values.put("dirPath", fs.getDefaultDownloadPath());
+        values.put("url", "http://example.org");
+        values.put("fileName", "example");
+        values.put("totalBytes", 10);
+        values.put("statusCode", StatusCode.STATUS_SUCCESS);
+        values.put("dateAdded", System.currentTimeMillis());
+        values.put("lastModify", 0);
+        assertNotEquals(sqliteDb.insert("ArchivedDownload", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+    }
+
+    @Test
+    public void testMigration8to9() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 8);
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, StatusCode.STATUS_PAUSED)), -1);
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 9, true,
+                DatabaseMigration.MIGRATION_8_9);
+
+        ContentValues values = new ContentValues();
+        values.put("infoId", infoId.toString());
+        values.put("blockSize", 4);
+        values.put("totalBytes", 10);
+        values.put("bits", new byte[]{0x3});
+        assertNotEquals(sqliteDb.insert("WrittenBlocks", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+
+        try (Cursor c = sqliteDb.query("SELECT `bits` FROM `WrittenBlocks` WHERE `infoId` = ?",
+                new Object[]{infoId.toString()})) {
+            assertTrue(c.moveToFirst());
+            assertArrayEquals(new byte[]{0x3}, c.getBlob(0));
+        }
+    }
+
+    @Test
+    public void testMigration9to10_DownloadedBytes() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 9);
+
+        /* Two pieces of 50 bytes, the second one starts at position 50 */
+        UUID multiPieceId = UUID.randomUUID();
+        ContentValues values = makeInfoValues(multiPieceId, StatusCode.STATUS_PAUSED);
+        values.put("totalBytes", 100);
+        values.put("numPieces", 2);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+        insertPiece(sqliteDb, multiPieceId, 0, 50, 30);
+        insertPiece(sqliteDb, multiPieceId, 1, 50, 70);
+
+        /* Unknown size */
+        UUID unknownSizeId = UUID.randomUUID();
+        values = makeInfoValues(unknownSizeId, StatusCode.STATUS_PAUSED);
+        values.put("totalBytes", -1);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+        insertPiece(sqliteDb, unknownSizeId, 0, -1, 15);
+
+        /* No pieces yet */
+        UUID noPiecesId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(noPiecesId, StatusCode.STATUS_PENDING)), -1);
+
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 10, true,
+                DatabaseMigration.MIGRATION_9_10);
+
+        assertEquals(50, queryDownloadedBytes(sqliteDb, multiPieceId));
+        assertEquals(15, queryDownloadedBytes(sqliteDb, unknownSizeId));
+        assertEquals(0, queryDownloadedBytes(sqliteDb, noPiecesId));
+    }
+
+    @Test
+    public void testMigration10to11() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 10);
+        UUID infoId = UUID.randomUUID();
+        ContentValues values = makeInfoValues(infoId, StatusCode.STATUS_PAUSED);
+        values.put("downloadedBytes", 0);
+        values.put("speed", 0);
+        values.put("activePieces", 0);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 11, true,
+                DatabaseMigration.MIGRATION_10_11);
+
+        values = new ContentValues();
+        values.put("infoId", infoId.toString());
+        values.put("lastSampleTime", 1000);
+        values.put("samples", new byte[]{1, 2, 3, 4});
+        assertNotEquals(sqliteDb.insert("ThroughputHistory", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+    }
+
+    @Test
+    public void testMigration11to12_DownloadKeys() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 11);
+
+        String url = "http://example.org/file.zip";
+        String etag = "\"abc\"";
+        UUID infoId = UUID.randomUUID();
+        ContentValues values = makeInfoValues(infoId, StatusCode.STATUS_PAUSED);
+        values.put("url", url);
+        values.put("totalBytes", 100);
+        values.put("downloadedBytes", 0);
+        values.put("speed", 0);
+        values.put("activePieces", 0);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+
+        values = new ContentValues();
+        values.put("infoId", infoId.toString());
+        values.put("name", "ETag");
+        values.put("value", etag);
+        assertNotEquals(sqliteDb.insert("download_info_headers", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+
+        UUID archivedId = UUID.randomUUID();
+        values = new ContentValues();
+        values.put("id", archivedId.toString());
+        values.put("dirPath", fs.getDefaultDownloadPath());
+        values.put("url", url);
+        values.put("fileName", "file.zip");
+        values.put("totalBytes", 100);
+        values.put("statusCode", StatusCode.STATUS_SUCCESS);
+        values.put("dateAdded", System.currentTimeMillis());
+        values.put("lastModify", 0);
+        assertNotEquals(sqliteDb.insert("ArchivedDownload", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 12, true,
+                DatabaseMigration.MIGRATION_11_12);
+
+        try (Cursor c = sqliteDb.query("SELECT `urlHash`, `contentKey` FROM `DownloadInfo` WHERE `id` = ?",
+                new Object[]{infoId.toString()})) {
+            assertTrue(c.moveToFirst());
+            assertEquals(DownloadKeys.urlHash(url), c.getLong(0));
+            assertEquals(DownloadKeys.contentKey(url, etag, 100), c.getString(1));
+        }
+        try (Cursor c = sqliteDb.query("SELECT `urlHash` FROM `ArchivedDownload` WHERE `id` = ?",
+                new Object[]{archivedId.toString()})) {
+            assertTrue(c.moveToFirst());
+            assertEquals(DownloadKeys.urlHash(url), c.getLong(0));
+        }
+    }
+
+    @Test
+    public void testMigration12to13() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 12);
+        UUID infoId = UUID.randomUUID();
+        ContentValues values = makeInfoValues(infoId, StatusCode.STATUS_PENDING);
+        values.put("downloadedBytes", 0);
+        values.put("speed", 0);
+        values.put("activePieces", 0);
+        values.put("urlHash", 0);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 13, true,
+                DatabaseMigration.MIGRATION_12_13);
+
+        values = new ContentValues();
+        values.put("infoId", infoId.toString());
+        values.put("priority", 0);
+        values.put("position", 1);
+        assertNotEquals(sqliteDb.insert("QueuedDownload", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+    }
+
+    @Test
+    public void testMigration13to14() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 13);
+        UUID infoId = UUID.randomUUID();
+        ContentValues values = makeInfoValues(infoId, StatusCode.STATUS_PENDING);
+        values.put("downloadedBytes", 0);
+        values.put("speed", 0);
+        values.put("activePieces", 0);
+        values.put("urlHash", 0);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+
+        values = new ContentValues();
+        values.put("infoId", infoId.toString());
+        values.put("priority", 1);
+        values.put("position", 5);
+        assertNotEquals(sqliteDb.insert("QueuedDownload", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 14, true,
+                DatabaseMigration.MIGRATION_13_14);
+
+        try (Cursor c = sqliteDb.query("SELECT `priority`, `position`, `deadline`, `remainingBytes` " +
+                "FROM `QueuedDownload` WHERE `infoId` = ?", new Object[]{infoId.toString()})) {
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(0));
+            assertEquals(5, c.getLong(1));
+            assertEquals(0, c.getLong(2));
+            assertEquals(-1, c.getLong(3));
+        }
+    }
+
+    /*
+     * Required columns of the `DownloadInfo` table as of version 6
+     */
+
+    private ContentValues makeInfoValues(UUID infoId, int statusCode)
+    {
+        ContentValues values = new ContentValues();
+        values.put("id", infoId.toString());
+        values.put("dirPath", fs.getDefaultDownloadPath());
+        values.put("url", "http://example.org");
+        values.put("fileName", "example");
+        values.put("mimeType", "application/octet-stream");
+        values.put("totalBytes", 10);
+        values.put("numPieces", 1);
+        values.put("statusCode", statusCode);
+        values.put("unmeteredConnectionsOnly", 0);
+        values.put("retry", 1);
+        values.put("partialSupport", 1);
+        values.put("dateAdded", System.currentTimeMillis());
+        values.put("visibility", DownloadInfo.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
+        values.put("hasMetadata", 1);
+        values.put("numFailed", 0);
+        values.put("retryAfter", 0);
+        values.put("lastModify", 0);
+        values.put("uncompressArchive", 0);
+
+        return values;
+    }
+
+    private void insertPiece(SupportSQLiteDatabase sqliteDb, UUID infoId,
+                             int pieceIndex, long size, long curBytes)
+    {
+        ContentValues values = new ContentValues();
+        values.put("pieceIndex", pieceIndex);
+        values.put("infoId", infoId.toString());
+        values.put("size", size);
+        values.put("curBytes", curBytes);
+        values.put("statusCode", StatusCode.STATUS_PAUSED);
+        values.put("speed", 0);
+        assertNotEquals(sqliteDb.insert("DownloadPiece", SQLiteDatabase.CONFLICT_REPLACE, values), -1);
+    }
+
+    private long queryDownloadedBytes(SupportSQLiteDatabase sqliteDb, UUID infoId)
+    {
+        try (Cursor c = sqliteDb.query("SELECT `downloadedBytes` FROM `DownloadInfo` WHERE `id` = ?",
+                new Object[]{infoId.toString()})) {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        }
+    }
+
     private AppDatabase getMigratedRoomDatabase()
     {
         AppDatabase db = Room.databaseBuilder(context,
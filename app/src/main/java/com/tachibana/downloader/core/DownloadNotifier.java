@@ -40,9 +40,7 @@ import androidx.core.content.ContextCompat;
 
 import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.model.data.StatusCode;
-import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
-import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
-import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.DownloadNotifyInfo;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
 import com.tachibana.downloader.core.system.FileSystemFacade;
@@ -172,11 +170,11 @@ public class DownloadNotifier
 
     public void startUpdate()
     {
-        disposables.add(repo.observeAllInfoAndPieces()
+        disposables.add(repo.observeNotifyInfo()
                 .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(this::update,
-                        (Throwable t) -> Log.e(TAG, "Getting info and pieces error: "
+                        (Throwable t) -> Log.e(TAG, "Getting info error: "
                                 + Log.getStackTraceString(t))
                 ));
     }
@@ -258,24 +256,24 @@ public class DownloadNotifier
         notifyManager.notify(UNCOMPRESS_ARCHIVE_ERROR_TAG, id.hashCode(), builder.build());
     }
 
-    private void update(@NonNull List<InfoAndPieces> infoAndPiecesList)
+    private void update(@NonNull List<DownloadNotifyInfo> infoList)
     {
         synchronized (activeNotifs) {
             HashSet<UUID> ids = new HashSet<>();
-            for (InfoAndPieces infoAndPieces : infoAndPiecesList) {
-                if (infoAndPieces.info.statusCode == StatusCode.STATUS_STOPPED)
+            for (DownloadNotifyInfo info : infoList) {
+                if (info.statusCode == StatusCode.STATUS_STOPPED)
                     continue;
 
                 /* Do not remove current notification */
-                ids.add(infoAndPieces.info.id);
+                ids.add(info.id);
 
-                String tag = makeNotificationTag(infoAndPieces.info);
+                String tag = makeNotificationTag(info);
                 if (tag == null)
                     continue;
 
                 int type = getNotificationTagType(tag);
                 if (checkShowNotification(type)) {
-                    Notification notify = activeNotifs.get(infoAndPieces.info.id);
+                    Notification notify = activeNotifs.get(info.id);
 
                     boolean force;
                     if (notify == null) {
@@ -284,16 +282,16 @@ public class DownloadNotifier
                         int prevType = getNotificationTagType(notify.tag);
                         force = type != prevType;
                     }
-                    if (!(force || checkUpdateTime(infoAndPieces.info)))
+                    if (!(force || checkUpdateTime(info)))
                         continue;
 
-                    updateWithLocked(infoAndPieces, notify, tag, type);
+                    updateWithLocked(info, notify, tag, type);
                 } else {
                     /* For clearing previous notification */
-                    ids.remove(infoAndPieces.info.id);
+                    ids.remove(info.id);
                 }
-                if (type == TYPE_COMPLETE && infoAndPieces.info.visibility != VISIBILITY_HIDDEN)
-                    markAsHidden(infoAndPieces.info);
+                if (type == TYPE_COMPLETE && info.visibility != VISIBILITY_HIDDEN)
+                    markAsHidden(info);
             }
             cleanNotifs(ids);
         }
@@ -313,7 +311,7 @@ public class DownloadNotifier
         return false;
     }
 
-    private boolean checkUpdateTime(DownloadInfo info)
+    private boolean checkUpdateTime(DownloadNotifyInfo info)
     {
         Notification notify = activeNotifs.get(info.id);
         /* Force first notification */
@@ -326,9 +324,8 @@ public class DownloadNotifier
         return timeDelta > MIN_PROGRESS_TIME;
     }
 
-    private void updateWithLocked(InfoAndPieces infoAndPieces, Notification notify, String tag, int type)
+    private void updateWithLocked(DownloadNotifyInfo info, Notification notify, String tag, int type)
     {
-        DownloadInfo info = infoAndPieces.info;
         if (info.statusCode == StatusCode.STATUS_STOPPED) {
             notifyManager.cancel(tag, 0);
             return;
@@ -482,21 +479,14 @@ public class DownloadNotifier
 
         /* Calculate and show progress */
 
-        int size = infoAndPieces.pieces.size();
-        long downloadBytes = 0;
-        long speed = 0;
-
-        if (size > 0) {
-            for (DownloadPiece piece : infoAndPieces.pieces) {
-                downloadBytes += info.getDownloadedBytes(piece);
-                speed += piece.speed;
-            }
-        }
+        long downloadBytes = info.downloadedBytes;
+        long speed = info.speed;
 
         int progress = 0;
         long ETA = Utils.calcETA(info.totalBytes, downloadBytes, speed);
         if (type == TYPE_ACTIVE) {
-            if (info.statusCode == StatusCode.STATUS_FETCH_METADATA) {
+            if (info.statusCode == StatusCode.STATUS_FETCH_METADATA ||
+                    StatusCode.isStatusPostProcessing(info.statusCode)) {
                 builder.setProgress(100, 0, true);
             } else {
                 if (info.totalBytes > 0) {
@@ -538,6 +528,15 @@ public class DownloadNotifier
                         case StatusCode.STATUS_FETCH_METADATA:
                             statusStr = appContext.getString(R.string.downloading_metadata);
                             break;
+                        case StatusCode.STATUS_VERIFYING:
+                            statusStr = appContext.getString(R.string.verifying_checksum);
+                            break;
+                        case StatusCode.STATUS_MOVING:
+                            statusStr = appContext.getString(R.string.moving_file);
+                            break;
+                        case StatusCode.STATUS_EXTRACTING:
+                            statusStr = appContext.getString(R.string.extracting_archive);
+                            break;
                     }
                     progressBigText.bigText(appContext.getString(R.string.download_queued_template,
                             Formatter.formatFileSize(appContext, downloadBytes),
@@ -615,11 +614,11 @@ public class DownloadNotifier
      * Disable notifications for download
      */
 
-    private void markAsHidden(DownloadInfo info)
+    private void markAsHidden(DownloadNotifyInfo info)
     {
         info.visibility = VISIBILITY_HIDDEN;
 
-        disposables.add(Completable.fromAction(() -> repo.updateInfo(info, false, false))
+        disposables.add(Completable.fromAction(() -> repo.updateInfoVisibility(info.id, info.visibility))
                 .subscribeOn(Schedulers.io())
                 .subscribe());
     }
@@ -637,7 +636,7 @@ public class DownloadNotifier
         }
     }
 
-    private static String makeNotificationTag(DownloadInfo info)
+    private static String makeNotificationTag(DownloadNotifyInfo info)
     {
         if (isActiveAndVisible(info.statusCode, info.visibility))
             return TYPE_ACTIVE + ":" + info.id;
@@ -667,7 +666,8 @@ public class DownloadNotifier
     {
         return (statusCode == StatusCode.STATUS_RUNNING ||
                 statusCode == StatusCode.STATUS_PAUSED ||
-                statusCode == StatusCode.STATUS_FETCH_METADATA) &&
+                statusCode == StatusCode.STATUS_FETCH_METADATA ||
+                StatusCode.isStatusPostProcessing(statusCode)) &&
                 (visibility == VISIBILITY_VISIBLE ||
                  visibility == VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
     }
@@ -23,7 +23,9 @@ package com.tachibana.downloader.core;
 
 import android.webkit.CookieManager;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -54,6 +56,7 @@ public class HttpConnection implements Runnable
     private int timeout = DEFAULT_TIMEOUT;
     private String referer;
     private boolean contentRangeLength = false;
+    private DisconnectHook disconnectHook;
 
     public interface Listener
     {
@@ -68,6 +71,22 @@ public class HttpConnection implements Runnable
         void onTooManyRedirects();
     }
 
+    /*
+     * Lets another thread abort a blocked read or connect by calling
+     * the disconnect action of the current connection
+     */
+
+    public interface DisconnectHook
+    {
+        /*
+         * Returns false if the connection shouldn't be used,
+         * in which case the hook has already disconnected it
+         */
+        boolean register(Closeable disconnect);
+
+        void unregister(Closeable disconnect);
+    }
+
     public HttpConnection(String url) throws MalformedURLException, GeneralSecurityException
     {
         this.url = new URL(url);
@@ -101,6 +120,17 @@ public class HttpConnection implements Runnable
         this.timeout = timeout;
     }
 
+    /*
+     * The hook gets the disconnect action of every connection made.
+     * The listener gets InterruptedIOException or another IOException
+     * if the connection is disconnected by the hook
+     */
+
+    public void setDisconnectHook(DisconnectHook hook)
+    {
+        this.disconnectHook = hook;
+    }
+
     @Override
     public void run()
     {
@@ -108,8 +138,14 @@ public class HttpConnection implements Runnable
         var requestContentRange = false;
         while (redirectionCount++ < MAX_REDIRECTS) {
             HttpURLConnection conn = null;
+            Closeable disconnect = null;
             try {
                 conn = (HttpURLConnection)url.openConnection();
+                if (disconnectHook != null) {
+                    disconnect = conn::disconnect;
+                    if (!disconnectHook.register(disconnect))
+                        throw new InterruptedIOException("Cancelled");
+                }
                 conn.setInstanceFollowRedirects(false);
                 conn.setConnectTimeout(timeout);
                 conn.setReadTimeout(timeout);
@@ -183,6 +219,8 @@ public class HttpConnection implements Runnable
                 return;
 
             } finally {
+                if (disconnect != null)
+                    disconnectHook.unregister(disconnect);
                 if (conn != null)
                     conn.disconnect();
             }
@@ -21,8 +21,8 @@
 
 package com.tachibana.downloader.core.filter;
 
-import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
 
 import io.reactivex.functions.Predicate;
 
-public interface DownloadFilter extends Predicate<InfoAndPieces> {}
+public interface DownloadFilter extends Predicate<DownloadListInfo> {}
@@ -30,30 +30,31 @@ public class DownloadFilterCollection
 {
     public static DownloadFilter all()
     {
-        return (infoAndPieces) -> true;
+        return (info) -> true;
     }
 
     public static DownloadFilter category(@NonNull MimeTypeUtils.Category category)
     {
-        return (infoAndPieces) -> MimeTypeUtils.getCategory(infoAndPieces.info.mimeType).equals(category);
+        return (info) -> MimeTypeUtils.getCategory(info.mimeType).equals(category);
     }
 
     public static DownloadFilter statusStopped()
     {
-        return (infoAndPieces) -> StatusCode.isStatusStoppedOrPaused(infoAndPieces.info.statusCode);
+        return (info) -> StatusCode.isStatusStoppedOrPaused(info.statusCode);
     }
 
     public static DownloadFilter statusRunning()
     {
-        return (infoAndPieces) ->
-                infoAndPieces.info.statusCode == StatusCode.STATUS_RUNNING ||
-                        infoAndPieces.info.statusCode == StatusCode.STATUS_FETCH_METADATA;
+        return (info) ->
+                info.statusCode == StatusCode.STATUS_RUNNING ||
+                        info.statusCode == StatusCode.STATUS_FETCH_METADATA ||
+                        StatusCode.isStatusPostProcessing(info.statusCode);
     }
 
     public static DownloadFilter dateAddedToday()
     {
-        return (infoAndPieces) -> {
-            long dateAdded = infoAndPieces.info.dateAdded;
+        return (info) -> {
+            long dateAdded = info.dateAdded;
             long timeMillis = System.currentTimeMillis();
 
             return dateAdded >= DateUtils.startOfToday(timeMillis) &&
@@ -63,8 +64,8 @@ public class DownloadFilterCollection
 
     public static DownloadFilter dateAddedYesterday()
     {
-        return (infoAndPieces) -> {
-            long dateAdded = infoAndPieces.info.dateAdded;
+        return (info) -> {
+            long dateAdded = info.dateAdded;
             long timeMillis = System.currentTimeMillis();
 
             return dateAdded >= DateUtils.startOfYesterday(timeMillis) &&
@@ -74,8 +75,8 @@ public class DownloadFilterCollection
 
     public static DownloadFilter dateAddedWeek()
     {
-        return (infoAndPieces) -> {
-            long dateAdded = infoAndPieces.info.dateAdded;
+        return (info) -> {
+            long dateAdded = info.dateAdded;
             long timeMillis = System.currentTimeMillis();
 
             return dateAdded >= DateUtils.startOfWeek(timeMillis) &&
@@ -85,8 +86,8 @@ public class DownloadFilterCollection
 
     public static DownloadFilter dateAddedMonth()
     {
-        return (infoAndPieces) -> {
-            long dateAdded = infoAndPieces.info.dateAdded;
+        return (info) -> {
+            long dateAdded = info.dateAdded;
             long timeMillis = System.currentTimeMillis();
 
             return dateAdded >= DateUtils.startOfMonth(timeMillis) &&
@@ -96,8 +97,8 @@ public class DownloadFilterCollection
 
     public static DownloadFilter dateAddedYear()
     {
-        return (infoAndPieces) -> {
-            long dateAdded = infoAndPieces.info.dateAdded;
+        return (info) -> {
+            long dateAdded = info.dateAdded;
             long timeMillis = System.currentTimeMillis();
 
             return dateAdded >= DateUtils.startOfYear(timeMillis) &&
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.HttpConnection;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+
+/*
+ * Cancellation of one download run, shared by the download thread, its
+ * pieces and their connections. Polling a flag between reads isn't
+ * enough: a read blocked on a stalled socket only returns after the
+ * timeout. So the blocking resources (connections) are registered here
+ * and closed right away by cancel(), from the thread that requested it;
+ * the blocked read fails immediately and the piece sees the
+ * cancellation instead of reporting the I/O error.
+ */
+
+public class CancellationToken implements HttpConnection.DisconnectHook
+{
+    public static final int REASON_NONE = 0;
+    public static final int REASON_PAUSE = 1;
+    /* Stop or delete */
+    public static final int REASON_STOP = 2;
+    /* The pieces are restarted with new parameters, see DownloadThread.requestChange() */
+    public static final int REASON_CHANGE = 3;
+
+    private volatile int reason = REASON_NONE;
+    private final ArrayList<Closeable> resources = new ArrayList<>();
+
+    /*
+     * Returns false if already cancelled; the first reason wins
+     */
+
+    public boolean cancel(int reason)
+    {
+        ArrayList<Closeable> toClose;
+        synchronized (this) {
+            if (this.reason != REASON_NONE)
+                return false;
+            this.reason = reason;
+            toClose = new ArrayList<>(resources);
+            resources.clear();
+            notifyAll();
+        }
+        for (Closeable resource : toClose)
+            closeQuietly(resource);
+
+        return true;
+    }
+
+    public boolean isCancelled()
+    {
+        return reason != REASON_NONE;
+    }
+
+    public int getReason()
+    {
+        return reason;
+    }
+
+    /*
+     * The resource is closed on cancellation, unless unregistered before.
+     * If the token is already cancelled, closes it right away
+     * and returns false
+     */
+
+    @Override
+    public boolean register(@NonNull Closeable resource)
+    {
+        synchronized (this) {
+            if (reason == REASON_NONE) {
+                resources.add(resource);
+                return true;
+            }
+        }
+        closeQuietly(resource);
+
+        return false;
+    }
+
+    @Override
+    public synchronized void unregister(@NonNull Closeable resource)
+    {
+        resources.remove(resource);
+    }
+
+    /*
+     * Sleep that ends early on cancellation or interruption.
+     * Returns false if the token is cancelled
+     */
+
+    public boolean sleep(long millis)
+    {
+        long deadline = System.nanoTime() + millis * 1000000;
+        synchronized (this) {
+            long left;
+            while (reason == REASON_NONE && (left = deadline - System.nanoTime()) > 0) {
+                try {
+                    /* Round up, wait(0) means forever */
+                    wait(left / 1000000 + 1);
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            return reason == REASON_NONE;
+        }
+    }
+
+    private static void closeQuietly(Closeable resource)
+    {
+        try {
+            resource.close();
+
+        } catch (Exception e) {
+            /* Ignore */
+        }
+    }
+}
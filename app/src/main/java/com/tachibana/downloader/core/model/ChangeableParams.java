@@ -40,6 +40,7 @@ public class ChangeableParams implements Parcelable
     public Boolean unmeteredConnectionsOnly;
     public Boolean retry;
     public String checksum;
+    public Integer numPieces;
 
     public ChangeableParams() {}
 
@@ -56,6 +57,39 @@ public class ChangeableParams implements Parcelable
         if (retryVal != -1)
             retry = retryVal > 0;
         checksum = source.readString();
+        int numPiecesVal = source.readInt();
+        if (numPiecesVal != -1)
+            numPieces = numPiecesVal;
+    }
+
+    /*
+     * The running download can take these parameters without being
+     * stopped. Moving the file and the network restrictions need a stop
+     */
+
+    public boolean canApplyToRunning()
+    {
+        return fileName == null && dirPath == null && unmeteredConnectionsOnly == null;
+    }
+
+    /*
+     * The link and the number of pieces restart the pieces of the running
+     * download (see DownloadThread.requestChange()), the rest is only
+     * written to the database (see DownloadThread.updateParams())
+     */
+
+    public boolean hasTransferParams()
+    {
+        return url != null || numPieces != null;
+    }
+
+    public ChangeableParams getTransferParams()
+    {
+        ChangeableParams params = new ChangeableParams();
+        params.url = url;
+        params.numPieces = numPieces;
+
+        return params;
     }
 
     @Override
@@ -80,6 +114,7 @@ public class ChangeableParams implements Parcelable
         else
             dest.writeByte((byte)(retry ? 1 : 0));
         dest.writeString(checksum);
+        dest.writeInt(numPieces == null ? -1 : numPieces);
     }
 
     public static final Parcelable.Creator<ChangeableParams> CREATOR = new Parcelable.Creator<>()
@@ -108,6 +143,7 @@ public class ChangeableParams implements Parcelable
                 ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
                 ", retry=" + retry +
                 ", checksum='" + checksum + '\'' +
+                ", numPieces=" + numPieces +
                 '}';
     }
 }
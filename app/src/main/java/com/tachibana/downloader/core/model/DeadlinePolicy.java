@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+
+import java.util.List;
+
+/*
+ * Earliest deadline first. Downloads without a deadline go after
+ * the ones with it, in the queue order. Missed deadlines are still
+ * the earliest ones, so such downloads aren't postponed further.
+ */
+
+class DeadlinePolicy extends SchedulingPolicy
+{
+    @Nullable
+    @Override
+    public QueuedDownload select(@NonNull List<QueuedDownload> candidates)
+    {
+        QueuedDownload earliest = null;
+        for (QueuedDownload download : candidates) {
+            if (download.deadline <= 0)
+                continue;
+            if (earliest == null || download.deadline < earliest.deadline)
+                earliest = download;
+        }
+        if (earliest != null)
+            return earliest;
+
+        return super.select(candidates);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018-2021 Tachibana General Laboratories, LLC
+ * Copyright (C) 2018-2021 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.model.data.entity.Header;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Immutable snapshot of the download info and headers, shared between
+ * all pieces of one download run. It's built once after the metadata
+ * is fetched, so that piece threads don't query the database for
+ * the same data. The snapshot lives as long as the download thread;
+ * changing params stops the download, so the next run gets a new one.
+ */
+
+class DownloadContext
+{
+    public final UUID id;
+    public final String url;
+    public final String userAgent;
+    /* Custom request headers, excluding ETag */
+    public final List<Header> headers;
+    public final String etag;
+    public final Uri dirPath;
+    public final String fileName;
+    public final long totalBytes;
+    public final int numPieces;
+    public final boolean partialSupport;
+
+    public DownloadContext(@NonNull DownloadInfo info, @NonNull List<Header> headers)
+    {
+        this.id = info.id;
+        this.url = info.url;
+        this.userAgent = info.userAgent;
+        this.dirPath = info.dirPath;
+        this.fileName = info.fileName;
+        this.totalBytes = info.totalBytes;
+        this.numPieces = info.getNumPieces();
+        this.partialSupport = info.partialSupport;
+
+        String etag = null;
+        ArrayList<Header> requestHeaders = new ArrayList<>(headers.size());
+        for (Header header : headers) {
+            if ("ETag".equals(header.name))
+                etag = header.value;
+            else
+                requestHeaders.add(header);
+        }
+        this.etag = etag;
+        this.headers = Collections.unmodifiableList(requestHeaders);
+    }
+
+    public long pieceStartPos(@NonNull DownloadPiece piece)
+    {
+        if (totalBytes <= 0)
+            return 0;
+
+        return piece.index * (totalBytes / numPieces);
+    }
+
+    public long pieceEndPos(@NonNull DownloadPiece piece)
+    {
+        if (piece.size <= 0)
+            return -1;
+
+        return pieceStartPos(piece) + piece.size - 1;
+    }
+}
@@ -22,51 +22,61 @@ package com.tachibana.downloader.core.model;
 
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
-import android.os.Build;
-import android.text.TextUtils;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.work.Data;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.WorkManager;
 
 import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.DownloadNotifier;
-import com.tachibana.downloader.core.archive.ArchiveExtractor;
-import com.tachibana.downloader.core.exception.UnknownArchiveFormatException;
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.exception.FileAlreadyExistsException;
+import com.tachibana.downloader.core.exception.HttpException;
+import com.tachibana.downloader.core.exception.SourceMismatchException;
+import com.tachibana.downloader.core.model.data.DownloadResult;
 import com.tachibana.downloader.core.model.data.StatusCode;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
+import com.tachibana.downloader.core.settings.DownloadSettings;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
-import com.tachibana.downloader.core.system.FileDescriptorWrapper;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacade;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
-import com.tachibana.downloader.core.utils.DigestUtils;
-import com.tachibana.downloader.core.utils.MimeTypeUtils;
 import com.tachibana.downloader.core.utils.Utils;
 import com.tachibana.downloader.receiver.ConnectionReceiver;
 import com.tachibana.downloader.receiver.PowerReceiver;
 import com.tachibana.downloader.service.DeleteDownloadsWorker;
 import com.tachibana.downloader.service.DownloadService;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
 import io.reactivex.schedulers.Schedulers;
 
@@ -74,15 +84,29 @@ public class DownloadEngine {
     @SuppressWarnings("unused")
     private static final String TAG = DownloadEngine.class.getSimpleName();
 
+    private static final int MAX_DELETE_IDS_PER_WORKER = 200;
+    /* Queued downloads among which the scheduling policy chooses */
+    private static final int MAX_SCHEDULING_CANDIDATES = 64;
+    /* Running time after which the download speed is taken into account, s */
+    private static final int SPEED_WARM_UP = 5;
+
     private final Context appContext;
     private final DataRepository repo;
     private final SettingsRepository pref;
     private final FileSystemFacade fs;
     private final CompositeDisposable disposables = new CompositeDisposable();
-    private final HashMap<UUID, DownloadThread> activeDownloads = new HashMap<>();
+    /* Running downloads and downloads during change, see DownloadStates */
+    private final DownloadStates states = new DownloadStates();
     private final ConcurrentLinkedQueue<DownloadEngineListener> listeners = new ConcurrentLinkedQueue<>();
-    private final HashMap<UUID, ChangeableParams> duringChange = new HashMap<>();
-    private final DownloadQueue queue = new DownloadQueue();
+    private final DownloadQueue queue;
+    private final PieceExecutor pieceExecutor;
+    /* The snapshot before the last change, to see what has changed */
+    private DownloadSettings prevSettings;
+    /* Received files are verified, moved and extracted outside of the slots */
+    private final PostProcessor postProcessor;
+    /* Replaced when the preference changes */
+    private volatile SchedulingPolicy policy;
+    private Disposable policyRecheck;
     private DownloadNotifier notifier;
 
     private final PowerReceiver powerReceiver = new PowerReceiver();
@@ -107,6 +131,13 @@ public class DownloadEngine {
         pref = RepositoryHelper.getSettingsRepository(appContext);
         fs = SystemFacadeHelper.getFileSystemFacade(appContext);
         notifier = DownloadNotifier.getInstance(appContext);
+        prevSettings = pref.downloadSettings();
+        pieceExecutor = PieceExecutor.getInstance(prevSettings.maxConnections);
+        pieceExecutor.setMaxConnections(prevSettings.maxConnections);
+        postProcessor = new PostProcessor(appContext, repo, pref, fs, notifier, this::onPostProcessed);
+        queue = new DownloadQueue(new QueueStore());
+        policy = SchedulingPolicy.create(pref.schedulingPolicy());
+        loadQueue();
 
         switchConnectionReceiver();
         switchPowerReceiver();
@@ -155,8 +186,8 @@ public class DownloadEngine {
                             if (StatusCode.isStatusStoppedOrPaused(info.statusCode)) {
                                 runDownload(info);
                             } else {
-                                DownloadThread task = activeDownloads.get(id);
-                                if (task != null && !duringChange.containsKey(id))
+                                DownloadThread task = states.pause(id);
+                                if (task != null)
                                     task.requestPause();
                             }
                         },
@@ -187,14 +218,11 @@ public class DownloadEngine {
         );
     }
 
-    public synchronized void pauseAllDownloads() {
-        for (Map.Entry<UUID, DownloadThread> entry : activeDownloads.entrySet()) {
-            if (duringChange.containsKey(entry.getKey()))
-                continue;
-            DownloadThread task = entry.getValue();
-            if (task == null)
-                continue;
-            task.requestPause();
+    public void pauseAllDownloads() {
+        for (UUID id : states.getIds()) {
+            DownloadThread task = states.pause(id);
+            if (task != null)
+                task.requestPause();
         }
     }
 
@@ -204,18 +232,28 @@ public class DownloadEngine {
 
     public void restoreDownloads() {
         DownloadScheduler.restoreDownloads(appContext);
+        DownloadScheduler.scheduleArchiving(appContext);
     }
 
-    public synchronized void stopDownloads() {
-        for (Map.Entry<UUID, DownloadThread> entry : activeDownloads.entrySet()) {
-            if (duringChange.containsKey(entry.getKey()))
-                continue;
-            DownloadThread task = entry.getValue();
+    public void stopDownloads() {
+        for (UUID id : states.getIds()) {
+            DownloadThread task = states.stop(id);
             if (task != null)
                 task.requestStop();
         }
     }
 
+    public void deleteAllFinishedDownloads(boolean withFile) {
+        Data data = new Data.Builder()
+                .putBoolean(DeleteDownloadsWorker.TAG_ALL_FINISHED, true)
+                .putBoolean(DeleteDownloadsWorker.TAG_WITH_FILE, withFile)
+                .build();
+        OneTimeWorkRequest work = new OneTimeWorkRequest.Builder(DeleteDownloadsWorker.class)
+                .setInputData(data)
+                .build();
+        WorkManager.getInstance(appContext).enqueue(work);
+    }
+
     public void deleteDownloads(boolean withFile, @NonNull UUID... idList) {
         String[] strIdList = new String[idList.length];
         for (int i = 0; i < idList.length; i++) {
@@ -237,7 +275,19 @@ public class DownloadEngine {
     }
 
     public boolean hasActiveDownloads() {
-        return !activeDownloads.isEmpty();
+        return states.getRunningCount() > 0 || postProcessor.getActiveCount() > 0;
+    }
+
+    /*
+     * Returns the speed history of the running download, or null.
+     * The history of inactive downloads is in DataRepository.getThroughputHistory()
+     */
+
+    @Nullable
+    public ThroughputRecorder getThroughputRecorder(@NonNull UUID id) {
+        DownloadThread task = states.getTask(id);
+
+        return (task == null ? null : task.getThroughputRecorder());
     }
 
     public void changeParams(@NonNull UUID id,
@@ -250,132 +300,247 @@ public class DownloadEngine {
         appContext.startService(i);
     }
 
-    private boolean verifyChecksum(DownloadInfo info) {
-        if (doVerifyChecksum(info)) {
-            info.statusCode = StatusCode.STATUS_SUCCESS;
-            info.statusMsg = null;
-        } else {
-            info.statusCode = StatusCode.STATUS_CHECKSUM_ERROR;
-            info.statusMsg = appContext.getString(R.string.error_verify_checksum);
-        }
-        return info.statusCode == StatusCode.STATUS_SUCCESS;
+    /*
+     * Do not call directly
+     */
+
+    public void doRunDownload(@NonNull UUID id) {
+        doRunDownloads(Collections.singletonList(id));
     }
 
-    private boolean doVerifyChecksum(DownloadInfo info) {
-        if (TextUtils.isEmpty(info.checksum)) {
-            return true;
+    /*
+     * Do not call directly
+     */
+
+    public void doRunDownloads(@NonNull List<UUID> ids) {
+        ArrayList<UUID> notRunning = new ArrayList<>(ids.size());
+        for (UUID id : ids) {
+            if (states.getState(id) == null)
+                notRunning.add(id);
         }
-        String hash;
-        try {
-            if (DigestUtils.isMd5Hash(info.checksum)) {
-                hash = calcHashSum(info, false);
+        if (notRunning.isEmpty())
+            return;
 
-            } else if (DigestUtils.isSha256Hash(info.checksum)) {
-                hash = calcHashSum(info, true);
+        /* Downloads are started only through the queue */
+        List<UUID> pushed = queue.pushAll(notRunning);
+        scheduleWaitingDownload();
 
-            } else {
-                throw new IllegalArgumentException("Unknown checksum type:" + info.checksum);
-            }
-        } catch (IOException e) {
-            return false;
+        ArrayList<UUID> waiting = new ArrayList<>(pushed.size());
+        for (UUID id : pushed) {
+            if (queue.contains(id))
+                waiting.add(id);
         }
-        return (hash != null && hash.equalsIgnoreCase(info.checksum));
+        if (!waiting.isEmpty())
+            updateRemainingBytes(waiting);
     }
 
-    private String calcHashSum(DownloadInfo info, boolean sha256Hash) throws IOException {
-        Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
-        if (filePath == null)
-            return null;
+    /*
+     * Do not call directly.
+     * The file was received before the restart, only the post-processing
+     * is left, so the download doesn't take a slot in the queue
+     */
 
-        try (FileDescriptorWrapper w = fs.getFD(filePath)) {
-            FileDescriptor outFd = w.open("r");
-            try (FileInputStream is = new FileInputStream(outFd)) {
-                return (sha256Hash ? DigestUtils.makeSha256Hash(is) : DigestUtils.makeMd5Hash(is));
-            }
+    public void doPostProcessDownloads(@NonNull List<UUID> ids) {
+        boolean submitted = false;
+        for (UUID id : ids) {
+            if (states.getState(id) == null && postProcessor.submit(id))
+                submitted = true;
         }
+        if (!submitted && checkNoDownloads())
+            notifyListeners(DownloadEngineListener::onDownloadsCompleted);
     }
 
     /*
-     * Do not call directly
+     * Only downloads waiting in the queue are affected
      */
 
-    public synchronized void doRunDownload(@NonNull UUID id) {
-        if (duringChange.containsKey(id))
-            return;
+    public void setQueuePriority(@NonNull List<UUID> ids, int priority) {
+        queue.setPriority(ids, priority);
+    }
 
-        if (isMaxActiveDownloads()) {
-            queue.push(id);
-            return;
-        }
+    /*
+     * 0 removes the deadline, see DeadlinePolicy
+     */
 
-        DownloadThread task = activeDownloads.get(id);
-        if (task != null && task.isRunning())
-            return;
+    public void setQueueDeadline(@NonNull List<UUID> ids, long deadline) {
+        queue.setDeadline(ids, deadline);
+        scheduleWaitingDownload();
+    }
+
+    /*
+     * Move the queued download right before the other one,
+     * or to the end of its priority if beforeId is null
+     */
+
+    public boolean moveQueuedDownload(@NonNull UUID id, @Nullable UUID beforeId) {
+        return queue.move(id, beforeId);
+    }
+
+    public List<UUID> getQueuedDownloads() {
+        return queue.getIds();
+    }
 
-        task = new DownloadThreadImpl(id, repo, pref, fs,
-                SystemFacadeHelper.getSystemFacade(appContext),
-                this::onBeforeFinished);
-        activeDownloads.put(id, task);
+    private void runTask(UUID id, DownloadThread task) {
         disposables.add(Observable.fromCallable(task)
                 .subscribeOn(Schedulers.io())
                 .filter((result) -> result != null)
                 .observeOn(AndroidSchedulers.mainThread())
-                .subscribe((result) -> onDownloadCompleted(result.infoId),
+                .subscribe((result) -> {
+                            /* Before the slot is released, so the service keeps running */
+                            if (result.status == DownloadResult.Status.POST_PROCESSING)
+                                postProcessor.submit(result.infoId);
+                            onDownloadCompleted(result.infoId);
+                        },
                         (Throwable t) -> handleDownloadError(id, t)
                 )
         );
     }
 
     /*
-     * Do not call directly
+     * Do not call directly.
+     * Rows are deleted in one transaction; files are deleted afterwards
+     * in parallel
      */
 
-    public synchronized void doDeleteDownload(@NonNull DownloadInfo info, boolean withFile) {
-        if (duringChange.containsKey(info.id))
-            return;
-
-        DownloadScheduler.undone(appContext, info);
-        repo.deleteInfo(info, withFile);
+    public void doDeleteDownloads(@NonNull List<DownloadInfo> infoList,
+                                  boolean withFile,
+                                  DataRepository.DeleteProgressListener listener) {
+        ArrayList<DownloadInfo> deletedList = new ArrayList<>(infoList.size());
+        for (DownloadInfo info : infoList) {
+            if (states.isChanging(info.id))
+                continue;
+            DownloadScheduler.undone(appContext, info);
+            deletedList.add(info);
+        }
+        /* Don't delete the file while it's being moved, take its new path instead */
+        ArrayList<UUID> ids = new ArrayList<>(deletedList.size());
+        for (DownloadInfo info : deletedList)
+            ids.add(info.id);
+        Set<UUID> processed = postProcessor.stop(ids);
+        if (!processed.isEmpty()) {
+            for (int i = 0; i < deletedList.size(); i++) {
+                if (!processed.contains(deletedList.get(i).id))
+                    continue;
+                DownloadInfo info = repo.getInfoById(deletedList.get(i).id);
+                if (info != null)
+                    deletedList.set(i, info);
+            }
+        }
+        repo.deleteInfoList(deletedList);
+        File journalDir = ProgressJournal.getJournalDir(appContext);
+        for (DownloadInfo info : deletedList)
+            ProgressJournal.deleteJournal(journalDir, info.id);
 
-        DownloadThread task = activeDownloads.get(info.id);
-        if (task != null)
-            task.requestStop();
-        else if (checkNoDownloads())
+        boolean hasStoppedTasks = false;
+        for (DownloadInfo info : deletedList) {
+            queue.remove(info.id);
+            DownloadThread task = states.stop(info.id);
+            if (task != null) {
+                task.requestStop();
+                hasStoppedTasks = true;
+            }
+        }
+        if (!hasStoppedTasks && checkNoDownloads())
             notifyListeners(DownloadEngineListener::onDownloadsCompleted);
+
+        if (withFile)
+            repo.deleteFiles(deletedList, listener);
     }
 
+    /*
+     * Do not call directly
+     */
+
+    public void doDeleteAllFinishedDownloads(boolean withFile,
+                                             DataRepository.DeleteProgressListener listener) {
+        doDeleteDownloads(repo.getFinishedInfo(), withFile, listener);
+    }
+
+    /*
+     * Input data of the worker is limited in size (see Data.MAX_DATA_BYTES),
+     * so large id lists are split between several workers
+     */
+
     private void runDeleteDownloadsWorker(String[] idList, boolean withFile) {
-        Data data = new Data.Builder()
-                .putStringArray(DeleteDownloadsWorker.TAG_ID_LIST, idList)
-                .putBoolean(DeleteDownloadsWorker.TAG_WITH_FILE, withFile)
-                .build();
-        OneTimeWorkRequest work = new OneTimeWorkRequest.Builder(DeleteDownloadsWorker.class)
-                .setInputData(data)
-                .build();
-        WorkManager.getInstance(appContext).enqueue(work);
+        WorkManager workManager = WorkManager.getInstance(appContext);
+        for (int i = 0; i < idList.length; i += MAX_DELETE_IDS_PER_WORKER) {
+            String[] chunk = Arrays.copyOfRange(idList, i,
+                    Math.min(i + MAX_DELETE_IDS_PER_WORKER, idList.length));
+            Data data = new Data.Builder()
+                    .putStringArray(DeleteDownloadsWorker.TAG_ID_LIST, chunk)
+                    .putBoolean(DeleteDownloadsWorker.TAG_WITH_FILE, withFile)
+                    .build();
+            OneTimeWorkRequest work = new OneTimeWorkRequest.Builder(DeleteDownloadsWorker.class)
+                    .setInputData(data)
+                    .build();
+            workManager.enqueue(work);
+        }
     }
 
     /*
      * Do not call directly
      */
 
-    public synchronized void doChangeParams(@NonNull UUID id,
-                                            @NonNull ChangeableParams params) {
-        if (duringChange.containsKey(id))
+    public void doChangeParams(@NonNull UUID id,
+                               @NonNull ChangeableParams params) {
+        notifyListeners((listener) -> listener.onApplyingParams(id));
+
+        /* Without a stop, the running download restarts only its pieces */
+        DownloadThread runningTask = (states.getState(id) == DownloadStates.State.RUNNING ?
+                states.getTask(id) : null);
+        if (runningTask != null && params.canApplyToRunning()) {
+            changeRunningParams(id, runningTask, params);
             return;
+        }
 
-        duringChange.put(id, params);
-        notifyListeners((listener) -> listener.onApplyingParams(id));
+        changeStoppedParams(id, params);
+    }
 
-        DownloadThread task = activeDownloads.get(id);
-        if (task != null && task.isRunning())
-            task.requestStop();
-        else
+    /*
+     * The parameters that don't affect the transfer are written right away,
+     * only the link and the number of pieces restart the pieces
+     */
+
+    private void changeRunningParams(UUID id, DownloadThread task, ChangeableParams params) {
+        disposables.add(Completable.fromAction(() -> task.updateParams(params))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(() -> {
+                            if (!params.hasTransferParams()) {
+                                notifyListeners((listener) -> listener.onParamsApplied(id, null, null));
+                                return;
+                            }
+                            boolean accepted = task.requestChange(params.getTransferParams(), (name, e) ->
+                                    notifyListeners((listener) -> listener.onParamsApplied(id, name, e)));
+                            if (!accepted)
+                                changeStoppedParams(id, params);
+                        },
+                        (Throwable t) -> {
+                            Log.e(TAG, "Updating params of " + id + " error: " +
+                                    Log.getStackTraceString(t));
+                            notifyListeners((listener) -> listener.onParamsApplied(id, null, t));
+                        })
+        );
+    }
+
+    private void changeStoppedParams(UUID id, ChangeableParams params) {
+        DownloadStates.Entry entry = states.beginChange(id, params);
+        if (entry == null) {
+            notifyListeners((listener) -> listener.onParamsApplied(id, null, null));
+            return;
+        }
+
+        /* Otherwise the params are applied when the thread returns */
+        if (entry.task == null)
             applyParams(id, params, false);
+        else
+            entry.task.requestStop();
     }
 
     private void applyParams(UUID id, ChangeableParams params, boolean runAfter) {
-        disposables.add(repo.getInfoByIdSingle(id)
+        /* Archived downloads have no pieces, move them back before changing */
+        disposables.add(Completable.fromAction(() -> repo.unarchive(id))
+                .andThen(repo.getInfoByIdSingle(id))
                 .subscribeOn(Schedulers.io())
                 .subscribe((info) -> {
                             Throwable[] err = new Throwable[1];
@@ -388,7 +553,7 @@ public class DownloadEngine {
                             } catch (Throwable e) {
                                 err[0] = e;
                             } finally {
-                                duringChange.remove(id);
+                                states.endChange(id);
                                 String name = (info == null ? null : info.fileName);
                                 notifyListeners((listener) -> listener.onParamsApplied(id, name, err[0]));
                                 if (runAfter || urlChanged)
@@ -398,7 +563,7 @@ public class DownloadEngine {
                         (Throwable t) -> {
                             Log.e(TAG, "Getting info " + id + " error: " +
                                     Log.getStackTraceString(t));
-                            duringChange.remove(id);
+                            states.endChange(id);
                             notifyListeners((listener) -> listener.onParamsApplied(id, null, t));
                             if (checkNoDownloads()) {
                                 notifyListeners(DownloadEngineListener::onDownloadsCompleted);
@@ -408,11 +573,41 @@ public class DownloadEngine {
         );
     }
 
-    private boolean doApplyParams(DownloadInfo info, ChangeableParams params) throws IOException, FileAlreadyExistsException {
+    private boolean doApplyParams(DownloadInfo info, ChangeableParams params)
+            throws IOException, FileAlreadyExistsException, HttpException,
+                   GeneralSecurityException, SourceMismatchException {
         boolean changed = false;
-        if (params.url != null) {
+        /* Checked before anything is changed */
+        SourceProbe.Result source = null;
+        List<Header> headers = null;
+        if (params.url != null && info.hasMetadata) {
+            headers = new ArrayList<>(repo.getHeadersById(info.id));
+            String etag = null;
+            for (Header header : headers) {
+                if ("ETag".equals(header.name))
+                    etag = header.value;
+            }
+            source = SourceProbe.probe(params.url, info.userAgent, headers,
+                    pref.downloadSettings().timeout, null);
+            SourceProbe.validate(info, etag, info.downloadedBytes, params.url, source);
+        }
+        boolean rebuildPieces = false;
+        if (params.numPieces != null && params.numPieces != info.getNumPieces() &&
+            info.statusCode != StatusCode.STATUS_SUCCESS) {
+            saveWrittenBlocks(info);
+            info.setNumPieces(params.numPieces);
+            changed = true;
+            rebuildPieces = true;
+        }
+
+        if (source != null) {
+            changed = true;
+            SourceProbe.switchTo(repo, info, headers, params.url, source);
+        } else if (params.url != null) {
             changed = true;
             info.url = params.url;
+            /* Unverified source, the download starts over */
+            repo.deleteWrittenBlocks(info.id);
         }
         if (params.description != null) {
             changed = true;
@@ -435,8 +630,11 @@ public class DownloadEngine {
         boolean dirChanged = params.dirPath != null;
         boolean urlChanged = params.url != null;
         boolean checksumChanged = params.checksum != null;
-        if (checksumChanged) {
-            if (doVerifyChecksum(info)) {
+        /* An unfinished file is verified after it's received */
+        boolean finished = info.statusCode == StatusCode.STATUS_SUCCESS ||
+                info.statusCode == StatusCode.STATUS_CHECKSUM_ERROR;
+        if (checksumChanged && finished) {
+            if (postProcessor.verifyChecksum(info)) {
                 info.statusCode = StatusCode.STATUS_SUCCESS;
                 info.statusMsg = null;
             } else {
@@ -457,11 +655,30 @@ public class DownloadEngine {
         }
 
         if (changed)
-            repo.updateInfo(info, true, false);
+            repo.updateInfo(info, true, rebuildPieces);
 
         return urlChanged;
     }
 
+    /*
+     * The bitmap is built from the old pieces, if it's missing, so
+     * that the re-split pieces skip the bytes already written
+     */
+
+    private void saveWrittenBlocks(DownloadInfo info) {
+        if (info.totalBytes <= 0 || !info.partialSupport)
+            return;
+
+        WrittenBlocks blocks = repo.getWrittenBlocks(info.id);
+        if (blocks != null && blocks.totalBytes == info.totalBytes)
+            return;
+
+        blocks = new WrittenBlocks(info.id, info.totalBytes);
+        for (DownloadPiece piece : repo.getPiecesById(info.id))
+            blocks.markWritten(info.pieceStartPos(piece), piece.curBytes);
+        repo.updateWrittenBlocks(blocks);
+    }
+
     private interface CallListener {
         void apply(DownloadEngineListener listener);
     }
@@ -474,21 +691,18 @@ public class DownloadEngine {
     }
 
     private boolean checkNoDownloads() {
-        return activeDownloads.isEmpty();
+        return states.getRunningCount() == 0 && postProcessor.getActiveCount() == 0;
     }
 
     private void onDownloadCompleted(UUID infoId) {
         handleStatusCode(infoId);
-        activeDownloads.remove(infoId);
+        DownloadStates.Entry entry = states.finish(infoId);
         scheduleWaitingDownload();
 
-        var params = duringChange.get(infoId);
-        if (params == null) {
-            if (checkNoDownloads()) {
-                notifyListeners(DownloadEngineListener::onDownloadsCompleted);
-            }
-        } else {
-            applyParams(infoId, params, true);
+        if (entry != null && entry.state == DownloadStates.State.CHANGING) {
+            applyParams(infoId, entry.params, true);
+        } else if (checkNoDownloads()) {
+            notifyListeners(DownloadEngineListener::onDownloadsCompleted);
         }
     }
 
@@ -513,19 +727,13 @@ public class DownloadEngine {
         Log.e(TAG, "An error occurred while downloading", t);
 
         onDownloadCompleted(id);
+    }
 
-        if (t instanceof MoveFileAlreadyExistsException) {
-            getInfoByIdSingle(id, (info) ->
-                    notifier.makeMoveErrorAlreadyExistsNotify(id, info.fileName));
-        } else if (t instanceof MoveException) {
-            getInfoByIdSingle(id, (info) -> notifier.makeMoveErrorNotify(id, info.fileName));
-        } else if (t instanceof UncompressArchiveFormatException) {
-            getInfoByIdSingle(id, (info) ->
-                    notifier.makeUncompressArchiveUnknownTypeNotify(id, info.fileName));
-        }  else if (t instanceof UncompressArchiveException) {
-            getInfoByIdSingle(id, (info) ->
-                    notifier.makeUncompressArchiveErrorNotify(id, info.fileName));
-        }
+    private void onPostProcessed(UUID id) {
+        AndroidSchedulers.mainThread().scheduleDirect(() -> {
+            if (checkNoDownloads())
+                notifyListeners(DownloadEngineListener::onDownloadsCompleted);
+        });
     }
 
     private void getInfoByIdSingle(UUID id, Consumer<DownloadInfo> onSuccess) {
@@ -538,106 +746,189 @@ public class DownloadEngine {
         );
     }
 
-    @NonNull
-    private DownloadInfo onBeforeFinished(DownloadInfo info) throws MoveException, UncompressArchiveException {
-        var newInfo = new DownloadInfo(info);
-        var verified = true;
-        if (!TextUtils.isEmpty(info.checksum)) {
-            verified = verifyChecksum(newInfo);
-        }
-        if (verified) {
-            checkMoveAfterDownload(newInfo);
-            checkUncompressArchive(newInfo);
-        }
-        return newInfo;
-    }
+    /*
+     * Start queued downloads while there are free slots
+     * and the scheduling policy admits them
+     */
 
-    private void checkMoveAfterDownload(DownloadInfo info) throws MoveException {
-        if (!pref.moveAfterDownload()) {
-            return;
-        }
-        var movePath = Uri.parse(pref.moveAfterDownloadIn());
-        if (movePath == null) {
+    private void scheduleWaitingDownload() {
+        if (!queue.isLoaded())
             return;
+
+        List<QueuedDownload> candidates;
+        while (!(candidates = queue.getCandidates(MAX_SCHEDULING_CANDIDATES)).isEmpty()) {
+            if (!policy.admit(getLoad())) {
+                scheduleRecheck();
+                return;
+            }
+            UUID id = policy.select(candidates).infoId;
+            DownloadThread task = new DownloadThreadImpl(id, repo, pref, fs,
+                    SystemFacadeHelper.getSystemFacade(appContext),
+                    pieceExecutor,
+                    ProgressJournal.getJournalDir(appContext),
+                    postProcessor::getFirstStepStatus);
+            DownloadStates.StartResult result = states.start(id, task, pref.maxActiveDownloads());
+            if (result == DownloadStates.StartResult.LIMIT_REACHED)
+                return;
+
+            queue.remove(id);
+            if (result == DownloadStates.StartResult.STARTED)
+                runTask(id, task);
+        }
+    }
+
+    private SchedulingPolicy.Load getLoad() {
+        int warmingUp = 0;
+        long totalSpeed = 0;
+        for (UUID id : states.getIds()) {
+            DownloadThread task = states.getTask(id);
+            if (task == null)
+                continue;
+            ThroughputRecorder recorder = task.getThroughputRecorder();
+            long speed = (recorder == null ? -1 : recorder.getRecentSpeed(SPEED_WARM_UP));
+            if (speed < 0)
+                warmingUp++;
+            else
+                totalSpeed += speed;
         }
-        try {
-            fs.moveFile(info.dirPath, info.fileName, movePath, info.fileName, true);
-        } catch (IOException e) {
-            throw new MoveException(e);
-        } catch (FileAlreadyExistsException e) {
-            throw new MoveFileAlreadyExistsException(e);
-        }
-        info.dirPath = movePath;
+
+        return new SchedulingPolicy.Load(SystemClock.elapsedRealtime(),
+                states.getRunningCount(), pref.maxActiveDownloads(),
+                warmingUp, totalSpeed);
     }
 
-    private void checkUncompressArchive(DownloadInfo info) throws UncompressArchiveException {
-        if (!info.uncompressArchive || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            return;
-        }
-        var fileCategory = MimeTypeUtils.getCategory(info.mimeType);
-        var isPossiblyArchive = fileCategory == MimeTypeUtils.Category.ARCHIVE
-                || "application/octet-stream".equals(info.mimeType);
-        if (!isPossiblyArchive) {
-            return;
-        }
-        var path = fs.getFileUri(info.dirPath, info.fileName);
-        if (path == null) {
+    private void scheduleRecheck() {
+        long interval = policy.getRecheckInterval();
+        if (interval <= 0 || (policyRecheck != null && !policyRecheck.isDisposed()))
             return;
-        }
-        try (var w = fs.getFD(path)) {
-            var inFd = w.open("r");
-            try (var is = new FileInputStream(inFd)) {
-                new ArchiveExtractor(fs, is, info.fileName, info.mimeType)
-                        .uncompress(info.dirPath, true);
-            } catch (UnknownArchiveFormatException e) {
-                throw new UncompressArchiveFormatException(e);
-            }
-            try {
-                fs.deleteFile(path);
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "Unable to delete archive file", e);
-            }
-        } catch (IOException e) {
-            throw new UncompressArchiveException(e);
-        }
+
+        policyRecheck = Completable.timer(interval, TimeUnit.MILLISECONDS,
+                        AndroidSchedulers.mainThread())
+                .subscribe(() -> {
+                    /* Fires every few seconds, don't keep the finished ones */
+                    disposables.delete(policyRecheck);
+                    scheduleWaitingDownload();
+                });
+        disposables.add(policyRecheck);
     }
 
-    private boolean isMaxActiveDownloads() {
-        return activeDownloads.size() == pref.maxActiveDownloads();
+    /*
+     * For the policies that take the size into account. The download
+     * doesn't progress while it's queued, so it's enough to do it once
+     */
+
+    private void updateRemainingBytes(List<UUID> ids) {
+        disposables.add(Single.fromCallable(() -> repo.getInfoByIds(ids))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe((infoList) -> {
+                            HashMap<UUID, Long> remainingBytes = new HashMap<>();
+                            for (DownloadInfo info : infoList)
+                                remainingBytes.put(info.id, info.totalBytes > 0 ?
+                                        Math.max(info.totalBytes - info.downloadedBytes, 0) :
+                                        -1);
+                            queue.setRemainingBytes(remainingBytes);
+                        },
+                        (Throwable t) -> Log.e(TAG, "Getting info error: " +
+                                Log.getStackTraceString(t)))
+        );
     }
 
-    private void scheduleWaitingDownload() {
-        if (isMaxActiveDownloads())
-            return;
+    /*
+     * Nothing is started until the persisted queue is loaded,
+     * so that the order survives process death
+     */
 
-        UUID id = queue.pop();
-        if (id == null)
-            return;
+    private void loadQueue() {
+        disposables.add(Single.fromCallable(repo::getQueuedDownloads)
+                .subscribeOn(Schedulers.single())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe((downloads) -> {
+                            queue.load(downloads);
+                            scheduleWaitingDownload();
+                        },
+                        (Throwable t) -> {
+                            Log.e(TAG, "Loading download queue error: " +
+                                    Log.getStackTraceString(t));
+                            queue.load(Collections.emptyList());
+                            scheduleWaitingDownload();
+                        })
+        );
+    }
+
+    /*
+     * Writes are made on a single thread, in the order of the queue changes
+     */
 
-        runDownload(id);
+    private class QueueStore implements DownloadQueue.Store {
+        @Override
+        public void save(@NonNull List<QueuedDownload> downloads) {
+            write(() -> repo.updateQueuedDownloads(downloads));
+        }
+
+        @Override
+        public void delete(@NonNull List<UUID> ids) {
+            write(() -> repo.deleteQueuedDownloads(ids));
+        }
+
+        private void write(Action action) {
+            disposables.add(Completable.fromAction(action)
+                    .subscribeOn(Schedulers.single())
+                    .subscribe(() -> {},
+                            (Throwable t) -> Log.e(TAG, "Saving download queue error: " +
+                                    Log.getStackTraceString(t))));
+        }
     }
 
     private void handleSettingsChanged(String key) {
-        boolean reschedule = false;
+        DownloadSettings prev = prevSettings;
+        DownloadSettings cur = pref.downloadSettings();
+        prevSettings = cur;
+
+        if (cur.maxConnections != prev.maxConnections)
+            pieceExecutor.setMaxConnections(cur.maxConnections);
 
         if (key.equals(appContext.getString(R.string.pref_key_umnetered_connections_only)) ||
                 key.equals(appContext.getString(R.string.pref_key_enable_roaming))) {
-            reschedule = true;
             switchConnectionReceiver();
 
         } else if (key.equals(appContext.getString(R.string.pref_key_download_only_when_charging)) ||
                 key.equals(appContext.getString(R.string.pref_key_battery_control))) {
-            reschedule = true;
             switchPowerReceiver();
 
         } else if (key.equals(appContext.getString(R.string.pref_key_custom_battery_control))) {
             switchPowerReceiver();
-        }
 
-        if (reschedule) {
-            reschedulePendingDownloads();
-            rescheduleDownloads();
+        } else if (key.equals(appContext.getString(R.string.pref_key_archive_after_days)) ||
+                key.equals(appContext.getString(R.string.pref_key_archive_keep_count))) {
+            DownloadScheduler.archiveDownloads(appContext);
+
+        } else if (key.equals(appContext.getString(R.string.pref_key_scheduling_policy))) {
+            policy = SchedulingPolicy.create(pref.schedulingPolicy());
+            scheduleWaitingDownload();
+
+        } else if (key.equals(appContext.getString(R.string.pref_key_max_active_downloads))) {
+            scheduleWaitingDownload();
         }
+
+        if (prev.constraintsChanged(cur))
+            applyConstraints(prev, cur);
+    }
+
+    /*
+     * Pending downloads get the new work constraints. Running ones keep
+     * running, unless the constraints became stricter and the current
+     * network or power state violates them
+     */
+
+    private void applyConstraints(DownloadSettings prev, DownloadSettings cur) {
+        reschedulePendingDownloads();
+
+        if (!prev.constraintsTightenedBy(cur))
+            /* Downloads stopped by the old constraints may run now */
+            resumeDownloads(true);
+        else if (checkStopDownloads())
+            stopDownloads();
     }
 
     private void switchPowerReceiver() {
@@ -675,12 +966,13 @@ public class DownloadEngine {
     }
 
     private boolean checkStopDownloads() {
-        boolean batteryControl = pref.batteryControl();
-        boolean customBatteryControl = pref.customBatteryControl();
-        int customBatteryControlValue = pref.customBatteryControlValue();
-        boolean onlyCharging = pref.onlyCharging();
-        boolean unmeteredOnly = pref.unmeteredConnectionsOnly();
-        boolean roaming = pref.enableRoaming();
+        DownloadSettings s = pref.downloadSettings();
+        boolean batteryControl = s.batteryControl;
+        boolean customBatteryControl = s.customBatteryControl;
+        int customBatteryControlValue = s.customBatteryControlValue;
+        boolean onlyCharging = s.onlyCharging;
+        boolean unmeteredOnly = s.unmeteredConnectionsOnly;
+        boolean roaming = s.enableRoaming;
 
         SystemFacade systemFacade = SystemFacadeHelper.getSystemFacade(appContext);
 
@@ -688,7 +980,7 @@ public class DownloadEngine {
         if (roaming)
             stop = Utils.isRoaming(systemFacade);
         if (unmeteredOnly)
-            stop = Utils.isMetered(systemFacade);
+            stop |= Utils.isMetered(systemFacade);
         if (onlyCharging)
             stop |= !Utils.isBatteryCharging(appContext);
         if (customBatteryControl)
@@ -699,27 +991,3 @@ public class DownloadEngine {
         return stop;
     }
 }
-
-class UncompressArchiveException extends Exception {
-    UncompressArchiveException(Throwable cause) {
-        super(cause);
-    }
-}
-
-class UncompressArchiveFormatException extends UncompressArchiveException {
-    UncompressArchiveFormatException(Throwable cause) {
-        super(cause);
-    }
-}
-
-class MoveException extends Exception {
-    MoveException(Throwable cause) {
-        super(cause);
-    }
-}
-
-class MoveFileAlreadyExistsException extends MoveException {
-    MoveFileAlreadyExistsException(Throwable cause) {
-        super(cause);
-    }
-}
\ No newline at end of file
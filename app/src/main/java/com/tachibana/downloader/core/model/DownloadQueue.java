@@ -21,14 +21,27 @@
 package com.tachibana.downloader.core.model;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import java.util.ArrayDeque;
-import java.util.NoSuchElementException;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
 
 /*
  * The priority queue if we want to defer download for an indefinite period of time,
- * for example, simultaneous downloads.
+ * for example, simultaneous downloads. Downloads with higher priority go first,
+ * FIFO inside each priority. Changes are passed to the store to be persisted;
+ * the persisted queue must be passed to load() on startup, until then the queue
+ * is kept only in memory. Thread-safe.
  */
 
 class DownloadQueue
@@ -36,28 +49,377 @@ class DownloadQueue
     @SuppressWarnings("unused")
     private static final String TAG = DownloadQueue.class.getSimpleName();
 
-    private final ArrayDeque<UUID> queue = new ArrayDeque<>();
+    /* Gap between positions, so that a download can be moved between two others */
+    static final long POSITION_STEP = 1 << 16;
 
-    public void push(@NonNull UUID downloadId)
+    interface Store
     {
-        if (queue.contains(downloadId))
-            return;
-        queue.push(downloadId);
+        void save(@NonNull List<QueuedDownload> downloads);
+
+        void delete(@NonNull List<UUID> ids);
     }
 
-    public UUID pop()
+    private static final Comparator<QueuedDownload> ORDER = (a, b) -> {
+        if (a.priority != b.priority)
+            return Integer.compare(b.priority, a.priority);
+        if (a.position != b.position)
+            return Long.compare(a.position, b.position);
+
+        return a.infoId.compareTo(b.infoId);
+    };
+
+    private final Store store;
+    private final TreeSet<QueuedDownload> queue = new TreeSet<>(ORDER);
+    private final HashMap<UUID, QueuedDownload> index = new HashMap<>();
+    private long lastPosition;
+    private boolean loaded;
+    /* Removed before load(), must not be restored */
+    private final HashSet<UUID> removedBeforeLoad = new HashSet<>();
+
+    DownloadQueue(@NonNull Store store)
     {
-        UUID downloadId = null;
-        while (downloadId == null) {
-            try {
-                downloadId = queue.pop();
+        this.store = store;
+    }
+
+    /*
+     * Merge the persisted queue with the downloads pushed before.
+     * The latter go after the persisted ones
+     */
 
-            } catch (NoSuchElementException e) {
-                /* Queue is empty, return */
-                return null;
+    public synchronized void load(@NonNull List<QueuedDownload> persisted)
+    {
+        if (loaded)
+            return;
+
+        ArrayList<QueuedDownload> pushed = new ArrayList<>(queue);
+        queue.clear();
+        index.clear();
+        lastPosition = 0;
+        ArrayList<UUID> removed = new ArrayList<>();
+        for (QueuedDownload download : persisted) {
+            if (removedBeforeLoad.contains(download.infoId)) {
+                removed.add(download.infoId);
+                continue;
             }
+            add(download);
+            lastPosition = Math.max(lastPosition, download.position);
+        }
+        ArrayList<QueuedDownload> changed = new ArrayList<>();
+        for (QueuedDownload download : pushed) {
+            if (index.containsKey(download.infoId))
+                continue;
+            QueuedDownload newDownload = copy(download, download.priority, nextPosition());
+            add(newDownload);
+            changed.add(newDownload);
         }
+        removedBeforeLoad.clear();
+        loaded = true;
+
+        if (!removed.isEmpty())
+            store.delete(removed);
+        if (!changed.isEmpty())
+            store.save(changed);
+    }
+
+    public synchronized boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /*
+     * Returns false if the download is already in the queue
+     */
+
+    public synchronized boolean push(@NonNull UUID downloadId)
+    {
+        if (index.containsKey(downloadId))
+            return false;
+
+        QueuedDownload download = new QueuedDownload(downloadId,
+                QueuedDownload.PRIORITY_NORMAL, nextPosition());
+        add(download);
+        removedBeforeLoad.remove(downloadId);
+        if (loaded)
+            store.save(Collections.singletonList(download));
+
+        return true;
+    }
+
+    /*
+     * Batch version of push(), persisted at once.
+     * Returns the downloads that weren't in the queue
+     */
+
+    public synchronized List<UUID> pushAll(@NonNull Collection<UUID> downloadIds)
+    {
+        ArrayList<UUID> pushed = new ArrayList<>();
+        ArrayList<QueuedDownload> added = new ArrayList<>();
+        for (UUID id : downloadIds) {
+            if (index.containsKey(id))
+                continue;
+            QueuedDownload download = new QueuedDownload(id,
+                    QueuedDownload.PRIORITY_NORMAL, nextPosition());
+            add(download);
+            removedBeforeLoad.remove(id);
+            pushed.add(id);
+            added.add(download);
+        }
+        if (loaded && !added.isEmpty())
+            store.save(added);
+
+        return pushed;
+    }
+
+    @Nullable
+    public synchronized UUID peek()
+    {
+        return (queue.isEmpty() ? null : queue.first().infoId);
+    }
+
+    @Nullable
+    public synchronized UUID pop()
+    {
+        UUID downloadId = peek();
+        if (downloadId != null)
+            remove(downloadId);
 
         return downloadId;
     }
-}
\ No newline at end of file
+
+    public synchronized boolean remove(@NonNull UUID downloadId)
+    {
+        QueuedDownload download = index.remove(downloadId);
+        if (download != null)
+            queue.remove(download);
+        if (!loaded)
+            removedBeforeLoad.add(downloadId);
+        else if (download != null)
+            store.delete(Collections.singletonList(downloadId));
+
+        return download != null;
+    }
+
+    /*
+     * Remove all downloads from the queue and return them
+     */
+
+    public synchronized List<UUID> popAll()
+    {
+        ArrayList<UUID> downloadIds = getIds();
+        queue.clear();
+        index.clear();
+        if (!loaded)
+            removedBeforeLoad.addAll(downloadIds);
+        else if (!downloadIds.isEmpty())
+            store.delete(downloadIds);
+
+        return downloadIds;
+    }
+
+    public synchronized boolean contains(@NonNull UUID downloadId)
+    {
+        return index.containsKey(downloadId);
+    }
+
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    /*
+     * In the queue order
+     */
+
+    public synchronized ArrayList<UUID> getIds()
+    {
+        ArrayList<UUID> downloadIds = new ArrayList<>(queue.size());
+        for (QueuedDownload download : queue)
+            downloadIds.add(download.infoId);
+
+        return downloadIds;
+    }
+
+    /*
+     * Downloads keep their place among the ones that were queued before
+     * and after them. Not queued downloads are ignored
+     */
+
+    public synchronized void setPriority(@NonNull Collection<UUID> downloadIds, int priority)
+    {
+        ArrayList<QueuedDownload> changed = new ArrayList<>();
+        for (UUID id : downloadIds) {
+            QueuedDownload download = index.get(id);
+            if (download == null || download.priority == priority)
+                continue;
+            QueuedDownload newDownload = copy(download, priority, download.position);
+            replace(download, newDownload);
+            changed.add(newDownload);
+        }
+
+        if (loaded && !changed.isEmpty())
+            store.save(changed);
+    }
+
+    /*
+     * Not queued downloads are ignored. 0 removes the deadline
+     */
+
+    public synchronized void setDeadline(@NonNull Collection<UUID> downloadIds, long deadline)
+    {
+        ArrayList<QueuedDownload> changed = new ArrayList<>();
+        for (UUID id : downloadIds) {
+            QueuedDownload download = index.get(id);
+            if (download == null || download.deadline == deadline)
+                continue;
+            QueuedDownload newDownload = new QueuedDownload(id, download.priority,
+                    download.position, deadline, download.remainingBytes);
+            replace(download, newDownload);
+            changed.add(newDownload);
+        }
+
+        if (loaded && !changed.isEmpty())
+            store.save(changed);
+    }
+
+    /*
+     * Download id -> bytes left to download. Not queued downloads are ignored
+     */
+
+    public synchronized void setRemainingBytes(@NonNull Map<UUID, Long> remainingBytes)
+    {
+        ArrayList<QueuedDownload> changed = new ArrayList<>();
+        for (Map.Entry<UUID, Long> entry : remainingBytes.entrySet()) {
+            QueuedDownload download = index.get(entry.getKey());
+            if (download == null || download.remainingBytes == entry.getValue())
+                continue;
+            QueuedDownload newDownload = new QueuedDownload(download.infoId, download.priority,
+                    download.position, download.deadline, entry.getValue());
+            replace(download, newDownload);
+            changed.add(newDownload);
+        }
+
+        if (loaded && !changed.isEmpty())
+            store.save(changed);
+    }
+
+    /*
+     * Downloads of the highest priority in the queue order, at most maxCount.
+     * The scheduling policy chooses among them which one to start
+     */
+
+    public synchronized List<QueuedDownload> getCandidates(int maxCount)
+    {
+        ArrayList<QueuedDownload> candidates = new ArrayList<>();
+        if (queue.isEmpty())
+            return candidates;
+
+        int priority = queue.first().priority;
+        for (QueuedDownload download : queue) {
+            if (download.priority != priority || candidates.size() >= maxCount)
+                break;
+            candidates.add(download);
+        }
+
+        return candidates;
+    }
+
+    /*
+     * Move the download right before the other one, taking its priority.
+     * If beforeId is null, move it to the end of its priority.
+     * Returns false if either of them isn't queued
+     */
+
+    public synchronized boolean move(@NonNull UUID downloadId, @Nullable UUID beforeId)
+    {
+        QueuedDownload download = index.get(downloadId);
+        if (download == null || downloadId.equals(beforeId))
+            return false;
+
+        if (beforeId == null) {
+            QueuedDownload newDownload = copy(download, download.priority, nextPosition());
+            replace(download, newDownload);
+            if (loaded)
+                store.save(Collections.singletonList(newDownload));
+
+            return true;
+        }
+
+        QueuedDownload before = index.get(beforeId);
+        if (before == null)
+            return false;
+
+        queue.remove(download);
+        index.remove(downloadId);
+        List<QueuedDownload> changed = new ArrayList<>();
+        long position = positionBefore(before);
+        if (position == before.position) {
+            /* No gap left, spread the positions out again */
+            changed = renumber();
+            before = index.get(beforeId);
+            position = positionBefore(before);
+        }
+        QueuedDownload newDownload = copy(download, before.priority, position);
+        add(newDownload);
+        changed.add(newDownload);
+        if (loaded)
+            store.save(changed);
+
+        return true;
+    }
+
+    /*
+     * Returns the position of the download itself if there is no gap
+     */
+
+    private long positionBefore(QueuedDownload download)
+    {
+        QueuedDownload prev = queue.lower(download);
+        long low = (prev != null && prev.priority == download.priority ?
+                prev.position :
+                download.position - 2 * POSITION_STEP);
+        if (download.position - low < 2)
+            return download.position;
+
+        return low + (download.position - low) / 2;
+    }
+
+    private List<QueuedDownload> renumber()
+    {
+        ArrayList<QueuedDownload> downloads = new ArrayList<>(queue);
+        queue.clear();
+        index.clear();
+        lastPosition = 0;
+        for (int i = 0; i < downloads.size(); i++) {
+            QueuedDownload download = downloads.get(i);
+            downloads.set(i, copy(download, download.priority, nextPosition()));
+            add(downloads.get(i));
+        }
+
+        return downloads;
+    }
+
+    private long nextPosition()
+    {
+        lastPosition += POSITION_STEP;
+
+        return lastPosition;
+    }
+
+    private static QueuedDownload copy(QueuedDownload download, int priority, long position)
+    {
+        return new QueuedDownload(download.infoId, priority, position,
+                download.deadline, download.remainingBytes);
+    }
+
+    private void add(QueuedDownload download)
+    {
+        queue.add(download);
+        index.put(download.infoId, download);
+    }
+
+    private void replace(QueuedDownload download, QueuedDownload newDownload)
+    {
+        queue.remove(download);
+        add(newDownload);
+    }
+}
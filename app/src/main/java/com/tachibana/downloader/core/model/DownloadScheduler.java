@@ -21,26 +21,39 @@
 package com.tachibana.downloader.core.model;
 
 import android.content.Context;
+import android.content.Intent;
+import android.net.NetworkInfo;
 import android.text.format.DateUtils;
 
 import androidx.annotation.NonNull;
 import androidx.work.Constraints;
 import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.model.data.StatusCode;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
-import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.model.data.entity.ScheduleInfo;
+import com.tachibana.downloader.core.settings.DownloadSettings;
+import com.tachibana.downloader.core.system.SystemFacade;
+import com.tachibana.downloader.core.system.SystemFacadeHelper;
+import com.tachibana.downloader.core.utils.Utils;
+import com.tachibana.downloader.service.ArchiveDownloadsWorker;
+import com.tachibana.downloader.service.DownloadService;
 import com.tachibana.downloader.service.GetAndRunDownloadWorker;
 import com.tachibana.downloader.service.RescheduleAllWorker;
 import com.tachibana.downloader.service.RestoreDownloadsWorker;
 import com.tachibana.downloader.service.RunAllWorker;
 import com.tachibana.downloader.service.RunDownloadWorker;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -55,6 +68,8 @@ public class DownloadScheduler
     public static final String TAG_WORK_RUN_TYPE = "run";
     public static final String TAG_WORK_GET_AND_RUN_TYPE = "get_and_run";
     public static final String TAG_WORK_RESCHEDULE_TYPE = "reschedule";
+    public static final String TAG_WORK_ARCHIVE_TYPE = "archive";
+    public static final String TAG_WORK_PERIODIC_ARCHIVE_TYPE = "periodic_archive";
 
     /*
      * The time between a failure and the first retry after an IOException.
@@ -62,29 +77,97 @@ public class DownloadScheduler
      * The time is in seconds
      */
     private static final int RETRY_FIRST_DELAY = 30;
+    /* Keeps the intent well below the binder transaction limit */
+    private static final int MAX_IDS_PER_INTENT = 500;
 
     private static final Random random = new Random();
 
     /*
-     * Run unique work for starting download.
-     * If there is existing pending (uncompleted) work, cancel it
+     * Start the download right away if it's allowed to run now, otherwise
+     * run unique work that waits for the delay and the constraints,
+     * replacing the existing pending (uncompleted) work
      */
 
     public static void run(@NonNull Context appContext, @NonNull DownloadInfo info)
     {
-        String downloadTag = getDownloadTag(info.id);
-        Data data = new Data.Builder()
-                .putString(RunDownloadWorker.TAG_ID, info.id.toString())
-                .build();
-        OneTimeWorkRequest work = new OneTimeWorkRequest.Builder(RunDownloadWorker.class)
-                .setInputData(data)
-                .setConstraints(getConstraints(appContext, info))
-                .setInitialDelay(getInitialDelay(info), TimeUnit.MILLISECONDS)
-                .addTag(TAG_WORK_RUN_TYPE)
-                .addTag(downloadTag)
-                .build();
-        WorkManager.getInstance(appContext).enqueueUniqueWork(downloadTag,
-                ExistingWorkPolicy.REPLACE, work);
+        run(appContext, Collections.singletonList(new ScheduleInfo(info)));
+    }
+
+    /*
+     * Batch version of run(). Settings and the device state are read once
+     * for the whole list. The downloads that can run now are passed to the
+     * engine at once, bypassing WorkManager; work requests are used only
+     * for the ones waiting for a retry delay or for the constraints
+     */
+
+    public static void run(@NonNull Context appContext, @NonNull List<ScheduleInfo> infoList)
+    {
+        if (infoList.isEmpty())
+            return;
+
+        DownloadSettings settings = RepositoryHelper.getSettingsRepository(appContext).downloadSettings();
+        SystemFacade systemFacade = SystemFacadeHelper.getSystemFacade(appContext);
+        boolean canRun = checkConstraints(appContext, settings, systemFacade, false);
+        boolean canRunUnmetered = checkConstraints(appContext, settings, systemFacade, true);
+
+        ArrayList<UUID> runNow = new ArrayList<>();
+        Constraints constraints = null;
+        Constraints unmeteredConstraints = null;
+        WorkManager workManager = WorkManager.getInstance(appContext);
+        for (ScheduleInfo info : infoList) {
+            long delay = getInitialDelay(info);
+            if (delay == 0 && (info.unmeteredConnectionsOnly ? canRunUnmetered : canRun)) {
+                /* A delayed run enqueued earlier would start it once again */
+                workManager.cancelUniqueWork(getDownloadTag(info.id));
+                runNow.add(info.id);
+                continue;
+            }
+
+            if (constraints == null) {
+                constraints = getConstraints(settings, false);
+                unmeteredConstraints = getConstraints(settings, true);
+            }
+            String downloadTag = getDownloadTag(info.id);
+            Data data = new Data.Builder()
+                    .putString(RunDownloadWorker.TAG_ID, info.id.toString())
+                    .build();
+            OneTimeWorkRequest work = new OneTimeWorkRequest.Builder(RunDownloadWorker.class)
+                    .setInputData(data)
+                    .setConstraints(info.unmeteredConnectionsOnly ? unmeteredConstraints : constraints)
+                    .setInitialDelay(delay, TimeUnit.MILLISECONDS)
+                    .addTag(TAG_WORK_RUN_TYPE)
+                    .addTag(downloadTag)
+                    .build();
+            workManager.enqueueUniqueWork(downloadTag, ExistingWorkPolicy.REPLACE, work);
+        }
+
+        for (int i = 0; i < runNow.size(); i += MAX_IDS_PER_INTENT) {
+            /*
+             * Use a foreground service, because WorkManager has a 10 minute work limit,
+             * which may be less than the download time
+             */
+            Intent intent = new Intent(appContext, DownloadService.class);
+            intent.setAction(DownloadService.ACTION_RUN_DOWNLOADS);
+            intent.putExtra(DownloadService.TAG_DOWNLOAD_ID_LIST,
+                    new ArrayList<>(runNow.subList(i, Math.min(i + MAX_IDS_PER_INTENT, runNow.size()))));
+            Utils.startServiceBackground(appContext, intent);
+        }
+    }
+
+    /*
+     * For the downloads whose file was received before the restart.
+     * They don't need the network, so there are no constraints
+     */
+
+    public static void postProcess(@NonNull Context appContext, @NonNull List<UUID> ids)
+    {
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_INTENT) {
+            Intent intent = new Intent(appContext, DownloadService.class);
+            intent.setAction(DownloadService.ACTION_POST_PROCESS_DOWNLOADS);
+            intent.putExtra(DownloadService.TAG_DOWNLOAD_ID_LIST,
+                    new ArrayList<>(ids.subList(i, Math.min(i + MAX_IDS_PER_INTENT, ids.size()))));
+            Utils.startServiceBackground(appContext, intent);
+        }
     }
 
     public static void run(@NonNull Context appContext, @NonNull UUID id)
@@ -136,6 +219,33 @@ public class DownloadScheduler
         WorkManager.getInstance(appContext).enqueue(work);
     }
 
+    /*
+     * Move old finished downloads to the archive once a day
+     */
+
+    public static void scheduleArchiving(@NonNull Context appContext)
+    {
+        PeriodicWorkRequest work = new PeriodicWorkRequest.Builder(ArchiveDownloadsWorker.class,
+                1, TimeUnit.DAYS)
+                .addTag(TAG_WORK_PERIODIC_ARCHIVE_TYPE)
+                .build();
+        WorkManager.getInstance(appContext).enqueueUniquePeriodicWork(TAG_WORK_PERIODIC_ARCHIVE_TYPE,
+                ExistingPeriodicWorkPolicy.KEEP, work);
+    }
+
+    /*
+     * Archive immediately, e.g. after changing the archive settings
+     */
+
+    public static void archiveDownloads(@NonNull Context appContext)
+    {
+        OneTimeWorkRequest work = new OneTimeWorkRequest.Builder(ArchiveDownloadsWorker.class)
+                .addTag(TAG_WORK_ARCHIVE_TYPE)
+                .build();
+        WorkManager.getInstance(appContext).enqueueUniqueWork(TAG_WORK_ARCHIVE_TYPE,
+                ExistingWorkPolicy.REPLACE, work);
+    }
+
     public static String getDownloadTag(UUID downloadId)
     {
         return TAG_WORK_RUN_TYPE + ":" + downloadId;
@@ -146,16 +256,14 @@ public class DownloadScheduler
         return tag.substring(tag.indexOf(":") + 1);
     }
 
-    private static Constraints getConstraints(Context context, DownloadInfo info)
+    private static Constraints getConstraints(DownloadSettings settings, boolean unmeteredConnectionsOnly)
     {
-        SettingsRepository pref = RepositoryHelper.getSettingsRepository(context);
-
         NetworkType netType = NetworkType.CONNECTED;
-        boolean onlyCharging = pref.onlyCharging();
-        boolean batteryControl = pref.batteryControl();
-        if (pref.enableRoaming())
+        boolean onlyCharging = settings.onlyCharging;
+        boolean batteryControl = settings.batteryControl;
+        if (settings.enableRoaming)
             netType = NetworkType.NOT_ROAMING;
-        if (info != null && info.unmeteredConnectionsOnly || pref.unmeteredConnectionsOnly())
+        if (unmeteredConnectionsOnly || settings.unmeteredConnectionsOnly)
             netType = NetworkType.UNMETERED;
 
         return new Constraints.Builder()
@@ -165,12 +273,34 @@ public class DownloadScheduler
                 .build();
     }
 
+    /*
+     * Same conditions as getConstraints(), checked against the current state
+     */
+
+    private static boolean checkConstraints(Context appContext,
+                                            DownloadSettings settings,
+                                            SystemFacade systemFacade,
+                                            boolean unmeteredConnectionsOnly)
+    {
+        NetworkInfo netInfo = systemFacade.getActiveNetworkInfo();
+        if (netInfo == null || !netInfo.isConnected())
+            return false;
+        if (settings.enableRoaming && Utils.isRoaming(systemFacade))
+            return false;
+        if ((unmeteredConnectionsOnly || settings.unmeteredConnectionsOnly) && Utils.isMetered(systemFacade))
+            return false;
+        if (settings.onlyCharging && !Utils.isBatteryCharging(appContext))
+            return false;
+
+        return !settings.batteryControl || !Utils.isBatteryLow(appContext);
+    }
+
     /*
      * Return initial delay in milliseconds required before this download is
      * allowed to start again
      */
 
-    private static long getInitialDelay(DownloadInfo info)
+    private static long getInitialDelay(ScheduleInfo info)
     {
         if (info.statusCode == StatusCode.STATUS_WAITING_TO_RETRY) {
             long now = System.currentTimeMillis();
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * State of the downloads the engine is working on: running ones and
+ * ones whose parameters are being changed. Each download is a small
+ * state machine. Transitions are compare-and-set operations on its
+ * map entry, so the engine needs no global lock and can be called
+ * from any thread:
+ *
+ *   (none) -> RUNNING -> [PAUSING ->] [STOPPING ->] (none)
+ *   (none), RUNNING, PAUSING, STOPPING -> CHANGING -> (none)
+ *
+ * Pause and stop are only requests. The entry stays until the download
+ * thread returns (see finish()), so the download can't be started
+ * twice. The number of downloads with a thread, including the ones
+ * being paused or stopped, never exceeds the given limit.
+ */
+
+class DownloadStates
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = DownloadStates.class.getSimpleName();
+
+    enum State
+    {
+        RUNNING,
+        PAUSING,
+        STOPPING,
+        CHANGING,
+    }
+
+    enum StartResult
+    {
+        STARTED,
+        /* Should be queued */
+        LIMIT_REACHED,
+        /* Already running or changing */
+        SKIPPED,
+    }
+
+    /*
+     * Immutable, compared by identity
+     */
+
+    static class Entry
+    {
+        @NonNull
+        final State state;
+        /* Null for CHANGING if the thread has already returned */
+        @Nullable
+        final DownloadThread task;
+        @Nullable
+        final ChangeableParams params;
+
+        Entry(@NonNull State state, @Nullable DownloadThread task, @Nullable ChangeableParams params)
+        {
+            this.state = state;
+            this.task = task;
+            this.params = params;
+        }
+    }
+
+    /* Not ConcurrentHashMap, its keySet() signature differs on old Android versions */
+    private final ConcurrentMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+    /* Entries with a thread. A slot is reserved before the entry is added */
+    private final AtomicInteger running = new AtomicInteger();
+
+    @NonNull
+    StartResult start(@NonNull UUID id, @NonNull DownloadThread task, int maxRunning)
+    {
+        if (entries.containsKey(id))
+            return StartResult.SKIPPED;
+        if (!reserveSlot(maxRunning))
+            return StartResult.LIMIT_REACHED;
+
+        if (entries.putIfAbsent(id, new Entry(State.RUNNING, task, null)) != null) {
+            running.decrementAndGet();
+            return StartResult.SKIPPED;
+        }
+
+        return StartResult.STARTED;
+    }
+
+    /*
+     * Returns the thread that should be paused, or null
+     */
+
+    @Nullable
+    DownloadThread pause(@NonNull UUID id)
+    {
+        while (true) {
+            Entry cur = entries.get(id);
+            if (cur == null || cur.state != State.RUNNING)
+                return null;
+            if (entries.replace(id, cur, new Entry(State.PAUSING, cur.task, null)))
+                return cur.task;
+        }
+    }
+
+    /*
+     * Returns the thread that should be stopped, or null
+     */
+
+    @Nullable
+    DownloadThread stop(@NonNull UUID id)
+    {
+        while (true) {
+            Entry cur = entries.get(id);
+            if (cur == null || cur.state == State.CHANGING)
+                return null;
+            if (cur.state == State.STOPPING ||
+                entries.replace(id, cur, new Entry(State.STOPPING, cur.task, null)))
+                return cur.task;
+        }
+    }
+
+    /*
+     * Returns null if the parameters are already being changed.
+     * Otherwise, if the returned entry has a thread, it should be stopped
+     * and the parameters applied after finish(); if not, they can be
+     * applied right away. In both cases, endChange() must be called after
+     */
+
+    @Nullable
+    Entry beginChange(@NonNull UUID id, @NonNull ChangeableParams params)
+    {
+        while (true) {
+            Entry cur = entries.get(id);
+            if (cur == null) {
+                Entry next = new Entry(State.CHANGING, null, params);
+                if (entries.putIfAbsent(id, next) == null)
+                    return next;
+
+            } else if (cur.state == State.CHANGING) {
+                return null;
+
+            } else {
+                Entry next = new Entry(State.CHANGING, cur.task, params);
+                if (entries.replace(id, cur, next))
+                    return next;
+            }
+        }
+    }
+
+    void endChange(@NonNull UUID id)
+    {
+        Entry cur = entries.get(id);
+        if (cur != null && cur.state == State.CHANGING && cur.task == null)
+            entries.remove(id, cur);
+    }
+
+    /*
+     * The download thread has returned. Returns its last entry, or null.
+     * If it's CHANGING, the parameters should be applied now; the entry
+     * stays until endChange()
+     */
+
+    @Nullable
+    Entry finish(@NonNull UUID id)
+    {
+        while (true) {
+            Entry cur = entries.get(id);
+            if (cur == null || cur.task == null)
+                return null;
+
+            boolean done = (cur.state == State.CHANGING ?
+                    entries.replace(id, cur, new Entry(State.CHANGING, null, cur.params)) :
+                    entries.remove(id, cur));
+            if (done) {
+                running.decrementAndGet();
+                return cur;
+            }
+        }
+    }
+
+    boolean isChanging(@NonNull UUID id)
+    {
+        Entry cur = entries.get(id);
+
+        return cur != null && cur.state == State.CHANGING;
+    }
+
+    @Nullable
+    State getState(@NonNull UUID id)
+    {
+        Entry cur = entries.get(id);
+
+        return (cur == null ? null : cur.state);
+    }
+
+    @Nullable
+    DownloadThread getTask(@NonNull UUID id)
+    {
+        Entry cur = entries.get(id);
+
+        return (cur == null ? null : cur.task);
+    }
+
+    /*
+     * Weakly consistent snapshot
+     */
+
+    @NonNull
+    List<UUID> getIds()
+    {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    int getRunningCount()
+    {
+        return running.get();
+    }
+
+    private boolean reserveSlot(int maxRunning)
+    {
+        while (true) {
+            int n = running.get();
+            if (n >= maxRunning)
+                return false;
+            if (running.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+}
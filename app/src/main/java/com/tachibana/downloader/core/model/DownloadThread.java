@@ -20,6 +20,9 @@
 
 package com.tachibana.downloader.core.model;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import com.tachibana.downloader.core.model.data.DownloadResult;
 
 import java.util.concurrent.Callable;
@@ -31,4 +34,36 @@ interface DownloadThread extends Callable<DownloadResult>
     void requestPause();
 
     boolean isRunning();
+
+    /*
+     * Returns null if the download isn't started yet
+     */
+
+    ThroughputRecorder getThroughputRecorder();
+
+    /*
+     * Apply the parameters without stopping the download: the pieces are
+     * restarted with the new link or layout and continue from the bytes
+     * already written. Returns false if it isn't possible right now, e.g.
+     * the thread is finishing or another change is pending; then the
+     * parameters should be applied to the stopped download.
+     * Otherwise the callback is called once, from the download thread
+     */
+
+    boolean requestChange(@NonNull ChangeableParams params, @NonNull ChangeCallback callback);
+
+    /*
+     * Write the parameters that don't affect the transfer (description,
+     * retry, checksum) to the database without restarting the pieces.
+     * They are also taken into the info of the thread, so that its own
+     * updates of the info don't overwrite them. Not for the main thread
+     */
+
+    void updateParams(@NonNull ChangeableParams params);
+
+    interface ChangeCallback
+    {
+        /* The error is null if the parameters are applied */
+        void onChanged(@Nullable String name, @Nullable Throwable e);
+    }
 }
@@ -35,16 +35,20 @@ import com.tachibana.downloader.core.model.data.StatusCode;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
 import com.tachibana.downloader.core.system.FileDescriptorWrapper;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacade;
 import com.tachibana.downloader.core.utils.DateUtils;
+import com.tachibana.downloader.core.utils.DownloadKeys;
 import com.tachibana.downloader.core.utils.DownloadUtils;
 import com.tachibana.downloader.core.utils.MimeTypeUtils;
 import com.tachibana.downloader.core.utils.Utils;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InterruptedIOException;
@@ -57,8 +61,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_BAD_REQUEST;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_CANNOT_RESUME;
@@ -90,19 +94,42 @@ class DownloadThreadImpl implements DownloadThread
     @SuppressWarnings("unused")
     private static final String TAG = DownloadThreadImpl.class.getSimpleName();
 
+    /* How often the piece progress is flushed from the journal to the database, ms */
+    private static final long PROGRESS_FLUSH_INTERVAL = 1000;
+
     private DownloadInfo info;
+    /* Cached headers of the download, loaded once per run */
+    private List<Header> headers;
     private final UUID id;
-    /* Stop and delete */
-    private boolean stop;
-    private boolean pause;
-    private boolean running;
-    private ExecutorService exec;
+    /* Pause, stop and delete requests; closes the connections of the run */
+    private volatile CancellationToken token = new CancellationToken();
+    /*
+     * Of the current round of the pieces. Cancelled by the token and by a
+     * change of the parameters, after which the pieces start a new round
+     */
+    private volatile CancellationToken roundToken;
+    private final Object changeLock = new Object();
+    /* Full row updates of the info and the parameters, see updateParams() */
+    private final Object infoLock = new Object();
+    /* Guarded by changeLock */
+    private PendingChange pendingChange;
+    private boolean acceptChanges;
+    private volatile boolean running;
+    private volatile ExecutorService exec;
+    /* Can be null, in which case the progress journal is kept only in memory */
+    private final File journalDir;
+    private ProgressJournal journal;
+    /* Null if the size is unknown or partial download isn't supported */
+    private WrittenBlocks blocks;
+    private volatile ThroughputRecorder throughput;
     private final DataRepository repo;
     private final SettingsRepository pref;
     private final FileSystemFacade fs;
     private final SystemFacade systemFacade;
     private int networkType;
-    private final OnBeforeFinishedCallback onBeforeFinishedCallback;
+    private final PostProcessingCheck postProcessingCheck;
+    /* Shared by all downloads, see PieceExecutor */
+    private final PieceExecutor pieceExecutor;
 
     private class ExecDownloadResult
     {
@@ -117,9 +144,26 @@ class DownloadThreadImpl implements DownloadThread
         }
     }
 
-    interface OnBeforeFinishedCallback {
-        @NonNull
-        DownloadInfo onBeforeFinished(@NonNull DownloadInfo info) throws Throwable;
+    private static class PendingChange
+    {
+        final ChangeableParams params;
+        final ChangeCallback callback;
+
+        PendingChange(ChangeableParams params, ChangeCallback callback)
+        {
+            this.params = params;
+            this.callback = callback;
+        }
+    }
+
+    /*
+     * Returns the status of the first post-processing step
+     * or STATUS_SUCCESS if the file doesn't need it. Post-processing
+     * itself is done after the download releases its slot, see PostProcessor
+     */
+
+    interface PostProcessingCheck {
+        int getPostProcessingStatus(@NonNull DownloadInfo info);
     }
 
     public DownloadThreadImpl(@NonNull UUID id,
@@ -128,7 +172,8 @@ class DownloadThreadImpl implements DownloadThread
                               @NonNull FileSystemFacade fs,
                               @NonNull SystemFacade systemFacade)
     {
-        this(id, repo, pref, fs, systemFacade, null);
+        this(id, repo, pref, fs, systemFacade,
+                PieceExecutor.getInstance(pref.downloadSettings().maxConnections), null, null);
     }
 
     public DownloadThreadImpl(@NonNull UUID id,
@@ -136,20 +181,24 @@ class DownloadThreadImpl implements DownloadThread
                               @NonNull SettingsRepository pref,
                               @NonNull FileSystemFacade fs,
                               @NonNull SystemFacade systemFacade,
-                              OnBeforeFinishedCallback onBeforeFinishedCallback)
+                              @NonNull PieceExecutor pieceExecutor,
+                              File journalDir,
+                              PostProcessingCheck postProcessingCheck)
     {
         this.id = id;
         this.repo = repo;
         this.pref = pref;
         this.fs = fs;
         this.systemFacade = systemFacade;
-        this.onBeforeFinishedCallback = onBeforeFinishedCallback;
+        this.pieceExecutor = pieceExecutor;
+        this.journalDir = journalDir;
+        this.postProcessingCheck = postProcessingCheck;
     }
 
     @Override
     public void requestStop()
     {
-        stop = true;
+        token.cancel(CancellationToken.REASON_STOP);
         if (exec != null)
             exec.shutdownNow();
     }
@@ -157,7 +206,7 @@ class DownloadThreadImpl implements DownloadThread
     @Override
     public void requestPause()
     {
-        pause = true;
+        token.cancel(CancellationToken.REASON_PAUSE);
         if (exec != null)
             exec.shutdownNow();
     }
@@ -168,12 +217,56 @@ class DownloadThreadImpl implements DownloadThread
         return running;
     }
 
+    @Override
+    public ThroughputRecorder getThroughputRecorder()
+    {
+        return throughput;
+    }
+
+    @Override
+    public boolean requestChange(@NonNull ChangeableParams params, @NonNull ChangeCallback callback)
+    {
+        CancellationToken round;
+        synchronized (changeLock) {
+            if (!acceptChanges || pendingChange != null)
+                return false;
+            pendingChange = new PendingChange(params, callback);
+            round = roundToken;
+        }
+        if (round != null)
+            round.cancel(CancellationToken.REASON_CHANGE);
+
+        return true;
+    }
+
+    @Override
+    public void updateParams(@NonNull ChangeableParams params)
+    {
+        synchronized (infoLock) {
+            if (info != null) {
+                if (params.description != null)
+                    info.description = params.description;
+                if (params.retry != null)
+                    info.retry = params.retry;
+                if (params.checksum != null)
+                    info.checksum = params.checksum;
+            }
+            repo.updateInfoParams(id, params.description, params.retry, params.checksum);
+        }
+    }
+
     @Override
     public DownloadResult call()
     {
         running = true;
         try {
-            info = repo.getInfoById(id);
+            /* Resume from the journal if the previous run was terminated unexpectedly */
+            if (journalDir != null)
+                ProgressJournal.replay(journalDir, id, repo);
+
+            synchronized (infoLock) {
+                info = repo.getInfoById(id);
+            }
             if (info == null) {
                 Log.w(TAG, "Info " + id + " is null, skipping");
                 return new DownloadResult(id, DownloadResult.Status.STOPPED);
@@ -183,6 +276,12 @@ class DownloadThreadImpl implements DownloadThread
                 Log.w(TAG, id + " already finished, skipping");
                 return new DownloadResult(id, DownloadResult.Status.FINISHED);
             }
+            /* The file was received before the restart, post-process it again */
+            if (StatusCode.isStatusPostProcessing(info.statusCode)) {
+                Log.i(TAG, id + " already received, skipping");
+                return new DownloadResult(id, DownloadResult.Status.POST_PROCESSING);
+            }
+            headers = new ArrayList<>(repo.getHeadersById(id));
 
             if (!info.hasMetadata)
                 info.statusCode = STATUS_FETCH_METADATA;
@@ -190,7 +289,7 @@ class DownloadThreadImpl implements DownloadThread
                 info.statusCode = STATUS_RUNNING;
             info.statusMsg = null;
             info.visibility = VISIBILITY_VISIBLE_NOTIFY_COMPLETED;
-            writeToDatabase(false);
+            writeStatusToDatabase();
             /*
              * Remember which network this download started on;
              * used to determine if errors were due to network changes
@@ -210,9 +309,8 @@ class DownloadThreadImpl implements DownloadThread
 
             checkPiecesStatus(res.pieceResultList);
             StopRequest result = checkPauseStop();
-            if ((result == null ) && onBeforeFinishedCallback != null) {
-                info = onBeforeFinishedCallback.onBeforeFinished(info);
-            }
+            if (result == null && info.statusCode == STATUS_SUCCESS && postProcessingCheck != null)
+                info.statusCode = postProcessingCheck.getPostProcessingStatus(info);
 
         } catch (Throwable t) {
             Log.e(TAG, Log.getStackTraceString(t));
@@ -234,6 +332,9 @@ class DownloadThreadImpl implements DownloadThread
                 case STATUS_STOPPED:
                     status = DownloadResult.Status.STOPPED;
                     break;
+                default:
+                    if (StatusCode.isStatusPostProcessing(info.statusCode))
+                        status = DownloadResult.Status.POST_PROCESSING;
             }
         }
 
@@ -242,10 +343,22 @@ class DownloadThreadImpl implements DownloadThread
 
     private void finalizeThread()
     {
+        closeJournal();
+        /* Accepted while the thread was finishing */
+        PendingChange change;
+        while (info != null && (change = takeChange()) != null)
+            applyChange(change);
+        if (throughput != null) {
+            throughput.finish();
+            repo.updateThroughputHistory(throughput.toHistory());
+        }
+
         if (info != null) {
+            info.speed = 0;
+            info.activePieces = 0;
             writeToDatabase(false);
 
-            boolean deletePref = pref.deleteFileIfError();
+            boolean deletePref = pref.downloadSettings().deleteFileIfError;
             if (StatusCode.isStatusError(info.statusCode) && deletePref) {
                 /* When error, free up any disk space */
                 Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
@@ -257,12 +370,35 @@ class DownloadThreadImpl implements DownloadThread
                         /* Ignore */
                     }
                 }
+                repo.deleteWrittenBlocks(id);
+
+            } else if (info.statusCode == STATUS_CANNOT_RESUME) {
+                /* The file content can't be trusted anymore */
+                repo.deleteWrittenBlocks(id);
             }
         }
 
+        synchronized (changeLock) {
+            acceptChanges = false;
+        }
         running = false;
-        stop = false;
-        pause = false;
+        token = new CancellationToken();
+    }
+
+    private void closeJournal()
+    {
+        if (journal == null)
+            return;
+
+        /* All pieces are stopped and their state is written to the database */
+        journal.flush(repo);
+        if (info != null)
+            info.downloadedBytes = journal.getDownloadedBytes();
+        if (blocks != null)
+            repo.updateWrittenBlocks(blocks);
+        journal.delete();
+        journal = null;
+        blocks = null;
     }
 
     private void checkPiecesStatus(List<Future<PieceResult>> resList)
@@ -355,7 +491,7 @@ class DownloadThreadImpl implements DownloadThread
     {
         info.numFailed++;
 
-        if (info.numFailed < pref.maxDownloadRetries()) {
+        if (info.numFailed < pref.downloadSettings().maxDownloadRetries) {
             NetworkInfo netInfo = systemFacade.getActiveNetworkInfo();
             if (netInfo != null && netInfo.getType() == networkType && netInfo.isConnected())
                 /* Underlying network is still intact, use normal backoff */
@@ -364,7 +500,7 @@ class DownloadThreadImpl implements DownloadThread
                 /* Network changed, retry on any next available */
                 info.statusCode = STATUS_WAITING_FOR_NETWORK;
 
-            if (getETag(repo.getHeadersById(id)) == null && madeProgress) {
+            if (getETag(headers) == null && madeProgress) {
                 /*
                  * However, if we wrote data and have no ETag to verify
                  * contents against later, we can't actually resume
@@ -401,6 +537,9 @@ class DownloadThreadImpl implements DownloadThread
             /* Create file if doesn't exists or replace it */
             Uri filePath;
             try {
+                /* Nothing is written to a new file */
+                if (fs.getFileUri(info.dirPath, info.fileName) == null)
+                    repo.deleteWrittenBlocks(id);
                 filePath = fs.createFile(info.dirPath, info.fileName, false);
 
             } catch (IOException e) {
@@ -417,7 +556,7 @@ class DownloadThreadImpl implements DownloadThread
                 return new ExecDownloadResult(ret, resList);
             }
 
-            if (!Utils.checkConnectivity(pref, systemFacade)) {
+            if (!Utils.checkConnectivity(pref.downloadSettings(), systemFacade)) {
                 ret = new StopRequest(STATUS_WAITING_FOR_NETWORK);
                 return new ExecDownloadResult(ret, resList);
             }
@@ -432,21 +571,23 @@ class DownloadThreadImpl implements DownloadThread
             }
 
             /* Pre-flight disk space requirements, when known */
-            if (info.totalBytes > 0 && pref.preallocateDiskSpace()) {
+            if (info.totalBytes > 0 && pref.downloadSettings().preallocateDiskSpace) {
                 if ((ret = allocFileSpace(filePath)) != null)
                     return new ExecDownloadResult(ret, resList);
             }
 
-            exec = (info.getNumPieces() == 1 ?
-                    Executors.newSingleThreadExecutor() :
-                    Executors.newFixedThreadPool(info.getNumPieces()));
-
-            ArrayList<PieceThread> pieceThreads = new ArrayList<>(info.getNumPieces());
-            for (int i = 0; i < info.getNumPieces(); i++)
-                pieceThreads.add(new PieceThreadImpl(id, i, repo, fs, systemFacade, pref));
-
-            /* Wait all threads */
-            resList = exec.invokeAll(pieceThreads);
+            throughput = new ThroughputRecorder(id, repo.getThroughputHistory(id));
+            synchronized (changeLock) {
+                acceptChanges = true;
+            }
+            resList = runPieces();
+            /* The file and its metadata stay, only the pieces are restarted */
+            PendingChange change;
+            while ((change = takeChange()) != null) {
+                applyChange(change);
+                if (checkPauseStop() == null)
+                    resList = runPieces();
+            }
 
         } catch (InterruptedException e) {
             requestStop();
@@ -455,6 +596,168 @@ class DownloadThreadImpl implements DownloadThread
         return new ExecDownloadResult(ret, resList);
     }
 
+    /*
+     * Run the pieces until they all return, either finished,
+     * failed or cancelled by the round token
+     */
+
+    private List<Future<PieceResult>> runPieces() throws InterruptedException
+    {
+        CancellationToken round = new CancellationToken();
+        synchronized (changeLock) {
+            if (pendingChange != null)
+                round.cancel(CancellationToken.REASON_CHANGE);
+            roundToken = round;
+        }
+        /* Closed right away if the download is already paused or stopped */
+        Closeable link = () -> round.cancel(token.getReason());
+        token.register(link);
+        try {
+            exec = pieceExecutor.newGroup(id.toString());
+
+            DownloadContext context = new DownloadContext(info, headers);
+            List<DownloadPiece> pieces = repo.getPiecesById(id);
+            blocks = prepareWrittenBlocks(context, pieces);
+            journal = new ProgressJournal(id, info.getNumPieces(), journalDir, blocks);
+            for (DownloadPiece piece : pieces) {
+                if (piece.index < info.getNumPieces())
+                    journal.setPiece(piece.index, context.pieceStartPos(piece), piece.curBytes);
+            }
+            throughput.record(DateUtils.elapsedRealtime(), journal.getDownloadedBytes());
+            ArrayList<Future<PieceResult>> futures = new ArrayList<>(info.getNumPieces());
+            for (int i = 0; i < info.getNumPieces(); i++)
+                futures.add(exec.submit(new PieceThreadImpl(context, i, journal,
+                        repo, fs, systemFacade, pref, round)));
+
+            /* Wait all threads, periodically flushing their progress */
+            exec.shutdown();
+            while (!exec.awaitTermination(PROGRESS_FLUSH_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (!journal.flush(repo)) {
+                    Log.i(TAG, "id=" + id + ", download deleted or missing");
+                    requestStop();
+                }
+                /* The minute samples are written once per minute */
+                if (throughput.record(DateUtils.elapsedRealtime(), journal.getDownloadedBytes()))
+                    repo.updateThroughputHistory(throughput.toHistory());
+            }
+
+            return futures;
+
+        } finally {
+            token.unregister(link);
+            closeJournal();
+        }
+    }
+
+    /*
+     * Returns null and stops accepting changes if there are none
+     */
+
+    private PendingChange takeChange()
+    {
+        synchronized (changeLock) {
+            PendingChange change = pendingChange;
+            pendingChange = null;
+            if (change == null)
+                acceptChanges = false;
+
+            return change;
+        }
+    }
+
+    /*
+     * Applied between the rounds of the pieces, so the written blocks are
+     * saved and the re-split pieces skip them (see prepareWrittenBlocks()).
+     * Nothing is applied if the new link doesn't pass the check
+     */
+
+    private void applyChange(PendingChange change)
+    {
+        ChangeableParams params = change.params;
+        Throwable err = null;
+        try {
+            SourceProbe.Result source = null;
+            if (params.url != null && !params.url.equals(info.url)) {
+                Header eTagHeader = getETag(headers);
+                source = SourceProbe.probe(params.url, info.userAgent, headers,
+                        pref.downloadSettings().timeout, token);
+                SourceProbe.validate(info, (eTagHeader == null ? null : eTagHeader.value),
+                        info.downloadedBytes, params.url, source);
+            }
+            boolean rebuildPieces = false;
+            if (params.numPieces != null && params.numPieces != info.getNumPieces() &&
+                !isPiecesFinished()) {
+                info.setNumPieces(params.numPieces);
+                rebuildPieces = true;
+            }
+
+            if (source != null)
+                SourceProbe.switchTo(repo, info, headers, params.url, source);
+            writeToDatabase(rebuildPieces);
+            Log.i(TAG, "id=" + id + ", applied " + params);
+
+        } catch (Exception e) {
+            Log.e(TAG, "id=" + id + ", applying " + params + " error: " +
+                    Log.getStackTraceString(e));
+            err = e;
+        }
+
+        change.callback.onChanged(info.fileName, err);
+    }
+
+    private boolean isPiecesFinished()
+    {
+        for (DownloadPiece piece : repo.getPiecesById(id)) {
+            if (piece.statusCode != STATUS_SUCCESS)
+                return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Load the bitmap of written blocks and move the pieces past the blocks
+     * that are already on disk, e.g. after the pieces have been re-split
+     */
+
+    private WrittenBlocks prepareWrittenBlocks(DownloadContext context, List<DownloadPiece> pieces)
+    {
+        if (context.totalBytes <= 0 || !context.partialSupport) {
+            /* The pieces start from the beginning every time */
+            repo.deleteWrittenBlocks(id);
+            return null;
+        }
+
+        WrittenBlocks fromPieces = new WrittenBlocks(id, context.totalBytes);
+        for (DownloadPiece piece : pieces)
+            fromPieces.markWritten(context.pieceStartPos(piece), piece.curBytes);
+
+        /* The bitmap may be ahead of the pieces, but never behind them */
+        WrittenBlocks blocks = repo.getWrittenBlocks(id);
+        if (blocks == null || !blocks.covers(fromPieces)) {
+            if (blocks != null)
+                Log.w(TAG, "id=" + id + ", written blocks don't match the pieces, rebuilding");
+            blocks = fromPieces;
+        }
+
+        for (DownloadPiece piece : pieces) {
+            if (piece.statusCode == STATUS_SUCCESS || piece.size <= 0)
+                continue;
+
+            long endPos = context.pieceEndPos(piece) + 1;
+            long pos = blocks.firstUnwritten(piece.curBytes, endPos);
+            if (pos <= piece.curBytes)
+                continue;
+
+            piece.curBytes = pos;
+            if (pos == endPos)
+                piece.statusCode = STATUS_SUCCESS;
+            repo.updatePieceStatus(piece);
+        }
+
+        return blocks;
+    }
+
     private StopRequest fetchMetadata()
     {
         final StopRequest[] ret = new StopRequest[1];
@@ -471,8 +774,9 @@ class DownloadThreadImpl implements DownloadThread
                 return new StopRequest(STATUS_UNKNOWN_ERROR, "Unable to create SSLContext");
             }
             connection.setReferer(connectWithReferer[0] ? info.url : null);
-            connection.setTimeout(pref.timeout());
+            connection.setTimeout(pref.downloadSettings().timeout);
             connection.contentRangeLength(true);
+            connection.setDisconnectHook(token);
             connection.setListener(new HttpConnection.Listener() {
                 @Override
                 public void onConnectionCreated(HttpURLConnection conn)
@@ -533,6 +837,10 @@ class DownloadThreadImpl implements DownloadThread
                 }
             });
             connection.run();
+            /* The connection is closed on cancellation, the error is caused by it */
+            StopRequest cancel;
+            if (ret[0] != null && (cancel = checkPauseStop()) != null)
+                return cancel;
 
         } while (connectWithReferer[0]);
 
@@ -543,7 +851,7 @@ class DownloadThreadImpl implements DownloadThread
         if (conn.getRequestProperty("User-Agent") == null && !TextUtils.isEmpty(info.userAgent)) {
             conn.addRequestProperty("User-Agent", info.userAgent);
         }
-        for (Header header : repo.getHeadersById(id)) {
+        for (Header header : headers) {
             conn.addRequestProperty(header.name, header.value);
         }
         return null;
@@ -612,7 +920,7 @@ class DownloadThreadImpl implements DownloadThread
         Header eTagHeader = null;
         Header refererHeader = null;
         /* Find already added ETag and Referer */
-        for (Header header : repo.getHeadersById(id)) {
+        for (Header header : headers) {
             if ("Referer".equals(header.name)) {
                 refererHeader = header;
             } else if ("ETag".equals(header.name)) {
@@ -625,18 +933,23 @@ class DownloadThreadImpl implements DownloadThread
 
         if (eTagHeader == null) {
             eTagHeader = new Header(id, "ETag", conn.getHeaderField("ETag"));
+            headers.add(eTagHeader);
         } else {
             eTagHeader.value = conn.getHeaderField("ETag");
         }
         repo.addHeader(eTagHeader);
+        info.contentKey = DownloadKeys.contentKey(info.url, eTagHeader.value, info.totalBytes);
 
         if (refererHeader == null && urlReferer != null) {
             refererHeader = new Header(id, "Referer", urlReferer);
+            headers.add(refererHeader);
             repo.addHeader(refererHeader);
         }
 
         info.hasMetadata = true;
         info.statusCode = STATUS_RUNNING;
+        /* The pieces are rebuilt from scratch */
+        repo.deleteWrittenBlocks(id);
         writeToDatabase(true);
 
         return false;
@@ -695,16 +1008,25 @@ class DownloadThreadImpl implements DownloadThread
     }
 
     private void writeToDatabase(boolean withPieces)
+    {
+        synchronized (infoLock) {
+            info.lastModify = System.currentTimeMillis();
+            repo.updateInfo(info, false, withPieces);
+        }
+    }
+
+    private void writeStatusToDatabase()
     {
         info.lastModify = System.currentTimeMillis();
-        repo.updateInfo(info, false, withPieces);
+        repo.updateInfoStatus(info);
     }
 
     private StopRequest checkPauseStop()
     {
-        if (pause)
+        int reason = token.getReason();
+        if (reason == CancellationToken.REASON_PAUSE)
             return new StopRequest(STATUS_PAUSED, "Download paused");
-        else if (stop || Thread.currentThread().isInterrupted())
+        else if (reason == CancellationToken.REASON_STOP || Thread.currentThread().isInterrupted())
             return new StopRequest(STATUS_STOPPED, "Download cancelled");
 
         return null;
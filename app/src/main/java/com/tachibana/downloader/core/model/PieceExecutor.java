@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * One bounded thread pool for the pieces of all downloads, owned by
+ * the engine. The number of pieces running at once (i.e. the number
+ * of open connections) never exceeds the limit, no matter how many
+ * downloads are active. Each download run submits its pieces to its
+ * own group; a free slot goes to the next group in round-robin order
+ * that runs less than its fair share (limit / number of groups with
+ * work), or to any group with queued pieces if there is no such one.
+ *
+ * Pieces aren't preempted, instead they call shouldYield() at their
+ * chunk boundaries. If the group of the piece runs more than its fair
+ * share while another group waits for a slot, the piece saves its
+ * progress and returns; it's queued again and continues from where
+ * it stopped, and the slot goes to the waiting group.
+ *
+ * Threads are kept alive for a while after the work is done and
+ * reused by the next downloads, instead of a new pool per run.
+ */
+
+public class PieceExecutor
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = PieceExecutor.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_TIME = 30; /* s */
+    /* The task that runs on the current pool thread */
+    private static final ThreadLocal<Task> currentTask = new ThreadLocal<>();
+    private static volatile PieceExecutor INSTANCE;
+
+    private final ThreadPoolExecutor pool;
+    /* Groups with queued or running pieces, in round-robin order */
+    private final ArrayList<Group> groups = new ArrayList<>();
+    private final Stats stats = new Stats();
+    private int maxConnections;
+    private int running;
+    private int nextGroup;
+    /* Pieces that were asked to yield, but haven't returned yet */
+    private int yielding;
+
+    /*
+     * Shared by all downloads of the process. The limit is
+     * only used on the first call, see setMaxConnections()
+     */
+
+    public static PieceExecutor getInstance(int maxConnections)
+    {
+        if (INSTANCE == null) {
+            synchronized (PieceExecutor.class) {
+                if (INSTANCE == null)
+                    INSTANCE = new PieceExecutor(maxConnections);
+            }
+        }
+
+        return INSTANCE;
+    }
+
+    public PieceExecutor(int maxConnections)
+    {
+        this.maxConnections = Math.max(maxConnections, 1);
+        pool = new ThreadPoolExecutor(this.maxConnections, this.maxConnections,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new PieceThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     * New group for the pieces of one download run.
+     * It must be shut down when all pieces are submitted
+     */
+
+    public ExecutorService newGroup(@NonNull String name)
+    {
+        return new Group(name);
+    }
+
+    /*
+     * Doesn't affect the running pieces, only the next ones
+     */
+
+    public void setMaxConnections(int maxConnections)
+    {
+        synchronized (this) {
+            maxConnections = Math.max(maxConnections, 1);
+            if (maxConnections == this.maxConnections)
+                return;
+
+            if (maxConnections > this.maxConnections) {
+                pool.setMaximumPoolSize(maxConnections);
+                pool.setCorePoolSize(maxConnections);
+            } else {
+                pool.setCorePoolSize(maxConnections);
+                pool.setMaximumPoolSize(maxConnections);
+            }
+            this.maxConnections = maxConnections;
+        }
+        dispatch();
+    }
+
+    public synchronized int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public Stats getStats()
+    {
+        synchronized (this) {
+            Stats s = new Stats(stats);
+            s.running = running;
+            s.threads = pool.getPoolSize();
+            return s;
+        }
+    }
+
+    /*
+     * Called by the piece at its chunk boundaries. If it returns true,
+     * the piece must save its progress and return right away; the result
+     * is discarded and the piece is run again when its group gets a slot.
+     * Always false outside of the pool threads
+     */
+
+    public static boolean shouldYield()
+    {
+        Task task = currentTask.get();
+
+        return task != null && task.executor().checkYield(task);
+    }
+
+    private synchronized boolean checkYield(Task task)
+    {
+        if (task.yielded)
+            return true;
+
+        int size = groups.size();
+        if (size < 2 || running < maxConnections)
+            return false;
+
+        int share = Math.max(maxConnections / size, 1);
+        Group own = task.group;
+        if (own.running - own.yielding <= share)
+            return false;
+
+        /* Slots needed by the groups that run less than their share */
+        int wanted = 0;
+        for (Group group : groups) {
+            if (group == own || group.pending.isEmpty() || group.running >= share)
+                continue;
+            wanted += Math.min(share - group.running, group.pending.size());
+        }
+        if (yielding >= wanted)
+            return false;
+
+        task.yielded = true;
+        own.yielding++;
+        yielding++;
+
+        return true;
+    }
+
+    private synchronized void enqueue(Group group, Task task)
+    {
+        if (group.pending.isEmpty() && group.running == 0)
+            groups.add(group);
+        group.pending.add(task);
+        stats.submitted++;
+        stats.maxQueued = Math.max(stats.maxQueued, queuedCount());
+    }
+
+    /*
+     * Give free slots to the queued pieces
+     */
+
+    private void dispatch()
+    {
+        ArrayList<Task> started = new ArrayList<>();
+        synchronized (this) {
+            while (running < maxConnections) {
+                Group group = nextGroup();
+                if (group == null)
+                    break;
+
+                Task task = group.pending.poll();
+                group.running++;
+                running++;
+                stats.maxRunning = Math.max(stats.maxRunning, running);
+                long queueWait = SystemClock.elapsedRealtimeNanos() - task.submitTime;
+                stats.queueWaitNanos += queueWait;
+                stats.maxQueueWaitNanos = Math.max(stats.maxQueueWaitNanos, queueWait);
+                started.add(task);
+            }
+        }
+        for (Task task : started)
+            pool.execute(task);
+    }
+
+    private Group nextGroup()
+    {
+        int size = groups.size();
+        if (size == 0)
+            return null;
+
+        int share = Math.max(maxConnections / size, 1);
+        Group fallback = null;
+        for (int i = 0; i < size; i++) {
+            int index = (nextGroup + i) % size;
+            Group group = groups.get(index);
+            if (group.pending.isEmpty())
+                continue;
+            if (group.running < share) {
+                nextGroup = (index + 1) % size;
+                return group;
+            }
+            if (fallback == null)
+                fallback = group;
+        }
+        /* Nobody else needs the slot */
+        return fallback;
+    }
+
+    private void onTaskFinished(Task task)
+    {
+        Group group = task.group;
+        synchronized (this) {
+            running--;
+            group.running--;
+            if (task.yielded) {
+                task.yielded = false;
+                group.yielding--;
+                yielding--;
+                /* Continues after the other groups have got their slots */
+                task.submitTime = SystemClock.elapsedRealtimeNanos();
+                group.pending.add(task);
+                stats.yielded++;
+            } else {
+                stats.completed++;
+            }
+            if (group.pending.isEmpty() && group.running == 0)
+                removeGroup(group);
+        }
+        dispatch();
+    }
+
+    /*
+     * Returns the queued pieces of the group that will never run
+     */
+
+    private synchronized List<Runnable> cancelPending(Group group)
+    {
+        ArrayList<Runnable> cancelled = new ArrayList<>(group.pending.size());
+        for (Task task : group.pending) {
+            cancel(task.runnable);
+            cancelled.add(task.runnable);
+        }
+        group.pending.clear();
+        stats.cancelled += cancelled.size();
+        if (group.running == 0)
+            removeGroup(group);
+
+        return cancelled;
+    }
+
+    /*
+     * So that nobody waits for the result of the piece that will never run
+     */
+
+    private static void cancel(Runnable runnable)
+    {
+        if (runnable instanceof Future)
+            ((Future<?>)runnable).cancel(false);
+    }
+
+    private void removeGroup(Group group)
+    {
+        int index = groups.indexOf(group);
+        if (index < 0)
+            return;
+        groups.remove(index);
+        if (index < nextGroup)
+            nextGroup--;
+        if (nextGroup >= groups.size())
+            nextGroup = 0;
+    }
+
+    private int queuedCount()
+    {
+        int count = 0;
+        for (Group group : groups)
+            count += group.pending.size();
+
+        return count;
+    }
+
+    private static class PieceThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r)
+        {
+            Thread t = new Thread(r, "PieceThread-" + count.incrementAndGet());
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+
+    private class Task implements Runnable
+    {
+        final Group group;
+        final Runnable runnable;
+        /* Guarded by PieceExecutor.this */
+        long submitTime = SystemClock.elapsedRealtimeNanos();
+        boolean yielded;
+
+        Task(Group group, Runnable runnable)
+        {
+            this.group = group;
+            this.runnable = runnable;
+        }
+
+        PieceExecutor executor()
+        {
+            return PieceExecutor.this;
+        }
+
+        @Override
+        public void run()
+        {
+            Thread thread = Thread.currentThread();
+            boolean run = group.onStart(thread);
+            currentTask.set(this);
+            try {
+                if (run)
+                    runnable.run();
+                else
+                    cancel(runnable);
+
+            } finally {
+                currentTask.remove();
+                if (isYielded())
+                    group.onYield(thread);
+                else
+                    group.onEnd(thread);
+                /* Don't pass the interruption to the next piece */
+                Thread.interrupted();
+                onTaskFinished(this);
+            }
+        }
+
+        boolean isYielded()
+        {
+            synchronized (PieceExecutor.this) {
+                return yielded;
+            }
+        }
+    }
+
+    /*
+     * Can be run several times, the result is set only
+     * by the run that hasn't yielded, see shouldYield()
+     */
+
+    private static class PieceFuture<T> extends FutureTask<T>
+    {
+        private final Callable<T> callable;
+
+        PieceFuture(Callable<T> callable)
+        {
+            super(callable);
+            this.callable = callable;
+        }
+
+        @Override
+        public void run()
+        {
+            if (isDone())
+                return;
+
+            T result;
+            try {
+                result = callable.call();
+
+            } catch (Throwable e) {
+                setException(e);
+                return;
+            }
+            Task task = currentTask.get();
+            if (task == null || !task.isYielded())
+                set(result);
+        }
+    }
+
+    /*
+     * Pieces of one download run. Behaves like an own thread pool:
+     * shutdownNow() cancels the queued pieces and interrupts the running
+     * ones, awaitTermination() waits until all of them are finished
+     */
+
+    private class Group extends AbstractExecutorService
+    {
+        final String name;
+        /* Guarded by PieceExecutor.this */
+        final ArrayDeque<Task> pending = new ArrayDeque<>();
+        int running;
+        /* Guarded by this */
+        private final HashMap<Thread, Boolean> threads = new HashMap<>();
+        private int unfinished;
+        private boolean shutdown;
+        private boolean interrupted;
+
+        /* Guarded by PieceExecutor.this */
+        int yielding;
+
+        Group(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable)
+        {
+            return new PieceFuture<>(callable);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value)
+        {
+            return new PieceFuture<>(Executors.callable(runnable, value));
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command)
+        {
+            synchronized (this) {
+                if (shutdown)
+                    throw new RejectedExecutionException(name + " is shut down");
+                unfinished++;
+            }
+            enqueue(this, new Task(this, command));
+            dispatch();
+        }
+
+        synchronized boolean onStart(Thread thread)
+        {
+            if (interrupted)
+                return false;
+            threads.put(thread, Boolean.TRUE);
+
+            return true;
+        }
+
+        /*
+         * The piece is queued again, it's still unfinished
+         */
+
+        synchronized void onYield(Thread thread)
+        {
+            threads.remove(thread);
+        }
+
+        synchronized void onEnd(Thread thread)
+        {
+            threads.remove(thread);
+            if (--unfinished == 0)
+                notifyAll();
+        }
+
+        @Override
+        public synchronized void shutdown()
+        {
+            shutdown = true;
+            notifyAll();
+        }
+
+        @NonNull
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            synchronized (this) {
+                shutdown = true;
+                interrupted = true;
+                for (Thread thread : threads.keySet())
+                    thread.interrupt();
+            }
+            List<Runnable> cancelled = cancelPending(this);
+            synchronized (this) {
+                unfinished -= cancelled.size();
+                if (unfinished == 0)
+                    notifyAll();
+            }
+
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isShutdown()
+        {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated()
+        {
+            return shutdown && unfinished == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, @NonNull TimeUnit unit)
+                throws InterruptedException
+        {
+            long deadline = SystemClock.elapsedRealtime() + unit.toMillis(timeout);
+            while (!isTerminated()) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+
+            return true;
+        }
+    }
+
+    public static class Stats
+    {
+        public long submitted;
+        public long completed;
+        public long cancelled;
+        /* Times the pieces gave up their slots to the other downloads */
+        public long yielded;
+        public int running;
+        public int maxRunning;
+        public int maxQueued;
+        public int threads;
+        /* Time from submission to the start of the piece */
+        public long queueWaitNanos;
+        public long maxQueueWaitNanos;
+
+        Stats()
+        {
+        }
+
+        Stats(Stats other)
+        {
+            submitted = other.submitted;
+            completed = other.completed;
+            cancelled = other.cancelled;
+            yielded = other.yielded;
+            running = other.running;
+            maxRunning = other.maxRunning;
+            maxQueued = other.maxQueued;
+            threads = other.threads;
+            queueWaitNanos = other.queueWaitNanos;
+            maxQueueWaitNanos = other.maxQueueWaitNanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            long started = completed + running;
+            return "Stats{" +
+                    "submitted=" + submitted +
+                    ", completed=" + completed +
+                    ", cancelled=" + cancelled +
+                    ", yielded=" + yielded +
+                    ", running=" + running +
+                    ", maxRunning=" + maxRunning +
+                    ", maxQueued=" + maxQueued +
+                    ", threads=" + threads +
+                    ", avgQueueWaitMs=" + (started == 0 ? 0 : queueWaitNanos / started / 1000000.0) +
+                    ", maxQueueWaitMs=" + maxQueueWaitNanos / 1000000.0 +
+                    '}';
+        }
+    }
+}
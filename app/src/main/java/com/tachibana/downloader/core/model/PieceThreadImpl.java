@@ -28,9 +28,9 @@ import androidx.annotation.NonNull;
 
 import com.tachibana.downloader.core.HttpConnection;
 import com.tachibana.downloader.core.model.data.PieceResult;
-import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.settings.DownloadSettings;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
 import com.tachibana.downloader.core.system.FileDescriptorWrapper;
@@ -84,8 +84,12 @@ class PieceThreadImpl extends Thread implements PieceThread
     /* The minimum amount of time that has to elapse before the progress bar gets updated, ms */
     private static final long MIN_PROGRESS_TIME = 2000;
     private static final long MILLIS_IN_SEC = 1000;
+    /* How often the piece offers its slot to the other downloads, see PieceExecutor */
+    private static final long YIELD_CHECK_STEP = 1024 * 1024;
 
     private DownloadPiece piece;
+    private final DownloadContext context;
+    private final ProgressJournal journal;
     private final UUID infoId;
     private final int pieceIndex;
     private long startPos, endPos;
@@ -98,30 +102,41 @@ class PieceThreadImpl extends Thread implements PieceThread
     private long speedSampleStart;
     /* Bytes transferred since current sample started */
     private long speedSampleBytes;
+    private long lastYieldCheckBytes;
+    /* The slot was given up, the piece continues from piece.curBytes on the next run */
+    private boolean yielded;
     private final DataRepository repo;
     private final FileSystemFacade fs;
     private final SystemFacade systemFacade;
+    /* Changes apply to the running piece */
     private final SettingsRepository pref;
     private final PieceResult result;
+    /* Of the download run, closes the connection on pause and stop */
+    private final CancellationToken token;
 
     private FileDescriptor outFd;
     private FileOutputStream fout;
     private InputStream in;
     private FileDescriptorWrapper fdWrapper;
 
-    public PieceThreadImpl(@NonNull UUID infoId,
+    public PieceThreadImpl(@NonNull DownloadContext context,
                            int pieceIndex,
+                           @NonNull ProgressJournal journal,
                            @NonNull DataRepository repo,
                            @NonNull FileSystemFacade fs,
                            @NonNull SystemFacade systemFacade,
-                           @NonNull SettingsRepository pref)
+                           @NonNull SettingsRepository pref,
+                           @NonNull CancellationToken token)
     {
-        this.infoId = infoId;
+        this.context = context;
+        this.infoId = context.id;
         this.pieceIndex = pieceIndex;
+        this.journal = journal;
         this.repo = repo;
         this.fs = fs;
         this.systemFacade = systemFacade;
         this.pref = pref;
+        this.token = token;
         this.result = new PieceResult(infoId, pieceIndex);
     }
 
@@ -130,25 +145,30 @@ class PieceThreadImpl extends Thread implements PieceThread
     {
         StopRequest ret;
         try {
-            piece = repo.getPiece(pieceIndex, infoId);
-            if (piece == null) {
-                Log.w(TAG, "Piece " + pieceIndex + " is null, skipping");
-                return result;
-            }
+            if (yielded) {
+                /* The database may not have the latest progress yet */
+                yielded = false;
+            } else {
+                piece = repo.getPiece(pieceIndex, infoId);
+                if (piece == null) {
+                    Log.w(TAG, "Piece " + pieceIndex + " is null, skipping");
+                    return result;
+                }
 
-            if (piece.statusCode == STATUS_SUCCESS) {
-                Log.w(TAG, pieceIndex + " already finished, skipping");
-                return result;
+                if (piece.statusCode == STATUS_SUCCESS) {
+                    Log.w(TAG, pieceIndex + " already finished, skipping");
+                    return result;
+                }
             }
 
             do {
                 piece.statusCode = STATUS_RUNNING;
                 piece.statusMsg = null;
-                writeToDatabase();
+                writeStatusToDatabase();
 
                 if ((ret = execDownload()) != null)
                     handleRequest(ret);
-                else
+                else if (!yielded)
                     piece.statusCode = STATUS_SUCCESS;
 
             } while (piece != null && piece.statusCode == STATUS_WAITING_TO_RETRY);
@@ -190,45 +210,48 @@ class PieceThreadImpl extends Thread implements PieceThread
     private void finalizeThread()
     {
         if (piece != null)
-            writeToDatabase();
+            writeStatusToDatabase();
     }
 
     private StopRequest execDownload()
     {
+        StopRequest cancel;
+        if ((cancel = checkCancel()) != null)
+            return cancel;
+
         lastBandwidthUpdateTime = DateUtils.elapsedRealtime();
 
         if (piece.size == 0)
             return new StopRequest(STATUS_SUCCESS, "Length is zero; skipping");
 
-        DownloadInfo info = repo.getInfoById(infoId);
-        if (info == null)
-            return new StopRequest(STATUS_STOPPED, "Download deleted or missing");
-
-        startPos = info.pieceStartPos(piece);
-        endPos = info.pieceEndPos(piece);
+        startPos = context.pieceStartPos(piece);
+        endPos = context.pieceEndPos(piece);
 
         /* Reset and download from the beginning */
-        if (!info.partialSupport) {
+        if (!context.partialSupport) {
             piece.curBytes = startPos;
-            writeToDatabase();
+            writeProgressToJournal();
         }
 
         HttpConnection connection;
         try {
-            connection = new HttpConnection(info.url);
+            connection = new HttpConnection(context.url);
 
         } catch (MalformedURLException e) {
-            return new StopRequest(STATUS_BAD_REQUEST, "bad url " + info.url, e);
+            return new StopRequest(STATUS_BAD_REQUEST, "bad url " + context.url, e);
         } catch (GeneralSecurityException e) {
             return new StopRequest(STATUS_UNKNOWN_ERROR, "Unable to create SSLContext");
         }
-        connection.setTimeout(pref.timeout());
+        DownloadSettings s = pref.downloadSettings();
+        connection.setTimeout(s.timeout);
+        connection.setDisconnectHook(token);
 
-        if (!Utils.checkConnectivity(pref, systemFacade))
+        if (!Utils.checkConnectivity(s, systemFacade))
             return new StopRequest(STATUS_WAITING_FOR_NETWORK);
 
         final StopRequest[] ret = new StopRequest[1];
         boolean resuming = piece.curBytes != startPos;
+        lastYieldCheckBytes = piece.curBytes;
 
         connection.setListener(new HttpConnection.Listener() {
             @Override
@@ -295,6 +318,12 @@ class PieceThreadImpl extends Thread implements PieceThread
             }
         });
         connection.run();
+        /*
+         * The connection is closed on cancellation, so the read
+         * or write error is caused by it, not by the network
+         */
+        if (ret[0] != null && (cancel = checkCancel()) != null)
+            return cancel;
 
         return ret[0];
     }
@@ -305,20 +334,10 @@ class PieceThreadImpl extends Thread implements PieceThread
 
     private StopRequest addRequestHeaders(HttpURLConnection conn, boolean resuming)
     {
-        DownloadInfo info = repo.getInfoById(infoId);
-        if (info == null)
-            return new StopRequest(STATUS_STOPPED, "Download deleted or missing");
-
-        String etag = null;
-        for (Header header : repo.getHeadersById(infoId)) {
-            if ("ETag".equals(header.name)) {
-                etag = header.value;
-                continue;
-            }
+        for (Header header : context.headers)
             conn.addRequestProperty(header.name, header.value);
-        }
-        if (conn.getRequestProperty("User-Agent") == null && !TextUtils.isEmpty(info.userAgent))
-            conn.addRequestProperty("User-Agent", info.userAgent);
+        if (conn.getRequestProperty("User-Agent") == null && !TextUtils.isEmpty(context.userAgent))
+            conn.addRequestProperty("User-Agent", context.userAgent);
         /*
          * Defeat transparent gzip compression, since it doesn't allow us to
          * easily resume partial downloads.
@@ -329,8 +348,8 @@ class PieceThreadImpl extends Thread implements PieceThread
          * streaming large downloads after cancelled.
          */
         conn.setRequestProperty("Connection", "close");
-        if (resuming && etag != null)
-            conn.addRequestProperty("If-Match", etag);
+        if (resuming && context.etag != null)
+            conn.addRequestProperty("If-Match", context.etag);
         String rangeRequest = "bytes=" + piece.curBytes + "-";
         if (endPos >= 0)
             rangeRequest += endPos;
@@ -345,9 +364,6 @@ class PieceThreadImpl extends Thread implements PieceThread
 
     private StopRequest transferData(HttpURLConnection conn)
     {
-        DownloadInfo info = repo.getInfoById(infoId);
-        if (info == null)
-            return new StopRequest(STATUS_STOPPED, "Download deleted or missing");
         StopRequest ret;
         if ((ret = checkCancel()) != null)
             return ret;
@@ -389,7 +405,7 @@ class PieceThreadImpl extends Thread implements PieceThread
             }
 
             try {
-                Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
+                Uri filePath = fs.getFileUri(context.dirPath, context.fileName);
                 if (filePath == null)
                     throw new IOException("Write error: file not found");
                 fdWrapper = fs.getFD(filePath);
@@ -443,7 +459,7 @@ class PieceThreadImpl extends Thread implements PieceThread
                 return ret;
 
             int byteCount;
-            int speedLimit = pref.speedLimit();
+            int speedLimit = pref.downloadSettings().speedLimit;
             int speedLimitBytes = speedLimit * 1024;
 
             try {
@@ -473,6 +489,19 @@ class PieceThreadImpl extends Thread implements PieceThread
             if (piece.size != -1 && piece.curBytes >= endPos + 1)
                 break;
 
+            if (checkYield()) {
+                try {
+                    outFd.sync();
+                    writeProgressToJournal();
+
+                } catch (IOException e) {
+                    /* The journal keeps the last synced progress */
+                }
+                Log.i(TAG, "piece=" + pieceIndex + ", yielded at " + piece.curBytes);
+
+                return null;
+            }
+
             speedLimit(byteCount, speedLimitBytes);
         }
 
@@ -486,6 +515,21 @@ class PieceThreadImpl extends Thread implements PieceThread
         return null;
     }
 
+    /*
+     * Only at the chunk boundaries and if the piece
+     * can continue from where it stopped
+     */
+
+    private boolean checkYield()
+    {
+        if (!context.partialSupport || piece.curBytes - lastYieldCheckBytes < YIELD_CHECK_STEP)
+            return false;
+        lastYieldCheckBytes = piece.curBytes;
+        yielded = PieceExecutor.shouldYield();
+
+        return yielded;
+    }
+
     private void speedLimit(long byteCount, int speedLimitBytes) {
         bytesReadBandwidth += byteCount;
         if (speedLimitBytes == 0) {
@@ -496,14 +540,11 @@ class PieceThreadImpl extends Thread implements PieceThread
             // and the data will not be read in the remaining time of this 1 second.
             long offsetTime = DateUtils.elapsedRealtime() - lastBandwidthUpdateTime;
             if (offsetTime < MILLIS_IN_SEC) {
-                try {
-                    if (offsetTime < 0) {
-                        offsetTime = 0;
-                    }
-                    Thread.sleep(MILLIS_IN_SEC - offsetTime);
-                } catch (InterruptedException e) {
-                    // Ignore
+                if (offsetTime < 0) {
+                    offsetTime = 0;
                 }
+                // Wakes up on pause or stop
+                token.sleep(MILLIS_IN_SEC - offsetTime);
             }
             lastBandwidthUpdateTime = DateUtils.elapsedRealtime();
             bytesReadBandwidth = 0;
@@ -535,13 +576,10 @@ class PieceThreadImpl extends Thread implements PieceThread
         if (bytesDelta > minProgressStep && timeDelta > MIN_PROGRESS_TIME) {
             /*
              * sync() to ensure that current progress has been flushed to disk,
-             * so we can always resume based on latest database information
+             * so we can always resume based on latest journal information
              */
             outFd.sync();
-
-            StopRequest ret;
-            if ((ret = writeToDatabaseOrCancel()) != null)
-                return ret;
+            writeProgressToJournal();
 
             lastUpdateBytes = currentBytes;
             lastUpdateTime = now;
@@ -555,21 +593,33 @@ class PieceThreadImpl extends Thread implements PieceThread
         result.retryAfter = conn.getHeaderFieldInt("Retry-After", -1);
     }
 
-    private StopRequest writeToDatabaseOrCancel()
-    {
-        return repo.updatePiece(piece) > 0 ?
-                null :
-                new StopRequest(STATUS_STOPPED, "Download deleted or missing");
-    }
+    /*
+     * Full row update, only needed if the piece size has been changed
+     */
 
     private void writeToDatabase()
     {
         repo.updatePiece(piece);
     }
 
+    /*
+     * Progress goes to the journal instead of the database; the download
+     * thread flushes it to the database in batches
+     */
+
+    private void writeProgressToJournal()
+    {
+        journal.append(pieceIndex, startPos, piece.curBytes, piece.speed);
+    }
+
+    private void writeStatusToDatabase()
+    {
+        journal.writeStatus(piece, repo);
+    }
+
     private StopRequest checkCancel()
     {
-        return (Thread.currentThread().isInterrupted() ?
+        return (token.isCancelled() || Thread.currentThread().isInterrupted() ?
                 new StopRequest(STATUS_STOPPED, "Download cancelled") :
                 null);
     }
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.R;
+import com.tachibana.downloader.core.DownloadNotifier;
+import com.tachibana.downloader.core.archive.ArchiveExtractor;
+import com.tachibana.downloader.core.exception.FileAlreadyExistsException;
+import com.tachibana.downloader.core.exception.UnknownArchiveFormatException;
+import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.storage.DataRepository;
+import com.tachibana.downloader.core.system.FileDescriptorWrapper;
+import com.tachibana.downloader.core.system.FileSystemFacade;
+import com.tachibana.downloader.core.utils.DigestUtils;
+import com.tachibana.downloader.core.utils.MimeTypeUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Checksum verification, moving to the user directory and archive
+ * extraction of the received files. Runs on its own small pool after
+ * the download has released its slot, so that hashing or extracting
+ * a large file doesn't hold back the queue and the connections.
+ * The current step is the download status (STATUS_VERIFYING,
+ * STATUS_MOVING, STATUS_EXTRACTING); it survives a restart, after
+ * which the processing continues from that step.
+ */
+
+class PostProcessor
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = PostProcessor.class.getSimpleName();
+
+    /* Disk-bound, more threads only compete for the same storage */
+    private static final int MAX_THREADS = 2;
+    private static final long KEEP_ALIVE_TIME = 30; /* s */
+
+    interface Listener
+    {
+        /* Called on the pool thread */
+        void onPostProcessed(@NonNull UUID id);
+    }
+
+    private final Context appContext;
+    private final DataRepository repo;
+    private final SettingsRepository pref;
+    private final FileSystemFacade fs;
+    private final DownloadNotifier notifier;
+    private final Listener listener;
+    private final ThreadPoolExecutor pool;
+    /* Queued and running, guarded by this */
+    private final Set<UUID> active = new HashSet<>();
+    /* Downloads being deleted, their processing stops before the next step */
+    private final Set<UUID> stopped = new HashSet<>();
+
+    PostProcessor(@NonNull Context appContext,
+                  @NonNull DataRepository repo,
+                  @NonNull SettingsRepository pref,
+                  @NonNull FileSystemFacade fs,
+                  @NonNull DownloadNotifier notifier,
+                  @NonNull Listener listener)
+    {
+        this.appContext = appContext;
+        this.repo = repo;
+        this.pref = pref;
+        this.fs = fs;
+        this.notifier = notifier;
+        this.listener = listener;
+        pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new PostProcessingThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     * Returns the status of the first step the received file needs,
+     * or STATUS_SUCCESS if there is nothing to do. Cheap, doesn't touch the file
+     */
+
+    int getFirstStepStatus(@NonNull DownloadInfo info)
+    {
+        if (!TextUtils.isEmpty(info.checksum))
+            return StatusCode.STATUS_VERIFYING;
+        if (getMovePath() != null)
+            return StatusCode.STATUS_MOVING;
+        if (isPossiblyArchive(info))
+            return StatusCode.STATUS_EXTRACTING;
+
+        return StatusCode.STATUS_SUCCESS;
+    }
+
+    /*
+     * Returns false if the download is already being post-processed
+     */
+
+    boolean submit(@NonNull UUID id)
+    {
+        synchronized (this) {
+            if (!active.add(id))
+                return false;
+        }
+
+        pool.execute(() -> {
+            try {
+                process(id);
+
+            } catch (Exception e) {
+                Log.e(TAG, "Post-processing " + id + " error: " + Log.getStackTraceString(e));
+                setError(id, e);
+            } finally {
+                synchronized (this) {
+                    active.remove(id);
+                    stopped.remove(id);
+                    notifyAll();
+                }
+                listener.onPostProcessed(id);
+            }
+        });
+
+        return true;
+    }
+
+    synchronized int getActiveCount()
+    {
+        return active.size();
+    }
+
+    synchronized boolean isActive(@NonNull UUID id)
+    {
+        return active.contains(id);
+    }
+
+    /*
+     * Stops the processing of the downloads before the next step and
+     * waits until the current one (e.g. moving the file) is finished.
+     * Returns the downloads that were being processed; their file may
+     * have been moved, so the caller should read the path again.
+     * Blocks, must not be called on the main thread
+     */
+
+    Set<UUID> stop(@NonNull Collection<UUID> ids)
+    {
+        HashSet<UUID> processed = new HashSet<>();
+        synchronized (this) {
+            for (UUID id : ids) {
+                if (active.contains(id)) {
+                    stopped.add(id);
+                    processed.add(id);
+                }
+            }
+            boolean interrupted = false;
+            while (containsAny(active, processed)) {
+                try {
+                    wait();
+
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        return processed;
+    }
+
+    private static boolean containsAny(Set<UUID> set, Collection<UUID> ids)
+    {
+        for (UUID id : ids) {
+            if (set.contains(id))
+                return true;
+        }
+
+        return false;
+    }
+
+    private synchronized boolean isStopped(UUID id)
+    {
+        return stopped.contains(id);
+    }
+
+    /*
+     * The download can't stay in the post-processing status,
+     * otherwise it'd be processed again after each restart
+     */
+
+    private void setError(UUID id, Exception e)
+    {
+        try {
+            DownloadInfo info = repo.getInfoById(id);
+            if (info == null || !StatusCode.isStatusPostProcessing(info.statusCode))
+                return;
+            info.statusCode = (e instanceof IOException ?
+                    StatusCode.STATUS_FILE_ERROR :
+                    StatusCode.STATUS_UNKNOWN_ERROR);
+            info.statusMsg = e.getMessage();
+            /* The notifier shows the error when the status is changed */
+            repo.updateInfoStatus(info);
+
+        } catch (Exception err) {
+            Log.e(TAG, "Unable to set error of " + id + ": " + Log.getStackTraceString(err));
+        }
+    }
+
+    private void process(UUID id)
+    {
+        DownloadInfo info = repo.getInfoById(id);
+        if (info == null || !StatusCode.isStatusPostProcessing(info.statusCode))
+            return;
+
+        /* Steps done before the restart are skipped */
+        int fromStep = info.statusCode;
+
+        if (fromStep <= StatusCode.STATUS_VERIFYING && !TextUtils.isEmpty(info.checksum)) {
+            if (isStopped(id))
+                return;
+            setStatus(info, StatusCode.STATUS_VERIFYING);
+            if (!verifyChecksum(info)) {
+                info.statusCode = StatusCode.STATUS_CHECKSUM_ERROR;
+                info.statusMsg = appContext.getString(R.string.error_verify_checksum);
+                repo.updateInfoStatus(info);
+                if (pref.downloadSettings().deleteFileIfError)
+                    deleteFile(info);
+                return;
+            }
+        }
+
+        /*
+         * The file is already received and valid, so move and extraction
+         * errors don't fail the download: the file stays where it is
+         * and the user is notified
+         */
+
+        Uri movePath = getMovePath();
+        if (fromStep <= StatusCode.STATUS_MOVING && movePath != null) {
+            if (isStopped(id))
+                return;
+            setStatus(info, StatusCode.STATUS_MOVING);
+            try {
+                fs.moveFile(info.dirPath, info.fileName, movePath, info.fileName, true);
+                info.dirPath = movePath;
+                repo.updateInfo(info, true, false);
+
+            } catch (FileAlreadyExistsException e) {
+                Log.e(TAG, "Unable to move " + id + ": " + Log.getStackTraceString(e));
+                notifier.makeMoveErrorAlreadyExistsNotify(id, info.fileName);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to move " + id + ": " + Log.getStackTraceString(e));
+                notifier.makeMoveErrorNotify(id, info.fileName);
+            }
+        }
+
+        if (isPossiblyArchive(info)) {
+            if (isStopped(id))
+                return;
+            setStatus(info, StatusCode.STATUS_EXTRACTING);
+            try {
+                uncompressArchive(info);
+
+            } catch (UnknownArchiveFormatException e) {
+                Log.e(TAG, "Unable to extract " + id + ": " + Log.getStackTraceString(e));
+                notifier.makeUncompressArchiveUnknownTypeNotify(id, info.fileName);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to extract " + id + ": " + Log.getStackTraceString(e));
+                notifier.makeUncompressArchiveErrorNotify(id, info.fileName);
+            }
+        }
+
+        if (isStopped(id))
+            return;
+        info.statusCode = StatusCode.STATUS_SUCCESS;
+        info.statusMsg = null;
+        repo.updateInfoStatus(info);
+    }
+
+    private void setStatus(DownloadInfo info, int statusCode)
+    {
+        if (info.statusCode == statusCode)
+            return;
+
+        info.statusCode = statusCode;
+        info.statusMsg = null;
+        repo.updateInfoStatus(info);
+    }
+
+    /*
+     * Returns true if the checksum is empty or matches the file
+     */
+
+    boolean verifyChecksum(@NonNull DownloadInfo info)
+    {
+        if (TextUtils.isEmpty(info.checksum))
+            return true;
+
+        String hash;
+        try {
+            if (DigestUtils.isMd5Hash(info.checksum)) {
+                hash = calcHashSum(info, false);
+
+            } else if (DigestUtils.isSha256Hash(info.checksum)) {
+                hash = calcHashSum(info, true);
+
+            } else {
+                throw new IllegalArgumentException("Unknown checksum type:" + info.checksum);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        return (hash != null && hash.equalsIgnoreCase(info.checksum));
+    }
+
+    private String calcHashSum(DownloadInfo info, boolean sha256Hash) throws IOException
+    {
+        Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
+        if (filePath == null)
+            return null;
+
+        try (FileDescriptorWrapper w = fs.getFD(filePath)) {
+            FileDescriptor outFd = w.open("r");
+            try (FileInputStream is = new FileInputStream(outFd)) {
+                return (sha256Hash ? DigestUtils.makeSha256Hash(is) : DigestUtils.makeMd5Hash(is));
+            }
+        }
+    }
+
+    private Uri getMovePath()
+    {
+        if (!pref.moveAfterDownload())
+            return null;
+
+        String path = pref.moveAfterDownloadIn();
+
+        return (TextUtils.isEmpty(path) ? null : Uri.parse(path));
+    }
+
+    private boolean isPossiblyArchive(DownloadInfo info)
+    {
+        if (!info.uncompressArchive || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return false;
+
+        return MimeTypeUtils.getCategory(info.mimeType) == MimeTypeUtils.Category.ARCHIVE ||
+                "application/octet-stream".equals(info.mimeType);
+    }
+
+    private void uncompressArchive(DownloadInfo info) throws IOException, UnknownArchiveFormatException
+    {
+        Uri path = fs.getFileUri(info.dirPath, info.fileName);
+        if (path == null)
+            return;
+
+        try (FileDescriptorWrapper w = fs.getFD(path)) {
+            FileDescriptor inFd = w.open("r");
+            try (FileInputStream is = new FileInputStream(inFd)) {
+                new ArchiveExtractor(fs, is, info.fileName, info.mimeType)
+                        .uncompress(info.dirPath, true);
+            }
+        }
+        try {
+            fs.deleteFile(path);
+
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Unable to delete archive file", e);
+        }
+    }
+
+    private void deleteFile(DownloadInfo info)
+    {
+        Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
+        if (filePath == null)
+            return;
+        try {
+            fs.deleteFile(filePath);
+
+        } catch (Exception e) {
+            /* Ignore */
+        }
+    }
+
+    private static class PostProcessingThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r)
+        {
+            Thread t = new Thread(r, "PostProcessingThread-" + count.incrementAndGet());
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2018-2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2018-2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
+import com.tachibana.downloader.core.storage.DataRepository;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Append-only journal of piece progress, one file per download.
+ *
+ * A (piece, offset) record is appended right after the piece data is synced
+ * to disk, so every record is a safe resume point. The journal is compacted
+ * when it grows too large and deleted when the download thread finishes
+ * and the final piece state is in the database. If the app is killed,
+ * the journal is replayed into the database when the download
+ * is started again or when the downloads are restored on app start.
+ * Journals opened by a running download are never replayed from outside.
+ *
+ * The latest progress is also kept in memory and periodically
+ * flushed to the database by the download thread, for the UI,
+ * along with the aggregate progress of the download.
+ * Without a journal directory the journal is memory-only.
+ * If the written blocks bitmap is given, it's updated along with the records.
+ */
+
+public class ProgressJournal
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = ProgressJournal.class.getSimpleName();
+
+    private static final String JOURNAL_DIR = "journal";
+    private static final String JOURNAL_EXT = ".journal";
+    private static final String TMP_EXT = ".tmp";
+    /* Piece index (int), offset (long) and check value (int) */
+    private static final int RECORD_SIZE = 16;
+    private static final int RECORD_MAGIC = 0x4a524e4c;
+    private static final int COMPACT_RECORDS_PER_PIECE = 64;
+    private static final int MIN_COMPACT_RECORDS = 1024;
+    /* Downloads whose journal file is open, guarded by the class lock */
+    private static final HashSet<UUID> openJournals = new HashSet<>();
+
+    private final UUID id;
+    private final File file;
+    private final long[] offsets;
+    private final long[] speeds;
+    private final boolean[] dirty;
+    private final long[] startPositions;
+    private final boolean[] running;
+    /* Piece status changed since the last flush */
+    private boolean statusChanged;
+    private final WrittenBlocks blocks;
+    /* Position up to which the blocks of the piece are marked in the bitmap */
+    private final long[] markedPos;
+    private final int compactThreshold;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    /* Serializes progress flushes with the final piece status writes */
+    private final Object flushLock = new Object();
+    private FileOutputStream out;
+    private int numRecords;
+    private boolean closed;
+
+    ProgressJournal(@NonNull UUID id, int numPieces, @Nullable File dir)
+    {
+        this(id, numPieces, dir, null);
+    }
+
+    ProgressJournal(@NonNull UUID id,
+                    int numPieces,
+                    @Nullable File dir,
+                    @Nullable WrittenBlocks blocks)
+    {
+        this.id = id;
+        this.blocks = blocks;
+        this.markedPos = new long[numPieces];
+        this.file = (dir == null ? null : getJournalFile(dir, id));
+        this.offsets = new long[numPieces];
+        this.speeds = new long[numPieces];
+        this.dirty = new boolean[numPieces];
+        this.startPositions = new long[numPieces];
+        this.running = new boolean[numPieces];
+        this.compactThreshold = Math.max(MIN_COMPACT_RECORDS,
+                numPieces * COMPACT_RECORDS_PER_PIECE);
+
+        for (int i = 0; i < numPieces; i++) {
+            offsets[i] = -1;
+            markedPos[i] = -1;
+        }
+        if (file != null) {
+            synchronized (ProgressJournal.class) {
+                openJournals.add(id);
+            }
+        }
+    }
+
+    public static File getJournalDir(@NonNull Context appContext)
+    {
+        return new File(appContext.getFilesDir(), JOURNAL_DIR);
+    }
+
+    /*
+     * Initial state of the piece, as it's stored in the database
+     */
+
+    synchronized void setPiece(int pieceIndex, long startPos, long curBytes)
+    {
+        startPositions[pieceIndex] = startPos;
+        offsets[pieceIndex] = curBytes;
+    }
+
+    /*
+     * Record a resume point. Must be called only after the piece data
+     * up to the offset has been synced to disk
+     */
+
+    synchronized void append(int pieceIndex, long startPos, long offset, long speed)
+    {
+        offsets[pieceIndex] = offset;
+        speeds[pieceIndex] = speed;
+        dirty[pieceIndex] = true;
+        if (blocks != null)
+            markBlocks(pieceIndex, startPos, offset);
+
+        if (file == null || closed)
+            return;
+
+        try {
+            if (out == null) {
+                File dir = file.getParentFile();
+                if (dir != null && !dir.exists() && !dir.mkdirs())
+                    throw new IOException("Unable to create " + dir);
+                out = new FileOutputStream(file, true);
+            }
+            writeRecord(out, pieceIndex, offset);
+            if (++numRecords >= compactThreshold)
+                compact();
+
+        } catch (IOException e) {
+            /* The database still gets the progress, only crash recovery is affected */
+            Log.e(TAG, "Unable to write journal of " + id + ": " + Log.getStackTraceString(e));
+        }
+    }
+
+    /*
+     * Write the progress recorded since the last flush to the database.
+     * Returns false if nothing was updated, i.e. the download is deleted
+     */
+
+    boolean flush(@NonNull DataRepository repo)
+    {
+        synchronized (flushLock) {
+            List<DownloadPiece> pieces;
+            long downloadedBytes;
+            long speed = 0;
+            int activePieces = 0;
+            synchronized (this) {
+                pieces = takeDirty();
+                if (pieces.isEmpty() && !statusChanged)
+                    return true;
+                statusChanged = false;
+
+                downloadedBytes = getDownloadedBytes();
+                for (int i = 0; i < running.length; i++) {
+                    if (!running[i])
+                        continue;
+                    speed += speeds[i];
+                    activePieces++;
+                }
+            }
+
+            return repo.updateProgress(id, pieces, downloadedBytes, speed, activePieces) > 0;
+        }
+    }
+
+    synchronized long getDownloadedBytes()
+    {
+        long downloadedBytes = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] > startPositions[i])
+                downloadedBytes += offsets[i] - startPositions[i];
+        }
+
+        return downloadedBytes;
+    }
+
+    /*
+     * Final status write of the piece. Pending progress of the piece is
+     * discarded, so that a later flush doesn't overwrite it with stale data
+     */
+
+    void writeStatus(@NonNull DownloadPiece piece, @NonNull DataRepository repo)
+    {
+        synchronized (flushLock) {
+            synchronized (this) {
+                dirty[piece.index] = false;
+                offsets[piece.index] = piece.curBytes;
+                speeds[piece.index] = piece.speed;
+                running[piece.index] = piece.statusCode == StatusCode.STATUS_RUNNING;
+                statusChanged = true;
+            }
+            repo.updatePieceStatus(piece);
+        }
+    }
+
+    /*
+     * Close and delete the journal file. Should be called
+     * when the pieces state in the database is up to date
+     */
+
+    synchronized void delete()
+    {
+        closed = true;
+        closeStream();
+        if (file == null)
+            return;
+
+        synchronized (ProgressJournal.class) {
+            if (file.exists() && !file.delete())
+                Log.w(TAG, "Unable to delete journal " + file);
+            openJournals.remove(id);
+        }
+    }
+
+    /*
+     * Delete the journal of the deleted download. The journal
+     * of a running download is deleted by the download itself
+     */
+
+    public static synchronized void deleteJournal(@NonNull File dir, @NonNull UUID id)
+    {
+        if (openJournals.contains(id))
+            return;
+
+        File file = getJournalFile(dir, id);
+        File tmp = new File(file.getPath() + TMP_EXT);
+        if (file.exists() && !file.delete())
+            Log.w(TAG, "Unable to delete journal " + file);
+        if (tmp.exists() && !tmp.delete())
+            Log.w(TAG, "Unable to delete " + tmp);
+    }
+
+    /*
+     * Apply the journal left after the unexpected termination
+     * of the download to the database and delete it.
+     * The journal that is currently open by the download is skipped
+     */
+
+    static synchronized void replay(@NonNull File dir, @NonNull UUID id, @NonNull DataRepository repo)
+    {
+        if (openJournals.contains(id))
+            return;
+
+        File file = getJournalFile(dir, id);
+        /* Unfinished compaction */
+        File tmp = new File(file.getPath() + TMP_EXT);
+        if (tmp.exists() && !tmp.delete())
+            Log.w(TAG, "Unable to delete " + tmp);
+        if (!file.exists())
+            return;
+
+        Map<Integer, Long> offsets = read(file);
+        DownloadInfo info = repo.getInfoById(id);
+        List<DownloadPiece> pieces = repo.getPiecesById(id);
+        ArrayList<DownloadPiece> changed = new ArrayList<>();
+        if (pieces != null) {
+            for (DownloadPiece piece : pieces) {
+                Long offset = offsets.get(piece.index);
+                if (offset == null || piece.statusCode == StatusCode.STATUS_SUCCESS)
+                    continue;
+                /* The database value is also a synced resume point, take the latest one */
+                if (offset > piece.curBytes) {
+                    piece.curBytes = offset;
+                    piece.speed = 0;
+                    changed.add(piece);
+                }
+            }
+        }
+        if (!changed.isEmpty() && info != null) {
+            long downloadedBytes = 0;
+            for (DownloadPiece piece : pieces)
+                downloadedBytes += info.getDownloadedBytes(piece);
+            repo.updateProgress(id, changed, downloadedBytes, 0, 0);
+            updateWrittenBlocks(info, pieces, repo);
+        }
+
+        if (!file.delete())
+            Log.w(TAG, "Unable to delete journal " + file);
+    }
+
+    /*
+     * Replay the journals of all downloads that aren't running, e.g. on app start
+     */
+
+    public static void replayAll(@NonNull File dir, @NonNull DataRepository repo)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        HashSet<UUID> ids = new HashSet<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_EXT))
+                name = name.substring(0, name.length() - TMP_EXT.length());
+            if (!name.endsWith(JOURNAL_EXT))
+                continue;
+            try {
+                ids.add(UUID.fromString(name.substring(0, name.length() - JOURNAL_EXT.length())));
+
+            } catch (IllegalArgumentException e) {
+                /* Not a journal */
+            }
+        }
+        for (UUID id : ids)
+            replay(dir, id, repo);
+    }
+
+    /*
+     * Bring the bitmap in line with the pieces progress
+     */
+
+    static void updateWrittenBlocks(@NonNull DownloadInfo info,
+                                    @NonNull List<DownloadPiece> pieces,
+                                    @NonNull DataRepository repo)
+    {
+        if (info.totalBytes <= 0 || !info.partialSupport)
+            return;
+
+        WrittenBlocks blocks = repo.getWrittenBlocks(info.id);
+        if (blocks == null || blocks.totalBytes != info.totalBytes)
+            blocks = new WrittenBlocks(info.id, info.totalBytes);
+        for (DownloadPiece piece : pieces)
+            blocks.markWritten(info.pieceStartPos(piece), piece.curBytes);
+
+        repo.updateWrittenBlocks(blocks);
+    }
+
+    /*
+     * Return the latest offset of each piece. Reading stops
+     * at the first torn or corrupted record
+     */
+
+    static Map<Integer, Long> read(@NonNull File file)
+    {
+        HashMap<Integer, Long> offsets = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int pieceIndex = in.readInt();
+                long offset = in.readLong();
+                int check = in.readInt();
+                if (check != checkValue(pieceIndex, offset) || pieceIndex < 0 || offset < 0)
+                    break;
+                offsets.put(pieceIndex, offset);
+            }
+
+        } catch (EOFException e) {
+            /* End of journal */
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read journal " + file + ": " + Log.getStackTraceString(e));
+        }
+
+        return offsets;
+    }
+
+    private void markBlocks(int pieceIndex, long startPos, long offset)
+    {
+        long marked = markedPos[pieceIndex];
+        if (marked < 0 || offset < marked) {
+            /* The piece has been reset */
+            if (marked >= 0)
+                blocks.clear(offset, marked);
+            marked = startPos;
+        }
+        /* Start from the partially marked block, but not before the piece */
+        long from = Math.max(startPos, marked - marked % blocks.blockSize);
+        blocks.markWritten(from, offset);
+        markedPos[pieceIndex] = offset;
+    }
+
+    private synchronized List<DownloadPiece> takeDirty()
+    {
+        ArrayList<DownloadPiece> pieces = new ArrayList<>();
+        for (int i = 0; i < dirty.length; i++) {
+            if (!dirty[i])
+                continue;
+            DownloadPiece piece = new DownloadPiece(id, i, -1, offsets[i]);
+            piece.speed = speeds[i];
+            pieces.add(piece);
+            dirty[i] = false;
+        }
+
+        return pieces;
+    }
+
+    /*
+     * Rewrite the journal with only the latest record of each piece
+     */
+
+    private void compact() throws IOException
+    {
+        File tmp = new File(file.getPath() + TMP_EXT);
+        int count = 0;
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] < 0)
+                    continue;
+                writeRecord(tmpOut, i, offsets[i]);
+                count++;
+            }
+            tmpOut.getFD().sync();
+        }
+
+        closeStream();
+        if (!tmp.renameTo(file))
+            throw new IOException("Unable to replace " + file);
+        out = new FileOutputStream(file, true);
+        numRecords = count;
+    }
+
+    private void writeRecord(FileOutputStream stream, int pieceIndex, long offset) throws IOException
+    {
+        record.clear();
+        record.putInt(pieceIndex);
+        record.putLong(offset);
+        record.putInt(checkValue(pieceIndex, offset));
+        stream.write(record.array(), 0, RECORD_SIZE);
+    }
+
+    private void closeStream()
+    {
+        if (out == null)
+            return;
+        try {
+            out.close();
+
+        } catch (IOException e) {
+            /* Ignore */
+        }
+        out = null;
+    }
+
+    static int checkValue(int pieceIndex, long offset)
+    {
+        return RECORD_MAGIC ^ pieceIndex ^ (int)offset ^ (int)(offset >>> 32);
+    }
+
+    private static File getJournalFile(File dir, UUID id)
+    {
+        return new File(dir, id + JOURNAL_EXT);
+    }
+}
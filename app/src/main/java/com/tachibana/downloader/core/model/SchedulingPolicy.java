@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+
+import java.util.List;
+
+/*
+ * Decides which queued download to start next and whether another one
+ * can be started at all. The maximum number of active downloads is
+ * always a hard limit on top of the policy. The default one starts
+ * downloads in the queue order while there are free slots.
+ *
+ * Called only from the engine scheduling loop, so the implementations
+ * can keep state without synchronization.
+ */
+
+class SchedulingPolicy
+{
+    /* Must match pref_scheduling_policy_*_value */
+    public static final int FIFO = 0;
+    public static final int SHORTEST_FIRST = 1;
+    public static final int DEADLINE = 2;
+    public static final int THROUGHPUT = 3;
+
+    public static SchedulingPolicy create(int type)
+    {
+        switch (type) {
+            case SHORTEST_FIRST:
+                return new ShortestFirstPolicy();
+            case DEADLINE:
+                return new DeadlinePolicy();
+            case THROUGHPUT:
+                return new ThroughputAwarePolicy();
+            default:
+                return new SchedulingPolicy();
+        }
+    }
+
+    /*
+     * State of the running downloads at the moment of the decision
+     */
+
+    public static class Load
+    {
+        public final long now; /* ms */
+        public final int running;
+        public final int maxRunning;
+        /* Downloads that have been running for too short to measure their speed */
+        public final int warmingUp;
+        /* Sum of the recent speeds of the downloads past warm-up, bytes per second */
+        public final long totalSpeed;
+
+        public Load(long now, int running, int maxRunning, int warmingUp, long totalSpeed)
+        {
+            this.now = now;
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.warmingUp = warmingUp;
+            this.totalSpeed = totalSpeed;
+        }
+    }
+
+    /*
+     * Candidates are the downloads of the highest priority in the queue order,
+     * priorities always take precedence over the policy.
+     * Returns null if the list is empty
+     */
+
+    @Nullable
+    public QueuedDownload select(@NonNull List<QueuedDownload> candidates)
+    {
+        return (candidates.isEmpty() ? null : candidates.get(0));
+    }
+
+    /*
+     * Whether one more download can be started now. If it returns true,
+     * the selected download is started right after that
+     */
+
+    public boolean admit(@NonNull Load load)
+    {
+        return load.running < load.maxRunning;
+    }
+
+    /*
+     * If admit() may change its mind without any change in the queue or
+     * the number of running downloads, the engine asks again after this
+     * interval, ms; 0 if not needed
+     */
+
+    public long getRecheckInterval()
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Shortest remaining size first, which minimizes the average completion
+ * time. Downloads of unknown size go after the known ones, in the queue
+ * order. To avoid starving large downloads, the head of the queue is
+ * started anyway after it has been bypassed MAX_BYPASS times.
+ */
+
+class ShortestFirstPolicy extends SchedulingPolicy
+{
+    static final int MAX_BYPASS = 16;
+
+    private UUID headId;
+    private int headBypassCount;
+
+    @Nullable
+    @Override
+    public QueuedDownload select(@NonNull List<QueuedDownload> candidates)
+    {
+        if (candidates.isEmpty())
+            return null;
+
+        QueuedDownload head = candidates.get(0);
+        if (!head.infoId.equals(headId)) {
+            headId = head.infoId;
+            headBypassCount = 0;
+        }
+        if (headBypassCount >= MAX_BYPASS)
+            return head;
+
+        QueuedDownload shortest = head;
+        for (QueuedDownload download : candidates) {
+            if (isShorter(download, shortest))
+                shortest = download;
+        }
+        if (shortest != head)
+            headBypassCount++;
+
+        return shortest;
+    }
+
+    private static boolean isShorter(QueuedDownload a, QueuedDownload b)
+    {
+        if (a.remainingBytes < 0)
+            return false;
+
+        return b.remainingBytes < 0 || a.remainingBytes < b.remainingBytes;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.HttpConnection;
+import com.tachibana.downloader.core.exception.HttpException;
+import com.tachibana.downloader.core.exception.SourceMismatchException;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.storage.DataRepository;
+import com.tachibana.downloader.core.utils.DownloadKeys;
+import com.tachibana.downloader.core.utils.DownloadUtils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+/*
+ * Checks the new link of a started download, e.g. a mirror or a renewed
+ * signed URL, before switching to it. The transfer continues from the
+ * bytes already written, so the link must serve the same file: the same
+ * size and, for the same server, the same ETag. Without this check
+ * the pieces either fail with "Precondition failed" on the old ETag
+ * or silently mix two different files.
+ */
+
+class SourceProbe
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = SourceProbe.class.getSimpleName();
+
+    static class Result
+    {
+        long totalBytes = -1;
+        boolean partialSupport;
+        String etag;
+    }
+
+    /*
+     * Request the link the same way as the pieces do and read the headers
+     */
+
+    @NonNull
+    static Result probe(@NonNull String url,
+                        @Nullable String userAgent,
+                        @NonNull List<Header> headers,
+                        int timeout,
+                        @Nullable CancellationToken token)
+            throws IOException, HttpException, GeneralSecurityException
+    {
+        Result res = new Result();
+        Exception[] err = new Exception[1];
+
+        HttpConnection connection = new HttpConnection(url);
+        connection.setTimeout(timeout);
+        connection.contentRangeLength(true);
+        connection.setDisconnectHook(token);
+        connection.setListener(new HttpConnection.Listener() {
+            @Override
+            public void onConnectionCreated(HttpURLConnection conn)
+            {
+                for (Header header : headers) {
+                    if (!"ETag".equals(header.name))
+                        conn.addRequestProperty(header.name, header.value);
+                }
+                if (conn.getRequestProperty("User-Agent") == null && !TextUtils.isEmpty(userAgent))
+                    conn.addRequestProperty("User-Agent", userAgent);
+            }
+
+            @Override
+            public void onResponseHandle(HttpURLConnection conn, int code, String message)
+            {
+                if (code == HTTP_OK || code == HTTP_PARTIAL)
+                    parseHeaders(conn, res);
+                else
+                    err[0] = new HttpException("Failed to fetch link, response code: " + code, code);
+            }
+
+            @Override
+            public void onMoved(String newUrl, boolean permanently)
+            {
+                /* Ignore */
+            }
+
+            @Override
+            public void onIOException(IOException e)
+            {
+                err[0] = e;
+            }
+
+            @Override
+            public void onTooManyRedirects()
+            {
+                err[0] = new HttpException("Too many redirects");
+            }
+        });
+        connection.run();
+
+        if (err[0] instanceof IOException)
+            throw (IOException)err[0];
+        else if (err[0] != null)
+            throw (HttpException)err[0];
+
+        return res;
+    }
+
+    /*
+     * Throws if the transfer can't continue from the new link.
+     * ETags of different servers aren't comparable, so mirrors
+     * are checked only by the size
+     */
+
+    static void validate(@NonNull DownloadInfo info,
+                         @Nullable String etag,
+                         long downloadedBytes,
+                         @NonNull String newUrl,
+                         @NonNull Result source) throws SourceMismatchException
+    {
+        if (info.totalBytes > 0 && source.totalBytes != info.totalBytes)
+            throw new SourceMismatchException("File size differs: " + source.totalBytes +
+                    ", expected " + info.totalBytes);
+
+        /* Otherwise the download starts over anyway */
+        if (!info.partialSupport)
+            return;
+
+        if (!source.partialSupport && (downloadedBytes > 0 || info.getNumPieces() > 1))
+            throw new SourceMismatchException("The link doesn't support partial download");
+        if (downloadedBytes > 0 && etag != null && source.etag != null && !etag.equals(source.etag) &&
+            isSameHost(info.url, newUrl))
+            throw new SourceMismatchException("File has changed, ETag differs");
+    }
+
+    /*
+     * Switch the download to the checked link. Its ETag replaces the old
+     * one, so that the pieces send it in If-Match from now on; if the link
+     * has no ETag, the old one is removed
+     */
+
+    static void switchTo(@NonNull DataRepository repo,
+                         @NonNull DownloadInfo info,
+                         @NonNull List<Header> headers,
+                         @NonNull String url,
+                         @NonNull Result source)
+    {
+        info.url = url;
+
+        Header eTagHeader = null;
+        for (Header header : headers) {
+            if ("ETag".equals(header.name)) {
+                eTagHeader = header;
+                break;
+            }
+        }
+        if (source.etag == null) {
+            /* Otherwise the ETag of the old source is sent in If-Match */
+            if (eTagHeader != null) {
+                headers.remove(eTagHeader);
+                repo.deleteHeader(eTagHeader);
+            }
+        } else if (eTagHeader == null) {
+            eTagHeader = new Header(info.id, "ETag", source.etag);
+            headers.add(eTagHeader);
+            repo.addHeader(eTagHeader);
+        } else {
+            eTagHeader.value = source.etag;
+            repo.addHeader(eTagHeader);
+        }
+        info.contentKey = DownloadKeys.contentKey(info.url, source.etag, info.totalBytes);
+    }
+
+    private static void parseHeaders(HttpURLConnection conn, Result res)
+    {
+        if (conn.getHeaderField("Transfer-Encoding") == null) {
+            try {
+                res.totalBytes = Long.parseLong(conn.getHeaderField("Content-Length"));
+
+            } catch (NumberFormatException e) {
+                res.totalBytes = -1;
+            }
+        }
+        if (res.totalBytes == -1)
+            res.totalBytes = DownloadUtils.parseContentRangeFullSize(
+                    conn.getHeaderField("Content-Range"));
+
+        res.partialSupport = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")) ||
+                conn.getHeaderField("Content-Range") != null;
+        res.etag = conn.getHeaderField("ETag");
+    }
+
+    private static boolean isSameHost(String url1, String url2)
+    {
+        try {
+            return new URL(url1).getHost().equalsIgnoreCase(new URL(url2).getHost());
+
+        } catch (MalformedURLException e) {
+            return false;
+        }
+    }
+}
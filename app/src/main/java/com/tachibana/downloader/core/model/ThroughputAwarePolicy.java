@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+/*
+ * Starts one more download only while it pays off: after each start
+ * it waits until the new download is past warm-up and compares the
+ * total throughput with the one before the start. If it hasn't grown
+ * by at least MIN_GAIN, the link is considered saturated and the
+ * number of running downloads is kept at the level before the start,
+ * only replacing the finished ones. A probe during which some download
+ * has finished is discarded. After REPROBE_INTERVAL it probes again,
+ * since the link or the servers may have become faster.
+ */
+
+class ThroughputAwarePolicy extends SchedulingPolicy
+{
+    static final double MIN_GAIN = 0.1;
+    static final long REPROBE_INTERVAL = 60 * 1000; /* ms */
+    static final long RECHECK_INTERVAL = 2 * 1000; /* ms */
+
+    /* Guarded by this, admit() may be called from different threads */
+    private boolean probing;
+    private long speedBeforeProbe;
+    private int runningAfterProbe;
+    /* Number of downloads that saturate the link, 0 if unknown */
+    private int saturatedRunning;
+    private long saturatedTime;
+
+    @Override
+    public synchronized boolean admit(@NonNull Load load)
+    {
+        if (load.running >= load.maxRunning)
+            return false;
+        /* Replace the finished ones without waiting, the level is already known */
+        if (saturatedRunning > 0 && load.running < saturatedRunning)
+            return true;
+        if (load.running > 0 && load.warmingUp > 0)
+            return false;
+
+        if (probing) {
+            probing = false;
+            /* If some download has finished since then, the result is meaningless */
+            boolean comparable = load.running >= runningAfterProbe;
+            if (comparable && load.totalSpeed < speedBeforeProbe * (1 + MIN_GAIN)) {
+                /* The last one doesn't help, don't replace it when finished */
+                saturatedRunning = Math.max(load.running - 1, 1);
+                saturatedTime = load.now;
+            }
+        }
+        if (saturatedRunning > 0) {
+            if (load.now - saturatedTime < REPROBE_INTERVAL)
+                return false;
+            saturatedRunning = 0;
+        }
+
+        probing = load.running > 0;
+        speedBeforeProbe = load.totalSpeed;
+        runningAfterProbe = load.running + 1;
+
+        return true;
+    }
+
+    @Override
+    public long getRecheckInterval()
+    {
+        return RECHECK_INTERVAL;
+    }
+}
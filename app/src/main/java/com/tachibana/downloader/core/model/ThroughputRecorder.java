@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
+
+import java.util.UUID;
+
+/*
+ * In-memory speed history of the running download, kept in two
+ * fixed-size ring buffers: 1 second samples for the last few minutes
+ * and 1 minute averages, downsampled from them, for the long history.
+ * Fed by the download thread at its progress checkpoints, not by the
+ * piece threads. Only the minute samples are persisted
+ * (see ThroughputHistory), once per minute.
+ */
+
+public class ThroughputRecorder
+{
+    /* 5 minutes */
+    public static final int MAX_SECOND_SAMPLES = 5 * 60;
+
+    private final UUID id;
+    private final Ring seconds = new Ring(MAX_SECOND_SAMPLES);
+    private final Ring minutes = new Ring(ThroughputHistory.MAX_SAMPLES);
+    private long lastTime = -1;
+    private long lastBytes;
+    private long minuteStartTime;
+    private long minuteBytes;
+    /* Wall clock time, unlike the sample times */
+    private long lastMinuteTime;
+
+    public ThroughputRecorder(@NonNull UUID id, @Nullable ThroughputHistory history)
+    {
+        this.id = id;
+        if (history != null) {
+            for (int sample : history.getSamples())
+                minutes.add(sample);
+            lastMinuteTime = history.lastSampleTime;
+        }
+    }
+
+    /*
+     * Add a sample from the total number of downloaded bytes.
+     * The time is monotonic, in ms (see DateUtils.elapsedRealtime()),
+     * so that clock changes don't break the samples.
+     * Returns true if a minute sample has been completed
+     * and the history should be persisted
+     */
+
+    public synchronized boolean record(long time, long downloadedBytes)
+    {
+        if (lastTime < 0) {
+            lastTime = time;
+            lastBytes = downloadedBytes;
+            minuteStartTime = time;
+            return false;
+        }
+        long elapsed = time - lastTime;
+        if (elapsed <= 0)
+            return false;
+
+        /* Progress may go back, e.g. after a failed piece is restarted */
+        long bytes = Math.max(downloadedBytes - lastBytes, 0);
+        seconds.add(bytesPerSecond(bytes, elapsed));
+        minuteBytes += bytes;
+        lastTime = time;
+        lastBytes = downloadedBytes;
+
+        if (time - minuteStartTime >= ThroughputHistory.SAMPLE_INTERVAL * 1000L) {
+            closeMinute(time);
+            return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Close the incomplete minute, averaging over its actual duration
+     */
+
+    public synchronized void finish()
+    {
+        if (lastTime >= 0 && lastTime > minuteStartTime)
+            closeMinute(lastTime);
+    }
+
+    private void closeMinute(long time)
+    {
+        minutes.add(bytesPerSecond(minuteBytes, time - minuteStartTime));
+        minuteBytes = 0;
+        minuteStartTime = time;
+        lastMinuteTime = System.currentTimeMillis();
+    }
+
+    /*
+     * Bytes per second for the last MAX_SECOND_SAMPLES seconds, oldest first
+     */
+
+    public synchronized int[] getSecondSamples()
+    {
+        return seconds.toArray();
+    }
+
+    /*
+     * Average bytes per second over the last interval, in seconds.
+     * Returns -1 if there are fewer samples, e.g. the download has just started
+     */
+
+    public synchronized long getRecentSpeed(int interval)
+    {
+        if (interval <= 0 || interval > seconds.size)
+            return -1;
+
+        return seconds.sumLast(interval) / interval;
+    }
+
+    public synchronized ThroughputHistory toHistory()
+    {
+        return new ThroughputHistory(id, lastMinuteTime, minutes.toArray());
+    }
+
+    private static int bytesPerSecond(long bytes, long elapsedMs)
+    {
+        if (elapsedMs <= 0)
+            return 0;
+
+        return (int)Math.min(bytes * 1000 / elapsedMs, Integer.MAX_VALUE);
+    }
+
+    private static class Ring
+    {
+        private final int[] buf;
+        private int head;
+        private int size;
+
+        Ring(int capacity)
+        {
+            buf = new int[capacity];
+        }
+
+        void add(int value)
+        {
+            buf[head] = value;
+            head = (head + 1) % buf.length;
+            if (size < buf.length)
+                size++;
+        }
+
+        long sumLast(int count)
+        {
+            long sum = 0;
+            for (int i = 1; i <= count; i++)
+                sum += buf[(head - i + buf.length) % buf.length];
+
+            return sum;
+        }
+
+        int[] toArray()
+        {
+            int[] res = new int[size];
+            int start = (head - size + buf.length) % buf.length;
+            for (int i = 0; i < size; i++)
+                res[i] = buf[(start + i) % buf.length];
+
+            return res;
+        }
+    }
+}
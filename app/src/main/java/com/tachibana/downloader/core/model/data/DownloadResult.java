@@ -32,7 +32,9 @@ public class DownloadResult
     {
         FINISHED,
         PAUSED,
-        STOPPED
+        STOPPED,
+        /* The file is received, but needs post-processing, see PostProcessor */
+        POST_PROCESSING
     }
 
     public UUID infoId;
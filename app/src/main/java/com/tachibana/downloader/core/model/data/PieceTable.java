@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Compact read-only representation of the download pieces,
+ * indexed by piece index, with precalculated aggregates.
+ * Used by the details screen instead of keeping a DownloadPiece
+ * object for every piece; the list and notifications read
+ * the aggregate progress of DownloadInfo.
+ */
+
+public class PieceTable
+{
+    public static final PieceTable EMPTY = new PieceTable();
+
+    public final long[] start;
+    public final long[] cur;
+    public final int[] status;
+    /* Sum of all pieces */
+    public final long downloadedBytes;
+    public final long speed;
+    public final int numFinished;
+
+    private PieceTable()
+    {
+        start = new long[0];
+        cur = new long[0];
+        status = new int[0];
+        downloadedBytes = 0;
+        speed = 0;
+        numFinished = 0;
+    }
+
+    public PieceTable(@NonNull DownloadInfo info, @NonNull List<DownloadPiece> pieces)
+    {
+        int size = pieces.size();
+        start = new long[size];
+        cur = new long[size];
+        status = new int[size];
+
+        long downloadedBytes = 0;
+        long speed = 0;
+        int numFinished = 0;
+        for (int i = 0; i < size; i++) {
+            DownloadPiece piece = pieces.get(i);
+            int index = (piece.index >= 0 && piece.index < size ? piece.index : i);
+            start[index] = info.pieceStartPos(piece);
+            cur[index] = piece.curBytes;
+            status[index] = piece.statusCode;
+
+            downloadedBytes += piece.curBytes - start[index];
+            speed += piece.speed;
+            if (StatusCode.isStatusSuccess(piece.statusCode))
+                numFinished++;
+        }
+        this.downloadedBytes = downloadedBytes;
+        this.speed = speed;
+        this.numFinished = numFinished;
+    }
+
+    public int size()
+    {
+        return status.length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(cur);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o)
+    {
+        if (!(o instanceof PieceTable))
+            return false;
+
+        if (o == this)
+            return true;
+
+        PieceTable table = (PieceTable)o;
+
+        return speed == table.speed &&
+                Arrays.equals(cur, table.cur) &&
+                Arrays.equals(status, table.status) &&
+                Arrays.equals(start, table.start);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PieceTable{" +
+                "size=" + size() +
+                ", downloadedBytes=" + downloadedBytes +
+                ", speed=" + speed +
+                ", numFinished=" + numFinished +
+                '}';
+    }
+}
@@ -33,6 +33,13 @@ public class StatusCode
      * 4xx: client errors
      * 5xx: server errors
      */
+    /*
+     * The file has been received and is being post-processed,
+     * outside of the download slots (see PostProcessor)
+     */
+    public static final int STATUS_VERIFYING = 186;
+    public static final int STATUS_MOVING = 187;
+    public static final int STATUS_EXTRACTING = 188;
     /* This download hasn't started yet */
     public static final int STATUS_PENDING = 190;
     /* This download has started */
@@ -162,4 +169,9 @@ public class StatusCode
     {
         return statusCode == STATUS_PAUSED || statusCode == STATUS_STOPPED;
     }
+
+    public static boolean isStatusPostProcessing(int statusCode)
+    {
+        return statusCode >= STATUS_VERIFYING && statusCode <= STATUS_EXTRACTING;
+    }
 }
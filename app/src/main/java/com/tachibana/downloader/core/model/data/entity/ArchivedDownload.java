@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 Tachibana General Laboratories, LLC
+ * Copyright (C) 2019 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+import androidx.room.TypeConverters;
+
+import com.tachibana.downloader.core.storage.converter.UriConverter;
+
+import java.util.UUID;
+
+/*
+ * Compact copy of the successfully finished download. Contains
+ * only the fields needed for display, without pieces and headers.
+ * Moved from DownloadInfo after a configurable age or count
+ * (see DownloadDao.archiveFinished())
+ */
+
+@Entity(indices = {@Index(value = "urlHash"),
+        @Index(value = "contentKey")})
+public class ArchivedDownload
+{
+    @PrimaryKey
+    @NonNull
+    public UUID id;
+    @TypeConverters({UriConverter.class})
+    @NonNull
+    public Uri dirPath;
+    @NonNull
+    public String url;
+    @NonNull
+    public String fileName;
+    public String description;
+    public String mimeType;
+    public long totalBytes;
+    public int statusCode;
+    public String statusMsg;
+    public long dateAdded;
+    public String userAgent;
+    public long lastModify;
+    public String checksum;
+    /* See DownloadKeys */
+    public long urlHash;
+    public String contentKey;
+
+    public ArchivedDownload(@NonNull UUID id,
+                            @NonNull Uri dirPath,
+                            @NonNull String url,
+                            @NonNull String fileName)
+    {
+        this.id = id;
+        this.dirPath = dirPath;
+        this.url = url;
+        this.fileName = fileName;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "ArchivedDownload{" +
+                "id=" + id +
+                ", dirPath=" + dirPath +
+                ", url='" + url + '\'' +
+                ", fileName='" + fileName + '\'' +
+                ", description='" + description + '\'' +
+                ", mimeType='" + mimeType + '\'' +
+                ", totalBytes=" + totalBytes +
+                ", statusCode=" + statusCode +
+                ", statusMsg='" + statusMsg + '\'' +
+                ", dateAdded=" + dateAdded +
+                ", userAgent='" + userAgent + '\'' +
+                ", lastModify=" + lastModify +
+                ", checksum='" + checksum + '\'' +
+                ", urlHash=" + urlHash +
+                ", contentKey='" + contentKey + '\'' +
+                '}';
+    }
+}
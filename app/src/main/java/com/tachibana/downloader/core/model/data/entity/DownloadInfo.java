@@ -27,6 +27,7 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import androidx.room.TypeConverters;
 
@@ -43,7 +44,9 @@ import java.util.UUID;
  * The class encapsulates information about download.
  */
 
-@Entity
+@Entity(indices = {@Index(value = "statusCode"),
+        @Index(value = "urlHash"),
+        @Index(value = "contentKey")})
 public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
 {
     /* Piece number can't be less or equal zero */
@@ -112,6 +115,18 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
     /* MD5, SHA-256 */
     public String checksum;
     public boolean uncompressArchive = false;
+    /*
+     * Aggregate progress of all pieces, denormalized from DownloadPiece
+     * and updated by the download thread at checkpoints.
+     * Lets lists and notifications do without loading the pieces
+     */
+    public long downloadedBytes = 0;
+    /* In bytes per second */
+    public long speed = 0;
+    public int activePieces = 0;
+    /* Duplicate detection keys, see DownloadKeys */
+    public long urlHash;
+    public String contentKey;
 
     public DownloadInfo(@NonNull Uri dirPath,
                         @NonNull String url,
@@ -147,6 +162,11 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         checksum = other.checksum;
         uncompressArchive = other.uncompressArchive;
         partialSupport = other.partialSupport;
+        downloadedBytes = other.downloadedBytes;
+        speed = other.speed;
+        activePieces = other.activePieces;
+        urlHash = other.urlHash;
+        contentKey = other.contentKey;
     }
 
     @Ignore
@@ -174,6 +194,11 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         checksum = source.readString();
         uncompressArchive = source.readByte() > 0;
         partialSupport = source.readByte() > 0;
+        downloadedBytes = source.readLong();
+        speed = source.readLong();
+        activePieces = source.readInt();
+        urlHash = source.readLong();
+        contentKey = source.readString();
     }
 
     @Override
@@ -207,6 +232,11 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         dest.writeString(checksum);
         dest.writeByte((byte)(uncompressArchive ? 1 : 0));
         dest.writeByte((byte)(partialSupport ? 1 : 0));
+        dest.writeLong(downloadedBytes);
+        dest.writeLong(speed);
+        dest.writeInt(activePieces);
+        dest.writeLong(urlHash);
+        dest.writeString(contentKey);
     }
 
     public static final Parcelable.Creator<DownloadInfo> CREATOR = new Parcelable.Creator<>()
@@ -329,7 +359,12 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
                 retryAfter == info.retryAfter &&
                 lastModify == info.lastModify &&
                 (checksum == null || checksum.equals(info.checksum)) &&
-                uncompressArchive == info.uncompressArchive;
+                uncompressArchive == info.uncompressArchive &&
+                downloadedBytes == info.downloadedBytes &&
+                speed == info.speed &&
+                activePieces == info.activePieces &&
+                urlHash == info.urlHash &&
+                (contentKey == null || contentKey.equals(info.contentKey));
     }
 
     @Override
@@ -358,6 +393,11 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
                 ", lastModify=" + lastModify +
                 ", checksum=" + checksum +
                 ", uncompressArchive=" + uncompressArchive +
+                ", downloadedBytes=" + downloadedBytes +
+                ", speed=" + speed +
+                ", activePieces=" + activePieces +
+                ", urlHash=" + urlHash +
+                ", contentKey=" + contentKey +
                 '}';
     }
 }
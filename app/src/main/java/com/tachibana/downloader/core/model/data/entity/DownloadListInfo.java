@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.Ignore;
+import androidx.room.TypeConverters;
+
+import com.tachibana.downloader.core.storage.converter.UriConverter;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/*
+ * Projection of DownloadInfo (or ArchivedDownload) with the columns
+ * needed only to show the download in the list. The error message
+ * is loaded only for failed downloads, for others it's null.
+ */
+
+public class DownloadListInfo implements Parcelable
+{
+    @NonNull
+    public UUID id;
+    @TypeConverters({UriConverter.class})
+    @NonNull
+    public Uri dirPath;
+    @NonNull
+    public String url;
+    @NonNull
+    public String fileName;
+    /* For search */
+    public String description;
+    public String mimeType;
+    public long totalBytes;
+    public int statusCode;
+    public String statusMsg;
+    public long dateAdded;
+    public long downloadedBytes;
+    public long speed;
+
+    /*
+     * Do not use, only for DAO
+     */
+    public DownloadListInfo(@NonNull UUID id, @NonNull Uri dirPath,
+                            @NonNull String url, @NonNull String fileName)
+    {
+        this.id = id;
+        this.dirPath = dirPath;
+        this.url = url;
+        this.fileName = fileName;
+    }
+
+    @Ignore
+    public DownloadListInfo(@NonNull Parcel source)
+    {
+        id = (UUID)source.readSerializable();
+        dirPath = source.readParcelable(Uri.class.getClassLoader());
+        url = source.readString();
+        fileName = source.readString();
+        description = source.readString();
+        mimeType = source.readString();
+        totalBytes = source.readLong();
+        statusCode = source.readInt();
+        statusMsg = source.readString();
+        dateAdded = source.readLong();
+        downloadedBytes = source.readLong();
+        speed = source.readLong();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeSerializable(id);
+        dest.writeParcelable(dirPath, flags);
+        dest.writeString(url);
+        dest.writeString(fileName);
+        dest.writeString(description);
+        dest.writeString(mimeType);
+        dest.writeLong(totalBytes);
+        dest.writeInt(statusCode);
+        dest.writeString(statusMsg);
+        dest.writeLong(dateAdded);
+        dest.writeLong(downloadedBytes);
+        dest.writeLong(speed);
+    }
+
+    public static final Parcelable.Creator<DownloadListInfo> CREATOR = new Parcelable.Creator<>()
+            {
+                @Override
+                public DownloadListInfo createFromParcel(Parcel source)
+                {
+                    return new DownloadListInfo(source);
+                }
+
+                @Override
+                public DownloadListInfo[] newArray(int size)
+                {
+                    return new DownloadListInfo[size];
+                }
+            };
+
+    @Override
+    public int hashCode()
+    {
+        return id.hashCode();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o)
+    {
+        if (this == o)
+            return true;
+
+        if (o == null || getClass() != o.getClass())
+            return false;
+
+        DownloadListInfo info = (DownloadListInfo)o;
+
+        return id.equals(info.id) &&
+                dirPath.equals(info.dirPath) &&
+                url.equals(info.url) &&
+                fileName.equals(info.fileName) &&
+                Objects.equals(description, info.description) &&
+                Objects.equals(mimeType, info.mimeType) &&
+                totalBytes == info.totalBytes &&
+                statusCode == info.statusCode &&
+                Objects.equals(statusMsg, info.statusMsg) &&
+                dateAdded == info.dateAdded &&
+                downloadedBytes == info.downloadedBytes &&
+                speed == info.speed;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "DownloadListInfo{" +
+                "id=" + id +
+                ", dirPath=" + dirPath +
+                ", url='" + url + '\'' +
+                ", fileName='" + fileName + '\'' +
+                ", description='" + description + '\'' +
+                ", mimeType='" + mimeType + '\'' +
+                ", totalBytes=" + totalBytes +
+                ", statusCode=" + statusCode +
+                ", statusMsg='" + statusMsg + '\'' +
+                ", dateAdded=" + dateAdded +
+                ", downloadedBytes=" + downloadedBytes +
+                ", speed=" + speed +
+                '}';
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.room.TypeConverters;
+
+import com.tachibana.downloader.core.storage.converter.UriConverter;
+
+import java.util.UUID;
+
+/*
+ * Projection of DownloadInfo with the columns
+ * needed only to show the download notification.
+ */
+
+public class DownloadNotifyInfo
+{
+    @NonNull
+    public UUID id;
+    @TypeConverters({UriConverter.class})
+    @NonNull
+    public Uri dirPath;
+    @NonNull
+    public String fileName;
+    public String mimeType;
+    public long totalBytes;
+    public int statusCode;
+    /* Only for failed downloads */
+    public String statusMsg;
+    public int visibility;
+    public long downloadedBytes;
+    public long speed;
+
+    /*
+     * Do not use, only for DAO
+     */
+    public DownloadNotifyInfo(@NonNull UUID id, @NonNull Uri dirPath, @NonNull String fileName)
+    {
+        this.id = id;
+        this.dirPath = dirPath;
+        this.fileName = fileName;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "DownloadNotifyInfo{" +
+                "id=" + id +
+                ", dirPath=" + dirPath +
+                ", fileName='" + fileName + '\'' +
+                ", mimeType='" + mimeType + '\'' +
+                ", totalBytes=" + totalBytes +
+                ", statusCode=" + statusCode +
+                ", statusMsg='" + statusMsg + '\'' +
+                ", visibility=" + visibility +
+                ", downloadedBytes=" + downloadedBytes +
+                ", speed=" + speed +
+                '}';
+    }
+}
@@ -29,6 +29,8 @@ import androidx.room.Embedded;
 import androidx.room.Ignore;
 import androidx.room.Relation;
 
+import com.tachibana.downloader.core.model.data.PieceTable;
+
 import java.util.List;
 
 public class InfoAndPieces implements Parcelable
@@ -39,12 +41,24 @@ public class InfoAndPieces implements Parcelable
     @NonNull
     @Relation(parentColumn = "id", entityColumn = "infoId")
     public List<DownloadPiece> pieces;
+    /* Built on demand from the pieces */
+    @Ignore
+    protected PieceTable pieceTable;
 
     /*
      * Do not use, only for DAO
      */
     public InfoAndPieces() { }
 
+    @NonNull
+    public PieceTable getPieceTable()
+    {
+        if (pieceTable == null)
+            pieceTable = new PieceTable(info, pieces);
+
+        return pieceTable;
+    }
+
     @Ignore
     public InfoAndPieces(Parcel source)
     {
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+import java.util.UUID;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+/*
+ * Download waiting for a free slot (see DownloadQueue), persisted
+ * so that the queue order survives process death. Downloads with
+ * higher priority go first, then the ones with lower position,
+ * unless the scheduling policy says otherwise (see SchedulingPolicy).
+ * Immutable, to be safely written from another thread.
+ */
+
+@Entity(foreignKeys = @ForeignKey(
+        entity = DownloadInfo.class,
+        parentColumns = "id",
+        childColumns = "infoId",
+        onDelete = CASCADE))
+public class QueuedDownload
+{
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    @PrimaryKey
+    @NonNull
+    public final UUID infoId;
+    public final int priority;
+    public final long position;
+    /* Time by which the download should be completed, ms; 0 if none */
+    public final long deadline;
+    /* Bytes left to download when queued, -1 if unknown */
+    public final long remainingBytes;
+
+    public QueuedDownload(@NonNull UUID infoId, int priority, long position,
+                          long deadline, long remainingBytes)
+    {
+        this.infoId = infoId;
+        this.priority = priority;
+        this.position = position;
+        this.deadline = deadline;
+        this.remainingBytes = remainingBytes;
+    }
+
+    @Ignore
+    public QueuedDownload(@NonNull UUID infoId, int priority, long position)
+    {
+        this(infoId, priority, position, 0, -1);
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "QueuedDownload{" +
+                "infoId=" + infoId +
+                ", priority=" + priority +
+                ", position=" + position +
+                ", deadline=" + deadline +
+                ", remainingBytes=" + remainingBytes +
+                '}';
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2019 Tachibana General Laboratories, LLC
+ * Copyright (C) 2019 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Ignore;
+
+import java.util.UUID;
+
+/*
+ * Projection of DownloadInfo with the columns
+ * needed only to schedule the download.
+ */
+
+public class ScheduleInfo
+{
+    @NonNull
+    public UUID id;
+    public int statusCode;
+    public boolean unmeteredConnectionsOnly;
+    public int numFailed;
+    /* In ms */
+    public int retryAfter;
+    public long lastModify;
+
+    /*
+     * Do not use, only for DAO
+     */
+    public ScheduleInfo(@NonNull UUID id)
+    {
+        this.id = id;
+    }
+
+    @Ignore
+    public ScheduleInfo(@NonNull DownloadInfo info)
+    {
+        id = info.id;
+        statusCode = info.statusCode;
+        unmeteredConnectionsOnly = info.unmeteredConnectionsOnly;
+        numFailed = info.numFailed;
+        retryAfter = info.retryAfter;
+        lastModify = info.lastModify;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "ScheduleInfo{" +
+                "id=" + id +
+                ", statusCode=" + statusCode +
+                ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
+                ", numFailed=" + numFailed +
+                ", retryAfter=" + retryAfter +
+                ", lastModify=" + lastModify +
+                '}';
+    }
+}
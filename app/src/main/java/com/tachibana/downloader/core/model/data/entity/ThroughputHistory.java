@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+/*
+ * Download speed history with 1 minute resolution, bytes per second
+ * averaged over each minute the download was active. Only the last
+ * MAX_SAMPLES minutes are kept. Samples are stored as a single BLOB
+ * of 32-bit little-endian integers, oldest first.
+ */
+
+@Entity(foreignKeys = @ForeignKey(
+        entity = DownloadInfo.class,
+        parentColumns = "id",
+        childColumns = "infoId",
+        onDelete = CASCADE))
+public class ThroughputHistory
+{
+    /* 24 hours of active time, ~5.6 KiB */
+    public static final int MAX_SAMPLES = 24 * 60;
+    public static final int SAMPLE_INTERVAL = 60; /* s */
+
+    @PrimaryKey
+    @NonNull
+    public UUID infoId;
+    /* End time of the last sample, ms */
+    public long lastSampleTime;
+    @NonNull
+    public byte[] samples;
+
+    public ThroughputHistory(@NonNull UUID infoId, long lastSampleTime, @NonNull byte[] samples)
+    {
+        this.infoId = infoId;
+        this.lastSampleTime = lastSampleTime;
+        this.samples = samples;
+    }
+
+    @Ignore
+    public ThroughputHistory(@NonNull UUID infoId, long lastSampleTime, @NonNull int[] samples)
+    {
+        this.infoId = infoId;
+        this.lastSampleTime = lastSampleTime;
+
+        int from = Math.max(samples.length - MAX_SAMPLES, 0);
+        ByteBuffer buf = ByteBuffer.allocate((samples.length - from) * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = from; i < samples.length; i++)
+            buf.putInt(samples[i]);
+        this.samples = buf.array();
+    }
+
+    public int[] getSamples()
+    {
+        ByteBuffer buf = ByteBuffer.wrap(samples).order(ByteOrder.LITTLE_ENDIAN);
+        int[] res = new int[samples.length / 4];
+        for (int i = 0; i < res.length; i++)
+            res[i] = buf.getInt();
+
+        return res;
+    }
+}
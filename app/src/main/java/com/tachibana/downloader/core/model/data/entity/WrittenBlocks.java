@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018-2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2018-2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+import java.util.UUID;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+/*
+ * Bitmap of the file blocks that are written and synced to disk, one bit per block.
+ * It's stored as a single BLOB per download, e.g. 20 KiB for a 10 GiB file
+ * with the default block size. Only fully written blocks are marked, so that
+ * everything in a marked block is safe to skip on resume or after re-splitting
+ * the pieces. Not thread-safe.
+ */
+
+@Entity(foreignKeys = @ForeignKey(
+        entity = DownloadInfo.class,
+        parentColumns = "id",
+        childColumns = "infoId",
+        onDelete = CASCADE))
+public class WrittenBlocks
+{
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    @PrimaryKey
+    @NonNull
+    public UUID infoId;
+    public int blockSize;
+    public long totalBytes;
+    @NonNull
+    public byte[] bits;
+
+    public WrittenBlocks(@NonNull UUID infoId, int blockSize, long totalBytes, @NonNull byte[] bits)
+    {
+        this.infoId = infoId;
+        this.blockSize = blockSize;
+        this.totalBytes = totalBytes;
+        this.bits = bits;
+    }
+
+    @Ignore
+    public WrittenBlocks(@NonNull UUID infoId, long totalBytes)
+    {
+        if (totalBytes <= 0)
+            throw new IllegalArgumentException("Total bytes must be known");
+
+        this.infoId = infoId;
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        this.totalBytes = totalBytes;
+        this.bits = new byte[(getNumBlocks() + 7) / 8];
+    }
+
+    public int getNumBlocks()
+    {
+        return (int)((totalBytes + blockSize - 1) / blockSize);
+    }
+
+    public boolean isWritten(int block)
+    {
+        return (bits[block >> 3] & (1 << (block & 7))) != 0;
+    }
+
+    /*
+     * Mark the blocks that are completely inside the [from, to) range.
+     * The last block of the file may be shorter than the block size
+     */
+
+    public void markWritten(long from, long to)
+    {
+        to = Math.min(to, totalBytes);
+        int first = (int)((from + blockSize - 1) / blockSize);
+        int last = (to == totalBytes ? getNumBlocks() : (int)(to / blockSize));
+        for (int block = first; block < last; block++)
+            bits[block >> 3] |= (1 << (block & 7));
+    }
+
+    /*
+     * Unmark all blocks that intersect the [from, to) range
+     */
+
+    public void clear(long from, long to)
+    {
+        to = Math.min(to, totalBytes);
+        if (from >= to)
+            return;
+
+        int first = (int)(from / blockSize);
+        int last = (int)((to - 1) / blockSize);
+        for (int block = first; block <= last; block++)
+            bits[block >> 3] &= ~(1 << (block & 7));
+    }
+
+    /*
+     * Return the position of the first byte, starting at from,
+     * that isn't covered by written blocks, or to if the whole
+     * [from, to) range is written
+     */
+
+    public long firstUnwritten(long from, long to)
+    {
+        to = Math.min(to, totalBytes);
+        long pos = from;
+        while (pos < to) {
+            int block = (int)(pos / blockSize);
+            if (!isWritten(block))
+                return pos;
+            pos = (long)(block + 1) * blockSize;
+        }
+
+        return to;
+    }
+
+    /*
+     * Returns true if every block marked in the other bitmap
+     * of the same layout is marked in this one
+     */
+
+    public boolean covers(@NonNull WrittenBlocks other)
+    {
+        if (other.blockSize != blockSize || other.totalBytes != totalBytes ||
+            other.bits.length != bits.length)
+            return false;
+
+        for (int i = 0; i < bits.length; i++) {
+            if ((other.bits[i] & ~bits[i]) != 0)
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.settings;
+
+import androidx.annotation.NonNull;
+
+/*
+ * Immutable snapshot of the settings used by the running downloads,
+ * cached by SettingsRepository and rebuilt on every change. The download
+ * and piece threads read the current one with a volatile load instead of
+ * going to SharedPreferences (a lock, a map lookup and a resource lookup
+ * of the key per value), and see the change on their next read.
+ * The comparison methods tell which changes can be applied to the
+ * running downloads as is.
+ */
+
+public final class DownloadSettings
+{
+    /* KiB/s per piece, 0 if unlimited */
+    public final int speedLimit;
+    /* Connect and read timeout, ms */
+    public final int timeout;
+    public final int maxConnections;
+    public final int maxDownloadRetries;
+    public final boolean unmeteredConnectionsOnly;
+    /* Stop downloads while roaming, see Utils.isNetworkTypeAllowed() */
+    public final boolean enableRoaming;
+    public final boolean onlyCharging;
+    public final boolean batteryControl;
+    public final boolean customBatteryControl;
+    public final int customBatteryControlValue;
+    public final boolean deleteFileIfError;
+    public final boolean preallocateDiskSpace;
+
+    public DownloadSettings(@NonNull SettingsRepository pref)
+    {
+        speedLimit = pref.speedLimit();
+        timeout = pref.timeout();
+        maxConnections = pref.maxConnections();
+        maxDownloadRetries = pref.maxDownloadRetries();
+        unmeteredConnectionsOnly = pref.unmeteredConnectionsOnly();
+        enableRoaming = pref.enableRoaming();
+        onlyCharging = pref.onlyCharging();
+        batteryControl = pref.batteryControl();
+        customBatteryControl = pref.customBatteryControl();
+        customBatteryControlValue = pref.customBatteryControlValue();
+        deleteFileIfError = pref.deleteFileIfError();
+        preallocateDiskSpace = pref.preallocateDiskSpace();
+    }
+
+    /*
+     * Network and power restrictions differ. Running downloads may need
+     * to stop if the current network or battery state violates them
+     */
+
+    public boolean constraintsChanged(@NonNull DownloadSettings other)
+    {
+        return unmeteredConnectionsOnly != other.unmeteredConnectionsOnly ||
+                enableRoaming != other.enableRoaming ||
+                onlyCharging != other.onlyCharging ||
+                batteryControl != other.batteryControl ||
+                customBatteryControl != other.customBatteryControl ||
+                customBatteryControlValue != other.customBatteryControlValue;
+    }
+
+    /*
+     * Returns true if a download allowed by these settings
+     * may be disallowed by the other ones
+     */
+
+    public boolean constraintsTightenedBy(@NonNull DownloadSettings other)
+    {
+        return (!unmeteredConnectionsOnly && other.unmeteredConnectionsOnly) ||
+                (!enableRoaming && other.enableRoaming) ||
+                (!onlyCharging && other.onlyCharging) ||
+                (!batteryControl && other.batteryControl) ||
+                (!customBatteryControl && other.customBatteryControl) ||
+                (other.customBatteryControl && other.customBatteryControlValue > customBatteryControlValue);
+    }
+}
@@ -30,6 +30,15 @@ public interface SettingsRepository
 
     Flowable<String> observeSettingsChanged();
 
+    /*
+     * Cached in memory and replaced on every change, before the change
+     * is emitted by observeSettingsChanged(). Cheap enough for the hot
+     * paths of the downloads, unlike the getters below, each of which
+     * is a SharedPreferences lookup
+     */
+
+    DownloadSettings downloadSettings();
+
     /*
      * Appearance settings
      */
@@ -130,6 +139,14 @@ public interface SettingsRepository
 
     void maxActiveDownloads(int val);
 
+    int maxConnections();
+
+    void maxConnections(int val);
+
+    int schedulingPolicy();
+
+    void schedulingPolicy(int val);
+
     int maxDownloadRetries();
 
     void maxDownloadRetries(int val);
@@ -162,6 +179,14 @@ public interface SettingsRepository
 
     void preallocateDiskSpace(boolean val);
 
+    int archiveAfterDays();
+
+    void archiveAfterDays(int val);
+
+    int archiveKeepCount();
+
+    void archiveKeepCount(int val);
+
     /*
      * Browser settings
      */
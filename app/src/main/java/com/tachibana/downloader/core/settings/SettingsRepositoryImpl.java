@@ -34,6 +34,8 @@ import com.tachibana.downloader.core.system.SystemFacadeHelper;
 import com.tachibana.downloader.core.utils.UserAgentUtils;
 import com.tachibana.downloader.core.utils.Utils;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
 import io.reactivex.disposables.Disposables;
@@ -42,6 +44,10 @@ public class SettingsRepositoryImpl implements SettingsRepository
 {
     private final Context appContext;
     private final SharedPreferences pref;
+    private final AtomicReference<DownloadSettings> downloadSettings = new AtomicReference<>();
+    /* SharedPreferences keeps listeners by weak references */
+    private final SharedPreferences.OnSharedPreferenceChangeListener cacheListener =
+            (sharedPreferences, key) -> updateDownloadSettings();
 
     private static class Default
     {
@@ -81,6 +87,12 @@ public class SettingsRepositoryImpl implements SettingsRepository
         }
         /* Limitation settings */
         static final int maxActiveDownloads = 3;
+        /* For all active downloads */
+        static final int maxConnections = 32;
+        static int schedulingPolicy(@NonNull Context context)
+        {
+            return Integer.parseInt(context.getString(R.string.pref_scheduling_policy_fifo_value));
+        }
         static final int maxDownloadRetries = 5;
         // In Kib
         static final int speedLimit = 0;
@@ -96,6 +108,8 @@ public class SettingsRepositoryImpl implements SettingsRepository
         }
         static final boolean deleteFileIfError = false;
         static final boolean preallocateDiskSpace = true;
+        static final int archiveAfterDays = 30;
+        static final int archiveKeepCount = 1000;
         /* Browser settings */
         static final boolean browserAllowJavaScript = true;
         static final boolean browserAllowPopupWindows = false;
@@ -116,6 +130,9 @@ public class SettingsRepositoryImpl implements SettingsRepository
     {
         this.appContext = appContext;
         pref = PreferenceManager.getDefaultSharedPreferences(appContext);
+
+        updateDownloadSettings();
+        pref.registerOnSharedPreferenceChangeListener(cacheListener);
     }
 
     /*
@@ -127,6 +144,8 @@ public class SettingsRepositoryImpl implements SettingsRepository
     {
         return Flowable.create((emitter) -> {
             SharedPreferences.OnSharedPreferenceChangeListener listener = (sharedPreferences, key) -> {
+                /* The order of the listeners is undefined, the cache may not be updated yet */
+                updateDownloadSettings();
                 if (!emitter.isCancelled())
                     emitter.onNext(key);
             };
@@ -140,6 +159,17 @@ public class SettingsRepositoryImpl implements SettingsRepository
         }, BackpressureStrategy.LATEST);
     }
 
+    @Override
+    public DownloadSettings downloadSettings()
+    {
+        return downloadSettings.get();
+    }
+
+    private void updateDownloadSettings()
+    {
+        downloadSettings.set(new DownloadSettings(this));
+    }
+
     @Override
     public int theme()
     {
@@ -409,6 +439,36 @@ public class SettingsRepositoryImpl implements SettingsRepository
                 .apply();
     }
 
+    @Override
+    public int maxConnections()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_max_connections),
+                Default.maxConnections);
+    }
+
+    @Override
+    public void maxConnections(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_max_connections), val)
+                .apply();
+    }
+
+    @Override
+    public int schedulingPolicy()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_scheduling_policy),
+                Default.schedulingPolicy(appContext));
+    }
+
+    @Override
+    public void schedulingPolicy(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_scheduling_policy), val)
+                .apply();
+    }
+
     @Override
     public int maxDownloadRetries()
     {
@@ -572,6 +632,36 @@ public class SettingsRepositoryImpl implements SettingsRepository
                 .apply();
     }
 
+    @Override
+    public int archiveAfterDays()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_archive_after_days),
+                Default.archiveAfterDays);
+    }
+
+    @Override
+    public void archiveAfterDays(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_archive_after_days), val)
+                .apply();
+    }
+
+    @Override
+    public int archiveKeepCount()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_archive_keep_count),
+                Default.archiveKeepCount);
+    }
+
+    @Override
+    public void archiveKeepCount(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_archive_keep_count), val)
+                .apply();
+    }
+
     @Override
     public boolean browserAllowJavaScript()
     {
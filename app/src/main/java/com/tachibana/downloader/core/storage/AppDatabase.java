@@ -31,11 +31,15 @@ import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
+import com.tachibana.downloader.core.model.data.entity.ArchivedDownload;
 import com.tachibana.downloader.core.model.data.entity.BrowserBookmark;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
 import com.tachibana.downloader.core.model.data.entity.UserAgent;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
 import com.tachibana.downloader.core.storage.converter.UUIDConverter;
 import com.tachibana.downloader.core.storage.dao.BrowserBookmarksDao;
 import com.tachibana.downloader.core.storage.dao.DownloadDao;
@@ -51,21 +55,39 @@ import io.reactivex.schedulers.Schedulers;
         DownloadPiece.class,
         Header.class,
         UserAgent.class,
-        BrowserBookmark.class},
-        version = 6)
+        BrowserBookmark.class,
+        ArchivedDownload.class,
+        WrittenBlocks.class,
+        ThroughputHistory.class,
+        QueuedDownload.class},
+        version = 14)
 @TypeConverters({UUIDConverter.class})
 public abstract class AppDatabase extends RoomDatabase
 {
     private static final String DATABASE_NAME = "tachibana_downloader.db";
 
+    /* Upper bound of the WAL file size after a checkpoint */
+    private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
     private static volatile AppDatabase INSTANCE;
 
+    private final DatabaseWriter writer = new DatabaseWriter(this);
+
     public abstract DownloadDao downloadDao();
 
     public abstract UserAgentDao userAgentDao();
 
     public abstract BrowserBookmarksDao browserBookmarksDao();
 
+    /*
+     * All writes must go through it, see DatabaseWriter
+     */
+
+    public DatabaseWriter getWriter()
+    {
+        return writer;
+    }
+
     private final MutableLiveData<Boolean> isDatabaseCreated = new MutableLiveData<>();
 
     public static AppDatabase getInstance(Context context)
@@ -92,7 +114,7 @@ public abstract class AppDatabase extends RoomDatabase
                         super.onCreate(db);
                         Completable.fromAction(() -> {
                             AppDatabase database = AppDatabase.getInstance(appContext);
-                            database.runInTransaction(() -> {
+                            database.getWriter().execute(() -> {
                                 SystemFacade systemFacade = SystemFacadeHelper.getSystemFacade(appContext);
                                 String userAgentStr = systemFacade.getSystemUserAgent();
 
@@ -111,7 +133,27 @@ public abstract class AppDatabase extends RoomDatabase
                        .subscribeOn(Schedulers.io())
                        .subscribe();
                     }
+
+                    /*
+                     * Writes are serialized by DatabaseWriter, so readers
+                     * never wait for the writer in WAL mode. NORMAL sync
+                     * doesn't fsync on every commit, only at checkpoints;
+                     * it's still safe from corruption and the progress
+                     * journal covers the last commits lost on power failure
+                     */
+
+                    @Override
+                    public void onOpen(@NonNull SupportSQLiteDatabase db)
+                    {
+                        super.onOpen(db);
+
+                        if (!db.isWriteAheadLoggingEnabled())
+                            return;
+                        db.query("PRAGMA synchronous = NORMAL").close();
+                        db.query("PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT).close();
+                    }
                 })
+                .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
                 .addMigrations(DatabaseMigration.getMigrations())
                 .build();
     }
@@ -38,4 +38,8 @@ public interface BrowserRepository
     Single<BrowserBookmark> getBookmarkByUrlSingle(String url);
 
     Flowable<List<BrowserBookmark>> observeAllBookmarks();
+
+    List<BrowserBookmark> getBookmarksPage(String afterUrl, int limit);
+
+    void importBookmarks(List<BrowserBookmark> bookmarks);
 }
@@ -32,28 +32,33 @@ import io.reactivex.Single;
 public class BrowserRepositoryImpl implements BrowserRepository
 {
     private final AppDatabase db;
+    private final DatabaseWriter writer;
 
     public BrowserRepositoryImpl(@NonNull AppDatabase db)
     {
         this.db = db;
+        writer = db.getWriter();
     }
 
     @Override
     public Single<Long> addBookmark(BrowserBookmark bookmark)
     {
-        return db.browserBookmarksDao().add(bookmark);
+        return Single.fromCallable(() -> writer.submit(() ->
+                db.browserBookmarksDao().add(bookmark).blockingGet()));
     }
 
     @Override
     public Single<Integer> deleteBookmarks(List<BrowserBookmark> bookmarks)
     {
-        return db.browserBookmarksDao().delete(bookmarks);
+        return Single.fromCallable(() -> writer.submit(() ->
+                db.browserBookmarksDao().delete(bookmarks).blockingGet()));
     }
 
     @Override
     public Single<Integer> updateBookmark(BrowserBookmark bookmark)
     {
-        return db.browserBookmarksDao().update(bookmark);
+        return Single.fromCallable(() -> writer.submit(() ->
+                db.browserBookmarksDao().update(bookmark).blockingGet()));
     }
 
     @Override
@@ -67,4 +72,24 @@ public class BrowserRepositoryImpl implements BrowserRepository
     {
         return db.browserBookmarksDao().observeAll();
     }
+
+    /*
+     * Pass null to get the first page
+     */
+
+    @Override
+    public List<BrowserBookmark> getBookmarksPage(String afterUrl, int limit)
+    {
+        return db.browserBookmarksDao().getPage(afterUrl == null ? "" : afterUrl, limit);
+    }
+
+    /*
+     * Existing bookmarks are left untouched
+     */
+
+    @Override
+    public void importBookmarks(List<BrowserBookmark> bookmarks)
+    {
+        writer.execute(() -> db.browserBookmarksDao().importBookmarks(bookmarks));
+    }
 }
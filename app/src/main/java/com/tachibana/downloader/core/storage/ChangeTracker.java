@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.storage;
+
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+import androidx.room.RoomDatabase;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Flowable;
+import io.reactivex.processors.FlowableProcessor;
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+
+/*
+ * Replacement of Room observable queries for the tables updated by
+ * the running downloads. Room re-runs the query on every invalidation,
+ * i.e. on every progress flush of every download. Here invalidations
+ * are coalesced: progress changes refresh the observer at most once per
+ * the given interval, while status changes (add, delete, status, etc.),
+ * reported by the repository after the commit, refresh it immediately.
+ * Observers that don't show progress may ignore progress changes
+ * entirely. Invalidations that arrive while the query is running are
+ * merged into one refresh.
+ */
+
+class ChangeTracker
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = ChangeTracker.class.getSimpleName();
+
+    private enum Change
+    {
+        STATUS,
+        PROGRESS
+    }
+
+    private final FlowableProcessor<Change> changes = PublishProcessor.<Change>create().toSerialized();
+
+    ChangeTracker(@NonNull RoomDatabase db, @NonNull String... tables)
+    {
+        /* Any change that isn't reported explicitly is treated as progress */
+        db.getInvalidationTracker().addObserver(new InvalidationTracker.Observer(tables) {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables)
+            {
+                changes.onNext(Change.PROGRESS);
+            }
+        });
+    }
+
+    /*
+     * Must be called after the change is committed
+     */
+
+    void notifyStatusChanged()
+    {
+        changes.onNext(Change.STATUS);
+    }
+
+    /*
+     * Emits the query result on subscription and then on changes.
+     * Zero refreshInterval means that progress changes are ignored
+     */
+
+    <T> Flowable<T> observe(@NonNull Callable<T> query, long refreshInterval)
+    {
+        Flowable<Change> triggers;
+        if (refreshInterval > 0) {
+            triggers = changes.publish((shared) -> Flowable.merge(
+                    shared.filter((change) -> change == Change.STATUS),
+                    shared.filter((change) -> change == Change.PROGRESS)
+                            .throttleLatest(refreshInterval, TimeUnit.MILLISECONDS, true)));
+        } else {
+            triggers = changes.filter((change) -> change == Change.STATUS);
+        }
+
+        return triggers
+                .startWith(Change.STATUS)
+                .onBackpressureLatest()
+                /* One query at a time, the pending changes are merged */
+                .observeOn(Schedulers.io(), false, 1)
+                .map((change) -> query.call());
+    }
+}
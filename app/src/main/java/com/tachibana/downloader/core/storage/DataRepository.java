@@ -20,22 +20,36 @@
 
 package com.tachibana.downloader.core.storage;
 
+import androidx.annotation.NonNull;
 import androidx.lifecycle.LiveData;
 
+import com.tachibana.downloader.core.model.data.entity.ArchivedDownload;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadNotifyInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.ScheduleInfo;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
 import com.tachibana.downloader.core.model.data.entity.UserAgent;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
 
 import java.util.List;
 import java.util.UUID;
 
 import io.reactivex.Flowable;
+import io.reactivex.Maybe;
 import io.reactivex.Single;
 
 public interface DataRepository
 {
+    interface DeleteProgressListener
+    {
+        void onProgress(int deleted, int total);
+    }
+
     void addInfo(DownloadInfo info, List<Header> headers);
 
     void replaceInfoByUrl(DownloadInfo info, List<Header> headers);
@@ -44,12 +58,55 @@ public interface DataRepository
                     boolean filePathChanged,
                     boolean rebuildPieces);
 
+    void updateInfoStatus(DownloadInfo info);
+
+    void updateInfoVisibility(UUID id, int visibility);
+
+    /*
+     * Only the parameters that don't affect the transfer,
+     * null parameters are left as is
+     */
+
+    void updateInfoParams(UUID id, String description, Boolean retry, String checksum);
+
     void deleteInfo(DownloadInfo info, boolean withFile);
 
+    void deleteInfoList(List<DownloadInfo> infoList);
+
+    void deleteFiles(List<DownloadInfo> infoList, DeleteProgressListener listener);
+
+    void updateStatusByIds(List<UUID> ids, int statusCode, String statusMsg);
+
+    List<DownloadInfo> getInfoByIds(List<UUID> ids);
+
+    List<DownloadInfo> getFinishedInfo();
+
+    List<ScheduleInfo> getScheduleInfoByStatus(List<Integer> statusCodes);
+
+    List<ScheduleInfo> getScheduleInfoByIds(List<UUID> ids);
+
     Flowable<List<InfoAndPieces>> observeAllInfoAndPieces();
 
+    Flowable<List<DownloadListInfo>> observeListInfo();
+
+    Single<List<DownloadListInfo>> getListInfoSingle();
+
+    Flowable<List<DownloadListInfo>> observeFinishedListInfo();
+
+    Single<List<DownloadListInfo>> getFinishedListInfoSingle();
+
+    Flowable<List<DownloadNotifyInfo>> observeNotifyInfo();
+
     Flowable<InfoAndPieces> observeInfoAndPiecesById(UUID id);
 
+    Maybe<DownloadInfo> getInfoByIdWithArchived(UUID id);
+
+    List<DownloadInfo> getCompletedByContentKey(@NonNull String contentKey);
+
+    void archiveFinished(long lastModifyBefore, int keepCount);
+
+    void unarchive(UUID id);
+
     Single<List<InfoAndPieces>> getAllInfoAndPiecesSingle();
 
     List<DownloadInfo> getAllInfo();
@@ -60,6 +117,31 @@ public interface DataRepository
 
     int updatePiece(DownloadPiece piece);
 
+    int updatePieceProgress(DownloadPiece piece);
+
+    int updatePieceStatus(DownloadPiece piece);
+
+    int updatePiecesProgress(List<DownloadPiece> pieces);
+
+    int updateProgress(UUID id, List<DownloadPiece> pieces,
+                       long downloadedBytes, long speed, int activePieces);
+
+    WrittenBlocks getWrittenBlocks(UUID infoId);
+
+    void updateWrittenBlocks(WrittenBlocks blocks);
+
+    void deleteWrittenBlocks(UUID infoId);
+
+    ThroughputHistory getThroughputHistory(UUID infoId);
+
+    void updateThroughputHistory(ThroughputHistory history);
+
+    List<QueuedDownload> getQueuedDownloads();
+
+    void updateQueuedDownloads(List<QueuedDownload> downloads);
+
+    void deleteQueuedDownloads(List<UUID> ids);
+
     List<DownloadPiece> getPiecesById(UUID infoId);
 
     List<DownloadPiece> getPiecesByIdSorted(UUID infoId);
@@ -70,9 +152,26 @@ public interface DataRepository
 
     void addHeader(Header header);
 
+    void deleteHeader(Header header);
+
     void addUserAgent(UserAgent agent);
 
     void deleteUserAgent(UserAgent agent);
 
     LiveData<List<UserAgent>> observeUserAgents();
+
+    List<UserAgent> getUserAgents();
+
+    void importUserAgents(List<UserAgent> agents);
+
+    List<DownloadInfo> getInfoPage(UUID afterId, int limit);
+
+    List<ArchivedDownload> getArchivedPage(UUID afterId, int limit);
+
+    void importInfo(List<DownloadInfo> infoList,
+                    List<DownloadPiece> pieces,
+                    List<Header> headers,
+                    boolean skipDuplicateUrls);
+
+    void importArchived(List<ArchivedDownload> archived, boolean skipDuplicateUrls);
 }
@@ -28,28 +28,49 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
 
+import com.tachibana.downloader.core.model.data.entity.ArchivedDownload;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadNotifyInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.ScheduleInfo;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
 import com.tachibana.downloader.core.model.data.entity.UserAgent;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
+import com.tachibana.downloader.core.utils.DownloadKeys;
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 
 import io.reactivex.Flowable;
+import io.reactivex.Maybe;
 import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
 
 public class DataRepositoryImpl implements DataRepository
 {
     @SuppressWarnings("unused")
     private static final String TAG = DataRepositoryImpl.class.getSimpleName();
 
+    /* Files are usually deleted on the same storage, no sense in more threads */
+    private static final int FILE_DELETION_PARALLELISM = 4;
+    /* Max 2 refreshes per second of the list and notifications on progress changes */
+    private static final long PROGRESS_REFRESH_INTERVAL = 500; /* ms */
+
     private final Context appContext;
     private final AppDatabase db;
+    private final DatabaseWriter writer;
+    private final ChangeTracker changeTracker;
     private final MediatorLiveData<List<UserAgent>> userAgents;
     private final FileSystemFacade fs;
 
@@ -57,6 +78,8 @@ public class DataRepositoryImpl implements DataRepository
     {
         this.appContext = appContext;
         this.db = db;
+        writer = db.getWriter();
+        changeTracker = new ChangeTracker(db, "DownloadInfo", "ArchivedDownload");
         fs = SystemFacadeHelper.getFileSystemFacade(appContext);
         userAgents = new MediatorLiveData<>();
 
@@ -70,13 +93,17 @@ public class DataRepositoryImpl implements DataRepository
     @Override
     public void addInfo(DownloadInfo info, List<Header> headers)
     {
-        db.downloadDao().addInfo(info, headers);
+        setKeys(info, headers);
+        writer.execute(() -> db.downloadDao().addInfo(info, headers));
+        changeTracker.notifyStatusChanged();
     }
 
     @Override
     public void replaceInfoByUrl(DownloadInfo info, List<Header> headers)
     {
-        db.downloadDao().replaceInfoByUrl(info, headers);
+        setKeys(info, headers);
+        writer.execute(() -> db.downloadDao().replaceInfoByUrl(info, headers));
+        changeTracker.notifyStatusChanged();
     }
 
     @Override
@@ -89,40 +116,252 @@ public class DataRepositoryImpl implements DataRepository
             if (oldInfo == null)
                 return;
         }
+        /* URL may be changed by the user */
+        info.urlHash = DownloadKeys.urlHash(info.url);
         if (rebuildPieces)
-            db.downloadDao().updateInfoWithPieces(info);
+            writer.execute(() -> db.downloadDao().updateInfoWithPieces(info));
         else
-            db.downloadDao().updateInfo(info);
+            writer.execute(() -> db.downloadDao().updateInfo(info));
+        changeTracker.notifyStatusChanged();
+    }
+
+    /*
+     * Writes only status, visibility and last modification time
+     */
+
+    @Override
+    public void updateInfoStatus(DownloadInfo info)
+    {
+        writer.execute(() -> db.downloadDao().updateInfoStatus(info.id, info.statusCode, info.statusMsg,
+                info.visibility, info.lastModify));
+        changeTracker.notifyStatusChanged();
+    }
+
+    @Override
+    public void updateInfoVisibility(UUID id, int visibility)
+    {
+        writer.execute(() -> db.downloadDao().updateInfoVisibility(id, visibility));
+        changeTracker.notifyStatusChanged();
+    }
+
+    @Override
+    public void updateInfoParams(UUID id, String description, Boolean retry, String checksum)
+    {
+        writer.execute(() -> db.downloadDao().updateInfoParams(id, description, retry, checksum));
+        changeTracker.notifyStatusChanged();
     }
 
     @Override
     public void deleteInfo(DownloadInfo info, boolean withFile)
     {
-        db.downloadDao().deleteInfo(info);
+        writer.execute(() -> db.downloadDao().deleteInfo(info));
+        changeTracker.notifyStatusChanged();
 
-        if (withFile) {
-            try {
-                Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
-                if (filePath == null)
-                    return;
-                fs.deleteFile(filePath);
+        if (withFile)
+            deleteFile(info);
+    }
 
-            } catch (FileNotFoundException | SecurityException e) {
-                Log.w(TAG, Log.getStackTraceString(e));
-            }
+    /*
+     * Deletes all rows in one transaction
+     */
+
+    @Override
+    public void deleteInfoList(@NonNull List<DownloadInfo> infoList)
+    {
+        if (infoList.isEmpty())
+            return;
+
+        ArrayList<UUID> ids = new ArrayList<>(infoList.size());
+        for (DownloadInfo info : infoList)
+            ids.add(info.id);
+        writer.execute(() -> db.downloadDao().deleteInfoByIds(ids));
+        changeTracker.notifyStatusChanged();
+    }
+
+    /*
+     * Deletes files in parallel on the IO pool and blocks until all
+     * files are deleted. The listener is called on the caller thread
+     */
+
+    @Override
+    public void deleteFiles(@NonNull List<DownloadInfo> infoList,
+                            DeleteProgressListener listener)
+    {
+        if (infoList.isEmpty())
+            return;
+
+        int total = infoList.size();
+        int[] deleted = new int[1];
+        Flowable.fromIterable(infoList)
+                .parallel(FILE_DELETION_PARALLELISM)
+                .runOn(Schedulers.io())
+                .map((info) -> {
+                    /* Don't let one file stop the deletion of the rest */
+                    try {
+                        deleteFile(info);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Unable to delete file " + info.fileName + ": " +
+                                Log.getStackTraceString(e));
+                    }
+                    return info;
+                })
+                .sequential()
+                .blockingSubscribe((info) -> {
+                    deleted[0]++;
+                    if (listener != null)
+                        listener.onProgress(deleted[0], total);
+                }, (Throwable t) -> Log.e(TAG, Log.getStackTraceString(t)));
+    }
+
+    private void deleteFile(DownloadInfo info)
+    {
+        try {
+            Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
+            if (filePath == null)
+                return;
+            fs.deleteFile(filePath);
+
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.w(TAG, Log.getStackTraceString(e));
         }
     }
 
+    @Override
+    public void updateStatusByIds(@NonNull List<UUID> ids, int statusCode, String statusMsg)
+    {
+        if (ids.isEmpty())
+            return;
+
+        writer.execute(() -> db.downloadDao().updateStatusByIds(ids, statusCode, statusMsg));
+        changeTracker.notifyStatusChanged();
+    }
+
+    @Override
+    public List<DownloadInfo> getInfoByIds(@NonNull List<UUID> ids)
+    {
+        return db.downloadDao().getInfoByIds(ids);
+    }
+
+    @Override
+    public List<DownloadInfo> getFinishedInfo()
+    {
+        return db.downloadDao().getFinishedInfo();
+    }
+
+    @Override
+    public List<ScheduleInfo> getScheduleInfoByStatus(@NonNull List<Integer> statusCodes)
+    {
+        return db.downloadDao().getScheduleInfoByStatus(statusCodes);
+    }
+
+    @Override
+    public List<ScheduleInfo> getScheduleInfoByIds(@NonNull List<UUID> ids)
+    {
+        return db.downloadDao().getScheduleInfoByIds(ids);
+    }
+
     @Override
     public Flowable<List<InfoAndPieces>> observeAllInfoAndPieces()
     {
         return db.downloadDao().observeAllInfoAndPieces();
     }
 
+    /*
+     * Lightweight projections for the list and notifications, without
+     * the pieces relation. Progress is taken from the aggregate columns
+     * of DownloadInfo. The full entity is loaded only on demand.
+     * Refreshes on progress changes are throttled, see ChangeTracker
+     */
+
+    @Override
+    public Flowable<List<DownloadListInfo>> observeListInfo()
+    {
+        return changeTracker.observe(db.downloadDao()::getListInfo, PROGRESS_REFRESH_INTERVAL);
+    }
+
+    @Override
+    public Single<List<DownloadListInfo>> getListInfoSingle()
+    {
+        return Single.fromCallable(db.downloadDao()::getListInfo);
+    }
+
+    /*
+     * Finished and archived downloads. They have no progress,
+     * so only status changes are observed
+     */
+
+    @Override
+    public Flowable<List<DownloadListInfo>> observeFinishedListInfo()
+    {
+        return changeTracker.observe(db.downloadDao()::getFinishedListInfo, 0);
+    }
+
+    @Override
+    public Single<List<DownloadListInfo>> getFinishedListInfoSingle()
+    {
+        return Single.fromCallable(db.downloadDao()::getFinishedListInfo);
+    }
+
+    @Override
+    public Flowable<List<DownloadNotifyInfo>> observeNotifyInfo()
+    {
+        return changeTracker.observe(db.downloadDao()::getNotifyInfo, PROGRESS_REFRESH_INTERVAL);
+    }
+
     @Override
     public Flowable<InfoAndPieces> observeInfoAndPiecesById(UUID id)
     {
-        return db.downloadDao().observeInfoAndPiecesById(id);
+        return Flowable.combineLatest(
+                db.downloadDao().observeInfoAndPiecesById(id),
+                db.downloadDao().observeInfoByIdWithArchived(id),
+                (infoAndPiecesList, infoList) -> {
+                    if (!infoAndPiecesList.isEmpty() || infoList.isEmpty())
+                        return infoAndPiecesList;
+                    return Collections.singletonList(makeInfoWithoutPieces(infoList.get(0)));
+                })
+                .filter((infoAndPiecesList) -> !infoAndPiecesList.isEmpty())
+                .map((infoAndPiecesList) -> infoAndPiecesList.get(0));
+    }
+
+    /*
+     * Including archived
+     */
+
+    @Override
+    public Maybe<DownloadInfo> getInfoByIdWithArchived(UUID id)
+    {
+        return db.downloadDao().getInfoByIdWithArchivedSingle(id)
+                .filter((infoList) -> !infoList.isEmpty())
+                .map((infoList) -> infoList.get(0));
+    }
+
+    @Override
+    public List<DownloadInfo> getCompletedByContentKey(@NonNull String contentKey)
+    {
+        return db.downloadDao().getCompletedByContentKey(contentKey);
+    }
+
+    private InfoAndPieces makeInfoWithoutPieces(DownloadInfo info)
+    {
+        InfoAndPieces infoAndPieces = new InfoAndPieces();
+        infoAndPieces.info = info;
+        infoAndPieces.pieces = Collections.emptyList();
+
+        return infoAndPieces;
+    }
+
+    @Override
+    public void archiveFinished(long lastModifyBefore, int keepCount)
+    {
+        writer.execute(() -> db.downloadDao().archiveFinished(lastModifyBefore, keepCount));
+        changeTracker.notifyStatusChanged();
+    }
+
+    @Override
+    public void unarchive(UUID id)
+    {
+        writer.execute(() -> db.downloadDao().unarchive(id));
+        changeTracker.notifyStatusChanged();
     }
 
     @Override
@@ -152,7 +391,91 @@ public class DataRepositoryImpl implements DataRepository
     @Override
     public int updatePiece(DownloadPiece piece)
     {
-        return db.downloadDao().updatePiece(piece);
+        return writer.submit(() -> db.downloadDao().updatePiece(piece));
+    }
+
+    /*
+     * Writes only the current position and speed of the piece
+     */
+
+    @Override
+    public int updatePieceProgress(DownloadPiece piece)
+    {
+        return writer.submit(() -> db.downloadDao().updatePieceProgress(piece.index, piece.infoId,
+                piece.curBytes, piece.speed));
+    }
+
+    /*
+     * Writes the status of the piece along with its progress,
+     * but not the size
+     */
+
+    @Override
+    public int updatePieceStatus(DownloadPiece piece)
+    {
+        return writer.submit(() -> db.downloadDao().updatePieceStatus(piece.index, piece.infoId,
+                piece.statusCode, piece.statusMsg, piece.curBytes, piece.speed));
+    }
+
+    @Override
+    public int updatePiecesProgress(List<DownloadPiece> pieces)
+    {
+        return writer.submit(() -> db.downloadDao().updatePiecesProgress(pieces));
+    }
+
+    @Override
+    public int updateProgress(UUID id, List<DownloadPiece> pieces,
+                              long downloadedBytes, long speed, int activePieces)
+    {
+        return writer.submit(() -> db.downloadDao().updateProgress(id, pieces, downloadedBytes, speed, activePieces));
+    }
+
+    @Override
+    public WrittenBlocks getWrittenBlocks(UUID infoId)
+    {
+        return db.downloadDao().getWrittenBlocks(infoId);
+    }
+
+    @Override
+    public void updateWrittenBlocks(WrittenBlocks blocks)
+    {
+        writer.execute(() -> db.downloadDao().updateWrittenBlocks(blocks));
+    }
+
+    @Override
+    public void deleteWrittenBlocks(UUID infoId)
+    {
+        writer.execute(() -> db.downloadDao().deleteWrittenBlocks(infoId));
+    }
+
+    @Override
+    public ThroughputHistory getThroughputHistory(UUID infoId)
+    {
+        return db.downloadDao().getThroughputHistory(infoId);
+    }
+
+    @Override
+    public void updateThroughputHistory(ThroughputHistory history)
+    {
+        writer.execute(() -> db.downloadDao().updateThroughputHistory(history));
+    }
+
+    @Override
+    public List<QueuedDownload> getQueuedDownloads()
+    {
+        return db.downloadDao().getQueued();
+    }
+
+    @Override
+    public void updateQueuedDownloads(List<QueuedDownload> downloads)
+    {
+        writer.execute(() -> db.downloadDao().updateQueued(downloads));
+    }
+
+    @Override
+    public void deleteQueuedDownloads(List<UUID> ids)
+    {
+        writer.execute(() -> db.downloadDao().deleteQueued(ids));
     }
 
     @Override
@@ -186,19 +509,26 @@ public class DataRepositoryImpl implements DataRepository
     @Override
     public void addHeader(Header header)
     {
-        db.downloadDao().addHeader(header);
+        /* Keep id in sync, the header may be cached by the caller */
+        header.id = writer.submit(() -> db.downloadDao().addHeader(header));
+    }
+
+    @Override
+    public void deleteHeader(Header header)
+    {
+        writer.execute(() -> db.downloadDao().deleteHeader(header));
     }
 
     @Override
     public void addUserAgent(UserAgent agent)
     {
-        db.userAgentDao().add(agent);
+        writer.execute(() -> db.userAgentDao().add(agent));
     }
 
     @Override
     public void deleteUserAgent(UserAgent agent)
     {
-        db.userAgentDao().delete(agent);
+        writer.execute(() -> db.userAgentDao().delete(agent));
     }
 
     @Override
@@ -206,4 +536,101 @@ public class DataRepositoryImpl implements DataRepository
     {
         return db.userAgentDao().observeAll();
     }
-}
\ No newline at end of file
+
+    @Override
+    public List<UserAgent> getUserAgents()
+    {
+        return db.userAgentDao().getAll();
+    }
+
+    /*
+     * User agents have autogenerated ids that differ between devices,
+     * so they're matched by value. Read-only agents are built in
+     */
+
+    @Override
+    public void importUserAgents(List<UserAgent> agents)
+    {
+        writer.execute(() -> {
+            HashSet<String> existing = new HashSet<>();
+            for (UserAgent agent : db.userAgentDao().getAll())
+                existing.add(agent.userAgent);
+
+            ArrayList<UserAgent> added = new ArrayList<>();
+            for (UserAgent agent : agents) {
+                if (agent.readOnly || !existing.add(agent.userAgent))
+                    continue;
+                agent.id = 0;
+                added.add(agent);
+            }
+            if (!added.isEmpty())
+                db.userAgentDao().add(added.toArray(new UserAgent[0]));
+        });
+    }
+
+    /*
+     * Pass null to get the first page
+     */
+
+    @Override
+    public List<DownloadInfo> getInfoPage(UUID afterId, int limit)
+    {
+        return db.downloadDao().getInfoPage(afterId == null ? "" : afterId.toString(), limit);
+    }
+
+    @Override
+    public List<ArchivedDownload> getArchivedPage(UUID afterId, int limit)
+    {
+        return db.downloadDao().getArchivedPage(afterId == null ? "" : afterId.toString(), limit);
+    }
+
+    @Override
+    public void importInfo(List<DownloadInfo> infoList,
+                           List<DownloadPiece> pieces,
+                           List<Header> headers,
+                           boolean skipDuplicateUrls)
+    {
+        HashMap<UUID, List<Header>> headersById = new HashMap<>();
+        for (Header header : headers) {
+            List<Header> infoHeaders = headersById.get(header.infoId);
+            if (infoHeaders == null) {
+                infoHeaders = new ArrayList<>();
+                headersById.put(header.infoId, infoHeaders);
+            }
+            infoHeaders.add(header);
+        }
+        for (DownloadInfo info : infoList)
+            setKeys(info, headersById.get(info.id));
+
+        writer.execute(() -> db.downloadDao().importInfo(infoList, pieces, headers, skipDuplicateUrls));
+        changeTracker.notifyStatusChanged();
+    }
+
+    @Override
+    public void importArchived(List<ArchivedDownload> archived, boolean skipDuplicateUrls)
+    {
+        for (ArchivedDownload download : archived)
+            download.urlHash = DownloadKeys.urlHash(download.url);
+
+        writer.execute(() -> db.downloadDao().importArchived(archived, skipDuplicateUrls));
+        changeTracker.notifyStatusChanged();
+    }
+
+    /*
+     * The content key is known only if the server has returned ETag
+     */
+
+    private static void setKeys(DownloadInfo info, List<Header> headers)
+    {
+        info.urlHash = DownloadKeys.urlHash(info.url);
+        if (info.contentKey != null || headers == null)
+            return;
+
+        for (Header header : headers) {
+            if ("ETag".equalsIgnoreCase(header.name)) {
+                info.contentKey = DownloadKeys.contentKey(info.url, header.value, info.totalBytes);
+                break;
+            }
+        }
+    }
+}
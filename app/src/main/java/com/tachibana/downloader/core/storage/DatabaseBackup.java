@@ -0,0 +1,721 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.storage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.RepositoryHelper;
+import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.ArchivedDownload;
+import com.tachibana.downloader.core.model.data.entity.BrowserBookmark;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.model.data.entity.UserAgent;
+import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.system.FileSystemFacade;
+import com.tachibana.downloader.core.system.SystemFacadeHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Export and import of the downloads, user agents and browser bookmarks.
+ * The backup is a gzipped JSON document with a format version:
+ *
+ * {
+ *   "format": "download-navi-backup",
+ *   "version": 1,
+ *   "downloads": [{..., "pieces": [...], "headers": [...]}, ...],
+ *   "archived": [...],
+ *   "userAgents": [...],
+ *   "bookmarks": [...]
+ * }
+ *
+ * Both directions are streamed: the export reads the tables page by page
+ * and the import inserts fixed-size batches in one transaction each,
+ * so memory usage doesn't depend on the number of downloads.
+ * Unknown fields are skipped, so older versions of the app
+ * can read backups with new fields.
+ */
+
+public class DatabaseBackup
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = DatabaseBackup.class.getSimpleName();
+
+    public static final String MIME_TYPE = "application/gzip";
+    public static final String FILE_EXTENSION = ".ndbak";
+
+    private static final String FORMAT = "download-navi-backup";
+    private static final int VERSION = 1;
+    private static final int EXPORT_PAGE_SIZE = 200;
+    /* Limits of one import transaction */
+    private static final int IMPORT_BATCH_INFO = 500;
+    private static final int IMPORT_BATCH_ROWS = 10000;
+
+    private final ContentResolver contentResolver;
+    private final DataRepository repo;
+    private final BrowserRepository browserRepo;
+    private final SettingsRepository pref;
+    private final FileSystemFacade fs;
+
+    public DatabaseBackup(@NonNull Context appContext)
+    {
+        contentResolver = appContext.getContentResolver();
+        repo = RepositoryHelper.getDataRepository(appContext);
+        browserRepo = RepositoryHelper.getBrowserRepository(appContext);
+        pref = RepositoryHelper.getSettingsRepository(appContext);
+        fs = SystemFacadeHelper.getFileSystemFacade(appContext);
+    }
+
+    public void exportTo(@NonNull Uri file) throws IOException
+    {
+        OutputStream os = contentResolver.openOutputStream(file, "wt");
+        if (os == null)
+            throw new FileNotFoundException(file.toString());
+
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new BufferedOutputStream(os)), StandardCharsets.UTF_8))) {
+            writer.beginObject();
+            writer.name("format").value(FORMAT);
+            writer.name("version").value(VERSION);
+
+            writer.name("downloads").beginArray();
+            UUID lastId = null;
+            List<DownloadInfo> page;
+            do {
+                page = repo.getInfoPage(lastId, EXPORT_PAGE_SIZE);
+                for (DownloadInfo info : page) {
+                    writeInfo(writer, info,
+                            repo.getPiecesById(info.id),
+                            repo.getHeadersById(info.id));
+                    lastId = info.id;
+                }
+            } while (page.size() == EXPORT_PAGE_SIZE);
+            writer.endArray();
+
+            writer.name("archived").beginArray();
+            lastId = null;
+            List<ArchivedDownload> archivedPage;
+            do {
+                archivedPage = repo.getArchivedPage(lastId, EXPORT_PAGE_SIZE);
+                for (ArchivedDownload archived : archivedPage) {
+                    writeArchived(writer, archived);
+                    lastId = archived.id;
+                }
+            } while (archivedPage.size() == EXPORT_PAGE_SIZE);
+            writer.endArray();
+
+            writer.name("userAgents").beginArray();
+            for (UserAgent agent : repo.getUserAgents()) {
+                if (!agent.readOnly)
+                    writer.value(agent.userAgent);
+            }
+            writer.endArray();
+
+            writer.name("bookmarks").beginArray();
+            String lastUrl = null;
+            List<BrowserBookmark> bookmarksPage;
+            do {
+                bookmarksPage = browserRepo.getBookmarksPage(lastUrl, EXPORT_PAGE_SIZE);
+                for (BrowserBookmark bookmark : bookmarksPage) {
+                    writer.beginObject();
+                    writer.name("url").value(bookmark.url);
+                    writer.name("name").value(bookmark.name);
+                    writer.name("dateAdded").value(bookmark.dateAdded);
+                    writer.endObject();
+                    lastUrl = bookmark.url;
+                }
+            } while (bookmarksPage.size() == EXPORT_PAGE_SIZE);
+            writer.endArray();
+
+            writer.endObject();
+        }
+    }
+
+    /*
+     * Returns the number of imported downloads, including already existing ones
+     */
+
+    public int importFrom(@NonNull Uri file) throws IOException
+    {
+        InputStream is = contentResolver.openInputStream(file);
+        if (is == null)
+            throw new FileNotFoundException(file.toString());
+
+        int count = 0;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new GZIPInputStream(new BufferedInputStream(is)), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            checkHeader(reader);
+
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "downloads":
+                        count += readDownloads(reader);
+                        break;
+                    case "archived":
+                        count += readArchived(reader);
+                        break;
+                    case "userAgents":
+                        readUserAgents(reader);
+                        break;
+                    case "bookmarks":
+                        readBookmarks(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            /* Malformed document */
+            throw new IOException(e);
+        }
+
+        return count;
+    }
+
+    /*
+     * The format and version must go first, so that nothing
+     * is imported from a file of a different format
+     */
+
+    private void checkHeader(JsonReader reader) throws IOException
+    {
+        if (!"format".equals(reader.nextName()) || !FORMAT.equals(reader.nextString()))
+            throw new IOException("Not a backup file");
+        if (!"version".equals(reader.nextName()))
+            throw new IOException("Backup version is missing");
+
+        int version = reader.nextInt();
+        if (version > VERSION)
+            throw new IOException("Unsupported backup version: " + version);
+    }
+
+    private void writeInfo(JsonWriter writer,
+                           DownloadInfo info,
+                           List<DownloadPiece> pieces,
+                           List<Header> headers) throws IOException
+    {
+        writer.beginObject();
+        writer.name("id").value(info.id.toString());
+        writer.name("dirPath").value(info.dirPath.toString());
+        writer.name("url").value(info.url);
+        writer.name("fileName").value(info.fileName);
+        writer.name("description").value(info.description);
+        writer.name("mimeType").value(info.mimeType);
+        writer.name("totalBytes").value(info.totalBytes);
+        writer.name("numPieces").value(info.getNumPieces());
+        writer.name("statusCode").value(info.statusCode);
+        writer.name("unmeteredConnectionsOnly").value(info.unmeteredConnectionsOnly);
+        writer.name("retry").value(info.retry);
+        writer.name("partialSupport").value(info.partialSupport);
+        writer.name("statusMsg").value(info.statusMsg);
+        writer.name("dateAdded").value(info.dateAdded);
+        writer.name("visibility").value(info.visibility);
+        writer.name("hasMetadata").value(info.hasMetadata);
+        writer.name("userAgent").value(info.userAgent);
+        writer.name("numFailed").value(info.numFailed);
+        writer.name("retryAfter").value(info.retryAfter);
+        writer.name("lastModify").value(info.lastModify);
+        writer.name("checksum").value(info.checksum);
+        writer.name("uncompressArchive").value(info.uncompressArchive);
+        writer.name("downloadedBytes").value(info.downloadedBytes);
+
+        writer.name("pieces").beginArray();
+        for (DownloadPiece piece : pieces) {
+            writer.beginObject();
+            writer.name("index").value(piece.index);
+            writer.name("size").value(piece.size);
+            writer.name("curBytes").value(piece.curBytes);
+            writer.name("statusCode").value(piece.statusCode);
+            writer.name("statusMsg").value(piece.statusMsg);
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.name("headers").beginArray();
+        for (Header header : headers) {
+            writer.beginObject();
+            writer.name("name").value(header.name);
+            writer.name("value").value(header.value);
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.endObject();
+    }
+
+    private void writeArchived(JsonWriter writer, ArchivedDownload archived) throws IOException
+    {
+        writer.beginObject();
+        writer.name("id").value(archived.id.toString());
+        writer.name("dirPath").value(archived.dirPath.toString());
+        writer.name("url").value(archived.url);
+        writer.name("fileName").value(archived.fileName);
+        writer.name("description").value(archived.description);
+        writer.name("mimeType").value(archived.mimeType);
+        writer.name("totalBytes").value(archived.totalBytes);
+        writer.name("statusCode").value(archived.statusCode);
+        writer.name("statusMsg").value(archived.statusMsg);
+        writer.name("dateAdded").value(archived.dateAdded);
+        writer.name("userAgent").value(archived.userAgent);
+        writer.name("lastModify").value(archived.lastModify);
+        writer.name("checksum").value(archived.checksum);
+        writer.endObject();
+    }
+
+    private int readDownloads(JsonReader reader) throws IOException
+    {
+        int count = 0;
+        ArrayList<DownloadInfo> infoList = new ArrayList<>();
+        ArrayList<DownloadPiece> pieces = new ArrayList<>();
+        ArrayList<Header> headers = new ArrayList<>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readInfo(reader, infoList, pieces, headers);
+            count++;
+            if (infoList.size() >= IMPORT_BATCH_INFO ||
+                pieces.size() + headers.size() >= IMPORT_BATCH_ROWS) {
+                repo.importInfo(infoList, pieces, headers, pref.replaceDuplicateDownloads());
+                infoList.clear();
+                pieces.clear();
+                headers.clear();
+            }
+        }
+        reader.endArray();
+
+        if (!infoList.isEmpty())
+            repo.importInfo(infoList, pieces, headers, pref.replaceDuplicateDownloads());
+
+        return count;
+    }
+
+    private void readInfo(JsonReader reader,
+                          List<DownloadInfo> infoList,
+                          List<DownloadPiece> pieces,
+                          List<Header> headers) throws IOException
+    {
+        UUID id = null;
+        String dirPath = null, url = null, fileName = null;
+        /* Fields without a constructor parameter are applied after reading */
+        DownloadInfo tmp = new DownloadInfo(Uri.EMPTY, "", "");
+        int numPieces = DownloadInfo.MIN_PIECES;
+        ArrayList<DownloadPiece> infoPieces = new ArrayList<>();
+        ArrayList<String[]> infoHeaders = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = UUID.fromString(reader.nextString());
+                    break;
+                case "dirPath":
+                    dirPath = reader.nextString();
+                    break;
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "fileName":
+                    fileName = reader.nextString();
+                    break;
+                case "description":
+                    tmp.description = nextStringOrNull(reader);
+                    break;
+                case "mimeType":
+                    tmp.mimeType = nextStringOrNull(reader);
+                    break;
+                case "totalBytes":
+                    tmp.totalBytes = reader.nextLong();
+                    break;
+                case "numPieces":
+                    numPieces = reader.nextInt();
+                    break;
+                case "statusCode":
+                    tmp.statusCode = reader.nextInt();
+                    break;
+                case "unmeteredConnectionsOnly":
+                    tmp.unmeteredConnectionsOnly = reader.nextBoolean();
+                    break;
+                case "retry":
+                    tmp.retry = reader.nextBoolean();
+                    break;
+                case "partialSupport":
+                    tmp.partialSupport = reader.nextBoolean();
+                    break;
+                case "statusMsg":
+                    tmp.statusMsg = nextStringOrNull(reader);
+                    break;
+                case "dateAdded":
+                    tmp.dateAdded = reader.nextLong();
+                    break;
+                case "visibility":
+                    tmp.visibility = reader.nextInt();
+                    break;
+                case "hasMetadata":
+                    tmp.hasMetadata = reader.nextBoolean();
+                    break;
+                case "userAgent":
+                    tmp.userAgent = nextStringOrNull(reader);
+                    break;
+                case "numFailed":
+                    tmp.numFailed = reader.nextInt();
+                    break;
+                case "retryAfter":
+                    tmp.retryAfter = reader.nextInt();
+                    break;
+                case "lastModify":
+                    tmp.lastModify = reader.nextLong();
+                    break;
+                case "checksum":
+                    tmp.checksum = nextStringOrNull(reader);
+                    break;
+                case "uncompressArchive":
+                    tmp.uncompressArchive = reader.nextBoolean();
+                    break;
+                case "downloadedBytes":
+                    tmp.downloadedBytes = reader.nextLong();
+                    break;
+                case "pieces":
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        infoPieces.add(readPiece(reader));
+                    reader.endArray();
+                    break;
+                case "headers":
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        infoHeaders.add(readHeader(reader));
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id == null || dirPath == null || url == null || fileName == null)
+            throw new IOException("Download has no id, path or url");
+
+        DownloadInfo info = new DownloadInfo(tmp);
+        info.id = id;
+        info.dirPath = Uri.parse(dirPath);
+        info.url = url;
+        info.fileName = fileName;
+        info.setNumPieces(numPieces);
+        for (DownloadPiece piece : infoPieces)
+            piece.infoId = id;
+
+        relink(info, infoPieces);
+
+        infoList.add(info);
+        pieces.addAll(infoPieces);
+        for (String[] header : infoHeaders)
+            headers.add(new Header(id, header[0], header[1]));
+    }
+
+    private DownloadPiece readPiece(JsonReader reader) throws IOException
+    {
+        /* infoId is set by the caller */
+        DownloadPiece piece = new DownloadPiece(new UUID(0, 0), 0, 0, 0);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "index":
+                    piece.index = reader.nextInt();
+                    break;
+                case "size":
+                    piece.size = reader.nextLong();
+                    break;
+                case "curBytes":
+                    piece.curBytes = reader.nextLong();
+                    break;
+                case "statusCode":
+                    piece.statusCode = reader.nextInt();
+                    break;
+                case "statusMsg":
+                    piece.statusMsg = nextStringOrNull(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return piece;
+    }
+
+    private String[] readHeader(JsonReader reader) throws IOException
+    {
+        String[] header = new String[2];
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    header[0] = nextStringOrNull(reader);
+                    break;
+                case "value":
+                    header[1] = nextStringOrNull(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return header;
+    }
+
+    private int readArchived(JsonReader reader) throws IOException
+    {
+        int count = 0;
+        ArrayList<ArchivedDownload> batch = new ArrayList<>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            batch.add(readArchivedDownload(reader));
+            count++;
+            if (batch.size() >= IMPORT_BATCH_ROWS) {
+                repo.importArchived(batch, pref.replaceDuplicateDownloads());
+                batch.clear();
+            }
+        }
+        reader.endArray();
+
+        if (!batch.isEmpty())
+            repo.importArchived(batch, pref.replaceDuplicateDownloads());
+
+        return count;
+    }
+
+    private ArchivedDownload readArchivedDownload(JsonReader reader) throws IOException
+    {
+        ArchivedDownload archived = new ArchivedDownload(new UUID(0, 0), Uri.EMPTY, "", "");
+        boolean hasId = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    archived.id = UUID.fromString(reader.nextString());
+                    hasId = true;
+                    break;
+                case "dirPath":
+                    archived.dirPath = Uri.parse(reader.nextString());
+                    break;
+                case "url":
+                    archived.url = reader.nextString();
+                    break;
+                case "fileName":
+                    archived.fileName = reader.nextString();
+                    break;
+                case "description":
+                    archived.description = nextStringOrNull(reader);
+                    break;
+                case "mimeType":
+                    archived.mimeType = nextStringOrNull(reader);
+                    break;
+                case "totalBytes":
+                    archived.totalBytes = reader.nextLong();
+                    break;
+                case "statusCode":
+                    archived.statusCode = reader.nextInt();
+                    break;
+                case "statusMsg":
+                    archived.statusMsg = nextStringOrNull(reader);
+                    break;
+                case "dateAdded":
+                    archived.dateAdded = reader.nextLong();
+                    break;
+                case "userAgent":
+                    archived.userAgent = nextStringOrNull(reader);
+                    break;
+                case "lastModify":
+                    archived.lastModify = reader.nextLong();
+                    break;
+                case "checksum":
+                    archived.checksum = nextStringOrNull(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasId)
+            throw new IOException("Archived download has no id");
+
+        return archived;
+    }
+
+    private void readUserAgents(JsonReader reader) throws IOException
+    {
+        /* A handful of rows, no batching */
+        ArrayList<UserAgent> agents = new ArrayList<>();
+
+        reader.beginArray();
+        while (reader.hasNext())
+            agents.add(new UserAgent(reader.nextString()));
+        reader.endArray();
+
+        repo.importUserAgents(agents);
+    }
+
+    private void readBookmarks(JsonReader reader) throws IOException
+    {
+        ArrayList<BrowserBookmark> batch = new ArrayList<>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String url = null, name = null;
+            long dateAdded = 0;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "url":
+                        url = reader.nextString();
+                        break;
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "dateAdded":
+                        dateAdded = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (url == null)
+                continue;
+            batch.add(new BrowserBookmark(url, (name == null ? url : name), dateAdded));
+            if (batch.size() >= IMPORT_BATCH_ROWS) {
+                browserRepo.importBookmarks(batch);
+                batch.clear();
+            }
+        }
+        reader.endArray();
+
+        if (!batch.isEmpty())
+            browserRepo.importBookmarks(batch);
+    }
+
+    /*
+     * Makes unfinished downloads resumable on this device.
+     * If the file isn't found in its directory, the default download
+     * directory is checked for a file with the same name (e.g. the files
+     * were copied along with the backup). Pieces pointing beyond the end
+     * of the found file, or all pieces if there is no file, start over.
+     * Downloads that were running at export time are paused
+     */
+
+    private void relink(DownloadInfo info, List<DownloadPiece> pieces)
+    {
+        info.speed = 0;
+        info.activePieces = 0;
+        for (DownloadPiece piece : pieces)
+            piece.speed = 0;
+
+        if (StatusCode.isStatusCompleted(info.statusCode))
+            return;
+
+        if (info.statusCode == StatusCode.STATUS_RUNNING)
+            info.statusCode = StatusCode.STATUS_PAUSED;
+        for (DownloadPiece piece : pieces) {
+            if (piece.statusCode == StatusCode.STATUS_RUNNING)
+                piece.statusCode = StatusCode.STATUS_PAUSED;
+        }
+
+        Uri filePath = findFile(info.dirPath, info.fileName);
+        if (filePath == null) {
+            String defaultDir = pref.saveDownloadsIn();
+            if (defaultDir != null) {
+                Uri dir = Uri.parse(defaultDir);
+                filePath = findFile(dir, info.fileName);
+                if (filePath != null)
+                    info.dirPath = dir;
+            }
+        }
+
+        long fileSize = (filePath == null ? 0 : fs.getFileSize(filePath));
+        long downloadedBytes = 0;
+        for (DownloadPiece piece : pieces) {
+            long startPos = info.pieceStartPos(piece);
+            if (piece.curBytes > Math.max(fileSize, startPos)) {
+                piece.curBytes = startPos;
+                if (StatusCode.isStatusSuccess(piece.statusCode))
+                    piece.statusCode = StatusCode.STATUS_PENDING;
+            }
+            downloadedBytes += piece.curBytes - startPos;
+        }
+        info.downloadedBytes = downloadedBytes;
+    }
+
+    private Uri findFile(Uri dir, String fileName)
+    {
+        try {
+            return fs.getFileUri(dir, fileName);
+
+        } catch (Exception e) {
+            /* E.g. no permission for the SAF directory of the old device */
+            Log.w(TAG, "Unable to access " + dir + ": " + Log.getStackTraceString(e));
+            return null;
+        }
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException
+    {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        return reader.nextString();
+    }
+}
@@ -20,10 +20,16 @@
 
 package com.tachibana.downloader.core.storage;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
 import androidx.annotation.NonNull;
 import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
+import com.tachibana.downloader.core.utils.DownloadKeys;
+
 class DatabaseMigration
 {
     static Migration[] getMigrations()
@@ -34,6 +40,14 @@ class DatabaseMigration
                 MIGRATION_3_4,
                 MIGRATION_4_5,
                 MIGRATION_5_6,
+                MIGRATION_6_7,
+                MIGRATION_7_8,
+                MIGRATION_8_9,
+                MIGRATION_9_10,
+                MIGRATION_10_11,
+                MIGRATION_11_12,
+                MIGRATION_12_13,
+                MIGRATION_13_14,
         };
     }
 
@@ -87,4 +101,98 @@ class DatabaseMigration
             database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `uncompressArchive` INTEGER NOT NULL DEFAULT 0");
         }
     };
+
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_DownloadInfo_statusCode` ON `DownloadInfo` (`statusCode`)");
+        }
+    };
+
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `ArchivedDownload` (`id` TEXT NOT NULL, `dirPath` TEXT NOT NULL, `url` TEXT NOT NULL, `fileName` TEXT NOT NULL, `description` TEXT, `mimeType` TEXT, `totalBytes` INTEGER NOT NULL, `statusCode` INTEGER NOT NULL, `statusMsg` TEXT, `dateAdded` INTEGER NOT NULL, `userAgent` TEXT, `lastModify` INTEGER NOT NULL, `checksum` TEXT, PRIMARY KEY(`id`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_ArchivedDownload_url` ON `ArchivedDownload` (`url`)");
+        }
+    };
+
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `WrittenBlocks` (`infoId` TEXT NOT NULL, `blockSize` INTEGER NOT NULL, `totalBytes` INTEGER NOT NULL, `bits` BLOB NOT NULL, PRIMARY KEY(`infoId`), FOREIGN KEY(`infoId`) REFERENCES `DownloadInfo`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+        }
+    };
+
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `downloadedBytes` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `speed` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `activePieces` INTEGER NOT NULL DEFAULT 0");
+            /* Sum of (curBytes - piece start position), see DownloadInfo.pieceStartPos() */
+            database.execSQL("UPDATE `DownloadInfo` SET `downloadedBytes` = COALESCE((SELECT SUM(`curBytes` - (CASE WHEN `DownloadInfo`.`totalBytes` > 0 THEN `pieceIndex` * (`DownloadInfo`.`totalBytes` / `DownloadInfo`.`numPieces`) ELSE 0 END)) FROM `DownloadPiece` WHERE `infoId` = `DownloadInfo`.`id`), 0)");
+        }
+    };
+
+    static final Migration MIGRATION_10_11 = new Migration(10, 11) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `ThroughputHistory` (`infoId` TEXT NOT NULL, `lastSampleTime` INTEGER NOT NULL, `samples` BLOB NOT NULL, PRIMARY KEY(`infoId`), FOREIGN KEY(`infoId`) REFERENCES `DownloadInfo`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+        }
+    };
+
+    static final Migration MIGRATION_11_12 = new Migration(11, 12) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `urlHash` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `contentKey` TEXT");
+            database.execSQL("ALTER TABLE `ArchivedDownload` ADD COLUMN `urlHash` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `ArchivedDownload` ADD COLUMN `contentKey` TEXT");
+
+            /* The keys are computed in Java, see DownloadKeys */
+            try (Cursor c = database.query("SELECT `id`, `url`, `totalBytes`, " +
+                    "(SELECT `value` FROM `download_info_headers` WHERE `infoId` = `DownloadInfo`.`id` AND `name` = 'ETag') " +
+                    "FROM `DownloadInfo`")) {
+                while (c.moveToNext()) {
+                    String url = c.getString(1);
+                    ContentValues values = new ContentValues();
+                    values.put("urlHash", DownloadKeys.urlHash(url));
+                    values.put("contentKey", DownloadKeys.contentKey(url, c.getString(3), c.getLong(2)));
+                    database.update("DownloadInfo", SQLiteDatabase.CONFLICT_NONE,
+                            values, "id = ?", new Object[]{c.getString(0)});
+                }
+            }
+            try (Cursor c = database.query("SELECT `id`, `url` FROM `ArchivedDownload`")) {
+                while (c.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    values.put("urlHash", DownloadKeys.urlHash(c.getString(1)));
+                    database.update("ArchivedDownload", SQLiteDatabase.CONFLICT_NONE,
+                            values, "id = ?", new Object[]{c.getString(0)});
+                }
+            }
+
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_DownloadInfo_urlHash` ON `DownloadInfo` (`urlHash`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_DownloadInfo_contentKey` ON `DownloadInfo` (`contentKey`)");
+            database.execSQL("DROP INDEX IF EXISTS `index_ArchivedDownload_url`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_ArchivedDownload_urlHash` ON `ArchivedDownload` (`urlHash`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_ArchivedDownload_contentKey` ON `ArchivedDownload` (`contentKey`)");
+        }
+    };
+
+    static final Migration MIGRATION_12_13 = new Migration(12, 13) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `QueuedDownload` (`infoId` TEXT NOT NULL, `priority` INTEGER NOT NULL, `position` INTEGER NOT NULL, PRIMARY KEY(`infoId`), FOREIGN KEY(`infoId`) REFERENCES `DownloadInfo`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+        }
+    };
+
+    static final Migration MIGRATION_13_14 = new Migration(13, 14) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            /* Add `deadline` and `remainingBytes` columns to `QueuedDownload` table */
+            database.execSQL("ALTER TABLE `QueuedDownload` ADD COLUMN `deadline` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `QueuedDownload` ADD COLUMN `remainingBytes` INTEGER NOT NULL DEFAULT -1");
+        }
+    };
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.storage;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.room.RoomDatabase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * Runs all database writes on one thread, in the order of submission.
+ * Operations queued while the previous batch was running are merged
+ * into one transaction, so concurrent writers (piece threads, download
+ * threads, workers, UI) don't contend for the SQLite write lock and
+ * pay for one commit instead of many. If an operation of the batch
+ * fails, the batch is rolled back and its operations are re-run one
+ * by one, so that the failure doesn't affect the others.
+ *
+ * The caller blocks until its operation is committed.
+ */
+
+public class DatabaseWriter
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = DatabaseWriter.class.getSimpleName();
+
+    private static final int MAX_BATCH_SIZE = 256;
+    /* Passive WAL checkpoint when idle after this number of batches */
+    private static final int CHECKPOINT_INTERVAL = 500;
+
+    private final RoomDatabase db;
+    private final LinkedBlockingQueue<Op<?>> queue = new LinkedBlockingQueue<>();
+    private final Stats stats = new Stats();
+    private volatile Thread thread;
+    private int batchesSinceCheckpoint;
+
+    public DatabaseWriter(@NonNull RoomDatabase db)
+    {
+        this.db = db;
+    }
+
+    public void execute(@NonNull Runnable op)
+    {
+        submit(() -> {
+            op.run();
+            return null;
+        });
+    }
+
+    public <T> T submit(@NonNull Callable<T> callable)
+    {
+        /* Nested write, e.g. from a callback of another write */
+        if (Thread.currentThread() == thread)
+            return callOrThrow(callable);
+
+        Op<T> op = new Op<>(callable);
+        startIfNeeded();
+        queue.add(op);
+
+        return op.await();
+    }
+
+    public Stats getStats()
+    {
+        synchronized (stats) {
+            return new Stats(stats);
+        }
+    }
+
+    private synchronized void startIfNeeded()
+    {
+        if (thread != null)
+            return;
+
+        thread = new Thread(this::loop, "DatabaseWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop()
+    {
+        ArrayList<Op<?>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            runBatch(batch);
+            batch.clear();
+
+            if (queue.isEmpty() && ++batchesSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                batchesSinceCheckpoint = 0;
+                checkpoint();
+            }
+        }
+    }
+
+    private void runBatch(ArrayList<Op<?>> batch)
+    {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        long[] lockTime = new long[1];
+        boolean success;
+        RuntimeException commitError = null;
+        try {
+            success = db.runInTransaction(() -> {
+                /* The transaction begins after the write lock is acquired */
+                lockTime[0] = SystemClock.elapsedRealtimeNanos();
+                for (Op<?> op : batch) {
+                    if (!op.run())
+                        throw new RollbackException();
+                }
+                return true;
+            });
+
+        } catch (RollbackException e) {
+            success = false;
+        } catch (RuntimeException e) {
+            /* E.g. failed commit */
+            Log.e(TAG, Log.getStackTraceString(e));
+            commitError = e;
+            success = false;
+        }
+
+        if (!success && batch.size() == 1) {
+            if (commitError != null)
+                batch.get(0).setError(commitError);
+
+        } else if (!success) {
+            for (Op<?> op : batch) {
+                try {
+                    /* Throw to roll back the partial writes of the failed operation */
+                    db.runInTransaction(() -> {
+                        if (!op.run())
+                            throw op.error;
+                    });
+                } catch (RuntimeException e) {
+                    op.setError(e);
+                }
+            }
+        }
+        long endTime = SystemClock.elapsedRealtimeNanos();
+        for (Op<?> op : batch)
+            op.complete();
+
+        synchronized (stats) {
+            stats.batches++;
+            stats.ops += batch.size();
+            if (!success)
+                stats.rollbacks++;
+            if (lockTime[0] > 0) {
+                long lockWait = lockTime[0] - startTime;
+                stats.lockWaitNanos += lockWait;
+                stats.maxLockWaitNanos = Math.max(stats.maxLockWaitNanos, lockWait);
+            }
+            for (Op<?> op : batch) {
+                long queueWait = startTime - op.submitTime;
+                stats.queueWaitNanos += queueWait;
+                stats.maxQueueWaitNanos = Math.max(stats.maxQueueWaitNanos, queueWait);
+            }
+            stats.writeNanos += endTime - startTime;
+        }
+    }
+
+    /*
+     * Move the WAL content to the database file without blocking
+     * readers, so that the WAL doesn't grow under steady writes
+     */
+
+    private void checkpoint()
+    {
+        try (Cursor c = db.getOpenHelper().getWritableDatabase()
+                .query("PRAGMA wal_checkpoint(PASSIVE)")) {
+            c.moveToFirst();
+
+        } catch (Exception e) {
+            Log.w(TAG, "WAL checkpoint failed: " + Log.getStackTraceString(e));
+        }
+    }
+
+    private static <T> T callOrThrow(Callable<T> callable)
+    {
+        try {
+            return callable.call();
+
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class RollbackException extends RuntimeException
+    {
+    }
+
+    private static class Op<T>
+    {
+        final Callable<T> callable;
+        final long submitTime = SystemClock.elapsedRealtimeNanos();
+        final CountDownLatch done = new CountDownLatch(1);
+        T result;
+        RuntimeException error;
+
+        Op(Callable<T> callable)
+        {
+            this.callable = callable;
+        }
+
+        /*
+         * Returns false on error
+         */
+
+        boolean run()
+        {
+            try {
+                result = callOrThrow(callable);
+                error = null;
+
+            } catch (RuntimeException e) {
+                result = null;
+                error = e;
+            }
+
+            return error == null;
+        }
+
+        void setError(RuntimeException e)
+        {
+            result = null;
+            error = e;
+        }
+
+        void complete()
+        {
+            done.countDown();
+        }
+
+        T await()
+        {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    /* The write is already queued, wait for it anyway */
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (error != null)
+                throw error;
+
+            return result;
+        }
+    }
+
+    public static class Stats
+    {
+        public long ops;
+        public long batches;
+        public long rollbacks;
+        /* Time from submission to the start of the batch */
+        public long queueWaitNanos;
+        public long maxQueueWaitNanos;
+        /* Time to acquire the SQLite write lock (begin transaction) */
+        public long lockWaitNanos;
+        public long maxLockWaitNanos;
+        public long writeNanos;
+
+        Stats()
+        {
+        }
+
+        Stats(Stats other)
+        {
+            ops = other.ops;
+            batches = other.batches;
+            rollbacks = other.rollbacks;
+            queueWaitNanos = other.queueWaitNanos;
+            maxQueueWaitNanos = other.maxQueueWaitNanos;
+            lockWaitNanos = other.lockWaitNanos;
+            maxLockWaitNanos = other.maxLockWaitNanos;
+            writeNanos = other.writeNanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            return "Stats{" +
+                    "ops=" + ops +
+                    ", batches=" + batches +
+                    ", rollbacks=" + rollbacks +
+                    ", avgQueueWaitMs=" + (ops == 0 ? 0 : queueWaitNanos / ops / 1000000.0) +
+                    ", maxQueueWaitMs=" + maxQueueWaitNanos / 1000000.0 +
+                    ", avgLockWaitMs=" + (batches == 0 ? 0 : lockWaitNanos / batches / 1000000.0) +
+                    ", maxLockWaitMs=" + maxLockWaitNanos / 1000000.0 +
+                    ", writeMs=" + writeNanos / 1000000.0 +
+                    '}';
+        }
+    }
+}
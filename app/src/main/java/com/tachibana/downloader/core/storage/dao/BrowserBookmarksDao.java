@@ -51,4 +51,10 @@ public interface BrowserBookmarksDao
 
     @Query("SELECT * FROM BrowserBookmark WHERE url = :url")
     Single<BrowserBookmark> getByUrlSingle(String url);
+
+    @Query("SELECT * FROM BrowserBookmark WHERE url > :afterUrl ORDER BY url LIMIT :limit")
+    List<BrowserBookmark> getPage(String afterUrl, int limit);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void importBookmarks(List<BrowserBookmark> bookmarks);
 }
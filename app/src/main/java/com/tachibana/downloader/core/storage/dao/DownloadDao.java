@@ -28,11 +28,21 @@ import androidx.room.Query;
 import androidx.room.Transaction;
 import androidx.room.Update;
 
+import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.ArchivedDownload;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadNotifyInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.ScheduleInfo;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
+import com.tachibana.downloader.core.model.data.entity.WrittenBlocks;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -44,12 +54,62 @@ public abstract class DownloadDao
 {
     private static final String QUERY_GET_ALL_INFO = "SELECT * FROM DownloadInfo";
     private static final String QUERY_GET_INFO_BY_ID = "SELECT * FROM DownloadInfo WHERE id = :id";
-    private static final String QUERY_DELETE_INFO_BY_URL = "DELETE FROM DownloadInfo WHERE url = :url";
-    private static final String QUERY_DELETE_PIECES = "DELETE FROM DownloadPiece WHERE infoId = :infoId";
+    private static final String QUERY_DELETE_INFO_BY_URL_HASH = "DELETE FROM DownloadInfo WHERE urlHash = :urlHash";
+    /* Columns of DownloadInfo, in the same order as ARCHIVED_AS_INFO_COLUMNS */
+    private static final String INFO_COLUMNS = "id, dirPath, url, fileName, description, mimeType, totalBytes, numPieces, statusCode, unmeteredConnectionsOnly, retry, partialSupport, statusMsg, dateAdded, visibility, hasMetadata, userAgent, numFailed, retryAfter, lastModify, checksum, uncompressArchive, downloadedBytes, speed, activePieces, urlHash, contentKey";
+    /* Columns of ArchivedDownload, missing DownloadInfo columns are replaced with defaults */
+    private static final String ARCHIVED_AS_INFO_COLUMNS = "id, dirPath, url, fileName, description, mimeType, totalBytes, 1 AS numPieces, statusCode, 0 AS unmeteredConnectionsOnly, 1 AS retry, 1 AS partialSupport, statusMsg, dateAdded, " + DownloadInfo.VISIBILITY_VISIBLE_NOTIFY_COMPLETED + " AS visibility, 1 AS hasMetadata, userAgent, 0 AS numFailed, 0 AS retryAfter, lastModify, checksum, 0 AS uncompressArchive, MAX(totalBytes, 0) AS downloadedBytes, 0 AS speed, 0 AS activePieces, urlHash, contentKey";
+    private static final String ARCHIVED_COLUMNS = "id, dirPath, url, fileName, description, mimeType, totalBytes, statusCode, statusMsg, dateAdded, userAgent, lastModify, checksum, urlHash, contentKey";
+    /* See StatusCode.isStatusCompleted() */
+    private static final String WHERE_COMPLETED = "(statusCode >= 200 AND statusCode < 300) OR (statusCode >= 400 AND statusCode < 600)";
+    private static final String WHERE_SUCCESS = "statusCode = " + StatusCode.STATUS_SUCCESS;
+    private static final String QUERY_GET_INFO_BY_IDS = "SELECT " + INFO_COLUMNS + " FROM DownloadInfo WHERE id IN (:ids) UNION ALL SELECT " + ARCHIVED_AS_INFO_COLUMNS + " FROM ArchivedDownload WHERE id IN (:ids)";
+    private static final String QUERY_DELETE_INFO_BY_IDS = "DELETE FROM DownloadInfo WHERE id IN (:ids)";
+    private static final String QUERY_DELETE_ARCHIVED_BY_IDS = "DELETE FROM ArchivedDownload WHERE id IN (:ids)";
+    private static final String QUERY_DELETE_ARCHIVED_BY_URL_HASH = "DELETE FROM ArchivedDownload WHERE urlHash = :urlHash";
+    private static final String QUERY_URL_HASH_EXISTS = "SELECT EXISTS(SELECT 1 FROM DownloadInfo WHERE urlHash = :urlHash) OR EXISTS(SELECT 1 FROM ArchivedDownload WHERE urlHash = :urlHash)";
+    private static final String QUERY_UPDATE_STATUS_BY_IDS = "UPDATE DownloadInfo SET statusCode = :statusCode, statusMsg = :statusMsg WHERE id IN (:ids)";
+    private static final String QUERY_GET_SCHEDULE_INFO_BY_STATUS = "SELECT id, statusCode, unmeteredConnectionsOnly, numFailed, retryAfter, lastModify FROM DownloadInfo WHERE statusCode IN (:statusCodes)";
+    private static final String QUERY_GET_SCHEDULE_INFO_BY_IDS = "SELECT id, statusCode, unmeteredConnectionsOnly, numFailed, retryAfter, lastModify FROM DownloadInfo WHERE id IN (:ids)";
+    private static final String QUERY_GET_FINISHED_INFO = "SELECT " + INFO_COLUMNS + " FROM DownloadInfo WHERE " + WHERE_COMPLETED + " UNION ALL SELECT " + ARCHIVED_AS_INFO_COLUMNS + " FROM ArchivedDownload";
+    /* The error message is only needed for failed downloads, see StatusCode.isStatusError() */
+    private static final String ERROR_MSG = "CASE WHEN statusCode >= 400 AND statusCode < 600 THEN statusMsg END AS statusMsg";
+    /* Columns of DownloadListInfo, in the same order as ARCHIVED_AS_LIST_COLUMNS */
+    private static final String LIST_COLUMNS = "id, dirPath, url, fileName, description, mimeType, totalBytes, statusCode, " + ERROR_MSG + ", dateAdded, downloadedBytes, speed";
+    private static final String ARCHIVED_AS_LIST_COLUMNS = "id, dirPath, url, fileName, description, mimeType, totalBytes, statusCode, " + ERROR_MSG + ", dateAdded, MAX(totalBytes, 0) AS downloadedBytes, 0 AS speed";
+    private static final String QUERY_GET_LIST_INFO = "SELECT " + LIST_COLUMNS + " FROM DownloadInfo";
+    private static final String QUERY_GET_FINISHED_LIST_INFO = "SELECT " + LIST_COLUMNS + " FROM DownloadInfo WHERE " + WHERE_COMPLETED + " UNION ALL SELECT " + ARCHIVED_AS_LIST_COLUMNS + " FROM ArchivedDownload";
+    private static final String QUERY_GET_NOTIFY_INFO = "SELECT id, dirPath, fileName, mimeType, totalBytes, statusCode, " + ERROR_MSG + ", visibility, downloadedBytes, speed FROM DownloadInfo";
+    private static final String QUERY_GET_COMPLETED_BY_CONTENT_KEY = "SELECT " + INFO_COLUMNS + " FROM DownloadInfo WHERE contentKey = :contentKey AND " + WHERE_SUCCESS + " UNION ALL SELECT " + ARCHIVED_AS_INFO_COLUMNS + " FROM ArchivedDownload WHERE contentKey = :contentKey";
+    private static final String QUERY_GET_INFO_BY_ID_WITH_ARCHIVED = "SELECT " + INFO_COLUMNS + " FROM DownloadInfo WHERE id = :id UNION ALL SELECT " + ARCHIVED_AS_INFO_COLUMNS + " FROM ArchivedDownload WHERE id = :id";
+    private static final String QUERY_GET_ARCHIVED_BY_ID = "SELECT * FROM ArchivedDownload WHERE id = :id";
+    private static final String QUERY_DELETE_ARCHIVED_BY_ID = "DELETE FROM ArchivedDownload WHERE id = :id";
+    private static final String QUERY_ARCHIVE_FINISHED_BEFORE = "INSERT OR REPLACE INTO ArchivedDownload (" + ARCHIVED_COLUMNS + ") SELECT " + ARCHIVED_COLUMNS + " FROM DownloadInfo WHERE " + WHERE_SUCCESS + " AND lastModify < :lastModifyBefore";
+    private static final String QUERY_DELETE_FINISHED_BEFORE = "DELETE FROM DownloadInfo WHERE " + WHERE_SUCCESS + " AND lastModify < :lastModifyBefore";
+    private static final String SELECT_FINISHED_TO_KEEP = "SELECT id FROM DownloadInfo WHERE " + WHERE_SUCCESS + " ORDER BY lastModify DESC LIMIT :keepCount";
+    private static final String QUERY_ARCHIVE_FINISHED_EXCEEDING = "INSERT OR REPLACE INTO ArchivedDownload (" + ARCHIVED_COLUMNS + ") SELECT " + ARCHIVED_COLUMNS + " FROM DownloadInfo WHERE " + WHERE_SUCCESS + " AND id NOT IN (" + SELECT_FINISHED_TO_KEEP + ")";
+    private static final String QUERY_DELETE_FINISHED_EXCEEDING = "DELETE FROM DownloadInfo WHERE " + WHERE_SUCCESS + " AND id NOT IN (" + SELECT_FINISHED_TO_KEEP + ")";
+    private static final String QUERY_UPDATE_INFO_STATUS = "UPDATE DownloadInfo SET statusCode = :statusCode, statusMsg = :statusMsg, visibility = :visibility, lastModify = :lastModify WHERE id = :id";
+    private static final String QUERY_UPDATE_INFO_PROGRESS = "UPDATE DownloadInfo SET downloadedBytes = :downloadedBytes, speed = :speed, activePieces = :activePieces WHERE id = :id";
+    private static final String QUERY_UPDATE_INFO_VISIBILITY = "UPDATE DownloadInfo SET visibility = :visibility WHERE id = :id";
+    private static final String QUERY_UPDATE_INFO_PARAMS = "UPDATE DownloadInfo SET description = COALESCE(:description, description), retry = COALESCE(:retry, retry), checksum = COALESCE(:checksum, checksum) WHERE id = :id";
+    private static final String QUERY_DELETE_PIECES_FROM_INDEX = "DELETE FROM DownloadPiece WHERE infoId = :infoId AND pieceIndex >= :fromIndex";
+    private static final String QUERY_UPDATE_PIECE_PROGRESS = "UPDATE DownloadPiece SET curBytes = :curBytes, speed = :speed WHERE pieceIndex = :index AND infoId = :infoId";
+    private static final String QUERY_UPDATE_PIECE_STATUS = "UPDATE DownloadPiece SET statusCode = :statusCode, statusMsg = :statusMsg, curBytes = :curBytes, speed = :speed WHERE pieceIndex = :index AND infoId = :infoId";
     private static final String QUERY_GET_PIECES_BY_ID = "SELECT * FROM DownloadPiece WHERE infoId = :infoId";
     private static final String QUERY_GET_PIECES_BY_ID_SORTED = "SELECT * FROM DownloadPiece WHERE infoId = :infoId ORDER BY statusCode ASC";
     private static final String QUERY_GET_PIECE = "SELECT * FROM DownloadPiece WHERE pieceIndex = :index AND infoId = :infoId";
     private static final String QUERY_GET_HEADERS = "SELECT * FROM download_info_headers WHERE infoId = :infoId";
+    private static final String QUERY_GET_WRITTEN_BLOCKS = "SELECT * FROM WrittenBlocks WHERE infoId = :infoId";
+    private static final String QUERY_DELETE_WRITTEN_BLOCKS = "DELETE FROM WrittenBlocks WHERE infoId = :infoId";
+    private static final String QUERY_GET_THROUGHPUT_HISTORY = "SELECT * FROM ThroughputHistory WHERE infoId = :infoId";
+    private static final String QUERY_GET_QUEUED = "SELECT * FROM QueuedDownload";
+    private static final String QUERY_DELETE_QUEUED_BY_IDS = "DELETE FROM QueuedDownload WHERE infoId IN (:ids)";
+    private static final String QUERY_INFO_EXISTS = "SELECT EXISTS(SELECT 1 FROM DownloadInfo WHERE id = :id)";
+    private static final String QUERY_GET_INFO_PAGE = "SELECT * FROM DownloadInfo WHERE id > :afterId ORDER BY id LIMIT :limit";
+    private static final String QUERY_GET_ARCHIVED_PAGE = "SELECT * FROM ArchivedDownload WHERE id > :afterId ORDER BY id LIMIT :limit";
+
+    private static final int MAX_IDS_PER_QUERY = 500;
 
     @Transaction
     public void addInfo(DownloadInfo info)
@@ -66,28 +126,270 @@ public abstract class DownloadDao
             addHeaders(headers);
     }
 
+    /*
+     * Duplicates are found by the normalized URL hash (see DownloadKeys)
+     */
+
     @Transaction
     public void replaceInfoByUrl(DownloadInfo info, List<Header> headers)
     {
-        deleteInfoByUrl(info.url);
+        deleteInfoByUrlHash(info.urlHash);
+        deleteArchivedByUrlHash(info.urlHash);
         addInfo(info, headers);
     }
 
     @Delete
     public abstract void deleteInfo(DownloadInfo info);
 
-    @Query(QUERY_DELETE_INFO_BY_URL)
-    public abstract void deleteInfoByUrl(String url);
+    /*
+     * SQLite limits the number of bound parameters in one statement
+     * (999 in older versions), so large id sets are split into chunks
+     * and processed inside one transaction
+     */
+
+    @Transaction
+    public void deleteInfoByIds(List<UUID> ids)
+    {
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+            List<UUID> chunk = ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size()));
+            deleteInfoByIdsChunk(chunk);
+            deleteArchivedByIdsChunk(chunk);
+        }
+    }
+
+    @Transaction
+    public void updateStatusByIds(List<UUID> ids, int statusCode, String statusMsg)
+    {
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY)
+            updateStatusByIdsChunk(ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size())),
+                    statusCode, statusMsg);
+    }
+
+    @Transaction
+    public List<DownloadInfo> getInfoByIds(List<UUID> ids)
+    {
+        ArrayList<DownloadInfo> infoList = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY)
+            infoList.addAll(getInfoByIdsChunk(ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size()))));
+
+        return infoList;
+    }
+
+    @Query(QUERY_DELETE_INFO_BY_IDS)
+    public abstract void deleteInfoByIdsChunk(List<UUID> ids);
+
+    @Query(QUERY_DELETE_ARCHIVED_BY_IDS)
+    public abstract void deleteArchivedByIdsChunk(List<UUID> ids);
+
+    @Query(QUERY_DELETE_ARCHIVED_BY_URL_HASH)
+    public abstract void deleteArchivedByUrlHash(long urlHash);
+
+    @Query(QUERY_URL_HASH_EXISTS)
+    public abstract boolean urlHashExists(long urlHash);
+
+    @Query(QUERY_UPDATE_STATUS_BY_IDS)
+    public abstract void updateStatusByIdsChunk(List<UUID> ids, int statusCode, String statusMsg);
+
+    @Query(QUERY_GET_INFO_BY_IDS)
+    public abstract List<DownloadInfo> getInfoByIdsChunk(List<UUID> ids);
+
+    @Query(QUERY_GET_FINISHED_INFO)
+    public abstract List<DownloadInfo> getFinishedInfo();
+
+    @Query(QUERY_GET_LIST_INFO)
+    public abstract List<DownloadListInfo> getListInfo();
+
+    /*
+     * Finished downloads along with the archived ones
+     */
+
+    @Query(QUERY_GET_FINISHED_LIST_INFO)
+    public abstract List<DownloadListInfo> getFinishedListInfo();
+
+    @Query(QUERY_GET_NOTIFY_INFO)
+    public abstract List<DownloadNotifyInfo> getNotifyInfo();
+
+    /*
+     * Successfully finished downloads with the same content, including archived
+     */
+
+    @Query(QUERY_GET_COMPLETED_BY_CONTENT_KEY)
+    public abstract List<DownloadInfo> getCompletedByContentKey(String contentKey);
+
+    @Query(QUERY_GET_INFO_BY_ID_WITH_ARCHIVED)
+    public abstract Flowable<List<DownloadInfo>> observeInfoByIdWithArchived(UUID id);
+
+    @Query(QUERY_GET_INFO_BY_ID_WITH_ARCHIVED)
+    public abstract Single<List<DownloadInfo>> getInfoByIdWithArchivedSingle(UUID id);
+
+    /*
+     * Move successfully finished downloads to the archive table.
+     * The downloads that are older than lastModifyBefore are moved, as well as
+     * the downloads that exceed keepCount. Zero or negative value disables
+     * the corresponding limit. Pieces and headers are deleted by cascade
+     */
+
+    @Transaction
+    public void archiveFinished(long lastModifyBefore, int keepCount)
+    {
+        if (lastModifyBefore > 0) {
+            archiveFinishedBefore(lastModifyBefore);
+            deleteFinishedBefore(lastModifyBefore);
+        }
+        if (keepCount > 0) {
+            archiveFinishedExceeding(keepCount);
+            deleteFinishedExceeding(keepCount);
+        }
+    }
+
+    @Query(QUERY_ARCHIVE_FINISHED_BEFORE)
+    public abstract void archiveFinishedBefore(long lastModifyBefore);
+
+    @Query(QUERY_DELETE_FINISHED_BEFORE)
+    public abstract void deleteFinishedBefore(long lastModifyBefore);
+
+    @Query(QUERY_ARCHIVE_FINISHED_EXCEEDING)
+    public abstract void archiveFinishedExceeding(int keepCount);
+
+    @Query(QUERY_DELETE_FINISHED_EXCEEDING)
+    public abstract void deleteFinishedExceeding(int keepCount);
+
+    /*
+     * Move the archived download back to DownloadInfo, e.g. to change its params.
+     * Pieces are restored as finished
+     */
+
+    @Transaction
+    public void unarchive(UUID id)
+    {
+        ArchivedDownload archived = getArchivedById(id);
+        if (archived == null)
+            return;
+
+        DownloadInfo info = new DownloadInfo(archived.dirPath, archived.url, archived.fileName);
+        info.id = archived.id;
+        info.description = archived.description;
+        info.mimeType = archived.mimeType;
+        info.totalBytes = archived.totalBytes;
+        info.statusCode = archived.statusCode;
+        info.statusMsg = archived.statusMsg;
+        info.dateAdded = archived.dateAdded;
+        info.userAgent = archived.userAgent;
+        info.lastModify = archived.lastModify;
+        info.checksum = archived.checksum;
+        info.urlHash = archived.urlHash;
+        info.contentKey = archived.contentKey;
+        info.downloadedBytes = Math.max(archived.totalBytes, 0);
+
+        List<DownloadPiece> pieces = info.makePieces();
+        for (DownloadPiece piece : pieces) {
+            piece.statusCode = archived.statusCode;
+            if (piece.size > 0)
+                piece.curBytes = info.pieceEndPos(piece) + 1;
+        }
+
+        deleteArchivedById(id);
+        add_info(info);
+        addPieces(pieces);
+    }
+
+    @Query(QUERY_GET_ARCHIVED_BY_ID)
+    public abstract ArchivedDownload getArchivedById(UUID id);
+
+    @Query(QUERY_DELETE_ARCHIVED_BY_ID)
+    public abstract void deleteArchivedById(UUID id);
+
+    @Query(QUERY_GET_SCHEDULE_INFO_BY_STATUS)
+    public abstract List<ScheduleInfo> getScheduleInfoByStatus(List<Integer> statusCodes);
+
+    @Transaction
+    public List<ScheduleInfo> getScheduleInfoByIds(List<UUID> ids)
+    {
+        ArrayList<ScheduleInfo> infoList = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY)
+            infoList.addAll(getScheduleInfoByIdsChunk(ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size()))));
+
+        return infoList;
+    }
+
+    @Query(QUERY_GET_SCHEDULE_INFO_BY_IDS)
+    public abstract List<ScheduleInfo> getScheduleInfoByIdsChunk(List<UUID> ids);
+
+    @Query(QUERY_DELETE_INFO_BY_URL_HASH)
+    public abstract void deleteInfoByUrlHash(long urlHash);
 
     @Update
     public abstract void updateInfo(DownloadInfo info);
 
+    /*
+     * Status transition: writes only the columns that change
+     * when the download starts, stops or finishes
+     */
+
+    @Query(QUERY_UPDATE_INFO_STATUS)
+    public abstract int updateInfoStatus(UUID id, int statusCode, String statusMsg,
+                                         int visibility, long lastModify);
+
+    @Query(QUERY_UPDATE_INFO_PROGRESS)
+    public abstract int updateInfoProgress(UUID id, long downloadedBytes, long speed, int activePieces);
+
+    /*
+     * Checkpoint of the running download: progress of the changed pieces
+     * along with the aggregate progress. Returns the number of updated
+     * DownloadInfo rows, i.e. zero if the download is deleted
+     */
+
+    @Transaction
+    public int updateProgress(UUID id, List<DownloadPiece> pieces,
+                              long downloadedBytes, long speed, int activePieces)
+    {
+        updatePiecesProgress(pieces);
+
+        return updateInfoProgress(id, downloadedBytes, speed, activePieces);
+    }
+
+    @Query(QUERY_UPDATE_INFO_VISIBILITY)
+    public abstract int updateInfoVisibility(UUID id, int visibility);
+
+    /*
+     * Null parameters are left as is
+     */
+
+    @Query(QUERY_UPDATE_INFO_PARAMS)
+    public abstract int updateInfoParams(UUID id, String description, Boolean retry, String checksum);
+
+    /*
+     * Rebuild pieces in place: only the pieces that actually differ
+     * from the new layout are updated, missing ones are inserted
+     * and the redundant ones are deleted
+     */
+
     @Transaction
     public void updateInfoWithPieces(DownloadInfo info)
     {
         updateInfo(info);
-        deletePieces(info.id);
-        addPieces(info.makePieces());
+
+        List<DownloadPiece> newPieces = info.makePieces();
+        DownloadPiece[] oldPieces = new DownloadPiece[newPieces.size()];
+        for (DownloadPiece piece : getPiecesById(info.id)) {
+            if (piece.index < oldPieces.length)
+                oldPieces[piece.index] = piece;
+        }
+
+        ArrayList<DownloadPiece> changedPieces = new ArrayList<>();
+        ArrayList<DownloadPiece> addedPieces = new ArrayList<>();
+        for (DownloadPiece piece : newPieces) {
+            DownloadPiece oldPiece = oldPieces[piece.index];
+            if (oldPiece == null)
+                addedPieces.add(piece);
+            else if (!oldPiece.equals(piece))
+                changedPieces.add(piece);
+        }
+        if (!changedPieces.isEmpty())
+            updatePieces(changedPieces);
+        if (!addedPieces.isEmpty())
+            addPieces(addedPieces);
+        deletePiecesFromIndex(info.id, newPieces.size());
     }
 
     @Query(QUERY_GET_ALL_INFO)
@@ -99,7 +401,7 @@ public abstract class DownloadDao
 
     @Transaction
     @Query(QUERY_GET_INFO_BY_ID)
-    public abstract Flowable<InfoAndPieces> observeInfoAndPiecesById(UUID id);
+    public abstract Flowable<List<InfoAndPieces>> observeInfoAndPiecesById(UUID id);
 
     @Transaction
     @Query(QUERY_GET_ALL_INFO)
@@ -114,12 +416,102 @@ public abstract class DownloadDao
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     public abstract void addPieces(List<DownloadPiece> pieces);
 
-    @Query(QUERY_DELETE_PIECES)
-    public abstract void deletePieces(UUID infoId);
+    @Query(QUERY_DELETE_PIECES_FROM_INDEX)
+    public abstract void deletePiecesFromIndex(UUID infoId, int fromIndex);
 
     @Update
     public abstract int updatePiece(DownloadPiece piece);
 
+    @Update
+    public abstract int updatePieces(List<DownloadPiece> pieces);
+
+    @Query(QUERY_UPDATE_PIECE_PROGRESS)
+    public abstract int updatePieceProgress(int index, UUID infoId, long curBytes, long speed);
+
+    /*
+     * Write progress of several pieces in one transaction.
+     * Returns the number of updated rows
+     */
+
+    @Transaction
+    public int updatePiecesProgress(List<DownloadPiece> pieces)
+    {
+        int updated = 0;
+        for (DownloadPiece piece : pieces)
+            updated += updatePieceProgress(piece.index, piece.infoId, piece.curBytes, piece.speed);
+
+        return updated;
+    }
+
+    @Query(QUERY_GET_WRITTEN_BLOCKS)
+    public abstract WrittenBlocks getWrittenBlocks(UUID infoId);
+
+    /*
+     * The download may be already deleted, don't violate the foreign key
+     */
+
+    @Transaction
+    public void updateWrittenBlocks(WrittenBlocks blocks)
+    {
+        if (getInfoById(blocks.infoId) != null)
+            addWrittenBlocks(blocks);
+    }
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public abstract void addWrittenBlocks(WrittenBlocks blocks);
+
+    @Query(QUERY_DELETE_WRITTEN_BLOCKS)
+    public abstract void deleteWrittenBlocks(UUID infoId);
+
+    @Query(QUERY_GET_THROUGHPUT_HISTORY)
+    public abstract ThroughputHistory getThroughputHistory(UUID infoId);
+
+    @Transaction
+    public void updateThroughputHistory(ThroughputHistory history)
+    {
+        if (getInfoById(history.infoId) != null)
+            addThroughputHistory(history);
+    }
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public abstract void addThroughputHistory(ThroughputHistory history);
+
+    @Query(QUERY_GET_QUEUED)
+    public abstract List<QueuedDownload> getQueued();
+
+    /*
+     * Skip already deleted downloads, don't violate the foreign key
+     */
+
+    @Transaction
+    public void updateQueued(List<QueuedDownload> downloads)
+    {
+        for (QueuedDownload download : downloads) {
+            if (infoExists(download.infoId))
+                addQueued(download);
+        }
+    }
+
+    @Query(QUERY_INFO_EXISTS)
+    public abstract boolean infoExists(UUID id);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public abstract void addQueued(QueuedDownload download);
+
+    @Transaction
+    public void deleteQueued(List<UUID> ids)
+    {
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY)
+            deleteQueuedChunk(ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size())));
+    }
+
+    @Query(QUERY_DELETE_QUEUED_BY_IDS)
+    public abstract void deleteQueuedChunk(List<UUID> ids);
+
+    @Query(QUERY_UPDATE_PIECE_STATUS)
+    public abstract int updatePieceStatus(int index, UUID infoId, int statusCode,
+                                          String statusMsg, long curBytes, long speed);
+
     @Query(QUERY_GET_PIECES_BY_ID)
     public abstract List<DownloadPiece> getPiecesById(UUID infoId);
 
@@ -136,8 +528,96 @@ public abstract class DownloadDao
     public abstract List<Header> getHeadersById(UUID infoId);
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    public abstract void addHeader(Header header);
+    public abstract long addHeader(Header header);
+
+    @Delete
+    public abstract void deleteHeader(Header header);
 
     @Insert
     public abstract void add_info(DownloadInfo info);
+
+    /*
+     * Keyset pagination: unlike OFFSET, every page costs
+     * the same regardless of its position in the table
+     */
+
+    @Query(QUERY_GET_INFO_PAGE)
+    public abstract List<DownloadInfo> getInfoPage(String afterId, int limit);
+
+    @Query(QUERY_GET_ARCHIVED_PAGE)
+    public abstract List<ArchivedDownload> getArchivedPage(String afterId, int limit);
+
+    /*
+     * Insert a batch of downloads with their pieces and headers.
+     * Downloads that already exist are left untouched,
+     * so importing the same backup twice is harmless.
+     * If skipDuplicateUrls is set, downloads with the same URL
+     * as the existing ones (see DownloadKeys) are skipped as well
+     */
+
+    @Transaction
+    public void importInfo(List<DownloadInfo> infoList,
+                           List<DownloadPiece> pieces,
+                           List<Header> headers,
+                           boolean skipDuplicateUrls)
+    {
+        HashSet<UUID> skipped = new HashSet<>();
+        List<DownloadInfo> addedInfo = infoList;
+        if (skipDuplicateUrls) {
+            addedInfo = new ArrayList<>(infoList.size());
+            HashSet<Long> batchUrls = new HashSet<>();
+            for (DownloadInfo info : infoList) {
+                if (!batchUrls.add(info.urlHash) || urlHashExists(info.urlHash))
+                    skipped.add(info.id);
+                else
+                    addedInfo.add(info);
+            }
+        }
+        long[] rowIds = addInfoListIgnore(addedInfo);
+        for (int i = 0; i < rowIds.length; i++) {
+            if (rowIds[i] == -1)
+                skipped.add(addedInfo.get(i).id);
+        }
+
+        ArrayList<DownloadPiece> addedPieces = new ArrayList<>(pieces.size());
+        for (DownloadPiece piece : pieces) {
+            if (!skipped.contains(piece.infoId))
+                addedPieces.add(piece);
+        }
+        ArrayList<Header> addedHeaders = new ArrayList<>(headers.size());
+        for (Header header : headers) {
+            if (!skipped.contains(header.infoId)) {
+                /* Let SQLite assign a new id */
+                header.id = 0;
+                addedHeaders.add(header);
+            }
+        }
+        if (!addedPieces.isEmpty())
+            addPieces(addedPieces);
+        if (!addedHeaders.isEmpty())
+            addHeaders(addedHeaders);
+    }
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    public abstract long[] addInfoListIgnore(List<DownloadInfo> infoList);
+
+    @Transaction
+    public void importArchived(List<ArchivedDownload> archived, boolean skipDuplicateUrls)
+    {
+        if (!skipDuplicateUrls) {
+            addArchivedListIgnore(archived);
+            return;
+        }
+
+        ArrayList<ArchivedDownload> added = new ArrayList<>(archived.size());
+        HashSet<Long> batchUrls = new HashSet<>();
+        for (ArchivedDownload download : archived) {
+            if (batchUrls.add(download.urlHash) && !urlHashExists(download.urlHash))
+                added.add(download);
+        }
+        addArchivedListIgnore(added);
+    }
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    public abstract void addArchivedListIgnore(List<ArchivedDownload> archived);
 }
\ No newline at end of file
@@ -45,4 +45,7 @@ public interface UserAgentDao
 
     @Query("SELECT * FROM UserAgent")
     LiveData<List<UserAgent>> observeAll();
+
+    @Query("SELECT * FROM UserAgent")
+    List<UserAgent> getAll();
 }
@@ -20,6 +20,7 @@
 
 package com.tachibana.downloader.core.system;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
@@ -88,4 +89,43 @@ public final class FileSystemContracts {
             return i;
         }
     }
+
+    /**
+     * An {@link ActivityResultContract} to prompt the user to create a new file,
+     * returning its {@link Uri}, or {@code null} if cancelled.
+     * <p>
+     * The input is the suggested file name.
+     */
+    public static class CreateFile extends ActivityResultContract<String, Uri> {
+        private final String mimeType;
+
+        public CreateFile(@NonNull String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        @NonNull
+        @Override
+        public Intent createIntent(@NonNull Context context, @NonNull String input) {
+            Intent i = new Intent(context, FileManagerDialog.class);
+            FileManagerConfig config = new FileManagerConfig(
+                    null,
+                    null,
+                    FileManagerConfig.SAVE_FILE_MODE
+            );
+            config.setFileName(input);
+            config.canReplace = true;
+            config.mimeType = mimeType;
+            i.putExtra(FileManagerDialog.TAG_CONFIG, config);
+            return i;
+        }
+
+        @Nullable
+        @Override
+        public Uri parseResult(int resultCode, @Nullable Intent intent) {
+            if (intent == null || resultCode != Activity.RESULT_OK) {
+                return null;
+            }
+            return intent.getData();
+        }
+    }
 }
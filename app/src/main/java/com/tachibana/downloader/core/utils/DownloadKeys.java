@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.exception.NormalizeUrlException;
+import com.tachibana.downloader.core.urlnormalizer.NormalizeUrl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Indexed keys for duplicate detection, stored along with the download:
+ *  - URL hash: the first 64 bits of SHA-256 of the normalized URL.
+ *    Equal hashes are treated as the same URL, collisions are negligible;
+ *  - content key: SHA-256 of the normalized URL, ETag and size. It's
+ *    known only if the server returns ETag and size, and identifies
+ *    the same version of the file.
+ */
+
+public class DownloadKeys
+{
+    public static long urlHash(@NonNull String url)
+    {
+        byte[] digest = sha256(normalize(url).getBytes(StandardCharsets.UTF_8));
+
+        return ByteBuffer.wrap(digest).getLong();
+    }
+
+    @Nullable
+    public static String contentKey(@NonNull String url, @Nullable String etag, long size)
+    {
+        if (etag == null || etag.isEmpty() || size <= 0)
+            return null;
+
+        String key = normalize(url) + '\n' + etag + '\n' + size;
+
+        return DigestUtils.makeSha256Hash(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Unparsable URL is compared as is
+     */
+
+    private static String normalize(String url)
+    {
+        try {
+            return NormalizeUrl.normalize(url);
+
+        } catch (NormalizeUrlException e) {
+            return url;
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes)
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+
+        } catch (NoSuchAlgorithmException e) {
+            /* Always available */
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -68,7 +68,8 @@ import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.filter.DownloadFilter;
 import com.tachibana.downloader.core.filter.DownloadFilterCollection;
-import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
+import com.tachibana.downloader.core.settings.DownloadSettings;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.sorting.DownloadSorting;
 import com.tachibana.downloader.core.sorting.DownloadSortingComparator;
@@ -205,16 +206,27 @@ public class Utils {
 
     public static boolean checkConnectivity(@NonNull SettingsRepository pref,
                                             @NonNull SystemFacade systemFacade) {
+        return checkConnectivity(pref.downloadSettings(), systemFacade);
+    }
+
+    public static boolean checkConnectivity(@NonNull DownloadSettings settings,
+                                            @NonNull SystemFacade systemFacade) {
         NetworkInfo netInfo = systemFacade.getActiveNetworkInfo();
 
-        return netInfo != null && netInfo.isConnected() && isNetworkTypeAllowed(pref, systemFacade);
+        return netInfo != null && netInfo.isConnected() &&
+                isNetworkTypeAllowed(settings.enableRoaming, settings.unmeteredConnectionsOnly, systemFacade);
     }
 
     public static boolean isNetworkTypeAllowed(@NonNull SettingsRepository pref,
                                                @NonNull SystemFacade systemFacade) {
-        boolean enableRoaming = pref.enableRoaming();
-        boolean unmeteredOnly = pref.unmeteredConnectionsOnly();
+        DownloadSettings settings = pref.downloadSettings();
 
+        return isNetworkTypeAllowed(settings.enableRoaming, settings.unmeteredConnectionsOnly, systemFacade);
+    }
+
+    public static boolean isNetworkTypeAllowed(boolean enableRoaming,
+                                               boolean unmeteredOnly,
+                                               @NonNull SystemFacade systemFacade) {
         boolean noUnmeteredOnly;
         boolean noRoaming;
 
@@ -362,7 +374,7 @@ public class Utils {
             if (item == null)
                 continue;
 
-            DownloadInfo info = item.info;
+            DownloadListInfo info = item.info;
             Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
             if (filePath != null && fs.exists(filePath)) {
                 if (Utils.isFileSystemPath(filePath))
@@ -433,7 +445,7 @@ public class Utils {
         }
     }
 
-    public static Intent createOpenFileIntent(@NonNull Context context, @NonNull DownloadInfo info) {
+    public static Intent createOpenFileIntent(@NonNull Context context, @NonNull DownloadListInfo info) {
         FileSystemFacade fs = SystemFacadeHelper.getFileSystemFacade(context);
         Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
         if (filePath != null && fs.exists(filePath)) {
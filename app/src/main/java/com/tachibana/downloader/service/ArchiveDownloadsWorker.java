@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018-2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2018-2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.service;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.tachibana.downloader.core.RepositoryHelper;
+import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.storage.DataRepository;
+
+/*
+ * Move old successfully completed downloads to the archive table.
+ * Used only by DownloadScheduler.
+ */
+
+public class ArchiveDownloadsWorker extends Worker
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = ArchiveDownloadsWorker.class.getSimpleName();
+
+    public ArchiveDownloadsWorker(@NonNull Context context, @NonNull WorkerParameters params)
+    {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork()
+    {
+        Context context = getApplicationContext();
+        DataRepository repo = RepositoryHelper.getDataRepository(context);
+        SettingsRepository pref = RepositoryHelper.getSettingsRepository(context);
+
+        int afterDays = pref.archiveAfterDays();
+        int keepCount = pref.archiveKeepCount();
+        if (afterDays <= 0 && keepCount <= 0)
+            return Result.success();
+
+        long lastModifyBefore = (afterDays > 0 ?
+                System.currentTimeMillis() - afterDays * DateUtils.DAY_IN_MILLIS :
+                0);
+        try {
+            repo.archiveFinished(lastModifyBefore, keepCount);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to archive downloads: " + Log.getStackTraceString(e));
+            return Result.failure();
+        }
+
+        return Result.success();
+    }
+}
@@ -33,6 +33,8 @@ import com.tachibana.downloader.core.model.DownloadEngine;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.storage.DataRepository;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /*
@@ -46,6 +48,15 @@ public class DeleteDownloadsWorker extends Worker
 
     public static final String TAG_ID_LIST = "id_list";
     public static final String TAG_WITH_FILE = "with_file";
+    public static final String TAG_ALL_FINISHED = "all_finished";
+    /* Progress data */
+    public static final String TAG_DELETED = "deleted";
+    public static final String TAG_TOTAL = "total";
+
+    /* Report progress at most every 1% of files to reduce WorkManager writes */
+    private static final int PROGRESS_STEPS = 100;
+
+    private int lastReportedProgress = -1;
 
     public DeleteDownloadsWorker(@NonNull Context context, @NonNull WorkerParameters params)
     {
@@ -61,33 +72,56 @@ public class DeleteDownloadsWorker extends Worker
         DataRepository repo = RepositoryHelper.getDataRepository(context);
 
         Data data = getInputData();
-        String[] idList = data.getStringArray(TAG_ID_LIST);
         boolean withFile = data.getBoolean(TAG_WITH_FILE, false);
+        if (data.getBoolean(TAG_ALL_FINISHED, false)) {
+            try {
+                engine.doDeleteAllFinishedDownloads(withFile, this::reportProgress);
+
+            } catch (Exception e) {
+                Log.e(TAG, Log.getStackTraceString(e));
+                return Result.failure();
+            }
+
+            return Result.success();
+        }
+
+        String[] idList = data.getStringArray(TAG_ID_LIST);
         if (idList == null)
             return Result.failure();
 
+        ArrayList<UUID> uuidList = new ArrayList<>(idList.length);
         for (String id : idList) {
             if (id == null)
                 continue;
-            UUID uuid;
             try {
-                uuid = UUID.fromString(id);
+                uuidList.add(UUID.fromString(id));
 
             } catch (IllegalArgumentException e) {
-                continue;
+                /* Ignore */
             }
+        }
 
-            DownloadInfo info = repo.getInfoById(uuid);
-            if (info == null)
-                continue;
-            try {
-                engine.doDeleteDownload(info, withFile);
+        try {
+            List<DownloadInfo> infoList = repo.getInfoByIds(uuidList);
+            engine.doDeleteDownloads(infoList, withFile, this::reportProgress);
 
-            } catch (Exception e) {
-                Log.e(TAG, Log.getStackTraceString(e));
-            }
+        } catch (Exception e) {
+            Log.e(TAG, Log.getStackTraceString(e));
         }
 
         return Result.success();
     }
+
+    private void reportProgress(int deleted, int total)
+    {
+        int progress = deleted * PROGRESS_STEPS / total;
+        if (progress == lastReportedProgress)
+            return;
+        lastReportedProgress = progress;
+
+        setProgressAsync(new Data.Builder()
+                .putInt(TAG_DELETED, deleted)
+                .putInt(TAG_TOTAL, total)
+                .build());
+    }
 }
@@ -45,6 +45,7 @@ import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.receiver.NotificationReceiver;
 import com.tachibana.downloader.ui.main.MainActivity;
 
+import java.util.ArrayList;
 import java.util.UUID;
 
 import io.reactivex.disposables.CompositeDisposable;
@@ -62,8 +63,11 @@ public class DownloadService extends Service
     private static final int APPLYING_PARAMS_NOTIFICATION_ID = 2;
     public static final String ACTION_SHUTDOWN = "com.tachibana.downloader.service.DownloadService.ACTION_SHUTDOWN";
     public static final String ACTION_RUN_DOWNLOAD = "com.tachibana.downloader.service.ACTION_RUN_DOWNLOAD";
+    public static final String ACTION_RUN_DOWNLOADS = "com.tachibana.downloader.service.ACTION_RUN_DOWNLOADS";
     public static final String ACTION_CHANGE_PARAMS = "com.tachibana.downloader.service.ACTION_CHANGE_PARAMS";
+    public static final String ACTION_POST_PROCESS_DOWNLOADS = "com.tachibana.downloader.service.ACTION_POST_PROCESS_DOWNLOADS";
     public static final String TAG_DOWNLOAD_ID = "download_id";
+    public static final String TAG_DOWNLOAD_ID_LIST = "download_id_list";
     public static final String TAG_PARAMS = "params";
 
     private boolean isAlreadyRunning;
@@ -199,6 +203,18 @@ public class DownloadService extends Service
                     if (id != null && engine != null)
                         engine.doRunDownload(id);
                     break;
+                case ACTION_RUN_DOWNLOADS:
+                    @SuppressWarnings("unchecked")
+                    ArrayList<UUID> ids = (ArrayList<UUID>)intent.getSerializableExtra(TAG_DOWNLOAD_ID_LIST);
+                    if (ids != null && engine != null)
+                        engine.doRunDownloads(ids);
+                    break;
+                case ACTION_POST_PROCESS_DOWNLOADS:
+                    @SuppressWarnings("unchecked")
+                    ArrayList<UUID> postProcessIds = (ArrayList<UUID>)intent.getSerializableExtra(TAG_DOWNLOAD_ID_LIST);
+                    if (postProcessIds != null && engine != null)
+                        engine.doPostProcessDownloads(postProcessIds);
+                    break;
                 case ACTION_CHANGE_PARAMS:
                     id = (UUID)intent.getSerializableExtra(TAG_DOWNLOAD_ID);
                     ChangeableParams params = intent.getParcelableExtra(TAG_PARAMS);
@@ -31,9 +31,9 @@ import androidx.work.WorkerParameters;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.model.DownloadScheduler;
-import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.storage.DataRepository;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -58,6 +58,7 @@ public class RescheduleAllWorker extends Worker
 
         ListenableFuture<List<WorkInfo>> future = WorkManager.getInstance(context)
                 .getWorkInfosByTag(DownloadScheduler.TAG_WORK_RUN_TYPE);
+        ArrayList<UUID> idList = new ArrayList<>();
         try {
             for (WorkInfo workInfo : future.get()) {
                 if (workInfo.getState().isFinished())
@@ -76,22 +77,21 @@ public class RescheduleAllWorker extends Worker
                 if (downloadId == null)
                     continue;
 
-                DownloadInfo info;
                 try {
-                    info = repo.getInfoById(UUID.fromString(downloadId));
+                    idList.add(UUID.fromString(downloadId));
 
-                } catch (Exception e) {
-                    continue;
+                } catch (IllegalArgumentException e) {
+                    /* Ignore */
                 }
-                if (info == null)
-                    continue;
-
-                DownloadScheduler.run(context, info);
             }
         } catch (InterruptedException | ExecutionException e) {
             /* Ignore */
         }
 
+        /* Those that can run now won't replace their work */
+        WorkManager.getInstance(context).cancelAllWorkByTag(DownloadScheduler.TAG_WORK_RUN_TYPE);
+        DownloadScheduler.run(context, repo.getScheduleInfoByIds(idList));
+
         return Result.success();
     }
 }
@@ -28,11 +28,15 @@ import androidx.work.WorkerParameters;
 
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.model.DownloadScheduler;
+import com.tachibana.downloader.core.model.ProgressJournal;
 import com.tachibana.downloader.core.model.data.StatusCode;
-import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.ScheduleInfo;
 import com.tachibana.downloader.core.storage.DataRepository;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
 
 /*
  * Used only by DownloadScheduler.
@@ -55,22 +59,28 @@ public class RestoreDownloadsWorker extends Worker
         Context context = getApplicationContext();
         DataRepository repo = RepositoryHelper.getDataRepository(context);
 
-        List<DownloadInfo> infoList = repo.getAllInfo();
-        if (infoList.isEmpty())
-            return Result.success();
+        /* Progress of the downloads terminated unexpectedly, running ones are skipped */
+        ProgressJournal.replayAll(ProgressJournal.getJournalDir(context), repo);
 
-        for (DownloadInfo info : infoList) {
-            if (info == null)
-                continue;
-            /*
-             * Also restore those downloads that are incorrectly completed and
-             * have the wrong status (for example, after crashing)
-             */
-            if (info.statusCode == StatusCode.STATUS_PENDING ||
-                info.statusCode == StatusCode.STATUS_RUNNING ||
-                info.statusCode == StatusCode.STATUS_FETCH_METADATA)
-                DownloadScheduler.run(context, info);
-        }
+        /*
+         * Also restore those downloads that are incorrectly completed and
+         * have the wrong status (for example, after crashing)
+         */
+        List<ScheduleInfo> infoList = repo.getScheduleInfoByStatus(Arrays.asList(
+                StatusCode.STATUS_PENDING,
+                StatusCode.STATUS_RUNNING,
+                StatusCode.STATUS_FETCH_METADATA));
+        DownloadScheduler.run(context, infoList);
+
+        /* The file is already received, these don't need a slot */
+        List<ScheduleInfo> postProcessList = repo.getScheduleInfoByStatus(Arrays.asList(
+                StatusCode.STATUS_VERIFYING,
+                StatusCode.STATUS_MOVING,
+                StatusCode.STATUS_EXTRACTING));
+        ArrayList<UUID> ids = new ArrayList<>(postProcessList.size());
+        for (ScheduleInfo info : postProcessList)
+            ids.add(info.id);
+        DownloadScheduler.postProcess(context, ids);
 
         return Result.success();
     }
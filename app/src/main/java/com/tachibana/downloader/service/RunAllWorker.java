@@ -29,9 +29,10 @@ import androidx.work.WorkerParameters;
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.model.DownloadScheduler;
 import com.tachibana.downloader.core.model.data.StatusCode;
-import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.ScheduleInfo;
 import com.tachibana.downloader.core.storage.DataRepository;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /*
@@ -58,18 +59,14 @@ public class RunAllWorker extends Worker
         DataRepository repo = RepositoryHelper.getDataRepository(context);
         boolean ignorePaused = getInputData().getBoolean(TAG_IGNORE_PAUSED, false);
 
-        List<DownloadInfo> infoList = repo.getAllInfo();
-        if (infoList.isEmpty())
-            return Result.success();
+        ArrayList<Integer> statusCodes = new ArrayList<>(2);
+        statusCodes.add(StatusCode.STATUS_STOPPED);
+        if (!ignorePaused)
+            statusCodes.add(StatusCode.STATUS_PAUSED);
 
-        for (DownloadInfo info : infoList) {
-            if (info == null)
-                continue;
+        List<ScheduleInfo> infoList = repo.getScheduleInfoByStatus(statusCodes);
 
-            if (info.statusCode == StatusCode.STATUS_STOPPED ||
-                (!ignorePaused && info.statusCode == StatusCode.STATUS_PAUSED))
-                DownloadScheduler.run(context, info);
-        }
+        DownloadScheduler.run(context, infoList);
 
         return Result.success();
     }
@@ -458,6 +458,7 @@ public class AddDownloadDialog extends DialogFragment {
             {
                 binding.layoutLink.setErrorEnabled(false);
                 binding.layoutLink.setError(null);
+                binding.layoutLink.setHelperText(null);
             }
         });
         binding.name.addTextChangedListener(new TextWatcher()
@@ -580,6 +581,7 @@ public class AddDownloadDialog extends DialogFragment {
                         break;
                     case FETCHED:
                         onFetched();
+                        showDuplicateWarning();
                         break;
                     case UNKNOWN:
                         doAutoFetch();
@@ -704,6 +706,14 @@ public class AddDownloadDialog extends DialogFragment {
         binding.layoutChecksum.setError(null);
     }
 
+    private void showDuplicateWarning()
+    {
+        String fileName = viewModel.duplicateFileName;
+        binding.layoutLink.setHelperText(fileName == null ?
+                null :
+                getString(R.string.add_download_duplicate_content, fileName));
+    }
+
     private void showFetchError(Throwable e)
     {
         if (e == null) {
@@ -55,6 +55,7 @@ import com.tachibana.downloader.core.system.SystemFacade;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
 import com.tachibana.downloader.core.urlnormalizer.NormalizeUrl;
 import com.tachibana.downloader.core.utils.DigestUtils;
+import com.tachibana.downloader.core.utils.DownloadKeys;
 import com.tachibana.downloader.core.utils.DownloadUtils;
 import com.tachibana.downloader.core.utils.MimeTypeUtils;
 import com.tachibana.downloader.core.utils.Utils;
@@ -90,6 +91,8 @@ public class AddDownloadViewModel extends AndroidViewModel
     public FileSystemFacade fs;
     private final CompositeDisposable disposables = new CompositeDisposable();
     public ObservableBoolean enableUncompressArchive = new ObservableBoolean();
+    /* File name of the already downloaded file with the same content, if any */
+    public String duplicateFileName;
 
     public enum Status
     {
@@ -243,8 +246,10 @@ public class AddDownloadViewModel extends AndroidViewModel
         @Override
         protected void onPreExecute()
         {
-            if (viewModel.get() != null)
+            if (viewModel.get() != null) {
+                viewModel.get().duplicateFileName = null;
                 viewModel.get().fetchState.setValue(new FetchState(AddDownloadViewModel.Status.FETCHING));
+            }
         }
 
         @Override
@@ -337,6 +342,9 @@ public class AddDownloadViewModel extends AndroidViewModel
 
             } while (connectWithReferer[0]);
 
+            if (err[0] == null && viewModel.get() != null)
+                viewModel.get().findDuplicate();
+
             return err[0];
         }
 
@@ -427,6 +435,26 @@ public class AddDownloadViewModel extends AndroidViewModel
         return false;
     }
 
+    /*
+     * Look for a finished download of the same file version, see DownloadKeys
+     */
+
+    private void findDuplicate()
+    {
+        String contentKey = DownloadKeys.contentKey(params.getUrl(),
+                params.getEtag(), params.getTotalBytes());
+        if (contentKey == null)
+            return;
+
+        for (DownloadInfo info : repo.getCompletedByContentKey(contentKey)) {
+            Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
+            if (filePath != null && fs.exists(filePath)) {
+                duplicateFileName = info.fileName;
+                return;
+            }
+        }
+    }
+
     /*
      * Throws FileNotFoundException if the stub file doesn't created or doesn't exists
      */
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.ui.customview;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.text.format.Formatter;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.R;
+
+/*
+ * Simple line graph of the download speed, bytes per second,
+ * scaled to the maximum value. Samples go oldest first.
+ */
+
+public class ThroughputGraphView extends View
+{
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path linePath = new Path();
+    private final Path fillPath = new Path();
+    private int[] samples = new int[0];
+
+    public ThroughputGraphView(@NonNull Context context, @Nullable AttributeSet attrs)
+    {
+        super(context, attrs);
+
+        TypedArray a = context.obtainStyledAttributes(new TypedValue().data, new int[] {
+                R.attr.colorSecondary,
+                android.R.attr.textColorSecondary
+        });
+        int color = a.getColor(0, 0);
+        int textColor = a.getColor(1, 0);
+        a.recycle();
+
+        float density = getResources().getDisplayMetrics().density;
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(2 * density);
+        linePaint.setColor(color);
+        fillPaint.setStyle(Paint.Style.FILL);
+        fillPaint.setColor(color);
+        fillPaint.setAlpha(0x40);
+        textPaint.setColor(textColor);
+        textPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    public void setSamples(@Nullable int[] samples)
+    {
+        this.samples = (samples == null ? new int[0] : samples);
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        super.onDraw(canvas);
+
+        if (samples.length < 2)
+            return;
+
+        int max = 0;
+        for (int sample : samples)
+            max = Math.max(max, sample);
+        if (max == 0)
+            return;
+
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        float stepX = width / (samples.length - 1);
+
+        linePath.reset();
+        for (int i = 0; i < samples.length; i++) {
+            float x = left + i * stepX;
+            float y = top + height - height * samples[i] / max;
+            if (i == 0)
+                linePath.moveTo(x, y);
+            else
+                linePath.lineTo(x, y);
+        }
+        fillPath.set(linePath);
+        fillPath.lineTo(left + width, top + height);
+        fillPath.lineTo(left, top + height);
+        fillPath.close();
+
+        canvas.drawPath(fillPath, fillPaint);
+        canvas.drawPath(linePath, linePaint);
+
+        String maxLabel = getContext().getString(R.string.detail_throughput_max,
+                Formatter.formatFileSize(getContext(), max));
+        canvas.drawText(maxLabel, left, top - textPaint.ascent(), textPaint);
+    }
+}
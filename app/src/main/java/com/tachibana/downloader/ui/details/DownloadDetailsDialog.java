@@ -39,6 +39,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewTreeObserver;
 import android.widget.Button;
+import android.widget.SeekBar;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -171,6 +172,15 @@ public class DownloadDetailsDialog extends DialogFragment
                             Log.e(TAG, "Getting info " + id + " error: " +
                                     Log.getStackTraceString(t));
                         }));
+
+        disposables.add(viewModel.observeThroughput(id)
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(viewModel::updateThroughput,
+                        (Throwable t) -> {
+                            Log.e(TAG, "Getting throughput " + id + " error: " +
+                                    Log.getStackTraceString(t));
+                        }));
     }
 
     private void subscribeAlertDialog()
@@ -324,6 +334,22 @@ public class DownloadDetailsDialog extends DialogFragment
                 checkChecksumField(s);
             }
         });
+        binding.piecesNumberSelect.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener()
+        {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+            {
+                /* Increment because progress starts from zero */
+                if (fromUser)
+                    viewModel.mutableParams.setNumPieces(progress + 1);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) { /* Nothing */}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) { /* Nothing */}
+        });
 
         binding.folderChooserButton.setOnClickListener((v) ->
                 chooseDir.launch(viewModel.mutableParams.getDirPath())
@@ -36,6 +36,10 @@ public class DownloadDetailsInfo extends BaseObservable
     private long storageFreeSpace = -1;
     private HashSumState md5State = HashSumState.UNKNOWN;
     private HashSumState sha256State = HashSumState.UNKNOWN;
+    /* Bytes per second, oldest first */
+    private int[] throughputSamples;
+    /* 1 second samples of the running download or the minute history */
+    private boolean throughputLive;
 
     public enum HashSumState
     {
@@ -140,6 +144,30 @@ public class DownloadDetailsInfo extends BaseObservable
         notifyPropertyChanged(BR.storageFreeSpace);
     }
 
+    @Bindable
+    public int[] getThroughputSamples()
+    {
+        return throughputSamples;
+    }
+
+    public void setThroughputSamples(int[] throughputSamples)
+    {
+        this.throughputSamples = throughputSamples;
+        notifyPropertyChanged(BR.throughputSamples);
+    }
+
+    @Bindable
+    public boolean isThroughputLive()
+    {
+        return throughputLive;
+    }
+
+    public void setThroughputLive(boolean throughputLive)
+    {
+        this.throughputLive = throughputLive;
+        notifyPropertyChanged(BR.throughputLive);
+    }
+
     @Override
     public String toString()
     {
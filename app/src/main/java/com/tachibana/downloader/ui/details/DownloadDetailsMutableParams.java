@@ -35,6 +35,7 @@ public class DownloadDetailsMutableParams extends BaseObservable
     private boolean unmeteredConnectionsOnly = false;
     private boolean retry = false;
     private String checksum;
+    private int numPieces = 1;
 
     @Bindable
     public String getUrl()
@@ -120,6 +121,18 @@ public class DownloadDetailsMutableParams extends BaseObservable
         notifyPropertyChanged(BR.checksum);
     }
 
+    @Bindable
+    public int getNumPieces()
+    {
+        return numPieces;
+    }
+
+    public void setNumPieces(int numPieces)
+    {
+        this.numPieces = numPieces;
+        notifyPropertyChanged(BR.numPieces);
+    }
+
     @Override
     public String toString()
     {
@@ -131,6 +144,7 @@ public class DownloadDetailsMutableParams extends BaseObservable
                 ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
                 ", retry=" + retry +
                 ", checksum='" + checksum + '\'' +
+                ", numPieces=" + numPieces +
                 '}';
     }
 }
@@ -28,6 +28,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.databinding.Observable;
 import androidx.databinding.ObservableBoolean;
+import androidx.databinding.ObservableInt;
 import androidx.databinding.library.baseAdapters.BR;
 import androidx.lifecycle.AndroidViewModel;
 
@@ -36,9 +37,12 @@ import com.tachibana.downloader.core.exception.FileAlreadyExistsException;
 import com.tachibana.downloader.core.exception.FreeSpaceException;
 import com.tachibana.downloader.core.model.ChangeableParams;
 import com.tachibana.downloader.core.model.DownloadEngine;
+import com.tachibana.downloader.core.model.ThroughputRecorder;
+import com.tachibana.downloader.core.model.data.PieceTable;
+import com.tachibana.downloader.core.model.data.StatusCode;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
-import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
 import com.tachibana.downloader.core.storage.DataRepository;
 import com.tachibana.downloader.core.system.FileDescriptorWrapper;
 import com.tachibana.downloader.core.system.FileSystemFacade;
@@ -49,6 +53,7 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
@@ -61,13 +66,32 @@ public class DownloadDetailsViewModel extends AndroidViewModel
     @SuppressWarnings("unused")
     private static final String TAG = DownloadDetailsViewModel.class.getSimpleName();
 
+    private static final long THROUGHPUT_UPDATE_INTERVAL = 1000; /* ms */
+
     private final DataRepository repo;
     private final DownloadEngine engine;
     private final CompositeDisposable disposables = new CompositeDisposable();
     public DownloadDetailsInfo info = new DownloadDetailsInfo();
     public DownloadDetailsMutableParams mutableParams = new DownloadDetailsMutableParams();
     public ObservableBoolean showClipboardButton = new ObservableBoolean(false);
+    /* Zero if the number of pieces can't be changed */
+    public ObservableInt maxNumPieces = new ObservableInt(0);
     public FileSystemFacade fs;
+    /* Loaded once, doesn't change while the download is inactive */
+    private ThroughputSamples savedThroughput;
+
+    public static class ThroughputSamples
+    {
+        public final int[] samples;
+        /* Second samples of the running download, minute ones otherwise */
+        public final boolean live;
+
+        ThroughputSamples(int[] samples, boolean live)
+        {
+            this.samples = samples;
+            this.live = live;
+        }
+    }
 
     @Override
     protected void onCleared()
@@ -93,15 +117,49 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         return repo.observeInfoAndPiecesById(id);
     }
 
+    /*
+     * Live speed of the running download, or the saved history otherwise
+     */
+
+    public Flowable<ThroughputSamples> observeThroughput(UUID id)
+    {
+        return Flowable.interval(0, THROUGHPUT_UPDATE_INTERVAL, TimeUnit.MILLISECONDS)
+                .map((__) -> getThroughput(id))
+                .distinctUntilChanged();
+    }
+
+    private ThroughputSamples getThroughput(UUID id)
+    {
+        ThroughputRecorder recorder = engine.getThroughputRecorder(id);
+        if (recorder != null) {
+            savedThroughput = null;
+            return new ThroughputSamples(recorder.getSecondSamples(), true);
+
+        } else if (savedThroughput == null) {
+            ThroughputHistory history = repo.getThroughputHistory(id);
+            savedThroughput = new ThroughputSamples(
+                    (history == null ? new int[0] : history.getSamples()), false);
+        }
+
+        return savedThroughput;
+    }
+
+    public void updateThroughput(ThroughputSamples throughput)
+    {
+        info.setThroughputSamples(throughput.samples);
+        info.setThroughputLive(throughput.live);
+    }
+
     public void updateInfo(InfoAndPieces infoAndPieces)
     {
         boolean firstUpdate = info.getDownloadInfo() == null;
 
         info.setDownloadInfo(infoAndPieces.info);
-        long downloadedBytes = 0;
-        for (DownloadPiece piece : infoAndPieces.pieces)
-            downloadedBytes += infoAndPieces.info.getDownloadedBytes(piece);
-        info.setDownloadedBytes(downloadedBytes);
+        /* Archived downloads have no pieces, use the aggregate value */
+        PieceTable pieceTable = infoAndPieces.getPieceTable();
+        info.setDownloadedBytes(pieceTable.size() > 0 ?
+                pieceTable.downloadedBytes :
+                infoAndPieces.info.downloadedBytes);
 
         if (firstUpdate)
             initMutableParams();
@@ -120,6 +178,14 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         mutableParams.setUnmeteredConnectionsOnly(downloadInfo.unmeteredConnectionsOnly);
         mutableParams.setRetry(downloadInfo.retry);
         mutableParams.setChecksum(downloadInfo.checksum);
+        mutableParams.setNumPieces(downloadInfo.getNumPieces());
+
+        /* Can be changed while downloading, the written bytes are kept */
+        boolean canSplit = downloadInfo.partialSupport && downloadInfo.totalBytes > 0 &&
+                downloadInfo.statusCode != StatusCode.STATUS_SUCCESS;
+        maxNumPieces.set(canSplit ?
+                (int)Math.min(downloadInfo.totalBytes, DownloadInfo.MAX_PIECES) :
+                0);
     }
 
     private final Observable.OnPropertyChangedCallback mutableParamsCallback = new Observable.OnPropertyChangedCallback()
@@ -227,6 +293,7 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         boolean unmeteredConnectionsOnly = mutableParams.isUnmeteredConnectionsOnly();
         boolean retry = mutableParams.isRetry();
         String checksum = mutableParams.getChecksum();
+        int numPieces = mutableParams.getNumPieces();
 
         if (!downloadInfo.url.equals(url))
             params.url = url;
@@ -243,6 +310,8 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         if (TextUtils.isEmpty(checksum) || isChecksumValid(checksum) &&
                 !checksum.equals(downloadInfo.checksum))
             params.checksum = checksum;
+        if (maxNumPieces.get() > 0 && downloadInfo.getNumPieces() != numPieces)
+            params.numPieces = numPieces;
 
         return params;
     }
@@ -20,31 +20,75 @@
 
 package com.tachibana.downloader.ui.main;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
 
 /*
- * Wrapper of InfoAndPieces class for DownloadListAdapter, that override Object::equals method
+ * Wrapper of DownloadListInfo class for DownloadListAdapter, that override Object::equals method
  * Necessary for other behavior in case if item was selected (see SelectionTracker).
  */
 
-public class DownloadItem extends InfoAndPieces
+public class DownloadItem implements Parcelable
 {
-    public DownloadItem(@NonNull InfoAndPieces infoAndPieces)
+    @NonNull
+    public final DownloadListInfo info;
+
+    public DownloadItem(@NonNull DownloadListInfo info)
+    {
+        this.info = info;
+    }
+
+    public DownloadItem(@NonNull Parcel source)
     {
-        this.info = infoAndPieces.info;
-        this.pieces = infoAndPieces.pieces;
+        info = source.readParcelable(DownloadListInfo.class.getClassLoader());
     }
 
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeParcelable(info, flags);
+    }
+
+    public static final Creator<DownloadItem> CREATOR =
+            new Creator<DownloadItem>()
+            {
+                @Override
+                public DownloadItem createFromParcel(Parcel source)
+                {
+                    return new DownloadItem(source);
+                }
+
+                @Override
+                public DownloadItem[] newArray(int size)
+                {
+                    return new DownloadItem[size];
+                }
+            };
+
     /*
-     * Compare objects by their content (info, pieces)
+     * Compare objects by their content
      */
 
     public boolean equalsContent(DownloadItem item)
     {
-        return super.equals(item);
+        return info.equals(item.info);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return info.id.hashCode();
     }
 
     /*
@@ -47,7 +47,6 @@ import androidx.vectordrawable.graphics.drawable.AnimatedVectorDrawableCompat;
 
 import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.model.data.StatusCode;
-import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.utils.DateUtils;
 import com.tachibana.downloader.core.utils.MimeTypeUtils;
 import com.tachibana.downloader.core.utils.Utils;
@@ -235,15 +234,8 @@ public class DownloadListAdapter extends ListAdapter<DownloadItem, DownloadListA
             });
 
             Context context = itemView.getContext();
-            int size = item.pieces.size();
-            long downloadedBytes = 0;
-            long speed = 0;
-            if (size > 0) {
-                for (DownloadPiece piece : item.pieces) {
-                    downloadedBytes += item.info.getDownloadedBytes(piece);
-                    speed += piece.speed;
-                }
-            }
+            long downloadedBytes = item.info.downloadedBytes;
+            long speed = item.info.speed;
             long ETA = Utils.calcETA(item.info.totalBytes, downloadedBytes, speed);
 
             if (item.info.statusCode == StatusCode.STATUS_RUNNING) {
@@ -283,8 +275,18 @@ public class DownloadListAdapter extends ListAdapter<DownloadItem, DownloadListA
                     case StatusCode.STATUS_FETCH_METADATA:
                         statusStr = context.getString(R.string.downloading_metadata);
                         break;
+                    case StatusCode.STATUS_VERIFYING:
+                        statusStr = context.getString(R.string.verifying_checksum);
+                        break;
+                    case StatusCode.STATUS_MOVING:
+                        statusStr = context.getString(R.string.moving_file);
+                        break;
+                    case StatusCode.STATUS_EXTRACTING:
+                        statusStr = context.getString(R.string.extracting_archive);
+                        break;
                 }
-                if (item.info.statusCode == StatusCode.STATUS_FETCH_METADATA) {
+                if (item.info.statusCode == StatusCode.STATUS_FETCH_METADATA ||
+                        StatusCode.isStatusPostProcessing(item.info.statusCode)) {
                     progressBar.setVisibility(View.VISIBLE);
                     progressBar.setIndeterminate(true);
                 } else {
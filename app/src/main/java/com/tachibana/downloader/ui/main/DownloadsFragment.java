@@ -53,15 +53,19 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.filter.DownloadFilter;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
 import com.tachibana.downloader.core.utils.Utils;
 import com.tachibana.downloader.databinding.FragmentDownloadListBinding;
 import com.tachibana.downloader.ui.BaseAlertDialog;
 import com.tachibana.downloader.ui.details.DownloadDetailsDialog;
 
+import java.util.List;
 import java.util.UUID;
 
 import io.reactivex.Flowable;
 import io.reactivex.Observable;
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.disposables.Disposable;
@@ -277,12 +281,26 @@ public abstract class DownloadsFragment extends Fragment
         disposables.add(observeDownloads());
     }
 
+    /*
+     * Source of the list items, can be narrowed by subclasses
+     */
+
+    protected Flowable<List<DownloadListInfo>> observeListInfo()
+    {
+        return viewModel.observeAllListInfo();
+    }
+
+    protected Single<List<DownloadListInfo>> getListInfoSingle()
+    {
+        return viewModel.getAllListInfoSingle();
+    }
+
     public Disposable observeDownloads()
     {
-        return viewModel.observerAllInfoAndPieces()
+        return observeListInfo()
                 .subscribeOn(Schedulers.io())
-                .flatMapSingle((infoAndPiecesList) ->
-                        Flowable.fromIterable(infoAndPiecesList)
+                .flatMapSingle((infoList) ->
+                        Flowable.fromIterable(infoList)
                                 .filter(fragmentDownloadsFilter)
                                 .filter(viewModel.getDownloadFilter())
                                 .map(DownloadItem::new)
@@ -292,17 +310,17 @@ public abstract class DownloadsFragment extends Fragment
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(adapter::submitList,
                         (Throwable t) -> {
-                            Log.e(TAG, "Getting info and pieces error: " +
+                            Log.e(TAG, "Getting info error: " +
                                     Log.getStackTraceString(t));
                         });
     }
 
     public Disposable getDownloadSingle()
     {
-        return viewModel.getAllInfoAndPiecesSingle()
+        return getListInfoSingle()
                 .subscribeOn(Schedulers.io())
-                .flatMap((infoAndPiecesList) ->
-                        Observable.fromIterable(infoAndPiecesList)
+                .flatMap((infoList) ->
+                        Observable.fromIterable(infoList)
                                 .filter(fragmentDownloadsFilter)
                                 .filter(viewModel.getDownloadFilter())
                                 .map(DownloadItem::new)
@@ -312,7 +330,7 @@ public abstract class DownloadsFragment extends Fragment
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(adapter::submitList,
                         (Throwable t) -> {
-                            Log.e(TAG, "Getting info and pieces error: " +
+                            Log.e(TAG, "Getting info error: " +
                                     Log.getStackTraceString(t));
                         });
     }
@@ -337,6 +355,7 @@ public abstract class DownloadsFragment extends Fragment
         public boolean onCreateActionMode(ActionMode mode, Menu menu)
         {
             mode.getMenuInflater().inflate(R.menu.download_list_action_mode, menu);
+            menu.findItem(R.id.priority_menu).setVisible(showQueuePriority());
 
             return true;
         }
@@ -359,6 +378,18 @@ public abstract class DownloadsFragment extends Fragment
                     shareUrl();
                     mode.finish();
                     break;
+                case R.id.priority_high_menu:
+                    setQueuePriority(QueuedDownload.PRIORITY_HIGH);
+                    mode.finish();
+                    break;
+                case R.id.priority_normal_menu:
+                    setQueuePriority(QueuedDownload.PRIORITY_NORMAL);
+                    mode.finish();
+                    break;
+                case R.id.priority_low_menu:
+                    setQueuePriority(QueuedDownload.PRIORITY_LOW);
+                    mode.finish();
+                    break;
             }
 
             return true;
@@ -399,9 +430,9 @@ public abstract class DownloadsFragment extends Fragment
         selectionTracker.copySelection(selections);
 
         disposables.add(Observable.fromIterable(selections)
-                .map((selection -> selection.info))
+                .map((selection -> selection.info.id))
                 .toList()
-                .subscribe((infoList) -> viewModel.deleteDownloads(infoList, withFile)));
+                .subscribe((ids) -> viewModel.deleteDownloads(ids, withFile)));
     }
 
     private void shareDownloads()
@@ -432,6 +463,26 @@ public abstract class DownloadsFragment extends Fragment
         }
     }
 
+    /*
+     * Whether the list contains downloads that can wait in the queue
+     */
+
+    protected boolean showQueuePriority()
+    {
+        return false;
+    }
+
+    private void setQueuePriority(int priority)
+    {
+        MutableSelection<DownloadItem> selections = new MutableSelection<>();
+        selectionTracker.copySelection(selections);
+
+        disposables.add(Observable.fromIterable(selections)
+                .map((selection -> selection.info.id))
+                .toList()
+                .subscribe((ids) -> viewModel.setQueuePriority(ids, priority)));
+    }
+
     private void shareUrl()
     {
         MutableSelection<DownloadItem> selections = new MutableSelection<>();
@@ -32,14 +32,16 @@ import com.tachibana.downloader.core.filter.DownloadFilter;
 import com.tachibana.downloader.core.filter.DownloadFilterCollection;
 import com.tachibana.downloader.core.model.DownloadEngine;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
-import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
 import com.tachibana.downloader.core.sorting.DownloadSorting;
 import com.tachibana.downloader.core.sorting.DownloadSortingComparator;
 import com.tachibana.downloader.core.storage.DataRepository;
 
 import java.util.List;
+import java.util.UUID;
 
 import io.reactivex.Flowable;
+import io.reactivex.Maybe;
 import io.reactivex.Observable;
 import io.reactivex.Single;
 import io.reactivex.subjects.PublishSubject;
@@ -56,13 +58,13 @@ public class DownloadsViewModel extends AndroidViewModel
     private final PublishSubject<Boolean> forceSortAndFilter = PublishSubject.create();
 
     private String searchQuery;
-    private final DownloadFilter searchFilter = (infoAndPieces) -> {
+    private final DownloadFilter searchFilter = (info) -> {
       if (TextUtils.isEmpty(searchQuery))
           return true;
 
         String filterPattern = searchQuery.toLowerCase().trim();
-        String fileName = infoAndPieces.info.fileName;
-        String description = infoAndPieces.info.description;
+        String fileName = info.fileName;
+        String description = info.description;
 
         return fileName.toLowerCase().contains(filterPattern) ||
                 (description != null && description.toLowerCase().contains(filterPattern));
@@ -76,24 +78,70 @@ public class DownloadsViewModel extends AndroidViewModel
         engine = DownloadEngine.getInstance(application);
     }
 
-    public Flowable<List<InfoAndPieces>> observerAllInfoAndPieces()
+    /*
+     * The list loads only the columns it shows, see DownloadListInfo
+     */
+
+    public Flowable<List<DownloadListInfo>> observeAllListInfo()
+    {
+        return repo.observeListInfo();
+    }
+
+    public Single<List<DownloadListInfo>> getAllListInfoSingle()
+    {
+        return repo.getListInfoSingle();
+    }
+
+    /*
+     * Finished downloads, including archived
+     */
+
+    public Flowable<List<DownloadListInfo>> observeFinishedListInfo()
+    {
+        return repo.observeFinishedListInfo();
+    }
+
+    public Single<List<DownloadListInfo>> getFinishedListInfoSingle()
     {
-        return repo.observeAllInfoAndPieces();
+        return repo.getFinishedListInfoSingle();
     }
 
-    public Single<List<InfoAndPieces>> getAllInfoAndPiecesSingle()
+    /*
+     * Full entity, e.g. to redownload the file
+     */
+
+    public Maybe<DownloadInfo> getInfoById(@NonNull UUID id)
+    {
+        return repo.getInfoByIdWithArchived(id);
+    }
+
+    public void deleteDownload(@NonNull UUID id, boolean withFile)
     {
-        return repo.getAllInfoAndPiecesSingle();
+        engine.deleteDownloads(withFile, id);
     }
 
-    public void deleteDownload(DownloadInfo info, boolean withFile)
+    public void deleteDownloads(@NonNull List<UUID> ids, boolean withFile)
+    {
+        engine.deleteDownloads(withFile, ids.toArray(new UUID[0]));
+    }
+
+    public void setQueuePriority(@NonNull List<UUID> ids, int priority)
+    {
+        engine.setQueuePriority(ids, priority);
+    }
+
+    /*
+     * Move the queued download right before the other one
+     */
+
+    public boolean moveQueuedDownload(@NonNull UUID id, @Nullable UUID beforeId)
     {
-        engine.deleteDownloads(withFile, info);
+        return engine.moveQueuedDownload(id, beforeId);
     }
 
-    public void deleteDownloads(List<DownloadInfo> infoList, boolean withFile)
+    public void deleteAllFinishedDownloads(boolean withFile)
     {
-        engine.deleteDownloads(withFile, infoList.toArray(new DownloadInfo[0]));
+        engine.deleteAllFinishedDownloads(withFile);
     }
 
     public void setSort(@NonNull DownloadSortingComparator sorting, boolean force)
@@ -144,10 +192,10 @@ public class DownloadsViewModel extends AndroidViewModel
     @NonNull
     public DownloadFilter getDownloadFilter()
     {
-        return (infoAndPieces) -> categoryFilter.test(infoAndPieces) &&
-                statusFilter.test(infoAndPieces) &&
-                dateAddedFilter.test(infoAndPieces) &&
-                searchFilter.test(infoAndPieces);
+        return (info) -> categoryFilter.test(info) &&
+                statusFilter.test(info) &&
+                dateAddedFilter.test(info) &&
+                searchFilter.test(info);
     }
 
     public Observable<Boolean> onForceSortAndFilter()
@@ -155,13 +203,13 @@ public class DownloadsViewModel extends AndroidViewModel
         return forceSortAndFilter;
     }
 
-    public void pauseResumeDownload(@NonNull DownloadInfo info)
+    public void pauseResumeDownload(@NonNull UUID id)
     {
-        engine.pauseResumeDownload(info.id);
+        engine.pauseResumeDownload(id);
     }
 
-    public void resumeIfError(@NonNull DownloadInfo info)
+    public void resumeIfError(@NonNull UUID id)
     {
-        engine.resumeIfError(info.id);
+        engine.resumeIfError(id);
     }
 }
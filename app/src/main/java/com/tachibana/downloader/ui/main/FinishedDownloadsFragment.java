@@ -23,6 +23,10 @@ package com.tachibana.downloader.ui.main;
 import android.app.Dialog;
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.widget.CheckBox;
 import android.widget.Toast;
 
@@ -34,14 +38,21 @@ import androidx.lifecycle.ViewModelProvider;
 import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.model.data.StatusCode;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadListInfo;
 import com.tachibana.downloader.core.utils.Utils;
 import com.tachibana.downloader.ui.BaseAlertDialog;
 import com.tachibana.downloader.ui.adddownload.AddDownloadActivity;
 import com.tachibana.downloader.ui.adddownload.AddInitParams;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
 
 public class FinishedDownloadsFragment extends DownloadsFragment
     implements DownloadListAdapter.FinishClickListener,
@@ -52,10 +63,12 @@ public class FinishedDownloadsFragment extends DownloadsFragment
 
     private static final String TAG_DELETE_DOWNLOAD_DIALOG = "delete_download_dialog";
     private static final String TAG_DOWNLOAD_FOR_DELETION = "download_for_deletion";
+    private static final String TAG_DELETE_ALL_FINISHED_DIALOG = "delete_all_finished_dialog";
 
     private BaseAlertDialog deleteDownloadDialog;
+    private BaseAlertDialog deleteAllFinishedDialog;
     private BaseAlertDialog.SharedViewModel dialogViewModel;
-    private DownloadInfo downloadForDeletion;
+    private UUID downloadForDeletion;
 
     public static FinishedDownloadsFragment newInstance()
     {
@@ -68,7 +81,15 @@ public class FinishedDownloadsFragment extends DownloadsFragment
 
     public FinishedDownloadsFragment()
     {
-        super((item) -> StatusCode.isStatusCompleted(item.info.statusCode));
+        super((info) -> StatusCode.isStatusCompleted(info.statusCode));
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        setHasOptionsMenu(true);
     }
 
     @Override
@@ -80,11 +101,46 @@ public class FinishedDownloadsFragment extends DownloadsFragment
         subscribeAlertDialog();
     }
 
+    @Override
+    public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater)
+    {
+        super.onCreateOptionsMenu(menu, inflater);
+
+        inflater.inflate(R.menu.finished_downloads, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item)
+    {
+        if (item.getItemId() == R.id.delete_all_finished_menu) {
+            showDeleteAllFinishedDialog();
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
     private void subscribeAlertDialog()
     {
         Disposable d = dialogViewModel.observeEvents()
                 .subscribe((event) -> {
-                    if (event.dialogTag == null || !event.dialogTag.equals(TAG_DELETE_DOWNLOAD_DIALOG) || deleteDownloadDialog == null)
+                    if (event.dialogTag == null)
+                        return;
+                    if (event.dialogTag.equals(TAG_DELETE_ALL_FINISHED_DIALOG) && deleteAllFinishedDialog != null) {
+                        switch (event.type) {
+                            case POSITIVE_BUTTON_CLICKED:
+                                Dialog dialog = deleteAllFinishedDialog.getDialog();
+                                if (dialog != null) {
+                                    CheckBox withFile = dialog.findViewById(R.id.delete_with_file);
+                                    viewModel.deleteAllFinishedDownloads(withFile.isChecked());
+                                }
+                            case NEGATIVE_BUTTON_CLICKED:
+                                deleteAllFinishedDialog.dismiss();
+                                break;
+                        }
+                        return;
+                    }
+                    if (!event.dialogTag.equals(TAG_DELETE_DOWNLOAD_DIALOG) || deleteDownloadDialog == null)
                         return;
                     switch (event.type) {
                         case POSITIVE_BUTTON_CLICKED:
@@ -102,23 +158,41 @@ public class FinishedDownloadsFragment extends DownloadsFragment
         disposables.add(d);
     }
 
+    /*
+     * Query finished downloads together with the archived ones,
+     * instead of filtering the whole list
+     */
+
+    @Override
+    protected Flowable<List<DownloadListInfo>> observeListInfo()
+    {
+        return viewModel.observeFinishedListInfo();
+    }
+
+    @Override
+    protected Single<List<DownloadListInfo>> getListInfoSingle()
+    {
+        return viewModel.getFinishedListInfoSingle();
+    }
+
     @Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState)
     {
         super.onActivityCreated(savedInstanceState);
 
         if (savedInstanceState != null)
-            downloadForDeletion = savedInstanceState.getParcelable(TAG_DOWNLOAD_FOR_DELETION);
+            downloadForDeletion = (UUID)savedInstanceState.getSerializable(TAG_DOWNLOAD_FOR_DELETION);
 
         FragmentManager fm = getChildFragmentManager();
         deleteDownloadDialog = (BaseAlertDialog)fm.findFragmentByTag(TAG_DELETE_DOWNLOAD_DIALOG);
+        deleteAllFinishedDialog = (BaseAlertDialog)fm.findFragmentByTag(TAG_DELETE_ALL_FINISHED_DIALOG);
         dialogViewModel = new ViewModelProvider(activity).get(BaseAlertDialog.SharedViewModel.class);
     }
 
     @Override
     public void onSaveInstanceState(@NonNull Bundle outState)
     {
-        outState.putParcelable(TAG_DOWNLOAD_FOR_DELETION, downloadForDeletion);
+        outState.putSerializable(TAG_DOWNLOAD_FOR_DELETION, downloadForDeletion);
 
         super.onSaveInstanceState(outState);
     }
@@ -138,7 +212,7 @@ public class FinishedDownloadsFragment extends DownloadsFragment
     {
         switch (menuId) {
             case R.id.delete_menu:
-                downloadForDeletion = item.info;
+                downloadForDeletion = item.info.id;
                 showDeleteDownloadDialog();
                 break;
             case R.id.open_details_menu:
@@ -151,7 +225,7 @@ public class FinishedDownloadsFragment extends DownloadsFragment
                 shareUrl(item);
                 break;
             case R.id.redownload_menu:
-                showAddDownloadDialog(item.info);
+                redownload(item.info.id);
                 break;
         }
     }
@@ -159,7 +233,7 @@ public class FinishedDownloadsFragment extends DownloadsFragment
     @Override
     public void onItemResumeClicked(@NonNull DownloadItem item)
     {
-        viewModel.resumeIfError(item.info);
+        viewModel.resumeIfError(item.info.id);
     }
 
     private void showDeleteDownloadDialog()
@@ -182,9 +256,29 @@ public class FinishedDownloadsFragment extends DownloadsFragment
         }
     }
 
-    private void deleteDownload(DownloadInfo info, boolean withFile)
+    private void showDeleteAllFinishedDialog()
     {
-        viewModel.deleteDownload(info, withFile);
+        if (!isAdded())
+            return;
+
+        FragmentManager fm = getChildFragmentManager();
+        if (fm.findFragmentByTag(TAG_DELETE_ALL_FINISHED_DIALOG) == null) {
+            deleteAllFinishedDialog = BaseAlertDialog.newInstance(
+                    getString(R.string.deleting),
+                    getString(R.string.delete_all_finished_downloads),
+                    R.layout.dialog_delete_downloads,
+                    getString(R.string.ok),
+                    getString(R.string.cancel),
+                    null,
+                    false);
+
+            deleteAllFinishedDialog.show(fm, TAG_DELETE_ALL_FINISHED_DIALOG);
+        }
+    }
+
+    private void deleteDownload(UUID id, boolean withFile)
+    {
+        viewModel.deleteDownload(id, withFile);
     }
 
     private void shareDownload(DownloadItem item) {
@@ -204,6 +298,20 @@ public class FinishedDownloadsFragment extends DownloadsFragment
                 getString(R.string.share_via)));
     }
 
+    /*
+     * The list doesn't have all the parameters, load the full entity
+     */
+
+    private void redownload(UUID id)
+    {
+        disposables.add(viewModel.getInfoById(id)
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::showAddDownloadDialog,
+                        (Throwable t) -> Log.e(TAG, "Getting info " + id + " error: " +
+                                Log.getStackTraceString(t))));
+    }
+
     private void showAddDownloadDialog(DownloadInfo info)
     {
         AddInitParams initParams = new AddInitParams();
@@ -43,7 +43,7 @@ public class QueuedDownloadsFragment extends DownloadsFragment
 
     public QueuedDownloadsFragment()
     {
-        super((item) -> !StatusCode.isStatusCompleted(item.info.statusCode));
+        super((info) -> !StatusCode.isStatusCompleted(info.statusCode));
     }
 
     @Override
@@ -54,6 +54,12 @@ public class QueuedDownloadsFragment extends DownloadsFragment
         subscribeAdapter();
     }
 
+    @Override
+    protected boolean showQueuePriority()
+    {
+        return true;
+    }
+
     @Override
     public void onItemClicked(@NonNull DownloadItem item)
     {
@@ -63,12 +69,12 @@ public class QueuedDownloadsFragment extends DownloadsFragment
     @Override
     public void onItemPauseClicked(@NonNull DownloadItem item)
     {
-        viewModel.pauseResumeDownload(item.info);
+        viewModel.pauseResumeDownload(item.info.id);
     }
 
     @Override
     public void onItemCancelClicked(@NonNull DownloadItem item)
     {
-        viewModel.deleteDownload(item.info, true);
+        viewModel.deleteDownload(item.info.id, true);
     }
 }
@@ -25,6 +25,7 @@ import android.text.InputFilter;
 import android.text.TextUtils;
 
 import androidx.preference.EditTextPreference;
+import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 
@@ -67,6 +68,25 @@ public class LimitationsSettingsFragment extends PreferenceFragmentCompat
             bindOnPreferenceChangeListener(maxActiveDownloads);
         }
 
+        String keyMaxConnections = getString(R.string.pref_key_max_connections);
+        EditTextPreference maxConnections = findPreference(keyMaxConnections);
+        if (maxConnections != null) {
+            String value = Integer.toString(pref.maxConnections());
+            maxConnections.setOnBindEditTextListener((editText) ->
+                    editText.setFilters(new InputFilter[]{new InputFilterMinMax(1, Integer.MAX_VALUE)}));
+            maxConnections.setSummary(value);
+            maxConnections.setText(value);
+            maxConnections.setDialogMessage(R.string.pref_max_connections_dialog_msg);
+            bindOnPreferenceChangeListener(maxConnections);
+        }
+
+        String keySchedulingPolicy = getString(R.string.pref_key_scheduling_policy);
+        ListPreference schedulingPolicy = findPreference(keySchedulingPolicy);
+        if (schedulingPolicy != null) {
+            schedulingPolicy.setValueIndex(pref.schedulingPolicy());
+            bindOnPreferenceChangeListener(schedulingPolicy);
+        }
+
         String keyMaxDownloadRetries = getString(R.string.pref_key_max_download_retries);
         EditTextPreference maxDownloadRetries = findPreference(keyMaxDownloadRetries);
         if (maxDownloadRetries != null) {
@@ -114,6 +134,16 @@ public class LimitationsSettingsFragment extends PreferenceFragmentCompat
             pref.maxActiveDownloads(value);
             preference.setSummary(Integer.toString(value));
 
+        } else if (preference.getKey().equals(getString(R.string.pref_key_max_connections))) {
+            int value = 1;
+            if (!TextUtils.isEmpty((String)newValue))
+                value = Integer.parseInt((String)newValue);
+            pref.maxConnections(value);
+            preference.setSummary(Integer.toString(value));
+
+        } else if (preference.getKey().equals(getString(R.string.pref_key_scheduling_policy))) {
+            pref.schedulingPolicy(Integer.parseInt((String)newValue));
+
         } else if (preference.getKey().equals(getString(R.string.pref_key_max_download_retries))) {
             int value = 0;
             if (!TextUtils.isEmpty((String)newValue))
@@ -24,19 +24,36 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.InputFilter;
+import android.text.TextUtils;
+import android.util.Log;
+import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
+import androidx.preference.EditTextPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.SwitchPreferenceCompat;
 
 import com.tachibana.downloader.R;
+import com.tachibana.downloader.core.InputFilterMinMax;
 import com.tachibana.downloader.core.RepositoryHelper;
+import com.tachibana.downloader.core.model.DownloadEngine;
 import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.storage.DatabaseBackup;
 import com.tachibana.downloader.core.system.FileSystemContracts;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
+
 public class StorageSettingsFragment extends PreferenceFragmentCompat
     implements Preference.OnPreferenceChangeListener
 {
@@ -49,6 +66,7 @@ public class StorageSettingsFragment extends PreferenceFragmentCompat
     /* Preference that is associated with the current dir selection dialog */
     private String dirChooserBindPref;
     private FileSystemFacade fs;
+    private DatabaseBackup backup;
 
     public static StorageSettingsFragment newInstance()
     {
@@ -69,6 +87,7 @@ public class StorageSettingsFragment extends PreferenceFragmentCompat
         Context context = getActivity().getApplicationContext();
         pref = RepositoryHelper.getSettingsRepository(context);
         fs = SystemFacadeHelper.getFileSystemFacade(context);
+        backup = new DatabaseBackup(context);
 
         String keySaveDownloadsIn = getString(R.string.pref_key_save_downloads_in);
         Preference saveDownloadsIn = findPreference(keySaveDownloadsIn);
@@ -123,6 +142,51 @@ public class StorageSettingsFragment extends PreferenceFragmentCompat
             preallocateDiskSpace.setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
             bindOnPreferenceChangeListener(preallocateDiskSpace);
         }
+
+        String keyArchiveAfterDays = getString(R.string.pref_key_archive_after_days);
+        EditTextPreference archiveAfterDays = findPreference(keyArchiveAfterDays);
+        if (archiveAfterDays != null) {
+            String value = Integer.toString(pref.archiveAfterDays());
+            archiveAfterDays.setOnBindEditTextListener((editText) ->
+                    editText.setFilters(new InputFilter[]{new InputFilterMinMax(0, Integer.MAX_VALUE)}));
+            archiveAfterDays.setSummary(value);
+            archiveAfterDays.setText(value);
+            archiveAfterDays.setDialogMessage(R.string.pref_archive_after_days_dialog_msg);
+            bindOnPreferenceChangeListener(archiveAfterDays);
+        }
+
+        String keyArchiveKeepCount = getString(R.string.pref_key_archive_keep_count);
+        EditTextPreference archiveKeepCount = findPreference(keyArchiveKeepCount);
+        if (archiveKeepCount != null) {
+            String value = Integer.toString(pref.archiveKeepCount());
+            archiveKeepCount.setOnBindEditTextListener((editText) ->
+                    editText.setFilters(new InputFilter[]{new InputFilterMinMax(0, Integer.MAX_VALUE)}));
+            archiveKeepCount.setSummary(value);
+            archiveKeepCount.setText(value);
+            archiveKeepCount.setDialogMessage(R.string.pref_archive_keep_count_dialog_msg);
+            bindOnPreferenceChangeListener(archiveKeepCount);
+        }
+
+        String keyExportDownloads = getString(R.string.pref_key_export_downloads);
+        Preference exportDownloads = findPreference(keyExportDownloads);
+        if (exportDownloads != null) {
+            exportDownloads.setOnPreferenceClickListener((preference) -> {
+                String date = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
+                exportChoose.launch("downloads_" + date + DatabaseBackup.FILE_EXTENSION);
+
+                return true;
+            });
+        }
+
+        String keyImportDownloads = getString(R.string.pref_key_import_downloads);
+        Preference importDownloads = findPreference(keyImportDownloads);
+        if (importDownloads != null) {
+            importDownloads.setOnPreferenceClickListener((preference) -> {
+                importChoose.launch(new String[]{"*/*"});
+
+                return true;
+            });
+        }
     }
 
     @Override
@@ -165,6 +229,57 @@ public class StorageSettingsFragment extends PreferenceFragmentCompat
             }
     );
 
+    final ActivityResultLauncher<String> exportChoose = registerForActivityResult(
+            new FileSystemContracts.CreateFile(DatabaseBackup.MIME_TYPE),
+            uri -> {
+                if (uri == null) {
+                    return;
+                }
+                /* Not bound to the fragment lifecycle, must survive configuration changes */
+                Context context = requireContext().getApplicationContext();
+                Completable.fromAction(() -> backup.exportTo(uri))
+                        .subscribeOn(Schedulers.io())
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe(() -> Toast.makeText(context,
+                                        R.string.export_downloads_done,
+                                        Toast.LENGTH_SHORT).show(),
+                                (e) -> {
+                                    Log.e(TAG, "Unable to export downloads: " +
+                                            Log.getStackTraceString(e));
+                                    Toast.makeText(context,
+                                            R.string.export_downloads_error,
+                                            Toast.LENGTH_SHORT).show();
+                                });
+            }
+    );
+
+    final ActivityResultLauncher<String[]> importChoose = registerForActivityResult(
+            new FileSystemContracts.OpenFile(),
+            uri -> {
+                if (uri == null) {
+                    return;
+                }
+                Context context = requireContext().getApplicationContext();
+                Single.fromCallable(() -> backup.importFrom(uri))
+                        .subscribeOn(Schedulers.io())
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe((count) -> {
+                                    /* Schedule the imported pending downloads */
+                                    DownloadEngine.getInstance(context).restoreDownloads();
+                                    Toast.makeText(context,
+                                            context.getString(R.string.import_downloads_done, count),
+                                            Toast.LENGTH_SHORT).show();
+                                },
+                                (e) -> {
+                                    Log.e(TAG, "Unable to import downloads: " +
+                                            Log.getStackTraceString(e));
+                                    Toast.makeText(context,
+                                            R.string.import_downloads_error,
+                                            Toast.LENGTH_SHORT).show();
+                                });
+            }
+    );
+
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue)
     {
@@ -176,6 +291,20 @@ public class StorageSettingsFragment extends PreferenceFragmentCompat
 
         } else if (preference.getKey().equals(getString(R.string.pref_key_preallocate_disk_space))) {
             pref.preallocateDiskSpace((boolean)newValue);
+
+        } else if (preference.getKey().equals(getString(R.string.pref_key_archive_after_days))) {
+            int value = 0;
+            if (!TextUtils.isEmpty((String)newValue))
+                value = Integer.parseInt((String)newValue);
+            pref.archiveAfterDays(value);
+            preference.setSummary(Integer.toString(value));
+
+        } else if (preference.getKey().equals(getString(R.string.pref_key_archive_keep_count))) {
+            int value = 0;
+            if (!TextUtils.isEmpty((String)newValue))
+                value = Integer.parseInt((String)newValue);
+            pref.archiveKeepCount(value);
+            preference.setSummary(Integer.toString(value));
         }
 
         return true;
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Pause and stop latency on stalled connections: the server sends
+ * the headers and a few bytes, then nothing, while the read timeout
+ * is much longer than the expected latency. The same through
+ * HttpConnection is in the instrumented CancellationLatencyTest,
+ * since only the Android HttpURLConnection closes the socket
+ * on disconnect() from another thread
+ */
+
+public class CancellationTokenTest
+{
+    private static final int READ_TIMEOUT = 30 * 1000; /* ms */
+    private static final long MAX_LATENCY = 1000; /* ms */
+
+    private ServerSocket server;
+    private final ArrayList<Socket> accepted = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    synchronized (accepted) {
+                        accepted.add(s);
+                    }
+                    stall(s);
+
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+        synchronized (accepted) {
+            for (Socket s : accepted)
+                s.close();
+        }
+    }
+
+    @Test
+    public void testPauseStalledSocket() throws Exception
+    {
+        assertSocketLatency(CancellationToken.REASON_PAUSE);
+    }
+
+    @Test
+    public void testStopStalledSocket() throws Exception
+    {
+        assertSocketLatency(CancellationToken.REASON_STOP);
+    }
+
+    @Test
+    public void testSleep()
+    {
+        CancellationToken token = new CancellationToken();
+        long start = System.nanoTime();
+        assertTrue(token.sleep(50));
+        assertTrue(elapsedMs(start) >= 50);
+
+        new Thread(() -> {
+            sleepQuietly(50);
+            token.cancel(CancellationToken.REASON_PAUSE);
+        }).start();
+        start = System.nanoTime();
+        assertFalse(token.sleep(READ_TIMEOUT));
+        assertTrue(elapsedMs(start) < MAX_LATENCY);
+        assertFalse(token.sleep(READ_TIMEOUT));
+    }
+
+    @Test
+    public void testFirstReasonWins()
+    {
+        CancellationToken token = new CancellationToken();
+        assertFalse(token.isCancelled());
+        assertTrue(token.cancel(CancellationToken.REASON_PAUSE));
+        assertFalse(token.cancel(CancellationToken.REASON_STOP));
+        assertTrue(token.isCancelled());
+        assertEquals(CancellationToken.REASON_PAUSE, token.getReason());
+    }
+
+    @Test
+    public void testRegisterAfterCancel()
+    {
+        CancellationToken token = new CancellationToken();
+        boolean[] closed = new boolean[2];
+        token.register(() -> closed[0] = true);
+        token.cancel(CancellationToken.REASON_STOP);
+        assertTrue(closed[0]);
+
+        assertFalse(token.register(() -> closed[1] = true));
+        assertTrue(closed[1]);
+    }
+
+    @Test
+    public void testUnregister()
+    {
+        CancellationToken token = new CancellationToken();
+        boolean[] closed = new boolean[1];
+        Closeable resource = () -> closed[0] = true;
+        assertTrue(token.register(resource));
+        token.unregister(resource);
+        token.cancel(CancellationToken.REASON_STOP);
+        assertFalse(closed[0]);
+    }
+
+    private void assertSocketLatency(int reason) throws Exception
+    {
+        CancellationToken token = new CancellationToken();
+        Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        socket.setSoTimeout(READ_TIMEOUT);
+        token.register(socket);
+
+        long latency = measure(token, reason, () -> {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1)
+                ;
+        });
+        assertTrue("Latency " + latency + " ms", latency < MAX_LATENCY);
+        assertEquals(reason, token.getReason());
+    }
+
+    private interface BlockingRead
+    {
+        void run() throws IOException;
+    }
+
+    /*
+     * Returns the time from the cancellation to the end of the read, ms
+     */
+
+    private long measure(CancellationToken token, int reason, BlockingRead read)
+            throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong endTime = new AtomicLong();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                read.run();
+
+            } catch (Throwable e) {
+                error.set(e);
+            } finally {
+                endTime.set(System.nanoTime());
+                done.countDown();
+            }
+        });
+        reader.start();
+
+        /* Let the read block */
+        Thread.sleep(200);
+        assertEquals(1, done.getCount());
+
+        long cancelTime = System.nanoTime();
+        token.cancel(reason);
+        assertTrue("Read isn't cancelled", done.await(READ_TIMEOUT / 2, TimeUnit.MILLISECONDS));
+        /* The read fails, the caller reports the cancellation instead */
+        assertNotNull(error.get());
+
+        return TimeUnit.NANOSECONDS.toMillis(endTime.get() - cancelTime);
+    }
+
+    private static void stall(Socket s) throws IOException
+    {
+        OutputStream out = s.getOutputStream();
+        out.write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Length: 1048576\r\n" +
+                "Connection: close\r\n" +
+                "\r\n" +
+                "partial").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static long elapsedMs(long start)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void sleepQuietly(long ms)
+    {
+        try {
+            Thread.sleep(ms);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueTest
+{
+    @Test
+    public void testFifo()
+    {
+        DownloadQueue queue = newLoadedQueue(new FakeStore());
+        List<UUID> ids = randomIds(5);
+        for (UUID id : ids)
+            assertTrue(queue.push(id));
+        assertFalse(queue.push(ids.get(0)));
+
+        assertEquals(ids, queue.getIds());
+        assertTrue(queue.contains(ids.get(2)));
+        assertTrue(queue.remove(ids.get(2)));
+        assertFalse(queue.contains(ids.get(2)));
+        assertEquals(ids.get(0), queue.pop());
+        assertEquals(ids.get(1), queue.peek());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void testPushAll()
+    {
+        FakeStore store = new FakeStore();
+        DownloadQueue queue = newLoadedQueue(store);
+        List<UUID> ids = randomIds(3);
+        queue.push(ids.get(1));
+
+        assertEquals(Arrays.asList(ids.get(0), ids.get(2)), queue.pushAll(ids));
+        assertEquals(Arrays.asList(ids.get(1), ids.get(0), ids.get(2)), queue.getIds());
+        assertEquals(3, store.saved.size());
+    }
+
+    @Test
+    public void testPriority()
+    {
+        DownloadQueue queue = newLoadedQueue(new FakeStore());
+        List<UUID> ids = randomIds(4);
+        for (UUID id : ids)
+            queue.push(id);
+
+        queue.setPriority(Arrays.asList(ids.get(3), ids.get(1)), QueuedDownload.PRIORITY_HIGH);
+        queue.setPriority(Collections.singletonList(ids.get(0)), QueuedDownload.PRIORITY_LOW);
+
+        assertEquals(Arrays.asList(ids.get(1), ids.get(3), ids.get(2), ids.get(0)),
+                queue.getIds());
+    }
+
+    @Test
+    public void testMove()
+    {
+        FakeStore store = new FakeStore();
+        DownloadQueue queue = newLoadedQueue(store);
+        List<UUID> ids = randomIds(3);
+        for (UUID id : ids)
+            queue.push(id);
+
+        assertTrue(queue.move(ids.get(2), ids.get(0)));
+        assertEquals(Arrays.asList(ids.get(2), ids.get(0), ids.get(1)), queue.getIds());
+        assertTrue(queue.move(ids.get(2), null));
+        assertEquals(ids, queue.getIds());
+        assertFalse(queue.move(UUID.randomUUID(), ids.get(0)));
+        assertFalse(queue.move(ids.get(0), ids.get(0)));
+
+        /* Exhaust the gap before the first download */
+        for (int i = 0; i < 64; i++) {
+            UUID first = queue.peek();
+            UUID last = queue.getIds().get(2);
+            assertTrue(queue.move(last, first));
+            assertEquals(last, queue.peek());
+        }
+        assertEquals(3, queue.size());
+        assertEquals(3, store.saved.size());
+    }
+
+    @Test
+    public void testLoad()
+    {
+        FakeStore store = new FakeStore();
+        DownloadQueue queue = new DownloadQueue(store);
+        List<UUID> ids = randomIds(4);
+
+        /* Pushed before load */
+        queue.push(ids.get(3));
+        queue.push(ids.get(0));
+        queue.remove(ids.get(1));
+        assertTrue(store.saved.isEmpty());
+
+        queue.load(Arrays.asList(
+                new QueuedDownload(ids.get(1), QueuedDownload.PRIORITY_NORMAL, DownloadQueue.POSITION_STEP),
+                new QueuedDownload(ids.get(0), QueuedDownload.PRIORITY_NORMAL, 2 * DownloadQueue.POSITION_STEP),
+                new QueuedDownload(ids.get(2), QueuedDownload.PRIORITY_HIGH, 3 * DownloadQueue.POSITION_STEP)));
+
+        assertTrue(queue.isLoaded());
+        assertEquals(Arrays.asList(ids.get(2), ids.get(0), ids.get(3)), queue.getIds());
+        assertEquals(Collections.singletonList(ids.get(1)), store.deleted);
+        assertTrue(store.saved.containsKey(ids.get(3)));
+        assertNull(store.saved.get(ids.get(0)));
+
+        queue.popAll();
+        assertEquals(0, queue.size());
+        assertTrue(store.saved.isEmpty());
+    }
+
+    private static DownloadQueue newLoadedQueue(FakeStore store)
+    {
+        DownloadQueue queue = new DownloadQueue(store);
+        queue.load(Collections.emptyList());
+
+        return queue;
+    }
+
+    private static List<UUID> randomIds(int count)
+    {
+        ArrayList<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            ids.add(UUID.randomUUID());
+
+        return ids;
+    }
+
+    private static class FakeStore implements DownloadQueue.Store
+    {
+        final HashMap<UUID, QueuedDownload> saved = new HashMap<>();
+        final ArrayList<UUID> deleted = new ArrayList<>();
+
+        @Override
+        public void save(@NonNull List<QueuedDownload> downloads)
+        {
+            for (QueuedDownload download : downloads)
+                saved.put(download.infoId, download);
+        }
+
+        @Override
+        public void delete(@NonNull List<UUID> ids)
+        {
+            deleted.addAll(ids);
+            for (UUID id : ids)
+                saved.remove(id);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.DownloadResult;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadStatesTest
+{
+    private static final int MAX_RUNNING = 8;
+
+    @Test
+    public void testTransitions()
+    {
+        DownloadStates states = new DownloadStates();
+        UUID id = UUID.randomUUID();
+        FakeThread task = new FakeThread();
+
+        assertEquals(DownloadStates.StartResult.STARTED, states.start(id, task, MAX_RUNNING));
+        assertEquals(DownloadStates.StartResult.SKIPPED, states.start(id, new FakeThread(), MAX_RUNNING));
+        assertEquals(1, states.getRunningCount());
+
+        assertSame(task, states.pause(id));
+        assertEquals(DownloadStates.State.PAUSING, states.getState(id));
+        assertNull(states.pause(id));
+        assertSame(task, states.stop(id));
+        assertEquals(DownloadStates.State.STOPPING, states.getState(id));
+
+        DownloadStates.Entry entry = states.finish(id);
+        assertNotNull(entry);
+        assertSame(task, entry.task);
+        assertNull(states.getState(id));
+        assertEquals(0, states.getRunningCount());
+        assertNull(states.finish(id));
+    }
+
+    @Test
+    public void testChangeParams()
+    {
+        DownloadStates states = new DownloadStates();
+        UUID id = UUID.randomUUID();
+        FakeThread task = new FakeThread();
+        ChangeableParams params = new ChangeableParams();
+
+        /* Not running, apply right away */
+        DownloadStates.Entry entry = states.beginChange(id, params);
+        assertNotNull(entry);
+        assertNull(entry.task);
+        assertNull(states.beginChange(id, params));
+        assertEquals(DownloadStates.StartResult.SKIPPED, states.start(id, task, MAX_RUNNING));
+        states.endChange(id);
+        assertNull(states.getState(id));
+
+        /* Running, apply after the thread returns */
+        assertEquals(DownloadStates.StartResult.STARTED, states.start(id, task, MAX_RUNNING));
+        entry = states.beginChange(id, params);
+        assertNotNull(entry);
+        assertSame(task, entry.task);
+        assertNull(states.stop(id));
+        assertNull(states.pause(id));
+
+        entry = states.finish(id);
+        assertNotNull(entry);
+        assertEquals(DownloadStates.State.CHANGING, entry.state);
+        assertSame(params, entry.params);
+        assertEquals(0, states.getRunningCount());
+        assertTrue(states.isChanging(id));
+        states.endChange(id);
+        assertFalse(states.isChanging(id));
+    }
+
+    @Test
+    public void testLimit()
+    {
+        DownloadStates states = new DownloadStates();
+        ArrayList<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < MAX_RUNNING; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            assertEquals(DownloadStates.StartResult.STARTED,
+                    states.start(id, new FakeThread(), MAX_RUNNING));
+        }
+        UUID id = UUID.randomUUID();
+        assertEquals(DownloadStates.StartResult.LIMIT_REACHED,
+                states.start(id, new FakeThread(), MAX_RUNNING));
+
+        states.finish(ids.get(0));
+        assertEquals(DownloadStates.StartResult.STARTED,
+                states.start(id, new FakeThread(), MAX_RUNNING));
+    }
+
+    /*
+     * Threads randomly start, pause, stop, change and finish thousands
+     * of downloads. Only the thread that started a download finishes it,
+     * like the download thread itself does
+     */
+
+    @Test
+    public void testStress() throws InterruptedException
+    {
+        final int numIds = 5000;
+        final int numThreads = 8;
+        final int numOps = 100_000;
+
+        DownloadStates states = new DownloadStates();
+        UUID[] ids = new UUID[numIds];
+        for (int i = 0; i < numIds; i++)
+            ids[i] = UUID.randomUUID();
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        AtomicInteger appliedChanges = new AtomicInteger();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            long seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                ArrayList<UUID> ownIds = new ArrayList<>();
+                ArrayList<FakeThread> ownTasks = new ArrayList<>();
+                try {
+                    startSignal.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < numOps && failure.get() == null; i++) {
+                    UUID id = ids[random.nextInt(numIds)];
+                    int op = random.nextInt(5);
+                    if (op == 0) {
+                        FakeThread task = new FakeThread();
+                        if (states.start(id, task, MAX_RUNNING) == DownloadStates.StartResult.STARTED) {
+                            started.incrementAndGet();
+                            ownIds.add(id);
+                            ownTasks.add(task);
+                        }
+                    } else if (op == 1) {
+                        DownloadThread task = states.pause(id);
+                        if (task != null)
+                            task.requestPause();
+                    } else if (op == 2) {
+                        DownloadThread task = states.stop(id);
+                        if (task != null)
+                            task.requestStop();
+                    } else if (op == 3) {
+                        DownloadStates.Entry entry = states.beginChange(id, new ChangeableParams());
+                        if (entry != null && entry.task == null) {
+                            appliedChanges.incrementAndGet();
+                            states.endChange(id);
+                        }
+                    } else if (!ownIds.isEmpty()) {
+                        int n = random.nextInt(ownIds.size());
+                        if (!finish(states, ownIds.remove(n), ownTasks.remove(n), failure, appliedChanges))
+                            break;
+                        finished.incrementAndGet();
+                    }
+
+                    int running = states.getRunningCount();
+                    if (running > MAX_RUNNING || running < 0)
+                        failure.compareAndSet(null, "Running count out of bounds: " + running);
+                }
+                for (int n = 0; n < ownIds.size(); n++) {
+                    if (!finish(states, ownIds.get(n), ownTasks.get(n), failure, appliedChanges))
+                        break;
+                    finished.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        startSignal.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get(), failure.get());
+        assertTrue(started.get() > 0);
+        assertTrue(appliedChanges.get() > 0);
+        assertEquals(started.get(), finished.get());
+        assertEquals(0, states.getRunningCount());
+        assertTrue(states.getIds().isEmpty());
+    }
+
+    private static boolean finish(DownloadStates states,
+                                  UUID id,
+                                  FakeThread task,
+                                  AtomicReference<String> failure,
+                                  AtomicInteger appliedChanges)
+    {
+        DownloadStates.Entry entry = states.finish(id);
+        if (entry == null || entry.task != task) {
+            failure.compareAndSet(null, "Finished entry of " + id + " doesn't belong to its thread");
+            return false;
+        }
+        if (entry.state == DownloadStates.State.CHANGING) {
+            appliedChanges.incrementAndGet();
+            states.endChange(id);
+        }
+
+        return true;
+    }
+
+    private static class FakeThread implements DownloadThread
+    {
+        volatile boolean stop;
+        volatile boolean pause;
+
+        @Override
+        public void requestStop()
+        {
+            stop = true;
+        }
+
+        @Override
+        public void requestPause()
+        {
+            pause = true;
+        }
+
+        @Override
+        public boolean isRunning()
+        {
+            return true;
+        }
+
+        @Override
+        public ThroughputRecorder getThroughputRecorder()
+        {
+            return null;
+        }
+
+        @Override
+        public boolean requestChange(@NonNull ChangeableParams params,
+                                     @NonNull ChangeCallback callback)
+        {
+            return false;
+        }
+
+        @Override
+        public void updateParams(@NonNull ChangeableParams params)
+        {
+        }
+
+        @Override
+        public DownloadResult call()
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.net.Uri;
+import android.os.Build;
+
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.storage.DataRepository;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class ProgressJournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private DownloadInfo info;
+    private DataRepository repo;
+
+    @Before
+    public void init()
+    {
+        dir = folder.getRoot();
+        info = new DownloadInfo(Uri.parse("file:///"),
+                "http://example.org/file.zip",
+                "file.zip");
+        info.totalBytes = 1024;
+        info.partialSupport = true;
+        info.setNumPieces(2);
+
+        repo = Mockito.mock(DataRepository.class);
+        Mockito.when(repo.getInfoById(info.id)).thenReturn(info);
+        Mockito.when(repo.getPiecesById(info.id)).thenReturn(info.makePieces());
+    }
+
+    @Test
+    public void testTruncatedLastRecord() throws Exception
+    {
+        File file = journalFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            writeRecord(out, 0, 100);
+            writeRecord(out, 1, 600);
+            /* Torn write of the next record */
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+
+        Map<Integer, Long> offsets = ProgressJournal.read(file);
+        assertEquals(2, offsets.size());
+        assertEquals(100L, (long)offsets.get(0));
+        assertEquals(600L, (long)offsets.get(1));
+    }
+
+    @Test
+    public void testCorruptCheckValue() throws Exception
+    {
+        File file = journalFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            writeRecord(out, 0, 100);
+            out.writeInt(0);
+            out.writeLong(300);
+            out.writeInt(ProgressJournal.checkValue(0, 300) ^ 1);
+            /* Records after the corrupted one aren't trusted */
+            writeRecord(out, 1, 600);
+        }
+
+        Map<Integer, Long> offsets = ProgressJournal.read(file);
+        assertEquals(1, offsets.size());
+        assertEquals(100L, (long)offsets.get(0));
+        assertNull(offsets.get(1));
+    }
+
+    @Test
+    public void testCompaction()
+    {
+        ProgressJournal journal = new ProgressJournal(info.id, 2, dir);
+        /* The threshold is 1024 records, so the journal is compacted once */
+        int numRecords = 1500;
+        for (int i = 0; i < numRecords; i++) {
+            int pieceIndex = i % 2;
+            journal.append(pieceIndex, pieceIndex * 512, pieceIndex * 512 + i / 2, 0);
+        }
+
+        File file = journalFile();
+        assertEquals((2 + numRecords - 1024) * 16, file.length());
+        assertFalse(tmpFile().exists());
+
+        Map<Integer, Long> offsets = ProgressJournal.read(file);
+        assertEquals((numRecords - 1) / 2, (long)offsets.get(0));
+        assertEquals(512 + (numRecords - 1) / 2, (long)offsets.get(1));
+
+        journal.delete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testReplayAfterInterruptedCompaction() throws Exception
+    {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile()))) {
+            writeRecord(out, 0, 100);
+            writeRecord(out, 0, 300);
+        }
+        /* Compaction was interrupted before the rename, the file is incomplete */
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile()))) {
+            writeRecord(out, 0, 200);
+        }
+
+        ProgressJournal.replay(dir, info.id, repo);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<DownloadPiece>> pieces = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(repo).updateProgress(Mockito.eq(info.id), pieces.capture(),
+                Mockito.eq(300L), Mockito.eq(0L), Mockito.eq(0));
+        assertEquals(1, pieces.getValue().size());
+        assertEquals(0, pieces.getValue().get(0).index);
+        assertEquals(300, pieces.getValue().get(0).curBytes);
+        assertFalse(journalFile().exists());
+        assertFalse(tmpFile().exists());
+    }
+
+    @Test
+    public void testReplaySkipsOpenJournal()
+    {
+        ProgressJournal journal = new ProgressJournal(info.id, 2, dir);
+        journal.append(0, 0, 100, 0);
+
+        ProgressJournal.replay(dir, info.id, repo);
+        ProgressJournal.replayAll(dir, repo);
+        ProgressJournal.deleteJournal(dir, info.id);
+        Mockito.verifyNoInteractions(repo);
+        assertTrue(journalFile().exists());
+
+        journal.delete();
+        assertFalse(journalFile().exists());
+    }
+
+    @Test
+    public void testReplayAll() throws Exception
+    {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile()))) {
+            writeRecord(out, 1, 700);
+        }
+
+        ProgressJournal.replayAll(dir, repo);
+
+        Mockito.verify(repo).updateProgress(Mockito.eq(info.id), Mockito.anyList(),
+                Mockito.eq(188L), Mockito.eq(0L), Mockito.eq(0));
+        assertFalse(journalFile().exists());
+    }
+
+    @Test
+    public void testDeleteJournal() throws Exception
+    {
+        assertTrue(journalFile().createNewFile());
+        assertTrue(tmpFile().createNewFile());
+
+        ProgressJournal.deleteJournal(dir, info.id);
+        assertFalse(journalFile().exists());
+        assertFalse(tmpFile().exists());
+    }
+
+    private File journalFile()
+    {
+        return new File(dir, info.id + ".journal");
+    }
+
+    private File tmpFile()
+    {
+        return new File(dir, info.id + ".journal.tmp");
+    }
+
+    private static void writeRecord(DataOutputStream out, int pieceIndex, long offset) throws IOException
+    {
+        out.writeInt(pieceIndex);
+        out.writeLong(offset);
+        out.writeInt(ProgressJournal.checkValue(pieceIndex, offset));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.entity.QueuedDownload;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Compares the policies on synthetic workloads, running them
+ * through a simulated link with 1 second steps
+ */
+
+public class SchedulingPolicyTest
+{
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testShortestFirst()
+    {
+        ArrayList<Job> jobs = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 30; i++)
+            jobs.add(new Job(0, (1 + random.nextInt(100)) * MB, 0));
+
+        Result fifo = new Simulator(SchedulingPolicy.FIFO, 10 * MB, 10 * MB, 3).run(jobs);
+        Result shortest = new Simulator(SchedulingPolicy.SHORTEST_FIRST, 10 * MB, 10 * MB, 3).run(jobs);
+
+        assertTrue(shortest.meanCompletionTime < fifo.meanCompletionTime * 0.8);
+        assertEquals(fifo.makespan, shortest.makespan, 2);
+    }
+
+    @Test
+    public void testShortestFirstNoStarvation()
+    {
+        ArrayList<Job> jobs = new ArrayList<>();
+        Job big = new Job(0, 100 * MB, 0);
+        jobs.add(big);
+        /* Small downloads keep coming faster than they're completed */
+        for (int i = 0; i < 200; i++)
+            jobs.add(new Job(i, 2 * MB, 0));
+
+        Result result = new Simulator(SchedulingPolicy.SHORTEST_FIRST, MB, MB, 1).run(jobs);
+
+        /* Each small one takes 2 s */
+        assertTrue(result.startTimes.get(big) <= (ShortestFirstPolicy.MAX_BYPASS + 1) * 2);
+    }
+
+    @Test
+    public void testDeadline()
+    {
+        ArrayList<Job> jobs = new ArrayList<>();
+        /* The later the download is queued, the earlier its deadline */
+        for (int i = 0; i < 20; i++)
+            jobs.add(new Job(0, 10 * MB, (20 - i) * 10 * 1000L + 5000));
+        /* Without a deadline */
+        for (int i = 0; i < 5; i++)
+            jobs.add(i, new Job(0, 10 * MB, 0));
+
+        Result fifo = new Simulator(SchedulingPolicy.FIFO, 2 * MB, 2 * MB, 2).run(jobs);
+        Result deadline = new Simulator(SchedulingPolicy.DEADLINE, 2 * MB, 2 * MB, 2).run(jobs);
+
+        assertEquals(0, deadline.missedDeadlines);
+        assertTrue(fifo.missedDeadlines >= 5);
+    }
+
+    @Test
+    public void testThroughputAware()
+    {
+        ArrayList<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            jobs.add(new Job(0, 50 * MB, 0));
+
+        /* The server gives 4 MiB/s per download, the link saturates at 3 downloads */
+        Result fifo = new Simulator(SchedulingPolicy.FIFO, 10 * MB, 4 * MB, 8).run(jobs);
+        Result throughput = new Simulator(SchedulingPolicy.THROUGHPUT, 10 * MB, 4 * MB, 8).run(jobs);
+
+        assertEquals(8, fifo.maxRunning);
+        assertTrue(throughput.maxRunning <= 4);
+        assertTrue(throughput.meanCompletionTime < fifo.meanCompletionTime);
+        assertTrue(throughput.makespan <= fifo.makespan * 1.1);
+    }
+
+    @Test
+    public void testThroughputAwareFastServers()
+    {
+        ArrayList<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            jobs.add(new Job(0, 100 * MB, 0));
+
+        /* One download saturates the link */
+        Result result = new Simulator(SchedulingPolicy.THROUGHPUT, 10 * MB, 20 * MB, 8).run(jobs);
+
+        assertTrue(result.maxRunning <= 2);
+    }
+
+    private static class Job
+    {
+        final UUID id = UUID.randomUUID();
+        final long arrivalTime; /* s */
+        final long size;
+        final long deadline; /* ms */
+
+        Job(long arrivalTime, long size, long deadline)
+        {
+            this.arrivalTime = arrivalTime;
+            this.size = size;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Result
+    {
+        double meanCompletionTime;
+        long makespan;
+        int missedDeadlines;
+        int maxRunning;
+        HashMap<Job, Long> startTimes = new HashMap<>();
+    }
+
+    /*
+     * The link gives each running download an equal share of the capacity,
+     * but no more than the per-download limit of the server. Scheduling
+     * goes through the real queue, the same way as in DownloadEngine
+     */
+
+    private static class Simulator
+    {
+        private static final int WARM_UP = 5; /* s */
+
+        private final SchedulingPolicy policy;
+        private final long capacity;
+        private final long perDownloadLimit;
+        private final int maxRunning;
+
+        Simulator(int policyType, long capacity, long perDownloadLimit, int maxRunning)
+        {
+            this.policy = SchedulingPolicy.create(policyType);
+            this.capacity = capacity;
+            this.perDownloadLimit = perDownloadLimit;
+            this.maxRunning = maxRunning;
+        }
+
+        Result run(List<Job> jobs)
+        {
+            DownloadQueue queue = new DownloadQueue(new EmptyStore());
+            queue.load(Collections.emptyList());
+            HashMap<UUID, Job> jobById = new HashMap<>();
+            HashMap<Job, Long> remaining = new HashMap<>();
+            HashMap<Job, Long> speeds = new HashMap<>();
+            ArrayList<Job> running = new ArrayList<>();
+            Result result = new Result();
+            long totalCompletionTime = 0;
+            int completed = 0;
+
+            for (long time = 0; completed < jobs.size(); time++) {
+                for (Job job : jobs) {
+                    if (job.arrivalTime != time)
+                        continue;
+                    jobById.put(job.id, job);
+                    remaining.put(job, job.size);
+                    queue.push(job.id);
+                    queue.setRemainingBytes(Collections.singletonMap(job.id, job.size));
+                    if (job.deadline > 0)
+                        queue.setDeadline(Collections.singletonList(job.id), job.deadline);
+                }
+
+                List<QueuedDownload> candidates;
+                while (!(candidates = queue.getCandidates(64)).isEmpty()) {
+                    if (!policy.admit(getLoad(time, running, speeds, result.startTimes)))
+                        break;
+                    Job job = jobById.get(policy.select(candidates).infoId);
+                    queue.remove(job.id);
+                    running.add(job);
+                    result.startTimes.put(job, time);
+                }
+                result.maxRunning = Math.max(result.maxRunning, running.size());
+
+                long share = Math.min(perDownloadLimit, capacity / Math.max(running.size(), 1));
+                for (Job job : new ArrayList<>(running)) {
+                    long left = remaining.get(job) - share;
+                    speeds.put(job, share);
+                    remaining.put(job, left);
+                    if (left > 0)
+                        continue;
+                    running.remove(job);
+                    long finishTime = time + 1;
+                    completed++;
+                    totalCompletionTime += finishTime - job.arrivalTime;
+                    result.makespan = Math.max(result.makespan, finishTime);
+                    if (job.deadline > 0 && finishTime * 1000 > job.deadline)
+                        result.missedDeadlines++;
+                }
+            }
+            result.meanCompletionTime = (double)totalCompletionTime / jobs.size();
+
+            return result;
+        }
+
+        private SchedulingPolicy.Load getLoad(long time, List<Job> running,
+                                              HashMap<Job, Long> speeds,
+                                              HashMap<Job, Long> startTimes)
+        {
+            int warmingUp = 0;
+            long totalSpeed = 0;
+            for (Job job : running) {
+                if (time - startTimes.get(job) < WARM_UP)
+                    warmingUp++;
+                else
+                    totalSpeed += speeds.get(job);
+            }
+
+            return new SchedulingPolicy.Load(time * 1000, running.size(),
+                    maxRunning, warmingUp, totalSpeed);
+        }
+    }
+
+    private static class EmptyStore implements DownloadQueue.Store
+    {
+        @Override
+        public void save(@NonNull List<QueuedDownload> downloads)
+        {
+        }
+
+        @Override
+        public void delete(@NonNull List<UUID> ids)
+        {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.net.Uri;
+import android.os.Build;
+
+import com.tachibana.downloader.core.exception.SourceMismatchException;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class SourceProbeTest
+{
+    private DownloadInfo info;
+
+    @Before
+    public void init()
+    {
+        info = new DownloadInfo(Uri.parse("file:///"),
+                "http://example.org/file.zip?sig=old",
+                "file.zip");
+        info.totalBytes = 1024 * 1024;
+        info.partialSupport = true;
+        info.setNumPieces(4);
+    }
+
+    @Test
+    public void testSameFile() throws Exception
+    {
+        SourceProbe.validate(info, "\"1\"", 4096,
+                "http://example.org/file.zip?sig=new", source(info.totalBytes, true, "\"1\""));
+    }
+
+    @Test
+    public void testSizeDiffers()
+    {
+        try {
+            SourceProbe.validate(info, null, 0,
+                    "http://mirror.example.com/file.zip", source(info.totalBytes + 1, true, null));
+            fail("Size test failed");
+        } catch (SourceMismatchException e) { }
+    }
+
+    @Test
+    public void testNoPartialSupport()
+    {
+        try {
+            SourceProbe.validate(info, null, 4096,
+                    "http://mirror.example.com/file.zip", source(info.totalBytes, false, null));
+            fail("Partial support test failed");
+        } catch (SourceMismatchException e) { }
+    }
+
+    @Test
+    public void testETag() throws Exception
+    {
+        /* The file has changed on the same server */
+        try {
+            SourceProbe.validate(info, "\"1\"", 4096,
+                    "http://example.org/file.zip?sig=new", source(info.totalBytes, true, "\"2\""));
+            fail("ETag test failed");
+        } catch (SourceMismatchException e) { }
+
+        /* ETags of a mirror aren't comparable */
+        SourceProbe.validate(info, "\"1\"", 4096,
+                "http://mirror.example.com/file.zip", source(info.totalBytes, true, "\"2\""));
+        /* Nothing is written yet */
+        SourceProbe.validate(info, "\"1\"", 0,
+                "http://example.org/file.zip?sig=new", source(info.totalBytes, true, "\"2\""));
+        /* No validator */
+        SourceProbe.validate(info, null, 4096,
+                "http://example.org/file.zip?sig=new", source(info.totalBytes, true, "\"2\""));
+    }
+
+    private static SourceProbe.Result source(long totalBytes, boolean partialSupport, String etag)
+    {
+        SourceProbe.Result res = new SourceProbe.Result();
+        res.totalBytes = totalBytes;
+        res.partialSupport = partialSupport;
+        res.etag = etag;
+
+        return res;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import com.tachibana.downloader.core.model.data.entity.ThroughputHistory;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputRecorderTest
+{
+    private static final long MINUTE = ThroughputHistory.SAMPLE_INTERVAL * 1000L;
+
+    @Test
+    public void testSecondSamples()
+    {
+        ThroughputRecorder recorder = new ThroughputRecorder(UUID.randomUUID(), null);
+        assertFalse(recorder.record(0, 0));
+        assertFalse(recorder.record(1000, 1000));
+        assertFalse(recorder.record(2000, 3000));
+        /* Progress went back, e.g. a failed piece is restarted */
+        assertFalse(recorder.record(3000, 2000));
+        /* Not a new sample */
+        assertFalse(recorder.record(3000, 5000));
+
+        assertArrayEquals(new int[]{1000, 2000, 0}, recorder.getSecondSamples());
+        assertEquals(1000, recorder.getRecentSpeed(2));
+        assertEquals(1000, recorder.getRecentSpeed(3));
+        assertEquals(-1, recorder.getRecentSpeed(4));
+    }
+
+    @Test
+    public void testSecondSamplesLimit()
+    {
+        ThroughputRecorder recorder = new ThroughputRecorder(UUID.randomUUID(), null);
+        recorder.record(0, 0);
+        for (int i = 1; i <= ThroughputRecorder.MAX_SECOND_SAMPLES + 10; i++)
+            recorder.record(i * 1000L, i * 100L);
+
+        int[] samples = recorder.getSecondSamples();
+        assertEquals(ThroughputRecorder.MAX_SECOND_SAMPLES, samples.length);
+        assertEquals(100, samples[0]);
+    }
+
+    @Test
+    public void testMinuteSamples()
+    {
+        ThroughputRecorder recorder = new ThroughputRecorder(UUID.randomUUID(), null);
+        recorder.record(0, 0);
+        /* 1000 B/s during the first minute */
+        for (long time = 1000; time < MINUTE; time += 1000)
+            assertFalse(recorder.record(time, time));
+        assertTrue(recorder.record(MINUTE, MINUTE));
+
+        /* 3000 B/s during the incomplete second minute */
+        recorder.record(MINUTE + 10000, MINUTE + 30000);
+        assertArrayEquals(new int[]{1000}, recorder.toHistory().getSamples());
+        recorder.finish();
+        assertArrayEquals(new int[]{1000, 3000}, recorder.toHistory().getSamples());
+    }
+
+    @Test
+    public void testContinueHistory()
+    {
+        UUID id = UUID.randomUUID();
+        ThroughputHistory history = new ThroughputHistory(id, 1000, new int[]{5, 6});
+        ThroughputRecorder recorder = new ThroughputRecorder(id, history);
+        assertEquals(1000, recorder.toHistory().lastSampleTime);
+
+        recorder.record(0, 0);
+        recorder.record(MINUTE, MINUTE * 2);
+        ThroughputHistory newHistory = recorder.toHistory();
+        assertArrayEquals(new int[]{5, 6, 2000}, newHistory.getSamples());
+        assertEquals(id, newHistory.infoId);
+        assertTrue(newHistory.lastSampleTime > 1000);
+    }
+}
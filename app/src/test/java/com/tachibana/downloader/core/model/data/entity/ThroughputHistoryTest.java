@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ThroughputHistoryTest
+{
+    @Test
+    public void testSamplesRoundTrip()
+    {
+        int[] samples = new int[]{0, 1, 255, 256, 65536, Integer.MAX_VALUE};
+        ThroughputHistory history = new ThroughputHistory(UUID.randomUUID(), 1000, samples);
+        assertEquals(samples.length * 4, history.samples.length);
+
+        /* As loaded from the database */
+        ThroughputHistory loaded = new ThroughputHistory(history.infoId,
+                history.lastSampleTime, history.samples);
+        assertArrayEquals(samples, loaded.getSamples());
+    }
+
+    @Test
+    public void testSamplesLimit()
+    {
+        int[] samples = new int[ThroughputHistory.MAX_SAMPLES + 2];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = i;
+
+        int[] res = new ThroughputHistory(UUID.randomUUID(), 0, samples).getSamples();
+        assertEquals(ThroughputHistory.MAX_SAMPLES, res.length);
+        /* The oldest samples are dropped */
+        assertEquals(2, res[0]);
+        assertEquals(samples.length - 1, res[res.length - 1]);
+    }
+}
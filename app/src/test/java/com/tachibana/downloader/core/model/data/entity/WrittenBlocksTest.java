@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WrittenBlocksTest
+{
+    private static final int BLOCK = WrittenBlocks.DEFAULT_BLOCK_SIZE;
+
+    @Test
+    public void testMarkWritten()
+    {
+        /* Three full blocks and a short last one */
+        WrittenBlocks blocks = new WrittenBlocks(UUID.randomUUID(), BLOCK * 3 + 100);
+        assertEquals(4, blocks.getNumBlocks());
+        assertEquals(1, blocks.bits.length);
+
+        /* Partially covered blocks aren't marked */
+        blocks.markWritten(10, BLOCK * 2 + 10);
+        assertFalse(blocks.isWritten(0));
+        assertTrue(blocks.isWritten(1));
+        assertFalse(blocks.isWritten(2));
+
+        /* The last block ends at the end of the file */
+        blocks.markWritten(BLOCK * 3, BLOCK * 3 + 100);
+        assertTrue(blocks.isWritten(3));
+
+        blocks.clear(BLOCK + 1, BLOCK + 2);
+        assertFalse(blocks.isWritten(1));
+    }
+
+    @Test
+    public void testFirstUnwritten()
+    {
+        WrittenBlocks blocks = new WrittenBlocks(UUID.randomUUID(), BLOCK * 4);
+        blocks.markWritten(0, BLOCK * 2);
+
+        assertEquals(BLOCK * 2, blocks.firstUnwritten(100, BLOCK * 4));
+        assertEquals(BLOCK, blocks.firstUnwritten(100, BLOCK));
+        assertEquals(BLOCK * 3 + 5, blocks.firstUnwritten(BLOCK * 3 + 5, BLOCK * 4));
+    }
+
+    @Test
+    public void testCovers()
+    {
+        UUID id = UUID.randomUUID();
+        WrittenBlocks blocks = new WrittenBlocks(id, BLOCK * 5);
+        blocks.markWritten(BLOCK, BLOCK * 4);
+
+        WrittenBlocks other = new WrittenBlocks(id, BLOCK * 5);
+        assertTrue(blocks.covers(other));
+        other.markWritten(BLOCK * 2, BLOCK * 3);
+        assertTrue(blocks.covers(other));
+        other.markWritten(0, BLOCK);
+        assertFalse(blocks.covers(other));
+
+        /* Different layout */
+        assertFalse(blocks.covers(new WrittenBlocks(id, BLOCK * 6)));
+    }
+}
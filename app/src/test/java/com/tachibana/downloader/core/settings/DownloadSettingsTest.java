@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.settings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSettingsTest
+{
+    private SettingsRepository pref;
+
+    @Before
+    public void init()
+    {
+        pref = Mockito.mock(SettingsRepository.class);
+        Mockito.when(pref.speedLimit()).thenReturn(0);
+        Mockito.when(pref.timeout()).thenReturn(20000);
+        Mockito.when(pref.maxConnections()).thenReturn(32);
+        Mockito.when(pref.customBatteryControlValue()).thenReturn(20);
+    }
+
+    @Test
+    public void testSnapshot()
+    {
+        DownloadSettings s = new DownloadSettings(pref);
+        Mockito.when(pref.speedLimit()).thenReturn(512);
+
+        assertEquals(0, s.speedLimit);
+        assertEquals(512, new DownloadSettings(pref).speedLimit);
+        assertEquals(20000, s.timeout);
+        assertEquals(32, s.maxConnections);
+    }
+
+    @Test
+    public void testThroughputChangesKeepConstraints()
+    {
+        DownloadSettings prev = new DownloadSettings(pref);
+        Mockito.when(pref.speedLimit()).thenReturn(512);
+        Mockito.when(pref.timeout()).thenReturn(5000);
+        Mockito.when(pref.maxConnections()).thenReturn(4);
+        Mockito.when(pref.maxDownloadRetries()).thenReturn(10);
+        DownloadSettings cur = new DownloadSettings(pref);
+
+        assertFalse(prev.constraintsChanged(cur));
+        assertFalse(prev.constraintsTightenedBy(cur));
+    }
+
+    @Test
+    public void testTightened()
+    {
+        DownloadSettings prev = new DownloadSettings(pref);
+        Mockito.when(pref.unmeteredConnectionsOnly()).thenReturn(true);
+        DownloadSettings cur = new DownloadSettings(pref);
+
+        assertTrue(prev.constraintsChanged(cur));
+        assertTrue(prev.constraintsTightenedBy(cur));
+        /* Relaxed back */
+        assertTrue(cur.constraintsChanged(prev));
+        assertFalse(cur.constraintsTightenedBy(prev));
+    }
+
+    @Test
+    public void testBatteryThreshold()
+    {
+        Mockito.when(pref.customBatteryControl()).thenReturn(true);
+        DownloadSettings prev = new DownloadSettings(pref);
+        Mockito.when(pref.customBatteryControlValue()).thenReturn(50);
+        DownloadSettings higher = new DownloadSettings(pref);
+
+        assertTrue(prev.constraintsTightenedBy(higher));
+        assertFalse(higher.constraintsTightenedBy(prev));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.settings;
+
+import android.os.Build;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import io.reactivex.disposables.Disposable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+public class SettingsRepositoryImplTest
+{
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+
+    private SettingsRepositoryImpl pref;
+
+    @Before
+    public void init()
+    {
+        pref = new SettingsRepositoryImpl(RuntimeEnvironment.getApplication());
+    }
+
+    @Test
+    public void testSnapshotUpdated()
+    {
+        assertEquals(pref.speedLimit(), pref.downloadSettings().speedLimit);
+
+        pref.speedLimit(512);
+        pref.maxConnections(3);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(512, pref.downloadSettings().speedLimit);
+        assertEquals(3, pref.downloadSettings().maxConnections);
+    }
+
+    @Test
+    public void testSnapshotUpdatedBeforeObservers()
+    {
+        ArrayList<Integer> timeouts = new ArrayList<>();
+        Disposable d = pref.observeSettingsChanged()
+                .subscribe((key) -> timeouts.add(pref.downloadSettings().timeout));
+
+        pref.timeout(12345);
+        pref.maxDownloadRetries(7);
+        shadowOf(Looper.getMainLooper()).idle();
+        d.dispose();
+
+        assertEquals(2, timeouts.size());
+        for (int timeout : timeouts)
+            assertEquals(12345, timeout);
+        assertEquals(7, pref.downloadSettings().maxDownloadRetries);
+    }
+
+    @Test
+    public void testSnapshotNotChangedOnRead()
+    {
+        DownloadSettings s = pref.downloadSettings();
+
+        assertSame(s, pref.downloadSettings());
+        assertEquals(pref.speedLimit(), s.speedLimit);
+        assertEquals(pref.timeout(), s.timeout);
+        assertEquals(pref.maxConnections(), s.maxConnections);
+        assertEquals(pref.maxDownloadRetries(), s.maxDownloadRetries);
+    }
+
+    /*
+     * What a piece thread pays per buffer for the speed limit:
+     * a SharedPreferences read vs. the snapshot read.
+     * Only reports the timings, wall-clock asserts are flaky on CI
+     */
+
+    @Test
+    public void benchmarkSpeedLimitRead()
+    {
+        pref.speedLimit(512);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        readPref(WARMUP_ITERATIONS);
+        readSnapshot(WARMUP_ITERATIONS);
+
+        long start = System.nanoTime();
+        long prefSum = readPref(ITERATIONS);
+        long prefTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long snapshotSum = readSnapshot(ITERATIONS);
+        long snapshotTime = System.nanoTime() - start;
+
+        System.out.println("speedLimit read, " + ITERATIONS + " iterations: " +
+                "SharedPreferences " + (double)prefTime / ITERATIONS + " ns/op, " +
+                "snapshot " + (double)snapshotTime / ITERATIONS + " ns/op");
+        assertEquals(prefSum, snapshotSum);
+    }
+
+    private long readPref(int n)
+    {
+        long sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += pref.speedLimit();
+
+        return sum;
+    }
+
+    private long readSnapshot(int n)
+    {
+        long sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += pref.downloadSettings().speedLimit;
+
+        return sum;
+    }
+}
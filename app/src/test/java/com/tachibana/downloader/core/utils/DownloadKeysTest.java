@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2022 Tachibana General Laboratories, LLC
+ * Copyright (C) 2022 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DownloadKeysTest
+{
+    @Test
+    public void testUrlHash()
+    {
+        assertEquals(DownloadKeys.urlHash("http://example.org/file.zip"),
+                DownloadKeys.urlHash("HTTP://example.org:80/file.zip"));
+        assertNotEquals(DownloadKeys.urlHash("http://example.org/file.zip"),
+                DownloadKeys.urlHash("http://example.org/file2.zip"));
+    }
+
+    @Test
+    public void testContentKey()
+    {
+        String url = "http://example.org/file.zip";
+
+        assertNull(DownloadKeys.contentKey(url, null, 1024));
+        assertNull(DownloadKeys.contentKey(url, "", 1024));
+        assertNull(DownloadKeys.contentKey(url, "\"abc\"", -1));
+
+        String key = DownloadKeys.contentKey(url, "\"abc\"", 1024);
+        assertNotNull(key);
+        assertEquals(key, DownloadKeys.contentKey("HTTP://example.org:80/file.zip", "\"abc\"", 1024));
+        assertNotEquals(key, DownloadKeys.contentKey(url, "\"abd\"", 1024));
+        assertNotEquals(key, DownloadKeys.contentKey(url, "\"abc\"", 1025));
+    }
+}